@@ -17,8 +17,17 @@ import java.util.UUID;
 
 @Entity
 @Table(name = "download_link")
+@NamedQueries({
+		@NamedQuery(name = "DownloadLink" + VSquareObject.GET_ALL, query = "FROM DownloadLink"),
+		@NamedQuery(name = DownloadLink.FIND_BY_EXTERNAL_LINK, query = "FROM DownloadLink d WHERE d.externalLink = ?0"),
+		@NamedQuery(name = DownloadLink.FIND_BY_INTERNAL_LINK, query = "FROM DownloadLink d WHERE d.internalLink = ?0"),
+		@NamedQuery(name = DownloadLink.FIND_BY_VM, query = "FROM DownloadLink d WHERE d.vm.id = ?0") })
 public class DownloadLink extends VSquareObject {
 
+	static final String FIND_BY_EXTERNAL_LINK = "DownloadLink.findByExternalLink";
+	static final String FIND_BY_INTERNAL_LINK = "DownloadLink.findByInternalLink";
+	static final String FIND_BY_VM = "DownloadLink.findByVm";
+
 	// region Variables
 
 	/**
@@ -174,7 +183,7 @@ public class DownloadLink extends VSquareObject {
 	 * @return the DownloadLink or null if not found
 	 */
 	public static DownloadLink findByExternalLink(String externalLink) {
-		return DatabaseManager.getFirstFromSessionQuery("FROM " + DownloadLink.class.getSimpleName() + " WHERE external_link = ?0", externalLink);
+		return DatabaseManager.getFirstFromNamedQuery(FIND_BY_EXTERNAL_LINK, externalLink);
 	}
 	
 	/**
@@ -184,7 +193,7 @@ public class DownloadLink extends VSquareObject {
 	 * @return the DownloadLink or null if not found
 	 */
 	public static DownloadLink findByInternalLink(String internalLink) {
-		return DatabaseManager.getFirstFromSessionQuery("FROM " + DownloadLink.class.getSimpleName() + " WHERE internal_link = ?0", internalLink);
+		return DatabaseManager.getFirstFromNamedQuery(FIND_BY_INTERNAL_LINK, internalLink);
 	}
 	
 	/**
@@ -194,7 +203,7 @@ public class DownloadLink extends VSquareObject {
 	 * @return the DownloadLink or null if not found
 	 */
 	public static DownloadLink findByVm(Vm vm) {
-		return DatabaseManager.getFirstFromSessionQuery("FROM " + DownloadLink.class.getSimpleName() + " WHERE id_vm = ?0", vm.getId());
+		return DatabaseManager.getFirstFromNamedQuery(FIND_BY_VM, vm.getId());
 	}
 		
 	
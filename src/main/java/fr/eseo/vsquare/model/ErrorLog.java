@@ -1,11 +1,14 @@
 package fr.eseo.vsquare.model;
 
+import fr.eseo.vsquare.utils.BatchWriter;
+import fr.eseo.vsquare.utils.CountCache;
 import fr.eseo.vsquare.utils.DatabaseManager;
+import fr.eseo.vsquare.utils.Utils;
+import org.hibernate.annotations.Filter;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import javax.persistence.*;
-import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -17,9 +20,33 @@ import java.util.List;
  */
 @Entity
 @Table(name = "error_log")
+@Filter(name = VSquareObject.DATE_RANGE, condition = VSquareObject.DATE_RANGE_CONDITION)
+@NamedQueries({
+		@NamedQuery(name = "ErrorLog" + VSquareObject.GET_ALL, query = "FROM ErrorLog"),
+		@NamedQuery(name = ErrorLog.GET_EXTRACT, query = "FROM ErrorLog el" + VSquareObject.ORDER_BY_LATEST),
+		@NamedQuery(name = ErrorLog.GET_EXTRACT + VSquareObject.SEEK, query = "FROM ErrorLog el WHERE " + VSquareObject.SEEK_WHERE + VSquareObject.ORDER_BY_LATEST),
+		@NamedQuery(name = ErrorLog.COUNT, query = "SELECT count(*) FROM ErrorLog"),
+		@NamedQuery(name = ErrorLog.SEARCH, query = "SELECT el FROM ErrorLog el WHERE " + ErrorLog.MATCH_SEARCH + VSquareObject.ORDER_BY_LATEST),
+		@NamedQuery(name = ErrorLog.SEARCH + VSquareObject.SEEK, query = "SELECT el FROM ErrorLog el WHERE " + ErrorLog.MATCH_SEARCH + " AND " + VSquareObject.SEEK_WHERE_AFTER_SEARCH + VSquareObject.ORDER_BY_LATEST),
+		@NamedQuery(name = ErrorLog.SEARCH_COUNT, query = "SELECT count(*) FROM ErrorLog el WHERE " + ErrorLog.MATCH_SEARCH),
+		@NamedQuery(name = ErrorLog.SEARCH_LIKE, query = "SELECT el" + ErrorLog.FROM_USER + " WHERE " + ErrorLog.WHERE_SEARCH + VSquareObject.ORDER_BY_LATEST),
+		@NamedQuery(name = ErrorLog.SEARCH_LIKE + VSquareObject.SEEK, query = "SELECT el" + ErrorLog.FROM_USER + " WHERE (" + ErrorLog.WHERE_SEARCH + ") AND " + VSquareObject.SEEK_WHERE_AFTER_SEARCH + VSquareObject.ORDER_BY_LATEST),
+		@NamedQuery(name = ErrorLog.SEARCH_LIKE_COUNT, query = "SELECT count(*)" + ErrorLog.FROM_USER + " WHERE " + ErrorLog.WHERE_SEARCH) })
 public class ErrorLog extends VSquareObject {
+
+	static final String GET_EXTRACT = "ErrorLog.getExtract";
+	static final String COUNT = "ErrorLog.count";
+	static final String SEARCH = "ErrorLog.search";
+	static final String SEARCH_COUNT = "ErrorLog.searchCount";
+	static final String SEARCH_LIKE = "ErrorLog.searchLike";
+	static final String SEARCH_LIKE_COUNT = "ErrorLog.searchLikeCount";
+	static final String FROM_USER = " FROM ErrorLog el LEFT JOIN el.user u";
+	static final String WHERE_SEARCH = "upper(el.error) LIKE ?0 OR upper(u.commonName) LIKE ?0 OR upper(u.login) LIKE ?0";
+	static final String MATCH_SEARCH = "match_against_2(el.error, el.userSearch, ?0) > 0";
 	
 	private static final int MAX_ERROR_LENGTH = 65535;
+
+	private static final BatchWriter<ErrorLog> WRITER = new BatchWriter<>("error_log");
 	
 	// region Variables
 
@@ -32,6 +59,14 @@ public class ErrorLog extends VSquareObject {
 
     @Column(name = "request")
     private String request;
+
+	// words of the full-text search on the user at the origin of the error
+	@Column(name = "user_search")
+	private String userSearch;
+
+	// number of identical errors this log stands for (see ErrorDeduplicator)
+	@Column(name = "repeat_count")
+	private int repeatCount = 1;
 	
 	// endregion
 
@@ -65,6 +100,7 @@ public class ErrorLog extends VSquareObject {
             error = error.substring(0, MAX_ERROR_LENGTH - 3) + "...";
         this.error = error;
         this.request = request;
+        this.userSearch = getSearchText(user);
     }
 
 	
@@ -93,6 +129,13 @@ public class ErrorLog extends VSquareObject {
         return request;
     }
 
+	/**
+	 * @return the number of identical errors this log stands for
+	 */
+	public int getRepeatCount() {
+		return repeatCount;
+	}
+
 	// endregion
 
 	// region Functions
@@ -124,15 +167,34 @@ public class ErrorLog extends VSquareObject {
 	 */
     public static List<ErrorLog> getExtract(int start, int max, String query) {
         if (query == null)
-            return DatabaseManager.getRowsFromSessionQueryNamed("FROM ErrorLog ORDER BY creation_date DESC", start, max, new HashMap<>());
-        HashMap<String, Object> params = new HashMap<>();
-        params.put("query", "%" + query.toUpperCase() + "%");
-        return DatabaseManager.getRowsFromSessionQueryNamed("" +
-                "SELECT el FROM ErrorLog el " +
-                "LEFT JOIN el.user u " +
-                "WHERE upper(el.error) LIKE :query OR upper(u.commonName) LIKE :query " +
-                "OR upper(u.login) LIKE :query " +
-                "ORDER BY el.creationDate DESC", start, max, params);
+            return DatabaseManager.getExtractFromNamedQuery(GET_EXTRACT, start, max);
+		String fullTextQuery = Utils.toFullTextQuery(query);
+		if (fullTextQuery == null)
+			return DatabaseManager.getExtractFromNamedQuery(SEARCH_LIKE, start, max, "%" + query.toUpperCase() + "%");
+		return DatabaseManager.getExtractFromNamedQuery(SEARCH, start, max, fullTextQuery);
+	}
+
+	/**
+	 * Return a list of the error logs following a page cursor.
+	 *
+	 * @param cursor the cursor of the last log of the previous page, null for the first page
+	 * @param max the size of the list
+	 * @param query the string to find
+	 * @return an extract of the logs (latest first) or null if the cursor is invalid
+	 */
+	public static List<ErrorLog> getExtractAfter(String cursor, int max, String query) {
+		if (cursor == null)
+			return getExtract(0, max, query);
+		Object[] position = parsePageCursor(cursor);
+		if (position == null)
+			return null;
+		if (query == null)
+			return DatabaseManager.getExtractFromNamedQuery(GET_EXTRACT + SEEK, 0, max, position);
+		String fullTextQuery = Utils.toFullTextQuery(query);
+		if (fullTextQuery == null)
+			return DatabaseManager.getExtractFromNamedQuery(SEARCH_LIKE + SEEK, 0, max, "%" + query.toUpperCase() + "%",
+					position[0], position[1]);
+		return DatabaseManager.getExtractFromNamedQuery(SEARCH + SEEK, 0, max, fullTextQuery, position[0], position[1]);
 	}
 	
 	/**
@@ -142,16 +204,27 @@ public class ErrorLog extends VSquareObject {
 	 * @return the total count of all logs
 	 */
     public static long count(String query) {
+		return count(query, false);
+	}
+
+	/**
+	 * Count the error logs, the count is cached for a short time and invalidated on insert.
+	 *
+	 * @param query the string to find
+	 * @param approx true if the count may miss the latest logs
+	 * @return the total count of all logs
+	 */
+	public static long count(String query, boolean approx) {
+		return CountCache.get(ErrorLog.class, query, approx, () -> countRows(query));
+	}
+
+	private static long countRows(String query) {
         if (query == null)
-            return DatabaseManager.getFirstFromSessionQuery("SELECT count(*) FROM ErrorLog");
-        HashMap<String, Object> params = new HashMap<>();
-        params.put("query", "%" + query.toUpperCase() + "%");
-        return DatabaseManager.getFirstFromSessionQueryNamed("" +
-                "SELECT count(*) FROM ErrorLog el " +
-                "LEFT JOIN el.user u " +
-                "WHERE upper(el.error) LIKE :query OR upper(u.commonName) LIKE :query " +
-                "OR upper(u.login) LIKE :query " +
-                "ORDER BY el.creationDate DESC", params);
+            return DatabaseManager.getFirstFromNamedQuery(COUNT);
+		String fullTextQuery = Utils.toFullTextQuery(query);
+		if (fullTextQuery == null)
+			return DatabaseManager.getFirstFromNamedQuery(SEARCH_LIKE_COUNT, "%" + query.toUpperCase() + "%");
+		return DatabaseManager.getFirstFromNamedQuery(SEARCH_COUNT, fullTextQuery);
 	}
 
 	@Override
@@ -160,6 +233,8 @@ public class ErrorLog extends VSquareObject {
         if (getUser() != null)
             json.put("user", getUser().toJSON());
 		json.put("error", error);
+		if (repeatCount > 1)
+			json.put("repeat_count", repeatCount);
         if (request != null && request.length() > 0) {
             try {
                 json.put("request", new JSONObject(request));
@@ -188,7 +263,29 @@ public class ErrorLog extends VSquareObject {
      * @param request the original requeest
      */
     public static void log(User user, String error, String request) {
-        new ErrorLog(user, error, request).saveOrUpdate();
+        ErrorLog errorLog = new ErrorLog(user, error, request);
+        // the writer thread does not share the unit of work, the log survives a rollback of the request
+        if (WRITER.offer(errorLog))
+            return;
+        if (DatabaseManager.isUnitOfWorkActive())
+            errorLog.saveInNewSession(); // must survive a rollback of the request
+        else
+            errorLog.saveOrUpdate();
+	}
+
+	/**
+	 * Log the repeats of an error that were only counted.
+	 *
+	 * @param user    the user of the first occurrence
+	 * @param error   the error
+	 * @param request the request of the first occurrence
+	 * @param count   the number of repeats
+	 */
+	public static void logRepeats(User user, String error, String request, int count) {
+		ErrorLog errorLog = new ErrorLog(user, error, request);
+		errorLog.repeatCount = count;
+		if (!WRITER.offer(errorLog))
+			errorLog.saveInNewSession();
 	}
 	
 	// endregion
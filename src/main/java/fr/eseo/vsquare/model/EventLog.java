@@ -1,13 +1,22 @@
 package fr.eseo.vsquare.model;
 
+import fr.eseo.vsquare.utils.BatchWriter;
+import fr.eseo.vsquare.utils.CountCache;
 import fr.eseo.vsquare.utils.DatabaseManager;
 import fr.eseo.vsquare.utils.Logger;
+import fr.eseo.vsquare.utils.Utils;
+import org.hibernate.annotations.Filter;
 import org.json.JSONObject;
 
 import javax.persistence.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 
 /**
@@ -19,8 +28,41 @@ import java.util.logging.Level;
  */
 @Entity
 @Table(name = "event_log")
+@Filter(name = VSquareObject.DATE_RANGE, condition = VSquareObject.DATE_RANGE_CONDITION)
+@NamedQueries({
+        @NamedQuery(name = "EventLog" + VSquareObject.GET_ALL, query = "FROM EventLog"),
+        @NamedQuery(name = EventLog.FIND_USERS, query = "FROM User u WHERE u.id IN (?0)"),
+        @NamedQuery(name = EventLog.FIND_GROUPS, query = "FROM Group g WHERE g.id IN (?0)"),
+        @NamedQuery(name = EventLog.FIND_VMS, query = "SELECT v FROM Vm v LEFT JOIN FETCH v.user WHERE v.id IN (?0)"),
+        @NamedQuery(name = EventLog.FIND_NETWORKS, query = "FROM Network n WHERE n.id IN (?0)") })
 public class EventLog extends VSquareObject {
 
+    static final String FIND_USERS = "EventLog.findUsers";
+    static final String FIND_GROUPS = "EventLog.findGroups";
+    static final String FIND_VMS = "EventLog.findVms";
+    static final String FIND_NETWORKS = "EventLog.findNetworks";
+
+    static final String SEARCH = "EventLog.search.";
+    static final String SUMMARY = ".summary";
+    static final String COUNT = ".count";
+    static final String FROM = " FROM EventLog el";
+    static final String FROM_USER = " FROM EventLog el LEFT JOIN el.user u";
+    static final String SELECT_SUMMARY = "SELECT el.id, el.creationDate, el.action, el.objectType, el.objectId, "
+            + "el.objectName, u.id, u.login, u.commonName, u.type";
+    // the affected user or the user that did the action, as the full-text user_search column
+    static final String WHERE_SEARCH_USER = "(el.objectType = 'USER' AND upper(el.objectName) LIKE ?0) "
+            + "OR upper(u.commonName) LIKE ?0 OR upper(u.login) LIKE ?0";
+    static final String WHERE_SEARCH_ACTION = "el.action = ?0";
+    static final String WHERE_SEARCH_VM = "el.objectType = 'VM' AND upper(el.objectName) LIKE ?0";
+    static final String WHERE_SEARCH_GROUP = "el.objectType = 'GROUP' AND upper(el.objectName) LIKE ?0";
+    static final String WHERE_SEARCH = "upper(el.objectName) LIKE ?0 OR upper(u.commonName) LIKE ?0 OR upper(u.login) LIKE ?0";
+    static final String MATCH_SEARCH_USER = "match_against(el.userSearch, ?0) > 0";
+    static final String MATCH_SEARCH_VM = "el.objectType = 'VM' AND match_against(el.objectName, ?0) > 0";
+    static final String MATCH_SEARCH_GROUP = "el.objectType = 'GROUP' AND match_against(el.objectName, ?0) > 0";
+    static final String MATCH_SEARCH = "match_against_2(el.objectName, el.userSearch, ?0) > 0";
+
+    private static final BatchWriter<EventLog> WRITER = new BatchWriter<>("event_log");
+
     public enum EventAction {
         CREATE, EDIT, DELETE, POWER_ON, POWER_OFF, RESET, SUSPEND, CLONE, EXPORT, IMPORT
     }
@@ -50,6 +92,10 @@ public class EventLog extends VSquareObject {
     @Column(name = "object_name")
     private String objectName;
 
+    // words of the "user:" full-text search: the user that did the action and the user affected
+    @Column(name = "user_search")
+    private String userSearch;
+
     // endregion
 
     // region Constructors
@@ -97,6 +143,7 @@ public class EventLog extends VSquareObject {
             throw new IllegalArgumentException("Event object is invalid");
 
         this.objectId = tmpId;
+        this.userSearch = getSearchText(user, objectType == EventObject.USER ? objectName : null);
     }
 
 
@@ -144,6 +191,10 @@ public class EventLog extends VSquareObject {
      * @return this event object
      */
     public VSquareObject getObject() {
+        return findObject(objectType, objectId);
+    }
+
+    private static VSquareObject findObject(EventObject objectType, int objectId) {
         switch (objectType) {
             case GROUP:
                 return Group.findById(objectId);
@@ -157,6 +208,16 @@ public class EventLog extends VSquareObject {
         return null;
     }
 
+    /**
+     * @return the queries of every search shape by name, registered as named queries (see DatabaseManager)
+     */
+    public static Map<String, String> getSearchQueries() {
+        Map<String, String> queries = new LinkedHashMap<>();
+        for (SearchType type : SearchType.values())
+            queries.putAll(type.getQueries());
+        return queries;
+    }
+
     /**
      * @return all logs from the table
      */
@@ -173,76 +234,101 @@ public class EventLog extends VSquareObject {
      * @return an extract of the logs (latest first)
      */
     public static List<EventLog> getExtract(int start, int max, String query) {
-        if (query == null)
-            return DatabaseManager.getRowsFromSessionQueryNamed("FROM EventLog ORDER BY creation_date DESC", start, max, new HashMap<>());
-        HashMap<String, Object> params = new HashMap<>();
-
-        String sqlQuery = getQuery(query, params);
-        if (sqlQuery == null)
-            return new ArrayList<>();
-
-        return DatabaseManager.getRowsFromSessionQueryNamed("" +
-                "SELECT el " + sqlQuery, start, max, params);
+        return getRows(start, max, query, false);
     }
 
     /**
+     * Same as getExtract, reading only the columns shown in the lists.
+     *
+     * @param start the starting log
+     * @param max   the size of the list
      * @param query the string to find
-     * @return the total count of all logs
+     * @return the summaries of an extract of the logs (latest first)
      */
-    public static long count(String query) {
-        if (query == null)
-            return DatabaseManager.getFirstFromSessionQuery("SELECT count(*) FROM EventLog");
-
-        HashMap<String, Object> params = new HashMap<>();
+    public static List<Summary> getSummaries(int start, int max, String query) {
+        return toSummaries(getRows(start, max, query, true));
+    }
 
-        String sqlQuery = getQuery(query, params);
-        if (sqlQuery == null)
-            return 0;
+    private static <T> List<T> getRows(int start, int max, String query, boolean summary) {
+        Search search = Search.parse(query);
+        if (search == null)
+            return new ArrayList<>();
+        return DatabaseManager.getExtractFromNamedQuery(search.getType().getQueryName(summary, false), start, max,
+                search.getParameters(null));
+    }
 
-        return DatabaseManager.getFirstFromSessionQueryNamed("SELECT count(*) " + sqlQuery, params);
+    /**
+     * Return a list of the event logs following a page cursor.
+     *
+     * @param cursor the cursor of the last log of the previous page, null for the first page
+     * @param max    the size of the list
+     * @param query  the string to find
+     * @return an extract of the logs (latest first) or null if the cursor is invalid
+     */
+    public static List<EventLog> getExtractAfter(String cursor, int max, String query) {
+        return getRowsAfter(cursor, max, query, false);
     }
 
     /**
-     * Get the HQL query to be used in DatabaseManager.
+     * Same as getExtractAfter, reading only the columns shown in the lists.
      *
-     * @param query  the string to search
-     * @param params the query parameters
-     * @return the query starting from "FROM" or null on error
+     * @param cursor the cursor of the last log of the previous page, null for the first page
+     * @param max    the size of the list
+     * @param query  the string to find
+     * @return the summaries of an extract of the logs (latest first) or null if the cursor is invalid
      */
-    private static String getQuery(String query, HashMap<String, Object> params) {
-        final String queryParameter = "query";
+    public static List<Summary> getSummariesAfter(String cursor, int max, String query) {
+        List<Object[]> rows = getRowsAfter(cursor, max, query, true);
+        return rows == null ? null : toSummaries(rows);
+    }
 
-        if (query.startsWith("user:")) {
-            query = query.substring("user:".length());
-            params.put(queryParameter, "%" + query.toUpperCase() + "%");
-            return "FROM EventLog el LEFT JOIN el.user u WHERE el.objectType = 'USER' AND upper(el.objectName) LIKE :query OR upper(u.commonName) LIKE :query OR upper(u.login) LIKE :query ORDER BY el.creationDate DESC";
-        }
+    private static <T> List<T> getRowsAfter(String cursor, int max, String query, boolean summary) {
+        if (cursor == null)
+            return getRows(0, max, query, summary);
+        Object[] position = parsePageCursor(cursor);
+        if (position == null)
+            return null;
 
-        if (query.startsWith("action:")) {
-            query = query.substring("action:".length());
-            EventAction eventAction = parseEventAction(query);
-            if (eventAction != null) {
-                params.put(queryParameter, eventAction);
-                return "FROM EventLog el WHERE el.action = :query ORDER BY el.creationDate DESC";
-            } else {
-                return null;
-            }
-        }
+        Search search = Search.parse(query);
+        if (search == null)
+            return new ArrayList<>();
+        return DatabaseManager.getExtractFromNamedQuery(search.getType().getQueryName(summary, true), 0, max,
+                search.getParameters(position));
+    }
 
-        if (query.startsWith("vm:")) {
-            query = query.substring("vm:".length());
-            params.put(queryParameter, "%" + query.toUpperCase() + "%");
-            return "FROM EventLog el WHERE el.objectType = 'VM' AND upper(el.objectName) LIKE :query ORDER BY el.creationDate DESC";
-        }
+    private static List<Summary> toSummaries(List<Object[]> rows) {
+        List<Summary> summaries = new ArrayList<>(rows.size());
+        for (Object[] row : rows)
+            summaries.add(new Summary(row));
+        return summaries;
+    }
 
-        if (query.startsWith("group:")) {
-            query = query.substring("group:".length());
-            params.put(queryParameter, "%" + query.toUpperCase() + "%");
-            return "FROM EventLog el WHERE el.objectType = 'GROUP' AND upper(el.objectName) LIKE :query ORDER BY el.creationDate DESC";
-        }
+    /**
+     * @param query the string to find
+     * @return the total count of all logs
+     */
+    public static long count(String query) {
+        return count(query, false);
+    }
 
-        params.put(queryParameter, "%" + query.toUpperCase() + "%");
-        return "FROM EventLog el LEFT JOIN el.user u WHERE upper(el.objectName) LIKE :query OR upper(u.commonName) LIKE :query OR upper(u.login) LIKE :query ORDER BY el.creationDate DESC";
+    /**
+     * Count the logs, the count is cached for a short time and invalidated on insert.
+     *
+     * @param query  the string to find
+     * @param approx true if the count may miss the latest logs
+     * @return the total count of all logs
+     */
+    public static long count(String query, boolean approx) {
+        return CountCache.get(EventLog.class, query, approx, () -> countRows(query));
+    }
+
+    private static long countRows(String query) {
+        Search search = Search.parse(query);
+        if (search == null)
+            return 0;
+        Long count = DatabaseManager.getFirstFromNamedQuery(search.getType().getCountQueryName(),
+                search.getParameters(null));
+        return count == null ? 0 : count;
     }
 
     @Override
@@ -250,24 +336,65 @@ public class EventLog extends VSquareObject {
         JSONObject json = super.toJSON(true);
         json.put("user", getUser().toJSON());
         json.put("action", action.toString());
+        json.put("object", toObjectJSON(detailed ? getObject() : null, objectType, objectId, objectName));
+        return json;
+    }
+
+    /**
+     * Same as Summary.toJSON with the current values of the objects of the events, as EventLog.toJSON(true).
+     * <p>
+     * The objects are read with one query per object type instead of one query per event.
+     *
+     * @param summaries the events
+     * @return the json of the events in the same order
+     */
+    public static List<JSONObject> toDetailedJSON(List<Summary> summaries) {
+        Map<EventObject, List<Integer>> ids = new EnumMap<>(EventObject.class);
+        for (Summary summary : summaries)
+            ids.computeIfAbsent(summary.objectType, type -> new ArrayList<>()).add(summary.objectId);
+
+        Map<EventObject, Map<Integer, VSquareObject>> objects = new EnumMap<>(EventObject.class);
+        for (Map.Entry<EventObject, List<Integer>> entry : ids.entrySet()) {
+            Map<Integer, VSquareObject> byId = new HashMap<>();
+            List<VSquareObject> rows = DatabaseManager.getRowsFromNamedQuery(getFindObjectsQuery(entry.getKey()),
+                    entry.getValue());
+            for (VSquareObject object : rows)
+                byId.put(object.getId(), object);
+            objects.put(entry.getKey(), byId);
+        }
+
+        List<JSONObject> jsons = new ArrayList<>(summaries.size());
+        for (Summary summary : summaries)
+            jsons.add(summary.toJSON(objects.get(summary.objectType).get(summary.objectId)));
+        return jsons;
+    }
 
-        JSONObject jsonObject = new JSONObject();
-        if (detailed) {
-            VSquareObject vSquareObject = getObject();
-            if (vSquareObject != null)
-                jsonObject = vSquareObject.toJSON();
+    private static String getFindObjectsQuery(EventObject objectType) {
+        switch (objectType) {
+            case GROUP:
+                return FIND_GROUPS;
+            case USER:
+                return FIND_USERS;
+            case VM:
+                return FIND_VMS;
+            default:
+                return FIND_NETWORKS;
         }
+    }
+
+    private static JSONObject toObjectJSON(VSquareObject object, EventObject objectType, int objectId,
+                                           String objectName) {
+        JSONObject jsonObject = object == null ? new JSONObject() : object.toJSON();
         jsonObject.put("id", objectId);
         jsonObject.put("name", objectName);
         jsonObject.put("object", objectType.toString());
-
-        json.put("object", jsonObject);
-
-        return json;
+        return jsonObject;
     }
 
     /**
      * Log an event.
+     * 
+     * The event is written in the background with the next batch of events (see BatchWriter).
      *
      * @param user   the event user
      * @param action the action
@@ -275,7 +402,7 @@ public class EventLog extends VSquareObject {
      */
     public static void log(User user, EventAction action, VSquareObject object) {
         Logger.log(Level.INFO, "{0} ({1}) : {2} -> {3}", user.getLogin(), user, action.toString(), object);
-        new EventLog(user, action, object).saveOrUpdate();
+        WRITER.write(new EventLog(user, action, object));
     }
 
     public static EventAction getActionFromVmPower(String action) {
@@ -309,4 +436,235 @@ public class EventLog extends VSquareObject {
 
     // endregion
 
+    /**
+     * The shapes of the searches in the logs: the condition with its single parameter, assembled with the page cursor,
+     * the selected columns and the order into the list and count queries.
+     * <p>
+     * Every shape is registered as named queries when a session factory is built (see getSearchQueries), so a broken
+     * query fails at startup like the NamedQuery annotations of ErrorLog.
+     */
+    enum SearchType {
+        ALL(null, false, false),
+        ACTION(WHERE_SEARCH_ACTION, false, false),
+        USER(MATCH_SEARCH_USER, false, false),
+        USER_LIKE(WHERE_SEARCH_USER, true, true),
+        VM(MATCH_SEARCH_VM, false, false),
+        VM_LIKE(WHERE_SEARCH_VM, false, true),
+        GROUP(MATCH_SEARCH_GROUP, false, false),
+        GROUP_LIKE(WHERE_SEARCH_GROUP, false, true),
+        TEXT(MATCH_SEARCH, false, false),
+        TEXT_LIKE(WHERE_SEARCH, true, true);
+
+        private final String condition;
+        private final boolean joinUser;
+        private final boolean like;
+
+        SearchType(String condition, boolean joinUser, boolean like) {
+            this.condition = condition;
+            this.joinUser = joinUser;
+            this.like = like;
+        }
+
+        /**
+         * @return true if the search reads the whole table with LIKE '%...%'
+         */
+        boolean isLike() {
+            return like;
+        }
+
+        /**
+         * @param summary true to select the columns of a summary instead of the event
+         * @param seek    true to select the events following a page cursor
+         * @return the name of the query of the list
+         */
+        String getQueryName(boolean summary, boolean seek) {
+            return SEARCH + name() + (summary ? SUMMARY : "") + (seek ? SEEK : "");
+        }
+
+        /**
+         * @return the name of the query counting the events
+         */
+        String getCountQueryName() {
+            return SEARCH + name() + COUNT;
+        }
+
+        /**
+         * @return the queries of this search by name
+         */
+        Map<String, String> getQueries() {
+            Map<String, String> queries = new LinkedHashMap<>();
+            for (boolean summary : new boolean[] { false, true }) {
+                queries.put(getQueryName(summary, false), toQuery(summary, false));
+                queries.put(getQueryName(summary, true), toQuery(summary, true));
+            }
+            queries.put(getCountQueryName(), toCountQuery());
+            return queries;
+        }
+
+        private String toQuery(boolean summary, boolean seek) {
+            StringBuilder hql = new StringBuilder(summary ? SELECT_SUMMARY : "SELECT el");
+            hql.append(summary || joinUser ? FROM_USER : FROM);
+            List<String> conditions = new ArrayList<>();
+            if (condition != null)
+                conditions.add("(" + condition + ")");
+            if (seek)
+                conditions.add(condition == null ? SEEK_WHERE : SEEK_WHERE_AFTER_SEARCH);
+            if (!conditions.isEmpty())
+                hql.append(" WHERE ").append(String.join(" AND ", conditions));
+            return hql.append(ORDER_BY_LATEST).toString();
+        }
+
+        private String toCountQuery() {
+            return "SELECT count(*)" + (joinUser ? FROM_USER : FROM) + (condition == null ? "" : " WHERE " + condition);
+        }
+    }
+
+    /**
+     * A search in the logs: its shape and its parameter.
+     */
+    static final class Search {
+        private static final Search ALL = new Search(SearchType.ALL, null);
+
+        private final SearchType type;
+        private final Object parameter;
+
+        private Search(SearchType type, Object parameter) {
+            this.type = type;
+            this.parameter = parameter;
+        }
+
+        /**
+         * Parse a search string ("user:", "action:", "vm:" and "group:" prefixes or words).
+         *
+         * @param query the string to search, null for every log
+         * @return the search or null if it cannot match any log
+         */
+        static Search parse(String query) {
+            if (query == null)
+                return ALL;
+
+            if (query.startsWith("user:"))
+                return text(query.substring("user:".length()), SearchType.USER, SearchType.USER_LIKE);
+
+            if (query.startsWith("action:")) {
+                EventAction eventAction = parseEventAction(query.substring("action:".length()));
+                return eventAction == null ? null : new Search(SearchType.ACTION, eventAction);
+            }
+
+            if (query.startsWith("vm:"))
+                return text(query.substring("vm:".length()), SearchType.VM, SearchType.VM_LIKE);
+
+            if (query.startsWith("group:"))
+                return text(query.substring("group:".length()), SearchType.GROUP, SearchType.GROUP_LIKE);
+
+            return text(query, SearchType.TEXT, SearchType.TEXT_LIKE);
+        }
+
+        /**
+         * Choose between the full-text and the LIKE shape of a text search.
+         *
+         * @param search    the string to search
+         * @param matchType the full-text shape
+         * @param likeType  the LIKE shape
+         * @return the search
+         */
+        private static Search text(String search, SearchType matchType, SearchType likeType) {
+            String fullTextQuery = Utils.toFullTextQuery(search);
+            if (fullTextQuery == null)
+                return new Search(likeType, "%" + search.toUpperCase() + "%");
+            return new Search(matchType, fullTextQuery);
+        }
+
+        /**
+         * @return the shape of the search
+         */
+        SearchType getType() {
+            return type;
+        }
+
+        /**
+         * @return true if the search reads the whole table with LIKE '%...%'
+         */
+        boolean isLike() {
+            return type.isLike();
+        }
+
+        /**
+         * @param position the page cursor (creation date, id), null for the first page
+         * @return the parameters of the queries in order
+         */
+        Object[] getParameters(Object[] position) {
+            List<Object> params = new ArrayList<>();
+            if (parameter != null)
+                params.add(parameter);
+            if (position != null)
+                params.addAll(Arrays.asList(position));
+            return params.toArray();
+        }
+    }
+
+    /**
+     * The columns of an event shown in the lists, read with the columns of its user in a single query.
+     */
+    public static final class Summary {
+        private final int id;
+        private final Date creationDate;
+        private final EventAction action;
+        private final EventObject objectType;
+        private final int objectId;
+        private final String objectName;
+        private final User.Summary user;
+
+        private Summary(Object[] row) {
+            this.id = (Integer) row[0];
+            this.creationDate = (Date) row[1];
+            this.action = (EventAction) row[2];
+            this.objectType = (EventObject) row[3];
+            this.objectId = (Integer) row[4];
+            this.objectName = (String) row[5];
+            this.user = row[6] == null ? null : new User.Summary(row, 6);
+        }
+
+        /**
+         * @return the id of the event
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * @return the creation date of the event
+         */
+        public Date getCreationDate() {
+            return creationDate;
+        }
+
+        /**
+         * @return the cursor pointing after this event (see VSquareObject.getPageCursor)
+         */
+        public String getPageCursor() {
+            return toPageCursor(creationDate, id);
+        }
+
+        /**
+         * @return the same json as EventLog.toJSON(false)
+         */
+        public JSONObject toJSON() {
+            return toJSON(null);
+        }
+
+        /**
+         * @param object the object of the event with its current values, null to leave them out
+         * @return the same json as EventLog.toJSON
+         */
+        private JSONObject toJSON(VSquareObject object) {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("creation_date", creationDate);
+            json.put("user", user == null ? JSONObject.NULL : user.toJSON());
+            json.put("action", action.toString());
+            json.put("object", toObjectJSON(object, objectType, objectId, objectName));
+            return json;
+        }
+    }
 }
@@ -2,7 +2,9 @@ package fr.eseo.vsquare.model;
 
 import fr.eseo.vsquare.model.User.UserType;
 import fr.eseo.vsquare.utils.DatabaseManager;
+import fr.eseo.vsquare.utils.GroupTree;
 import fr.eseo.vsquare.utils.Logger;
+import org.hibernate.Session;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -20,8 +22,62 @@ import java.util.logging.Level;
 
 @Entity
 @Table(name = "user_group")
+@NamedQueries({
+		@NamedQuery(name = "Group" + VSquareObject.GET_ALL, query = "FROM Group"),
+		@NamedQuery(name = Group.GET_CHILDREN, query = "FROM Group g WHERE g.parent.id = ?0"),
+		@NamedQuery(name = Group.GET_USERS, query = "SELECT u FROM User u JOIN u.groups g WHERE g.id = ?0"),
+		@NamedQuery(name = Group.GET_NETWORKS, query = "SELECT n FROM Network n JOIN n.groups g WHERE g.id = ?0"),
+		@NamedQuery(name = Group.GET_TEMPLATES, query = "SELECT t FROM Group g JOIN g.templates t WHERE g.id = ?0"),
+		@NamedQuery(name = Group.GET_DESCENDANTS, query = "FROM Group g WHERE g.id IN "
+				+ "(SELECT c.descendant FROM GroupClosure c WHERE c.ancestor = ?0 AND c.depth > 0)"),
+		@NamedQuery(name = Group.GET_ANCESTORS, query = "SELECT g FROM GroupClosure c, Group g "
+				+ "LEFT JOIN FETCH g.permission WHERE g.id = c.ancestor AND c.descendant = ?0 ORDER BY c.depth"),
+		@NamedQuery(name = Group.GET_SUBTREE_USERS, query = "SELECT DISTINCT u FROM User u JOIN u.groups g "
+				+ "WHERE g.id IN (SELECT c.descendant FROM GroupClosure c WHERE c.ancestor = ?0)"),
+		@NamedQuery(name = Group.GET_AVAILABLE_NETWORKS, query = "SELECT DISTINCT n FROM Network n JOIN n.groups g "
+				+ "WHERE g.id IN (SELECT c.ancestor FROM GroupClosure c WHERE c.descendant = ?0)"),
+		@NamedQuery(name = Group.GET_AVAILABLE_TEMPLATES, query = "SELECT DISTINCT t FROM Group g JOIN g.templates t "
+				+ "WHERE g.id IN (SELECT c.ancestor FROM GroupClosure c WHERE c.descendant = ?0)"),
+		@NamedQuery(name = Group.GET_SUBTREE_MEMBERSHIPS, query = "SELECT u.id, g.id FROM User u JOIN u.groups g "
+				+ "WHERE u.id IN (" + Group.SUBTREE_USER_IDS + ")"),
+		@NamedQuery(name = Group.GET_SUBTREE_PERMISSIONS, query = "SELECT c.descendant, c.depth, p.vmCount, "
+				+ "p.cpuCount, p.memorySize, p.diskStorage FROM GroupClosure c, Group a JOIN a.permission p "
+				+ "WHERE a.id = c.ancestor AND c.descendant IN (SELECT g.id FROM User u JOIN u.groups g "
+				+ "WHERE u.id IN (" + Group.SUBTREE_USER_IDS + "))"),
+		@NamedQuery(name = Group.GET_SUBTREE_VMS, query = "SELECT v.user.id, COUNT(v.id) FROM Vm v "
+				+ "WHERE v.template = false AND v.user.id IN (" + Group.SUBTREE_USER_IDS + ") GROUP BY v.user.id"),
+		@NamedQuery(name = Group.TREE_GROUPS, query = "SELECT g.id, pa.id, p.id, p.vmCount, p.cpuCount, "
+				+ "p.memorySize, p.diskStorage FROM Group g LEFT JOIN g.parent pa LEFT JOIN g.permission p"),
+		@NamedQuery(name = Group.TREE_MEMBERS, query = "SELECT g.id, u.id FROM User u JOIN u.groups g"),
+		@NamedQuery(name = Group.TREE_NETWORKS, query = "SELECT g.id, n FROM Network n JOIN n.groups g"),
+		@NamedQuery(name = Group.TREE_TEMPLATES, query = "SELECT g.id, t FROM Group g JOIN g.templates t"),
+		@NamedQuery(name = Group.TREE_VMS, query = "SELECT v.user.id, COUNT(v.id) FROM Vm v "
+				+ "WHERE v.template = false GROUP BY v.user.id") })
 public class Group extends VSquareObject {
 
+	// the whole group tree, read by GroupTree
+	public static final String TREE_GROUPS = "GroupTree.groups" + VSquareObject.GET_ALL;
+	public static final String TREE_MEMBERS = "GroupTree.members" + VSquareObject.GET_ALL;
+	public static final String TREE_NETWORKS = "GroupTree.networks" + VSquareObject.GET_ALL;
+	public static final String TREE_TEMPLATES = "GroupTree.templates" + VSquareObject.GET_ALL;
+	public static final String TREE_VMS = "GroupTree.vms" + VSquareObject.GET_ALL;
+
+	static final String GET_CHILDREN = "Group.getChildren";
+	static final String GET_USERS = "Group.getUsers";
+	static final String GET_NETWORKS = "Group.getNetworks";
+	static final String GET_TEMPLATES = "Group.getTemplates";
+	static final String GET_DESCENDANTS = "Group.getDescendants";
+	static final String GET_ANCESTORS = "Group.getAncestors";
+	static final String GET_SUBTREE_USERS = "Group.getSubtreeUsers";
+	static final String GET_AVAILABLE_NETWORKS = "Group.getAvailableNetworks";
+	static final String GET_AVAILABLE_TEMPLATES = "Group.getAvailableTemplates";
+	// the statistics of a subtree when the group tree is bypassed
+	static final String GET_SUBTREE_MEMBERSHIPS = "Group.getSubtreeMemberships";
+	static final String GET_SUBTREE_PERMISSIONS = "Group.getSubtreePermissions";
+	static final String GET_SUBTREE_VMS = "Group.getSubtreeVms";
+	static final String SUBTREE_USER_IDS = "SELECT su.id FROM User su JOIN su.groups sg "
+			+ "WHERE sg.id IN (SELECT sc.descendant FROM GroupClosure sc WHERE sc.ancestor = ?0)";
+
 	// region Variables
 
 	@Column(name = "name")
@@ -33,9 +89,13 @@ public class Group extends VSquareObject {
 	@ManyToOne(fetch = FetchType.LAZY)
 	@JoinColumn(name = "id_parent_group")
 	private Group parent;
+
+	// the parent as stored in the database, to know when the closure rows must be moved
+	@Column(name = "id_parent_group", insertable = false, updatable = false)
+	private Integer storedParentId;
 	
 	@ManyToMany(mappedBy = "groups",
-			fetch=FetchType.EAGER)
+			fetch=FetchType.LAZY)
     private Set<User> users = new HashSet<>();
 	
 	@ManyToOne(fetch = FetchType.LAZY)
@@ -134,13 +194,22 @@ public class Group extends VSquareObject {
 	 * @return the parent group of the current group
 	 */
 	public Group getParent() {
+		parent = fetch(parent, () -> Group.findById(idOf(parent)));
 		return parent;
 	}
+
+	/**
+	 * @return the id of the parent group, without loading it
+	 */
+	public Integer getParentId() {
+		return idOf(parent);
+	}
 	
 	/**
 	 * @return a set of all users in the group
 	 */
 	public Set<User> getUsers() {
+		users = fetchSet(users, () -> DatabaseManager.getRowsFromNamedQuery(GET_USERS, getId()));
 		return users;
 	}
 	
@@ -148,6 +217,7 @@ public class Group extends VSquareObject {
 	 * @return permissions defined for the group
 	 */
     private Permission getPermission() {
+		permission = fetch(permission, () -> Permission.findById(idOf(permission)));
 		return permission;
 	}
 	
@@ -159,19 +229,21 @@ public class Group extends VSquareObject {
 	}
 
     public Set<Network> getNetworks() {
+        networks = fetchSet(networks, () -> DatabaseManager.getRowsFromNamedQuery(GET_NETWORKS, getId()));
         return networks;
     }
     
     public Set<Vm> getTemplates(){
+    	templates = fetchSet(templates, () -> DatabaseManager.getRowsFromNamedQuery(GET_TEMPLATES, getId()));
     	return templates;
     }
     
     public void addTemplate(Vm vm) {
-    	this.templates.add(vm);
+    	getTemplates().add(vm);
     }
     
     public void removeTemplate(Vm vm) {
-    	this.templates.remove(vm);
+    	getTemplates().remove(vm);
     }
 
     // endregion
@@ -190,29 +262,65 @@ public class Group extends VSquareObject {
     public Permission getEffectivePermission() {
         if (getPermission() != null)
             return getPermission();
-        if (getParent() == null)
+        if (getParentId() == null)
             return new Permission();
-        return getParent().getEffectivePermission();
+        // inherited, the snapshot holds it without loading the ancestors
+        Permission inherited = GroupTree.get().getEffectivePermission(getId());
+        if (inherited != null)
+            return inherited;
+        for (Group group : getAncestors())
+            if (group.getPermission() != null)
+                return group.getPermission();
+        return new Permission();
     }
 
+    /**
+     * @return the networks of the group and of its ancestors
+     */
     public Set<Network> getAvailableNetworks() {
-        Set<Network> out = getNetworks();
-        if (out == null)
-            out = new HashSet<>();
-        if (getParent() != null)
-            out.addAll(getParent().getAvailableNetworks());
-        return out;
+        Set<Network> out = GroupTree.get().getAvailableNetworks(getId());
+        if (out != null)
+            return out;
+        if (getId() == null)
+            return new HashSet<>(getNetworks());
+        return new HashSet<>(DatabaseManager.<Network>getRowsFromNamedQuery(GET_AVAILABLE_NETWORKS, getId()));
     }
-    
+
+    /**
+     * @return the templates of the group and of its ancestors
+     */
     public Set<Vm> getAvailableTemplates() {
-        Set<Vm> out = getTemplates();
-        if (out == null)
-            out = new HashSet<>();
-        if (getParent() != null)
-            out.addAll(getParent().getAvailableTemplates());
-        return out;
+        Set<Vm> out = GroupTree.get().getAvailableTemplates(getId());
+        if (out != null)
+            return out;
+        if (getId() == null)
+            return new HashSet<>(getTemplates());
+        return new HashSet<>(DatabaseManager.<Vm>getRowsFromNamedQuery(GET_AVAILABLE_TEMPLATES, getId()));
     }
 
+	/**
+	 * Return the group and its ancestors, from the group to the root.
+	 * 
+	 * @return a list of the group and its ancestors
+	 */
+	public List<Group> getAncestors() {
+		return DatabaseManager.getRowsFromNamedQuery(GET_ANCESTORS, this.getId());
+	}
+
+	@Override
+	void afterSave(Session session, boolean inserted) {
+		Integer parentId = getParentId();
+		if (!inserted && Objects.equals(parentId, storedParentId))
+			return;
+		// the group row must exist before its closure rows
+		session.flush();
+		if (inserted)
+			GroupClosure.insert(session, getId(), parentId);
+		else
+			GroupClosure.move(session, getId(), parentId);
+		storedParentId = parentId;
+	}
+
 	/**
 	 * Check if the group is one of the default group.
 	 * 
@@ -248,10 +356,7 @@ public class Group extends VSquareObject {
 	 * @return a list of all children group
 	 */
 	public List<Group> getChildren() {
-		HashMap<String, Object> params = new HashMap<>();
-		params.put("id_parent_group", this.getId());
-		return DatabaseManager.getRowsFromSessionQueryNamed("FROM Group WHERE id_parent_group=:id_parent_group",
-				params);
+		return DatabaseManager.getRowsFromNamedQuery(GET_CHILDREN, this.getId());
 	}
 	
 	/**
@@ -260,12 +365,7 @@ public class Group extends VSquareObject {
 	 * @return a set of all children of this group
 	 */
 	public Set<Group> getAllChildren(){
-		Set<Group> groups = new HashSet<>();
-		for (Group group : getChildren()) {
-			groups.add(group);
-			groups.addAll(group.getAllChildren());
-		}
-		return groups;
+		return new HashSet<>(DatabaseManager.<Group>getRowsFromNamedQuery(GET_DESCENDANTS, this.getId()));
 	}
 
 	/**
@@ -294,14 +394,9 @@ public class Group extends VSquareObject {
 			return new ArrayList<>(users);
 		}
 
+		if (withChildren)
+			return DatabaseManager.getRowsFromNamedQuery(GET_SUBTREE_USERS, idGroup);
 		users.addAll(group.getUsers());
-		if (withChildren) {
-			List<Group> childrenGroup = group.getChildren();
-			for (Group g : childrenGroup) {
-				users.addAll(g.getUsers(true));
-			}
-		}
-
 		return new ArrayList<>(users);
 	}
 	
@@ -310,7 +405,7 @@ public class Group extends VSquareObject {
 		JSONObject json = super.toJSON(detailed);
 		json.put("name", getName());
 		json.put("description", getDescription());
-		json.put("id_parent_group", (parent == null) ? JSONObject.NULL : parent.getId());
+		json.put("id_parent_group", (parent == null) ? JSONObject.NULL : getParentId());
 		
 		if (detailed){
 			JSONArray usersJson = new JSONArray();
@@ -320,6 +415,7 @@ public class Group extends VSquareObject {
 				usersJson.put(user.toJSON());
 			}
 			json.put("users", usersJson);
+			json.put("stats", getStats());
 
             JSONArray networksJson = new JSONArray();
             for (Network network : getAvailableNetworks())
@@ -330,6 +426,83 @@ public class Group extends VSquareObject {
 	}
 	
 
+	/**
+	 * Return the group with its statistics, without listing its users.
+	 * 
+	 * @return the json of the group with its statistics (see getStats)
+	 */
+	public JSONObject toStatsJSON() {
+		JSONObject json = toJSON(false);
+		JSONObject stats = getStats();
+		json.put("number_users", stats.getInt("users"));
+		json.put("stats", stats);
+		return json;
+	}
+
+	/**
+	 * Return the statistics of the group and its subgroups, from the group tree (see GroupTree.Snapshot.getStats).
+	 * 
+	 * @return the counts of users and vms and the resources allocated to the users
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = GroupTree.get().getStats(getId());
+		if (stats != null)
+			return stats;
+		// the tree is bypassed, count from the database with a fixed number of queries
+		List<Object[]> memberships = getId() == null ? new ArrayList<>()
+				: DatabaseManager.getRowsFromNamedQuery(GET_SUBTREE_MEMBERSHIPS, getId());
+		List<Object[]> permissionRows = getId() == null ? new ArrayList<>()
+				: DatabaseManager.getRowsFromNamedQuery(GET_SUBTREE_PERMISSIONS, getId());
+		List<Object[]> vmRows = getId() == null ? new ArrayList<>()
+				: DatabaseManager.getRowsFromNamedQuery(GET_SUBTREE_VMS, getId());
+
+		// the effective permission of a group is the one of its nearest ancestor, itself included
+		Map<Integer, Object[]> groupPermissions = new HashMap<>();
+		for (Object[] row : permissionRows)
+			groupPermissions.merge((Integer) row[0], row,
+					(a, b) -> (Integer) a[1] <= (Integer) b[1] ? a : b);
+		// the effective permission of a user is the max of the effective permissions of its groups
+		Map<Integer, Permission> userPermissions = new HashMap<>();
+		Set<Integer> directUsers = new HashSet<>();
+		for (Object[] row : memberships) {
+			Object[] permissionRow = groupPermissions.get((Integer) row[1]);
+			Permission permission = permissionRow == null ? new Permission()
+					: new Permission((Integer) permissionRow[2], (Integer) permissionRow[3],
+							(Integer) permissionRow[4], (Integer) permissionRow[5]);
+			userPermissions.merge((Integer) row[0], permission, Permission::getMax);
+			if (getId().equals(row[1]))
+				directUsers.add((Integer) row[0]);
+		}
+		Map<Integer, Integer> userVms = new HashMap<>();
+		for (Object[] row : vmRows)
+			userVms.put((Integer) row[0], ((Number) row[1]).intValue());
+
+		stats = new JSONObject();
+		stats.put("direct_users", directUsers.size());
+		stats.put("users", userPermissions.size());
+		int directVms = 0;
+		int vms = 0;
+		long cpu = 0;
+		long memory = 0;
+		long disk = 0;
+		for (Map.Entry<Integer, Permission> entry : userPermissions.entrySet()) {
+			int count = userVms.getOrDefault(entry.getKey(), 0);
+			vms += count;
+			if (directUsers.contains(entry.getKey()))
+				directVms += count;
+			Permission permission = entry.getValue();
+			cpu += permission.getCpuCount();
+			memory += permission.getMemorySize();
+			disk += permission.getDiskStorage();
+		}
+		stats.put("direct_vms", directVms);
+		stats.put("vms", vms);
+		stats.put("allocated_cpu", cpu);
+		stats.put("allocated_memory", memory);
+		stats.put("allocated_disk", disk);
+		return stats;
+	}
+
 	/**
 	 * Find a group by its id.
 	 * 
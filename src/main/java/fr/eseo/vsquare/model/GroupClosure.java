@@ -0,0 +1,120 @@
+package fr.eseo.vsquare.model;
+
+import org.hibernate.Session;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.PersistenceException;
+import javax.persistence.Table;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Group closure object model.
+ *
+ * Every (ancestor, descendant) pair of the group hierarchy with the distance between them, including each group with
+ * itself at depth 0, so that the subtree and the ancestors of a group are read with a single indexed query. The rows
+ * are written when a group is created or moved and deleted with the groups (foreign keys).
+ *
+ * @author Clement Gouin
+ */
+@Entity
+@Table(name = "group_closure")
+@IdClass(GroupClosure.Key.class)
+public class GroupClosure {
+
+	// region Variables
+
+	@Id
+	@Column(name = "ancestor")
+	private int ancestor;
+
+	@Id
+	@Column(name = "descendant")
+	private int descendant;
+
+	@Column(name = "depth")
+	private int depth;
+
+	// endregion
+
+	// region Constructors
+
+	public GroupClosure() {
+
+	}
+
+	// endregion
+
+	// region Functions
+
+	/**
+	 * Write the rows of a new group, in the transaction that inserted it.
+	 *
+	 * @param session the session of the transaction
+	 * @param id the id of the group
+	 * @param parentId the id of its parent group, null for a root group
+	 */
+	static void insert(Session session, int id, Integer parentId) {
+		session.createNativeQuery("INSERT INTO group_closure (ancestor, descendant, depth) VALUES (:id, :id, 0)")
+				.setParameter("id", id).executeUpdate();
+		if (parentId == null)
+			return;
+		session.createNativeQuery("INSERT INTO group_closure (ancestor, descendant, depth) "
+				+ "SELECT ancestor, :id, depth + 1 FROM group_closure WHERE descendant = :parent")
+				.setParameter("id", id).setParameter("parent", parentId).executeUpdate();
+	}
+
+	/**
+	 * Move the subtree of a group under a new parent, in the transaction that updated it.
+	 *
+	 * @param session the session of the transaction
+	 * @param id the id of the group
+	 * @param parentId the id of its new parent group, null for a root group
+	 */
+	static void move(Session session, int id, Integer parentId) {
+		if (parentId != null && ((Number) session.createNativeQuery(
+				"SELECT COUNT(*) FROM group_closure WHERE ancestor = :id AND descendant = :parent")
+				.setParameter("id", id).setParameter("parent", parentId).getSingleResult()).intValue() > 0)
+			throw new PersistenceException("Group " + id + " cannot be moved under its own subgroup " + parentId);
+		// unlink the subtree from its former ancestors
+		session.createNativeQuery("DELETE c FROM group_closure c "
+				+ "JOIN group_closure s ON s.descendant = c.descendant AND s.ancestor = :id "
+				+ "LEFT JOIN group_closure i ON i.ancestor = :id AND i.descendant = c.ancestor "
+				+ "WHERE i.ancestor IS NULL")
+				.setParameter("id", id).executeUpdate();
+		if (parentId == null)
+			return;
+		session.createNativeQuery("INSERT INTO group_closure (ancestor, descendant, depth) "
+				+ "SELECT p.ancestor, s.descendant, p.depth + s.depth + 1 FROM group_closure p "
+				+ "JOIN group_closure s ON s.ancestor = :id WHERE p.descendant = :parent")
+				.setParameter("id", id).setParameter("parent", parentId).executeUpdate();
+	}
+
+	// endregion
+
+	/**
+	 * Primary key of the group closure rows.
+	 */
+	public static class Key implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private int ancestor;
+		private int descendant;
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return ancestor == other.ancestor && descendant == other.descendant;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(ancestor, descendant);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package fr.eseo.vsquare.model;
 
 import fr.eseo.vsquare.utils.DatabaseManager;
+import fr.eseo.vsquare.utils.EntityCache;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -18,8 +19,18 @@ import java.util.Set;
  */
 @Entity
 @Table(name = "network")
+@NamedQueries({
+        @NamedQuery(name = "Network" + VSquareObject.GET_ALL, query = "FROM Network"),
+        @NamedQuery(name = Network.GET_ALL_WITH_GROUPS, query = "SELECT DISTINCT n FROM Network n "
+                + "LEFT JOIN FETCH n.groups"),
+        @NamedQuery(name = Network.GET_GROUPS, query = "SELECT g FROM Network n JOIN n.groups g WHERE n.id = ?0"),
+        @NamedQuery(name = Network.FIND_BY_ID_NETWORK_VCENTER, query = "FROM Network n WHERE n.idNetworkVcenter = ?0") })
 public class Network extends VSquareObject {
 
+    static final String FIND_BY_ID_NETWORK_VCENTER = "Network.findByIdNetworkVcenter";
+    static final String GET_ALL_WITH_GROUPS = "Network.withGroups" + VSquareObject.GET_ALL;
+    static final String GET_GROUPS = "Network.getGroups";
+
     // region Variables
 
     @Column(name = "name")
@@ -78,15 +89,16 @@ public class Network extends VSquareObject {
     }
 
     public Set<Group> getGroups() {
+        groups = fetchSet(groups, () -> DatabaseManager.getRowsFromNamedQuery(GET_GROUPS, getId()));
         return groups;
     }
 
     public void addGroup(Group g) {
-        groups.add(g);
+        getGroups().add(g);
     }
 
     public void removeGroup(Group g) {
-        groups.remove(g);
+        getGroups().remove(g);
     }
 
     // endregion
@@ -110,6 +122,13 @@ public class Network extends VSquareObject {
         return VSquareObject.getAll(Network.class);
     }
 
+    /**
+     * @return all networks from the table with their groups, for the detailed lists
+     */
+    public static List<Network> getAllWithGroups() {
+        return DatabaseManager.getRowsFromNamedQuery(GET_ALL_WITH_GROUPS);
+    }
+
     /**
      * Find a Network by its vCenter id.
      *
@@ -117,7 +136,8 @@ public class Network extends VSquareObject {
      * @return the first network found or null
      */
     public static Network findByIdNetworkVcenter(String idNetworkVcenter) {
-        return DatabaseManager.getFirstFromSessionQuery("FROM " + Network.class.getSimpleName() + " WHERE id_network_vcenter = ?0", idNetworkVcenter);
+        return EntityCache.get(Network.class, "id_network_vcenter=" + idNetworkVcenter,
+                () -> DatabaseManager.getFirstFromNamedQuery(FIND_BY_ID_NETWORK_VCENTER, idNetworkVcenter));
     }
 
     /**
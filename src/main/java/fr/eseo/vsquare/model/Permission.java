@@ -5,6 +5,8 @@ import org.json.JSONObject;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.Table;
 import java.util.List;
 
@@ -19,6 +21,8 @@ import java.util.List;
 
 @Entity
 @Table(name = "permission")
+@NamedQueries({
+		@NamedQuery(name = "Permission" + VSquareObject.GET_ALL, query = "FROM Permission") })
 public class Permission extends VSquareObject {
 
 	/* Getting default value for permissions as defined in the configuration file */
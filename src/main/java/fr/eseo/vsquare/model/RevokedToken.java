@@ -0,0 +1,141 @@
+package fr.eseo.vsquare.model;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.json.JSONObject;
+
+import fr.eseo.vsquare.utils.DatabaseManager;
+import fr.eseo.vsquare.utils.SignedToken;
+
+/**
+ * Revoked token object model.
+ *
+ * A signed token (see SignedToken) is not stored, its logout is recorded by the id of the token until the token
+ * expires, so that every API node rejects it. A change of type or the deletion of a user revokes every token issued
+ * to the user by a single row.
+ *
+ * @author Clement Gouin
+ */
+@Entity
+@Table(name = "revoked_token")
+@NamedQueries({
+		@NamedQuery(name = "RevokedToken" + VSquareObject.GET_ALL, query = "FROM RevokedToken"),
+		@NamedQuery(name = RevokedToken.GET_VALID, query = "FROM RevokedToken r WHERE r.expirationDate > ?0"),
+		@NamedQuery(name = RevokedToken.GET_SINCE, query = "FROM RevokedToken r WHERE r.creationDate >= ?0") })
+public class RevokedToken extends VSquareObject {
+
+	static final String GET_VALID = "RevokedToken.getValid";
+	static final String GET_SINCE = "RevokedToken.getSince";
+
+	// region Variables
+
+	@Column(name = "token_id")
+	private String tokenId;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "expiration_date")
+	private Date expirationDate;
+
+	// endregion
+
+	// region Constructors
+
+	public RevokedToken() {
+
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param tokenId the id of the revoked token
+	 * @param expirationDate the date after which the token is expired anyway
+	 */
+	public RevokedToken(String tokenId, Date expirationDate) {
+		super();
+		this.tokenId = tokenId;
+		this.expirationDate = expirationDate;
+	}
+
+	// endregion
+
+	// region Accessors
+
+	/**
+	 * @return the id of the revoked token
+	 */
+	public String getTokenId() {
+		return tokenId;
+	}
+
+	/**
+	 * @return the date after which the token is expired anyway
+	 */
+	public Date getExpirationDate() {
+		return expirationDate;
+	}
+
+	// endregion
+
+	// region Functions
+
+	@Override
+	public boolean equals(Object obj) {
+		return super.equals(obj);
+	}
+
+	@Override
+	public int hashCode() {
+		return super.hashCode();
+	}
+
+	/**
+	 * @param userId the id of a user whose type changed or who was deleted
+	 * @return the revocation of every token issued to the user until now
+	 */
+	static RevokedToken forUser(int userId) {
+		return new RevokedToken(SignedToken.getUserRevocationId(userId), SignedToken.getRevocationExpiration());
+	}
+
+	/**
+	 * @return all revoked tokens from the table
+	 */
+	public static List<RevokedToken> getAll() {
+		return VSquareObject.getAll(RevokedToken.class);
+	}
+
+	/**
+	 * @param date the current date
+	 * @return the revoked tokens not expired at the date, null if the database cannot be read
+	 */
+	public static List<RevokedToken> getValid(Date date) {
+		return DatabaseManager.getRowsOrNullFromNamedQuery(GET_VALID, date);
+	}
+
+	/**
+	 * @param date the date of the previous read
+	 * @return the tokens revoked since the date, null if the database cannot be read
+	 */
+	public static List<RevokedToken> getSince(Date date) {
+		return DatabaseManager.getRowsOrNullFromNamedQuery(GET_SINCE, date);
+	}
+
+	@Override
+	public JSONObject toJSON(boolean detailed) {
+		JSONObject json = super.toJSON(detailed);
+		json.put("token_id", tokenId);
+		json.put("expiration_date", expirationDate);
+		return json;
+	}
+
+	// endregion
+
+}
@@ -5,7 +5,6 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import javax.persistence.*;
-import java.util.HashMap;
 import java.util.List;
 
 
@@ -19,8 +18,17 @@ import java.util.List;
 
 @Entity
 @Table(name = "snapshot")
+@NamedQueries({
+		@NamedQuery(name = "Snapshot" + VSquareObject.GET_ALL, query = "FROM Snapshot"),
+		@NamedQuery(name = Snapshot.GET_CHILDREN, query = "FROM Snapshot s WHERE s.parent.id = ?0"),
+		@NamedQuery(name = Snapshot.FIND_BY_ID_SNAPSHOT_VCENTER, query = "FROM Snapshot s WHERE s.idSnapshotVcenter = ?0"),
+		@NamedQuery(name = Snapshot.GET_SNAPSHOTS_FOR_VM, query = "FROM Snapshot s WHERE s.vm.id = ?0") })
 public class Snapshot extends VSquareObject {
 
+	static final String GET_CHILDREN = "Snapshot.getChildren";
+	static final String FIND_BY_ID_SNAPSHOT_VCENTER = "Snapshot.findByIdSnapshotVcenter";
+	static final String GET_SNAPSHOTS_FOR_VM = "Snapshot.getSnapshotsForVm";
+
 	// region Variables
 	@ManyToOne(fetch = FetchType.EAGER)
 	@JoinColumn(name = "id_vm")
@@ -139,6 +147,7 @@ public class Snapshot extends VSquareObject {
 	 * @return the parent snapshot of this snapshot. can be null
 	 */
 	public Snapshot getParent(){
+		parent = fetch(parent, () -> Snapshot.findById(idOf(parent)));
 		return parent;
 	}
 	
@@ -187,10 +196,7 @@ public class Snapshot extends VSquareObject {
      * @return all direct children of this snapshot
 	 */
 	public List<Snapshot> getChildren(){
-		HashMap<String, Object> params = new HashMap<>();
-		params.put("id_parent", this.getId());
-		return DatabaseManager.getRowsFromSessionQueryNamed("FROM Snapshot WHERE id_parent=:id_parent",
-				params);
+		return DatabaseManager.getRowsFromNamedQuery(GET_CHILDREN, this.getId());
 	}
 	
 	/**
@@ -211,7 +217,7 @@ public class Snapshot extends VSquareObject {
 	 * @return the group containing the VM or null if not found
 	 */
 	public static Snapshot findByIdSnapshotVcenter(String idSnapshotVcenter) {
-		return DatabaseManager.getFirstFromSessionQuery("FROM " + Snapshot.class.getSimpleName() + " WHERE id_snapshot_vcenter = ?0", idSnapshotVcenter);
+		return DatabaseManager.getFirstFromNamedQuery(FIND_BY_ID_SNAPSHOT_VCENTER, idSnapshotVcenter);
 	}
 	
 	/**
@@ -220,10 +226,7 @@ public class Snapshot extends VSquareObject {
 	 * @return Snapshot 
 	 */
 	public static List<Snapshot> getSnapshotsForVm(Vm vm){
-		HashMap<String, Object> params = new HashMap<>();
-		params.put("id_vm", vm.getId());
-		return DatabaseManager.getRowsFromSessionQueryNamed("FROM Snapshot WHERE id_vm=:id_vm",
-				params);
+		return DatabaseManager.getRowsFromNamedQuery(GET_SNAPSHOTS_FOR_VM, vm.getId());
 	}
 
 	/**
@@ -7,6 +7,8 @@ import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.Table;
 
 import org.json.JSONObject;
@@ -23,8 +25,13 @@ import fr.eseo.vsquare.utils.Utils;
  */
 @Entity
 @Table(name = "token")
+@NamedQueries({
+		@NamedQuery(name = "Token" + VSquareObject.GET_ALL, query = "FROM Token"),
+		@NamedQuery(name = Token.FIND_BY_VALUE, query = "FROM Token t WHERE t.value = ?0") })
 public class Token extends VSquareObject {
 
+	static final String FIND_BY_VALUE = "Token.findByValue";
+
 	private static final int TOKEN_LENGTH = 32;
 
 	// region Variables
@@ -127,7 +134,8 @@ public class Token extends VSquareObject {
 	 * @return the token or null if not found
 	 */
 	public static Token findByValue(String value) {
-		return DatabaseManager.getFirstFromSessionQuery("FROM Token WHERE value = ?0", value);
+		// not in the entity cache, the TokenCache bounds how long a deleted token is accepted
+		return DatabaseManager.getFirstFromNamedQuery(FIND_BY_VALUE, value);
 	}
 
 	@Override
@@ -1,10 +1,16 @@
 package fr.eseo.vsquare.model;
 
 import fr.eseo.vsquare.utils.DatabaseManager;
+import fr.eseo.vsquare.utils.EntityCache;
+import fr.eseo.vsquare.utils.GroupTree;
+import fr.eseo.vsquare.utils.SignedToken;
+import org.hibernate.Session;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import javax.persistence.*;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -17,8 +23,30 @@ import java.util.Set;
 
 @Entity
 @Table(name = "user")
+@NamedQueries({
+        @NamedQuery(name = "User" + VSquareObject.GET_ALL, query = "FROM User"),
+        @NamedQuery(name = User.FIND_BY_LOGIN, query = "FROM User u WHERE u.login = ?0"),
+        @NamedQuery(name = User.FIND_BY_LOGINS, query = "FROM User u WHERE u.login IN (?0)"),
+        @NamedQuery(name = User.GET_VMS, query = "FROM Vm v WHERE v.user.id = ?0 AND v.template = false"),
+        @NamedQuery(name = User.GET_GROUPS, query = "SELECT g FROM User u JOIN u.groups g WHERE u.id = ?0"),
+        @NamedQuery(name = User.GET_SUMMARIES, query = User.SELECT_SUMMARY + " FROM User u WHERE u.type IN (?0)"),
+        @NamedQuery(name = User.SEARCH_SUMMARIES, query = User.SELECT_SUMMARY + " FROM User u WHERE u.type IN (?0) "
+                + "AND (upper(u.login) LIKE ?1 OR upper(u.commonName) LIKE ?1)"),
+        @NamedQuery(name = User.GET_GROUPS_WITH_ANCESTORS, query = "FROM Group g WHERE g.id IN "
+                + "(SELECT c.ancestor FROM GroupClosure c WHERE c.descendant IN "
+                + "(SELECT ug.id FROM User u JOIN u.groups ug WHERE u.id = ?0))") })
 public class User extends VSquareObject {
 
+    static final String FIND_BY_LOGIN = "User.findByLogin";
+    static final String FIND_BY_LOGINS = "User.findByLogins";
+    static final String GET_VMS = "User.getVms";
+    static final String GET_GROUPS = "User.getGroups";
+    // the summaries list a whole table, the search is a LIKE '%...%' (see QueryPlanTest)
+    static final String GET_SUMMARIES = "User.summaries" + VSquareObject.GET_ALL;
+    static final String SEARCH_SUMMARIES = "User.searchSummaries";
+    static final String SELECT_SUMMARY = "SELECT u.id, u.login, u.commonName, u.type";
+    static final String GET_GROUPS_WITH_ANCESTORS = "User.getGroupsWithAncestors";
+
     public enum UserType {
         STUDENT, REFERENT, ADMIN;
 
@@ -63,6 +91,10 @@ public class User extends VSquareObject {
     @Column(name = "id_network_vcenter")
     private String privateNetwork;
 
+    // the signed tokens hold the type of the user, they are revoked by the save of a new type
+    @Transient
+    private boolean typeChanged;
+
     // endregion
 
     // region Constructors
@@ -119,6 +151,8 @@ public class User extends VSquareObject {
      * @param type the new type of the user, must be defined in UserType
      */
     public void setType(UserType type) {
+        if (type != this.type)
+            typeChanged = true;
         this.type = type;
     }
 
@@ -129,10 +163,18 @@ public class User extends VSquareObject {
         return commonName;
     }
 
+    /**
+     * @param commonName the new name in use for the user
+     */
+    public void setCommonName(String commonName) {
+        this.commonName = commonName;
+    }
+
     /**
      * @return a set of all the groups of the user
      */
     public Set<Group> getGroups() {
+        groups = fetchSet(groups, () -> DatabaseManager.getRowsFromNamedQuery(GET_GROUPS, getId()));
         return groups;
     }
 
@@ -208,7 +250,7 @@ public class User extends VSquareObject {
      * @return all the Vms of the current user
      */
     public List<Vm> getVms() {
-        return DatabaseManager.getRowsFromSessionQuery("FROM " + Vm.class.getSimpleName() + " WHERE id_user =?0 AND template = 0", this.getId());
+        return DatabaseManager.getRowsFromNamedQuery(GET_VMS, this.getId());
     }
 
     /**
@@ -245,6 +287,23 @@ public class User extends VSquareObject {
         return super.hashCode();
     }
 
+    @Override
+    void afterSave(Session session, boolean inserted) {
+        if (typeChanged && !inserted)
+            revokeTokens(session);
+        typeChanged = false;
+    }
+
+    @Override
+    void beforeDelete(Session session) {
+        revokeTokens(session);
+    }
+
+    private void revokeTokens(Session session) {
+        RevokedToken.forUser(getId()).insert(session);
+        SignedToken.refreshRevocations();
+    }
+
     /**
      * Generate a new token for this user.
      *
@@ -267,12 +326,16 @@ public class User extends VSquareObject {
      * @return the effective permission for the user
      */
     public Permission getEffectivePermission() {
-        Permission perm = null;
+        // the snapshot holds it without loading the groups
+        Permission perm = GroupTree.get().getUserPermission(getId());
+        if (perm != null)
+            return perm;
         for (Group g : this.getGroups()) {
+            Permission groupPerm = g.getEffectivePermission();
             if (perm == null)
-                perm = g.getEffectivePermission();
+                perm = groupPerm;
             else
-                perm = perm.getMax(g.getEffectivePermission());
+                perm = perm.getMax(groupPerm);
         }
         return perm == null ? new Permission() : perm;
     }
@@ -338,13 +401,7 @@ public class User extends VSquareObject {
             return new HashSet<>(Group.getAll());
         }
 
-        for (Group currentGroup : user.getGroups()) {
-            while (currentGroup != null) {
-                groups.add(currentGroup);
-                currentGroup = currentGroup.getParent();
-            }
-        }
-
+        groups.addAll(DatabaseManager.<Group>getRowsFromNamedQuery(GET_GROUPS_WITH_ANCESTORS, idUser));
         return groups;
     }
 
@@ -367,6 +424,31 @@ public class User extends VSquareObject {
         return VSquareObject.getAll(User.class);
     }
 
+    /**
+     * Return the summaries of the users of lower types than a user, filtered by the database.
+     *
+     * @param callerType the type of the user listing the users, an admin lists every user
+     * @param query      a string to find in the login or the common name, null to list every user
+     * @return the summaries of the users
+     */
+    public static List<Summary> getSummaries(UserType callerType, String query) {
+        List<UserType> types = new ArrayList<>();
+        for (UserType type : UserType.values())
+            if (callerType == UserType.ADMIN || type.lesserThan(callerType))
+                types.add(type);
+        if (types.isEmpty())
+            return new ArrayList<>();
+        List<Object[]> rows;
+        if (query == null)
+            rows = DatabaseManager.getRowsFromNamedQuery(GET_SUMMARIES, types);
+        else
+            rows = DatabaseManager.getRowsFromNamedQuery(SEARCH_SUMMARIES, types, "%" + query.toUpperCase() + "%");
+        List<Summary> summaries = new ArrayList<>(rows.size());
+        for (Object[] row : rows)
+            summaries.add(new Summary(row, 0));
+        return summaries;
+    }
+
     /**
      * Find a user by its login.
      *
@@ -374,7 +456,20 @@ public class User extends VSquareObject {
      * @return the user or null if not found
      */
     public static User findByLogin(String login) {
-        return DatabaseManager.getFirstFromSessionQuery("FROM User WHERE login = ?0", login);
+        return EntityCache.get(User.class, "login=" + login,
+                () -> DatabaseManager.getFirstFromNamedQuery(FIND_BY_LOGIN, login));
+    }
+
+    /**
+     * Find the users of some logins.
+     *
+     * @param logins the logins to search
+     * @return the users found
+     */
+    public static List<User> findByLogins(Collection<String> logins) {
+        if (logins.isEmpty())
+            return new ArrayList<>();
+        return DatabaseManager.getRowsFromNamedQuery(FIND_BY_LOGINS, logins);
     }
 
     /**
@@ -401,4 +496,43 @@ public class User extends VSquareObject {
     }
     // endregion
 
+    /**
+     * The columns of a user shown in the lists, read without loading the user.
+     */
+    public static final class Summary {
+        private final int id;
+        private final String login;
+        private final String commonName;
+        private final UserType type;
+
+        /**
+         * @param row    a row of a query selecting SELECT_SUMMARY
+         * @param offset the index of the id of the user in the row
+         */
+        Summary(Object[] row, int offset) {
+            this.id = (Integer) row[offset];
+            this.login = (String) row[offset + 1];
+            this.commonName = (String) row[offset + 2];
+            this.type = (UserType) row[offset + 3];
+        }
+
+        /**
+         * @return the id of the user
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * @return the same json as User.toJSON()
+         */
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("common_name", commonName);
+            json.put("login", login);
+            json.put("type", type.toString());
+            return json;
+        }
+    }
 }
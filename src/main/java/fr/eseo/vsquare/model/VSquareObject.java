@@ -1,18 +1,38 @@
 package fr.eseo.vsquare.model;
 
+import fr.eseo.vsquare.utils.CountCache;
 import fr.eseo.vsquare.utils.DatabaseManager;
+import fr.eseo.vsquare.utils.EntityCache;
+import fr.eseo.vsquare.utils.GroupTree;
 import fr.eseo.vsquare.utils.Logger;
+import fr.eseo.vsquare.utils.TokenCache;
+import fr.eseo.vsquare.utils.Utils;
+import org.hibernate.Hibernate;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
+import org.hibernate.annotations.FilterDef;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.ParamDef;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.proxy.HibernateProxy;
 import org.json.JSONObject;
 
 import javax.persistence.Column;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.MappedSuperclass;
+import javax.persistence.PersistenceException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
 /**
@@ -23,12 +43,55 @@ import java.util.logging.Level;
  * @author Clement Gouin
  */
 @MappedSuperclass
+@FilterDef(name = VSquareObject.DATE_RANGE, parameters = { @ParamDef(name = "from", type = "timestamp"),
+		@ParamDef(name = "to", type = "timestamp") })
 public abstract class VSquareObject {
 
+	/**
+	 * Name of the filter keeping the rows created in a date range (enabled by DatabaseManager.withDateRange).
+	 */
+	public static final String DATE_RANGE = "dateRange";
+
+	/**
+	 * SQL condition of the date range filter.
+	 */
+	static final String DATE_RANGE_CONDITION = "creation_date >= :from AND creation_date < :to";
+
+	/**
+	 * Suffix of the name of the query returning every row of an entity.
+	 */
+	static final String GET_ALL = ".getAll";
+
+	/**
+	 * Suffix of the name of the query returning the rows following a page cursor.
+	 */
+	static final String SEEK = ".seek";
+
+	/**
+	 * Condition selecting the rows of "el" after a page cursor given as the two first parameters (creation date, id).
+	 */
+	static final String SEEK_WHERE = "el.creationDate <= ?0 AND (el.creationDate < ?0 OR el.id < ?1)";
+
+	/**
+	 * Same as SEEK_WHERE when the cursor is given after a search parameter.
+	 */
+	static final String SEEK_WHERE_AFTER_SEARCH = "el.creationDate <= ?1 AND (el.creationDate < ?1 OR el.id < ?2)";
+
+	/**
+	 * Order of the paged lists, latest first. The id breaks ties so that a cursor never skips a row.
+	 */
+	static final String ORDER_BY_LATEST = " ORDER BY el.creationDate DESC, el.id DESC";
+
 	// region Variables
 
+	// ids are reserved by blocks in the id_sequence table so inserts can be sent in JDBC batches
 	@Id
-	@GeneratedValue
+	@GeneratedValue(generator = "id_sequence")
+	@GenericGenerator(name = "id_sequence", strategy = "org.hibernate.id.enhanced.TableGenerator", parameters = {
+			@Parameter(name = "table_name", value = "id_sequence"),
+			@Parameter(name = "prefer_entity_table_as_segment_value", value = "true"),
+			@Parameter(name = "increment_size", value = "50"),
+			@Parameter(name = "optimizer", value = "pooled-lo") })
 	@Column(name = "id")
 	private Integer id;
 
@@ -57,10 +120,19 @@ public abstract class VSquareObject {
 	/**
 	 * @return the creation date of the object
 	 */
-    Date getCreationDate() {
+	public Date getCreationDate() {
 		return creationDate;
 	}
 
+	/**
+	 * @return an opaque cursor pointing after this object in a list ordered by creation date (latest first)
+	 */
+	public String getPageCursor() {
+		if (id == null || creationDate == null)
+			return null;
+		return toPageCursor(creationDate, id);
+	}
+
 	// endregion
 
 	// region Functions
@@ -75,21 +147,228 @@ public abstract class VSquareObject {
 			Logger.log(Level.SEVERE, "Database not initialized, cannot save object");
 			return false;
 		}
+		boolean inserted = id == null;
 		Transaction tx = null;
 		Session session = DatabaseManager.getSessionFactory().getCurrentSession();
 		try {
-			tx = session.beginTransaction();
-			if (id == null) {
-				id = (Integer) session.save(this);
+			tx = DatabaseManager.beginTransaction(session);
+			if (inserted) {
 				creationDate = new Date();
-			} else {
+				id = (Integer) session.save(this);
+			} else if (!DatabaseManager.isUnitOfWorkActive()) {
 				session.update(this);
+			} else if (!session.contains(this)) {
+				// another instance with the same id may already be attached to the unit of work
+				session.merge(this);
 			}
+			afterSave(session, inserted);
+			if (DatabaseManager.isUnitOfWorkActive())
+				session.flush();
+			long commitStart = System.nanoTime();
+			DatabaseManager.commitTransaction(tx);
+			if (inserted) {
+				DatabaseManager.runAfterCommit(() -> CountCache.recordInsert(getClass()));
+				GroupTree.recordInsert(this, commitStart);
+			}
+			return true;
+		} catch (PersistenceException e) {
+			DatabaseManager.rollbackTransaction(tx);
+			if (inserted) {
+				// the row is only inserted on flush, it does not exist
+				id = null;
+				creationDate = null;
+			}
+			Logger.log(Level.SEVERE, e.toString(), e);
+			return false;
+		} finally {
+			invalidateCaches(this);
+			GroupTree.invalidate(this);
+		}
+	}
+
+	/**
+	 * Remove the cached copies of an object once its change is committed.
+	 * 
+	 * @param object the saved or deleted object, before its id is reset
+	 */
+	private static void invalidateCaches(VSquareObject object) {
+		Integer objectId = object.id;
+		DatabaseManager.runAfterCommit(() -> {
+			EntityCache.invalidate(object, objectId);
+			TokenCache.invalidate(object, objectId);
+		});
+	}
+
+	/**
+	 * Write the rows depending on this object, in the transaction that saved it.
+	 * 
+	 * @param session the session of the transaction
+	 * @param inserted true if the object was just inserted
+	 */
+	void afterSave(Session session, boolean inserted) {
+	}
+
+	/**
+	 * Write the rows depending on the deletion of this object, in the transaction that deletes it.
+	 * 
+	 * @param session the session of the transaction
+	 */
+	void beforeDelete(Session session) {
+	}
+
+	/**
+	 * Insert the row in the transaction of a session, for the rows written by afterSave or beforeDelete.
+	 * 
+	 * @param session the session of the transaction
+	 */
+	void insert(Session session) {
+		creationDate = new Date();
+		id = (Integer) session.save(this);
+	}
+
+	/**
+	 * Insert a new row in its own session and transaction.
+	 * 
+	 * Unlike {@link #saveOrUpdate()}, the row is kept even if the current unit of work is rolled back.
+	 * 
+	 * @return true if operation is successful
+	 */
+	boolean saveInNewSession() {
+		if(!DatabaseManager.isHibernateInitialized()) {
+			Logger.log(Level.SEVERE, "Database not initialized, cannot save object");
+			return false;
+		}
+		if (id != null)
+			return false;
+		Transaction tx = null;
+		try (Session session = DatabaseManager.getSessionFactory().openSession()) {
+			tx = session.beginTransaction();
+			creationDate = new Date();
+			id = (Integer) session.save(this);
 			tx.commit();
+			CountCache.recordInsert(getClass());
 			return true;
-		} catch (HibernateException e) {
-			if (tx != null)
+		} catch (PersistenceException e) {
+			if (tx != null && tx.isActive())
 				tx.rollback();
+			id = null;
+			creationDate = null;
+			Logger.log(Level.SEVERE, e.toString(), e);
+			return false;
+		}
+	}
+
+	/**
+	 * Insert or update every object in a single transaction.
+	 * 
+	 * Statements are sent by JDBC batches of "db_batch_size" rows.
+	 * 
+	 * @param objects the objects to save
+	 * @return true if operation is successful
+	 */
+	public static boolean saveAll(Collection<? extends VSquareObject> objects) {
+		if(!DatabaseManager.isHibernateInitialized()) {
+			Logger.log(Level.SEVERE, "Database not initialized, cannot save objects");
+			return false;
+		}
+		if (objects.isEmpty())
+			return true;
+		int batchSize = Math.max(1, Utils.getInt("db_batch_size"));
+		List<VSquareObject> inserted = new ArrayList<>();
+		Transaction tx = null;
+		Session session = DatabaseManager.getSessionFactory().getCurrentSession();
+		try {
+			tx = DatabaseManager.beginTransaction(session);
+			int count = 0;
+			for (VSquareObject object : objects) {
+				boolean insert = object.id == null;
+				if (insert) {
+					object.creationDate = new Date();
+					object.id = (Integer) session.save(object);
+					inserted.add(object);
+				} else if (!DatabaseManager.isUnitOfWorkActive()) {
+					session.update(object);
+				} else if (!session.contains(object)) {
+					session.merge(object);
+				}
+				object.afterSave(session, insert);
+				if (++count % batchSize == 0) {
+					session.flush();
+					// keep the objects of the current unit of work attached
+					if (!DatabaseManager.isUnitOfWorkActive())
+						session.clear();
+				}
+			}
+			session.flush();
+			long commitStart = System.nanoTime();
+			DatabaseManager.commitTransaction(tx);
+			DatabaseManager.runAfterCommit(() -> inserted.forEach(object -> CountCache.recordInsert(object.getClass())));
+			inserted.forEach(object -> GroupTree.recordInsert(object, commitStart));
+			return true;
+		} catch (PersistenceException e) {
+			DatabaseManager.rollbackTransaction(tx);
+			for (VSquareObject object : inserted) {
+				object.id = null;
+				object.creationDate = null;
+			}
+			Logger.log(Level.SEVERE, e.toString(), e);
+			return false;
+		} finally {
+			objects.forEach(VSquareObject::invalidateCaches);
+			GroupTree.invalidate(objects);
+		}
+	}
+
+	/**
+	 * Delete every object in a single transaction.
+	 * 
+	 * Statements are sent by JDBC batches of "db_batch_size" rows.
+	 * 
+	 * @param objects the objects to delete
+	 * @return true if operation is successful
+	 */
+	public static boolean deleteAll(Collection<? extends VSquareObject> objects) {
+		if(!DatabaseManager.isHibernateInitialized()) {
+			Logger.log(Level.SEVERE, "Database not initialized, cannot delete objects");
+			return false;
+		}
+		if (objects.isEmpty())
+			return true;
+		int batchSize = Math.max(1, Utils.getInt("db_batch_size"));
+		Transaction tx = null;
+		Session session = DatabaseManager.getSessionFactory().getCurrentSession();
+		try {
+			tx = DatabaseManager.beginTransaction(session);
+			int count = 0;
+			for (VSquareObject object : objects) {
+				if (object.id == null)
+					continue;
+				Object persistent = object;
+				if (DatabaseManager.isUnitOfWorkActive() && !session.contains(object))
+					persistent = session.get(object.getClass(), object.id);
+				if (persistent != null) {
+					object.beforeDelete(session);
+					session.delete(persistent);
+				}
+				if (++count % batchSize == 0)
+					session.flush();
+			}
+			session.flush();
+			long commitStart = System.nanoTime();
+			DatabaseManager.commitTransaction(tx);
+			DatabaseManager.runAfterCommit(CountCache::recordDelete);
+			for (VSquareObject object : objects) {
+				invalidateCaches(object);
+				GroupTree.recordDelete(object, commitStart);
+			}
+			GroupTree.invalidate(objects);
+			for (VSquareObject object : objects) {
+				object.id = null;
+				object.creationDate = null;
+			}
+			return true;
+		} catch (PersistenceException e) {
+			DatabaseManager.rollbackTransaction(tx);
 			Logger.log(Level.SEVERE, e.toString(), e);
 			return false;
 		}
@@ -110,30 +389,44 @@ public abstract class VSquareObject {
 		Transaction tx = null;
 		Session session = DatabaseManager.getSessionFactory().getCurrentSession();
 		try {
-			tx = session.beginTransaction();
-			session.delete(this);
-			tx.commit();
+			tx = DatabaseManager.beginTransaction(session);
+			if (!DatabaseManager.isUnitOfWorkActive()) {
+				beforeDelete(session);
+				session.delete(this);
+			} else {
+				Object persistent = session.contains(this) ? this : session.get(this.getClass(), id);
+				if (persistent == null)
+					return false;
+				beforeDelete(session);
+				session.delete(persistent);
+				session.flush();
+			}
+			long commitStart = System.nanoTime();
+			DatabaseManager.commitTransaction(tx);
+			DatabaseManager.runAfterCommit(CountCache::recordDelete);
+			invalidateCaches(this);
+			GroupTree.recordDelete(this, commitStart);
+			GroupTree.invalidate(this);
 			id = null;
 			creationDate = null;
 			return true;
-		} catch (HibernateException e) {
-			if (tx != null)
-				tx.rollback();
+		} catch (PersistenceException e) {
+			DatabaseManager.rollbackTransaction(tx);
 			Logger.log(Level.SEVERE, e.toString(), e);
 			return false;
 		}
 	}
 
 	/**
-	 * Return a row by its id.
+	 * Return a row by its id, from the entity cache for the read-mostly classes.
 	 * 
 	 * @param id the id to find
 	 * @param objectClass the class of the object
      * @param <T> the class to find
      * @return the object or null if not found
 	 */
-    public static <T> T findById(int id, Class<T> objectClass) {
-		return DatabaseManager.getFirstFromSessionQuery("FROM " + objectClass.getSimpleName() + " WHERE id = ?0", id);
+    public static <T extends VSquareObject> T findById(int id, Class<T> objectClass) {
+		return EntityCache.get(objectClass, "id=" + id, () -> DatabaseManager.getById(objectClass, id));
 	}
 
 	/**
@@ -143,7 +436,113 @@ public abstract class VSquareObject {
 	 * @return all the rows from the database
 	 */
 	static <T> List<T> getAll(Class<T> objectClass) {
-		return DatabaseManager.getRowsFromSessionQuery("FROM " + objectClass.getSimpleName());
+		return DatabaseManager.getRowsFromNamedQuery(objectClass.getSimpleName() + GET_ALL);
+	}
+
+	/**
+	 * Return a lazy association of an object, reading it with its own query if it was not fetched with the object.
+	 * 
+	 * Lazy associations are only loaded by the session of their object: outside of the unit of work that loaded it,
+	 * the association is read by the given loader instead of opening a session behind the caller.
+	 * 
+	 * @param association the association, may be an uninitialized proxy
+	 * @param loader the query reading the association
+	 * @param <T> the class of the association
+	 * @return the loaded association
+	 */
+	static <T> T fetch(T association, Supplier<T> loader) {
+		if (association == null || Hibernate.isInitialized(association))
+			return association;
+		if (DatabaseManager.isUnitOfWorkActive()) {
+			try {
+				Hibernate.initialize(association);
+				return association;
+			} catch (HibernateException e) {
+				// loaded by another session
+			}
+		}
+		return loader.get();
+	}
+
+	/**
+	 * Same as fetch for a lazy collection.
+	 * 
+	 * @param collection the collection, may be uninitialized
+	 * @param loader the query reading the elements of the collection
+	 * @param <T> the class of the elements
+	 * @return the loaded collection
+	 */
+	static <T> Set<T> fetchSet(Set<T> collection, Supplier<List<T>> loader) {
+		if (Hibernate.isInitialized(collection))
+			return collection;
+		if (DatabaseManager.isUnitOfWorkActive()) {
+			try {
+				Hibernate.initialize(collection);
+				return collection;
+			} catch (HibernateException e) {
+				// loaded by another session
+			}
+		}
+		return new HashSet<>(loader.get());
+	}
+
+	/**
+	 * @param object an object, may be an uninitialized proxy
+	 * @return the id of the object without loading it, null if the object is null
+	 */
+	static Integer idOf(VSquareObject object) {
+		if (object instanceof HibernateProxy)
+			return (Integer) ((HibernateProxy) object).getHibernateLazyInitializer().getIdentifier();
+		return object == null ? null : object.getId();
+	}
+
+	/**
+	 * Build the text indexed by the full-text searches on users.
+	 *
+	 * @param user   the user, may be null
+	 * @param others other words to index, may be null
+	 * @return the common name and login of the user and the other words
+	 */
+	static String getSearchText(User user, String... others) {
+		StringJoiner text = new StringJoiner(" ");
+		if (user != null) {
+			text.add(user.getCommonName());
+			text.add(user.getLogin());
+		}
+		for (String other : others)
+			if (other != null)
+				text.add(other);
+		return text.toString();
+	}
+
+	/**
+	 * Create the cursor pointing after an object in a list ordered by creation date (latest first).
+	 *
+	 * @param creationDate the creation date of the object
+	 * @param id           the id of the object
+	 * @return the cursor
+	 */
+	public static String toPageCursor(Date creationDate, int id) {
+		String position = creationDate.getTime() + ":" + id;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Read a cursor given by getPageCursor.
+	 *
+	 * @param cursor the cursor
+	 * @return the creation date and the id the cursor points at, null if invalid
+	 */
+	public static Object[] parsePageCursor(String cursor) {
+		try {
+			String position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+			String[] parts = position.split(":");
+			if (parts.length != 2)
+				return null;
+			return new Object[] { new Date(Long.parseLong(parts[0])), Integer.parseInt(parts[1]) };
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
 	}
 
 	@Override
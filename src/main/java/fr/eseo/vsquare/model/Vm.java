@@ -2,11 +2,13 @@ package fr.eseo.vsquare.model;
 
 import fr.eseo.vsquare.model.User.UserType;
 import fr.eseo.vsquare.utils.DatabaseManager;
+import fr.eseo.vsquare.utils.EntityCache;
 import fr.eseo.vsquare.utils.HttpUtils.HttpResult;
 import fr.eseo.vsquare.utils.VSphereConnector;
 import org.json.JSONObject;
 
 import javax.persistence.*;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -19,8 +21,23 @@ import java.util.List;
 
 @Entity
 @Table(name = "vm")
+@NamedQueries({
+		@NamedQuery(name = "Vm" + VSquareObject.GET_ALL, query = "FROM Vm"),
+		@NamedQuery(name = Vm.FIND_BY_ID_VM_VCENTER, query = "FROM Vm v WHERE v.idVmVcenter = ?0"),
+		@NamedQuery(name = Vm.GET_ALL_TEMPLATE, query = "FROM Vm v WHERE v.template = true"),
+		@NamedQuery(name = Vm.GET_SUBTREE_VMS, query = "SELECT v FROM Vm v JOIN FETCH v.user u "
+				+ "WHERE v.template = false AND u.id IN (SELECT gu.id FROM User gu JOIN gu.groups g WHERE g.id IN "
+				+ "(SELECT c.descendant FROM GroupClosure c WHERE c.ancestor = ?0))"),
+		@NamedQuery(name = Vm.GET_SUBTREE_VMS_OF_TYPES, query = "SELECT v FROM Vm v JOIN FETCH v.user u "
+				+ "WHERE v.template = false AND u.type IN (?1) AND u.id IN (SELECT gu.id FROM User gu "
+				+ "JOIN gu.groups g WHERE g.id IN (SELECT c.descendant FROM GroupClosure c WHERE c.ancestor = ?0))") })
 public class Vm extends VSquareObject {
 
+	static final String FIND_BY_ID_VM_VCENTER = "Vm.findByIdVmVcenter";
+	static final String GET_ALL_TEMPLATE = "Vm.getAllTemplate";
+	static final String GET_SUBTREE_VMS = "Vm.getSubtreeVms";
+	static final String GET_SUBTREE_VMS_OF_TYPES = "Vm.getSubtreeVmsOfTypes";
+
 	// region Variables
 	@ManyToOne(fetch = FetchType.EAGER)
 	@JoinColumn(name = "id_user")
@@ -170,6 +187,17 @@ public class Vm extends VSquareObject {
 		return (userTest.equals(this.user) || userTest.getType().greaterThan(user.getType()) || userTest.getType() == UserType.ADMIN);
 	}
 
+	/**
+	 * Check read permission on the VM for a user known by its id and type.
+	 *
+	 * @param userId the id of the user to check
+	 * @param userType the type of the user to check
+	 * @return true if the user has the read permission, false otherwise
+	 */
+	public boolean hasAccessRead(int userId, UserType userType){
+		return (isOwner(userId) || userType.greaterThan(user.getType()) || userType == UserType.ADMIN);
+	}
+
 	/**
 	 * Check write permission on the VM for the user.
 	 *
@@ -180,6 +208,21 @@ public class Vm extends VSquareObject {
 		return (userTest.equals(this.user) || userTest.getType() == UserType.ADMIN);
 	}
 
+	/**
+	 * Check write permission on the VM for a user known by its id and type.
+	 *
+	 * @param userId the id of the user to check
+	 * @param userType the type of the user to check
+	 * @return true if the user has the write permission, false otherwise
+	 */
+	public boolean hasAccessWrite(int userId, UserType userType){
+		return (isOwner(userId) || userType == UserType.ADMIN);
+	}
+
+	private boolean isOwner(int userId) {
+		return user.getId() != null && user.getId() == userId;
+	}
+
     /**
      * Check if the name is valid.
      * @param name the name to check
@@ -208,7 +251,8 @@ public class Vm extends VSquareObject {
 	 * @return the group containing the VM or null if not found
 	 */
 	public static Vm findByIdVmVcenter(String idVmVcenter) {
-		return DatabaseManager.getFirstFromSessionQuery("FROM " + Vm.class.getSimpleName() + " WHERE id_vm_vcenter = ?0", idVmVcenter);
+		return EntityCache.get(Vm.class, "id_vm_vcenter=" + idVmVcenter,
+				() -> DatabaseManager.getFirstFromNamedQuery(FIND_BY_ID_VM_VCENTER, idVmVcenter));
 	}
 	
 	/**
@@ -217,10 +261,30 @@ public class Vm extends VSquareObject {
      * @return all templates from the table
 	 */
 	public static List<Vm> getAllTemplate() {
-		return DatabaseManager.getRowsFromSessionQuery("FROM " + Vm.class.getSimpleName() + " WHERE template = 1");
+		return DatabaseManager.getRowsFromNamedQuery(GET_ALL_TEMPLATE);
 	}
 
 
+	/**
+	 * Get the VMs of the users of a group and its subgroups, with their owner, in a single query.
+	 * 
+	 * @param group the group
+	 * @param callerType the type of the user listing the VMs, only the VMs of the users of a lower type are returned
+	 *            unless he is an admin, null for every VM
+	 * @return the VMs (not templates) visible to the caller
+	 */
+	public static List<Vm> getSubtreeVms(Group group, UserType callerType) {
+		if (callerType == null || callerType == UserType.ADMIN)
+			return DatabaseManager.getRowsFromNamedQuery(GET_SUBTREE_VMS, group.getId());
+		List<UserType> types = new ArrayList<>();
+		for (UserType type : UserType.values())
+			if (type.lesserThan(callerType))
+				types.add(type);
+		if (types.isEmpty())
+			return new ArrayList<>();
+		return DatabaseManager.getRowsFromNamedQuery(GET_SUBTREE_VMS_OF_TYPES, group.getId(), types);
+	}
+
 	/**
 	 * @return all VMs from the table
 	 */
@@ -5,6 +5,7 @@ import fr.eseo.vsquare.model.User;
 import fr.eseo.vsquare.utils.LDAPUtils;
 import fr.eseo.vsquare.utils.Logger;
 import fr.eseo.vsquare.utils.ServletUtils;
+import fr.eseo.vsquare.utils.SignedToken;
 import fr.eseo.vsquare.utils.Utils;
 import org.json.JSONObject;
 
@@ -88,14 +89,20 @@ public class AuthServlet extends HttpServlet {
 					return;
 				}
 			}
-			Token token = u.generateToken();
+			String token;
+			if (SignedToken.isEnabled()) {
+				token = SignedToken.issue(u);
+			} else {
+				Token storedToken = u.generateToken();
+				token = storedToken == null ? null : storedToken.getValue();
+			}
 			if (token == null) {
 				ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot generate token");
 				Logger.log(Level.SEVERE, "Cannot generate token for user '" + username + "'");
 				return;
 			}
 			JSONObject result = new JSONObject();
-			result.put("token", token.getValue());
+			result.put("token", token);
 			result.put("common_name", u.getCommonName());
 			result.put("user_type", u.getType().toString());
 			ServletUtils.sendJSONResponse(response, result);
@@ -124,12 +131,23 @@ public class AuthServlet extends HttpServlet {
 	 * Logout the user.
 	 * 
 	 * See doc POST /api/auth/logout.
-	 * Delete the token from the database.
+	 * Delete the token from the database, or revoke a signed token.
      *
      * @param request the servlet request
      * @param response the servlet response
 	 */
 	private void logout(HttpServletRequest request, HttpServletResponse response) {
+		SignedToken.Claims claims = SignedToken.verify(request.getHeader(Utils.getString("auth_token_header")));
+		if (claims != null) {
+			if (SignedToken.revoke(claims)) {
+				ServletUtils.sendJSONResponse(response, new JSONObject());
+			} else {
+				ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot revoke token");
+				Logger.log(Level.SEVERE, "Cannot revoke token for user " + claims.getUserId());
+			}
+			return;
+		}
+
 		Token token = ServletUtils.verifyToken(request);
 		if (token == null) {
 			ServletUtils.sendError(response, HttpServletResponse.SC_UNAUTHORIZED);
@@ -15,9 +15,13 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 
@@ -44,7 +48,7 @@ public class GroupServlet extends HttpServlet {
     protected void service(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
         try {
-            User user = ServletUtils.verifyToken(request, response);
+            ApiUser user = ServletUtils.verifyToken(request, response);
             if (user == null)
                 return;
             LinkedHashMap<String, Runnable> map = new LinkedHashMap<>();
@@ -84,14 +88,14 @@ public class GroupServlet extends HttpServlet {
      * @param request  the servlet request
      * @param response the servlet response
      */
-    private void getGroupsForUser(User user, HttpServletRequest request, HttpServletResponse response) {
-        Set<Group> groups = user.getGroupsForUser();
+    private void getGroupsForUser(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
+        Set<Group> groups = DatabaseManager.readFromReplica(user.getUser()::getGroupsForUser);
 
         boolean details = Boolean.parseBoolean(request.getParameter("details"));
-        // convert to json quickly
+        // convert to json quickly, the statistics are read from the group tree instead of listing the users
         JSONArray json = new JSONArray();
         for (Group group : groups) {
-            json.put(group.toJSON(details));
+            json.put(details ? group.toStatsJSON() : group.toJSON(false));
         }
 
         ServletUtils.sendJSONResponse(response, json);
@@ -124,7 +128,7 @@ public class GroupServlet extends HttpServlet {
      * @param request  the servlet request
      * @param response the servlet response
      */
-    private void getGroupVmList(User user, HttpServletRequest request, HttpServletResponse response) {
+    private void getGroupVmList(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
         if (user.isStudent()) {
         	
             ServletUtils.sendError(response, HttpServletResponse.SC_FORBIDDEN);
@@ -137,15 +141,7 @@ public class GroupServlet extends HttpServlet {
             return;
         }
 
-        BetterArrayList<Vm> vmList = new BetterArrayList<>();
-
-        Set<User> groupUsers = group.getUsers();
-        group.getAllChildren().forEach(g -> groupUsers.addAll(g.getUsers()));
-        groupUsers.forEach(u -> {
-            if (user.isAdmin() || u.getType().lesserThan(user.getType())) {
-                vmList.addAll(u.getVms());
-            }
-        });
+        BetterArrayList<Vm> vmList = BetterArrayList.fromList(Vm.getSubtreeVms(group, user.getType()));
 
         JSONObject json = VSphereConnector.getVmList(vmList);
 
@@ -163,7 +159,7 @@ public class GroupServlet extends HttpServlet {
      * @param request  the servlet request
      * @param response the servlet response
      */
-    private void createGroup(User user, HttpServletRequest request, HttpServletResponse response) {
+    private void createGroup(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(user, response))
             return;
 
@@ -179,11 +175,11 @@ public class GroupServlet extends HttpServlet {
 
         Group group = new Group(name, description, idParent);
         if (group.saveOrUpdate()) {
-            EventLog.log(user, EventAction.CREATE, group);
+            EventLog.log(user.getUser(), EventAction.CREATE, group);
             ServletUtils.sendJSONResponse(response, group.toJSON(true));
         } else {
             ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Creation failed");
-            ErrorLog.log(user, "Group creation failed");
+            ErrorLog.log(user.getUser(), "Group creation failed");
         }
     }
 
@@ -196,7 +192,7 @@ public class GroupServlet extends HttpServlet {
      * @param request  the servlet request
      * @param response the servlet response
      */
-    private void editGroup(User user, HttpServletRequest request, HttpServletResponse response) {
+    private void editGroup(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(user, response))
             return;
 
@@ -221,12 +217,12 @@ public class GroupServlet extends HttpServlet {
         }
 
         if (group.saveOrUpdate()) {
-            EventLog.log(user, EventAction.EDIT, group);
+            EventLog.log(user.getUser(), EventAction.EDIT, group);
             ServletUtils.sendJSONResponse(response, group.toJSON());
         } else {
             ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
                     "Edition failed - server side problem");
-            ErrorLog.log(user, String.format("Group %s : edition failed", group.getName()));
+            ErrorLog.log(user.getUser(), String.format("Group %s : edition failed", group.getName()));
         }
     }
 
@@ -239,7 +235,7 @@ public class GroupServlet extends HttpServlet {
      * @param request  the servlet request
      * @param response the servlet response
      */
-    private void deleteGroup(User user, HttpServletRequest request, HttpServletResponse response) {
+    private void deleteGroup(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(user, response))
             return;
 
@@ -254,7 +250,7 @@ public class GroupServlet extends HttpServlet {
             return;
         }
 
-        EventLog.log(user, EventAction.DELETE, group); // group need to have an id
+        EventLog.log(user.getUser(), EventAction.DELETE, group); // group need to have an id
 
         if (group.delete()) {
 
@@ -264,7 +260,7 @@ public class GroupServlet extends HttpServlet {
         } else {
             ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
                     "Deletion failed - server side problem");
-            ErrorLog.log(user, String.format("Group %s : deletion failed", group.getName()));
+            ErrorLog.log(user.getUser(), String.format("Group %s : deletion failed", group.getName()));
         }
     }
 
@@ -277,7 +273,7 @@ public class GroupServlet extends HttpServlet {
      * @param request     the servlet request
      * @param response    the servlet response
      */
-    private void addUserToGroup(User callingUser, HttpServletRequest request, HttpServletResponse response) {
+    private void addUserToGroup(ApiUser callingUser, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(callingUser, response))
             return;
 
@@ -288,9 +284,10 @@ public class GroupServlet extends HttpServlet {
             return;
         }
 
+        GroupTree.Snapshot tree = GroupTree.get();
         Group tmp = group;
         while (tmp != null) {
-            if (tmp.getUsers().contains(user))
+            if (tree.contains(tmp.getId()) ? tree.isMember(tmp.getId(), user.getId()) : tmp.getUsers().contains(user))
                 user.removeGroup(tmp);
             tmp = tmp.getParent();
         }
@@ -298,11 +295,11 @@ public class GroupServlet extends HttpServlet {
         user.addGroup(group);
         user.checkGroups();
         if (user.saveOrUpdate()) {
-            EventLog.log(callingUser, EventAction.EDIT, group);
+            EventLog.log(callingUser.getUser(), EventAction.EDIT, group);
             ServletUtils.sendOK(response);
         } else {
             ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            ErrorLog.log(callingUser, "Cannot add user '" + user.getLogin() + "' to group '" + group.getName() + "'");
+            ErrorLog.log(callingUser.getUser(), "Cannot add user '" + user.getLogin() + "' to group '" + group.getName() + "'");
         }
     }
 
@@ -315,7 +312,7 @@ public class GroupServlet extends HttpServlet {
      * @param request     the servlet request
      * @param response    the servlet response
      */
-    private void removeUserFromGroup(User callingUser, HttpServletRequest request, HttpServletResponse response) {
+    private void removeUserFromGroup(ApiUser callingUser, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(callingUser, response))
             return;
 
@@ -329,11 +326,11 @@ public class GroupServlet extends HttpServlet {
         user.removeGroup(group);
         user.checkGroups();
         if (user.saveOrUpdate()) {
-            EventLog.log(callingUser, EventAction.EDIT, group);
+            EventLog.log(callingUser.getUser(), EventAction.EDIT, group);
             ServletUtils.sendOK(response);
         } else {
             ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            ErrorLog.log(callingUser,
+            ErrorLog.log(callingUser.getUser(),
                     "Cannot remove user '" + user.getLogin() + "' from group '" + group.getName() + "'");
         }
     }
@@ -347,7 +344,7 @@ public class GroupServlet extends HttpServlet {
      * @param request     the servlet request
      * @param response    the servlet response
      */
-    private void getGroupPermission(User callingUser, HttpServletRequest request, HttpServletResponse response) {
+    private void getGroupPermission(ApiUser callingUser, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(callingUser, response))
             return;
 
@@ -370,7 +367,7 @@ public class GroupServlet extends HttpServlet {
      * @param response    the servlet response
      */
 
-    private void createGroupPermission(User callingUser, HttpServletRequest request, HttpServletResponse response) {
+    private void createGroupPermission(ApiUser callingUser, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(callingUser, response))
             return;
 
@@ -401,12 +398,12 @@ public class GroupServlet extends HttpServlet {
 
         if (permission.saveOrUpdate() && group.saveOrUpdate()) {
             Logger.log(Level.INFO, permission.toJSON().toString());
-            EventLog.log(callingUser, EventAction.EDIT, group);
+            EventLog.log(callingUser.getUser(), EventAction.EDIT, group);
             updatePermission(group);
             ServletUtils.sendJSONResponse(response, permission.toJSON());
         } else {
             ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            ErrorLog.log(callingUser, "Group permission'" + group.getName() + "' : edition/creation failed");
+            ErrorLog.log(callingUser.getUser(), "Group permission'" + group.getName() + "' : edition/creation failed");
         }
     }
 
@@ -423,7 +420,7 @@ public class GroupServlet extends HttpServlet {
      * @param response    the servlet response
      */
 
-    private void resetGroupPermission(User callingUser, HttpServletRequest request, HttpServletResponse response) {
+    private void resetGroupPermission(ApiUser callingUser, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(callingUser, response))
             return;
 
@@ -436,24 +433,26 @@ public class GroupServlet extends HttpServlet {
         group.setPermission(null);
 
         if (group.saveOrUpdate()) {
-            EventLog.log(callingUser, EventAction.EDIT, group);
+            EventLog.log(callingUser.getUser(), EventAction.EDIT, group);
             updatePermission(group);
             ServletUtils.sendJSONResponse(response, group.getEffectivePermission().toJSON());
         } else {
             ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
                     "Operation failed - server side problem");
-            ErrorLog.log(callingUser, "Group permission'" + group.getName() + "' : deletion failed");
+            ErrorLog.log(callingUser.getUser(), "Group permission'" + group.getName() + "' : deletion failed");
         }
     }
 
     private void updatePermission(Group group) {
+        Map<Integer, List<Vm>> vmsByUser = new HashMap<>();
+        for (Vm vm : Vm.getSubtreeVms(group, null))
+            vmsByUser.computeIfAbsent(vm.getUser().getId(), id -> new ArrayList<>()).add(vm);
         for (User user : group.getUsers(true)) {
             Permission permission = user.getEffectivePermission();
-            if (user.getPrivateNetwork() != null) {
-                int vmCount = user.getVms().size();
-                VCenterManager.editNetwork(user.getPrivateNetwork(), Math.max(permission.getVmCount(), vmCount));
-            }
-            for (Vm vm : user.getVms())
+            List<Vm> vms = vmsByUser.getOrDefault(user.getId(), Collections.emptyList());
+            if (user.getPrivateNetwork() != null)
+                VCenterManager.editNetwork(user.getPrivateNetwork(), Math.max(permission.getVmCount(), vms.size()));
+            for (Vm vm : vms)
                 updatePermissionVm(permission, vm);
         }
     }
@@ -489,7 +488,7 @@ public class GroupServlet extends HttpServlet {
      * @param request  the servlet request
      * @param response the servlet response
      */
-    private void setPowerAll(User user, HttpServletRequest request, HttpServletResponse response) {
+    private void setPowerAll(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(user, response))
             return;
 
@@ -505,14 +504,14 @@ public class GroupServlet extends HttpServlet {
             return;
         }
 
-        List<Vm> vms = BetterArrayList.fromList(group.getUsers(true)).selectMany(User::getVms);
-        int vmAffected = VSphereConnector.setVmPowerAll(user, action, vms);
+        List<Vm> vms = Vm.getSubtreeVms(group, user.getType());
+        int vmAffected = VSphereConnector.setVmPowerAll(user.getUser(), action, vms);
 
         JSONObject output = new JSONObject();
         output.put("total_vms", vms.size());
         output.put("total_success", vmAffected);
 
-        EventLog.log(user, EventLog.getActionFromVmPower(action), user); // using self to indicate all vms
+        EventLog.log(user.getUser(), EventLog.getActionFromVmPower(action), user.getUser()); // using self to indicate all vms
 
         ServletUtils.sendJSONResponse(response, output);
     }
@@ -527,7 +526,7 @@ public class GroupServlet extends HttpServlet {
      * @param request     the servlet request
      * @param response    the servlet response
      */
-    private void getGroupNetworks(User callingUser, HttpServletRequest request, HttpServletResponse response) {
+    private void getGroupNetworks(ApiUser callingUser, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(callingUser, response))
             return;
 
@@ -564,7 +563,7 @@ public class GroupServlet extends HttpServlet {
      * @param request     the servlet request
      * @param response    the servlet response
      */
-    private void addGroupNetwork(User callingUser, HttpServletRequest request, HttpServletResponse response) {
+    private void addGroupNetwork(ApiUser callingUser, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(callingUser, response))
             return;
 
@@ -579,12 +578,12 @@ public class GroupServlet extends HttpServlet {
         network.addGroup(group);
 
         if (network.saveOrUpdate()) {
-            EventLog.log(callingUser, EventAction.EDIT, network);
+            EventLog.log(callingUser.getUser(), EventAction.EDIT, network);
             ServletUtils.sendOK(response);
         } else {
             ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
                     "Operation failed - server side problem");
-            ErrorLog.log(callingUser, "Group'" + group.getName() + "' : cannot add network");
+            ErrorLog.log(callingUser.getUser(), "Group'" + group.getName() + "' : cannot add network");
         }
     }
 
@@ -597,7 +596,7 @@ public class GroupServlet extends HttpServlet {
      * @param request     the servlet request
      * @param response    the servlet response
      */
-    private void deleteGroupNetwork(User callingUser, HttpServletRequest request, HttpServletResponse response) {
+    private void deleteGroupNetwork(ApiUser callingUser, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(callingUser, response))
             return;
 
@@ -618,14 +617,14 @@ public class GroupServlet extends HttpServlet {
         network.removeGroup(group);
 
         if (network.saveOrUpdate()) {
-            EventLog.log(callingUser, EventAction.EDIT, network);
+            EventLog.log(callingUser.getUser(), EventAction.EDIT, network);
             JSONObject jsonResponse = new JSONObject();
             jsonResponse.put("success", true);
             ServletUtils.sendJSONResponse(response, jsonResponse);
         } else {
             ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
                     "Deletion failed - server side problem");
-            ErrorLog.log(callingUser,
+            ErrorLog.log(callingUser.getUser(),
                     "Group '" + group.getName() + "' network '" + network.getName() + "' : deletion failed");
         }
     }
@@ -639,7 +638,7 @@ public class GroupServlet extends HttpServlet {
      * @param request     the servlet request
      * @param response    the servlet response
      */
-    private void addTemplateToGroup(User callingUser, HttpServletRequest request, HttpServletResponse response) {
+    private void addTemplateToGroup(ApiUser callingUser, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(callingUser, response))
             return;
 
@@ -652,11 +651,11 @@ public class GroupServlet extends HttpServlet {
         group.addTemplate(vm);
 
         if (group.saveOrUpdate()) {
-            EventLog.log(callingUser, EventAction.EDIT, group);
+            EventLog.log(callingUser.getUser(), EventAction.EDIT, group);
             ServletUtils.sendOK(response);
         } else {
             ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            ErrorLog.log(callingUser, "Cannot add template '" + vm.getIdVmVcenter() + "' to group '" + group.getName() + "'");
+            ErrorLog.log(callingUser.getUser(), "Cannot add template '" + vm.getIdVmVcenter() + "' to group '" + group.getName() + "'");
         }
     }
 
@@ -669,7 +668,7 @@ public class GroupServlet extends HttpServlet {
      * @param request     the servlet request
      * @param response    the servlet response
      */
-    private void deleteTemplateFromGroup(User callingUser, HttpServletRequest request, HttpServletResponse response) {
+    private void deleteTemplateFromGroup(ApiUser callingUser, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(callingUser, response))
             return;
 
@@ -682,11 +681,11 @@ public class GroupServlet extends HttpServlet {
         group.removeTemplate(vm);
 
         if (group.saveOrUpdate()) {
-            EventLog.log(callingUser, EventAction.EDIT, group);
+            EventLog.log(callingUser.getUser(), EventAction.EDIT, group);
             ServletUtils.sendOK(response);
         } else {
             ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            ErrorLog.log(callingUser, "Cannot add template '" + vm.getIdVmVcenter() + "' to group '" + group.getName() + "'");
+            ErrorLog.log(callingUser.getUser(), "Cannot add template '" + vm.getIdVmVcenter() + "' to group '" + group.getName() + "'");
         }
     }
 
@@ -698,7 +697,7 @@ public class GroupServlet extends HttpServlet {
      * @param request  the servlet request
      * @param response the servlet response
      */
-    private void getGroupTemplateList(User callingUser, HttpServletRequest request, HttpServletResponse response) {
+    private void getGroupTemplateList(ApiUser callingUser, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(callingUser, response))
             return;
 
@@ -725,15 +724,15 @@ public class GroupServlet extends HttpServlet {
      * @param request     the servlet request
      * @param response    the servlet response
      */
-    private void resetGroupsUsers(User callingUser, HttpServletRequest request, HttpServletResponse response) {
+    private void resetGroupsUsers(ApiUser callingUser, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(callingUser, response))
             return;
 
         Group callingGroup = ServletUtils.getObjectFromRequest(request, response, 3, Group.class);
-        for (User user : callingGroup.getUsers(true)) {
+        List<User> users = callingGroup.getUsers(true);
+        for (User user : users)
             user.removeGroup(callingGroup);
-            user.saveOrUpdate();
-        }
+        VSquareObject.saveAll(users);
         ServletUtils.sendOK(response);
     }
 
@@ -750,25 +749,27 @@ public class GroupServlet extends HttpServlet {
      * @throws InterruptedException
      * @throws RemoteException
      */
-    private void resetGroupsVms(User callingUser, HttpServletRequest request, HttpServletResponse response) {
+    private void resetGroupsVms(ApiUser callingUser, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(callingUser, response))
             return;
 
         Group callingGroup = ServletUtils.getObjectFromRequest(request, response, 3, Group.class);
 
+        List<Vm> deletedVms = new ArrayList<>();
         try {
-            for (Vm vm : BetterArrayList.fromList(callingGroup.getUsers(true)).selectMany(User::getVms)) {
+            for (Vm vm : Vm.getSubtreeVms(callingGroup, callingUser.getType())) {
                 VCenterManager.shutdownVM(vm);
                 VCenterManager.deleteVm(vm);
-                vm.delete();
+                deletedVms.add(vm);
             }
         } catch (InterruptedException | RemoteException e) {
-
+            VSquareObject.deleteAll(deletedVms);
             ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            ErrorLog.log(callingUser, "Could not reset groups Vms");
+            ErrorLog.log(callingUser.getUser(), "Could not reset groups Vms");
             return;
         }
 
+        VSquareObject.deleteAll(deletedVms);
         ServletUtils.sendOK(response);
     }
 
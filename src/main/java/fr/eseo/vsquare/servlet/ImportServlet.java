@@ -1,8 +1,8 @@
 package fr.eseo.vsquare.servlet;
 
 import fr.eseo.vsquare.model.EventLog;
-import fr.eseo.vsquare.model.User;
 import fr.eseo.vsquare.model.Vm;
+import fr.eseo.vsquare.utils.ApiUser;
 import fr.eseo.vsquare.utils.Logger;
 import fr.eseo.vsquare.utils.ServletUtils;
 import fr.eseo.vsquare.utils.Utils;
@@ -49,7 +49,7 @@ public class ImportServlet extends HttpServlet {
 	protected void service(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
 		try {
-			User user = ServletUtils.verifyToken(request, response);
+			ApiUser user = ServletUtils.verifyToken(request, response);
 			if (user == null)
 				return;
 			LinkedHashMap<String, Runnable> map = new LinkedHashMap<>();
@@ -120,20 +120,20 @@ public class ImportServlet extends HttpServlet {
 	 * @param vmName
 	 * @param desc
 	 */
-	private void finishImport(HttpServletResponse response, User user,String idVm, String vmName,String desc){
+	private void finishImport(HttpServletResponse response, ApiUser user,String idVm, String vmName,String desc){
 		if (idVm == null){
 			ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,"VM has been created but seems unreachable");
 			return;
 		}
 		
 		//create the VM for the user
-		Vm vm = new Vm(user, idVm, vmName, desc);
+		Vm vm = new Vm(user.getUser(), idVm, vmName, desc);
 		if (! vm.saveOrUpdate()){
 			ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,"VM has been created but could not be saved - idVm :"+idVm);
 			return;
 		}
 
-        EventLog.log(user, EventLog.EventAction.IMPORT, vm);
+        EventLog.log(user.getUser(), EventLog.EventAction.IMPORT, vm);
 		
 		JSONObject result = new JSONObject();
 		result.put("id", idVm);
@@ -148,7 +148,7 @@ public class ImportServlet extends HttpServlet {
 	 * @param request the http servlet request
 	 * @param response the http servlet response
 	 */
-	private void importOVA(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void importOVA(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		importFormat(user, request, response, MIMEType.OVA);
 	}
 	
@@ -159,12 +159,12 @@ public class ImportServlet extends HttpServlet {
 	 * @param request the http servlet request
 	 * @param response the http servlet response
 	 */
-	private void importISO(User user, HttpServletRequest request, HttpServletResponse response){
+	private void importISO(ApiUser user, HttpServletRequest request, HttpServletResponse response){
 		importFormat(user, request, response, MIMEType.ISO);
 	}
 
-	private void importFormat(User user, HttpServletRequest request, HttpServletResponse response, MIMEType format){
-		if (user.isStudent() && user.getEffectivePermission().getVmCount() >= user.getVms().size()){
+	private void importFormat(ApiUser user, HttpServletRequest request, HttpServletResponse response, MIMEType format){
+		if (user.isStudent() && user.getUser().getEffectivePermission().getVmCount() >= user.getUser().getVms().size()){
 			ServletUtils.sendError(response, HttpServletResponse.SC_FORBIDDEN,"Maximum number of VM reached");
 			return;
 		}
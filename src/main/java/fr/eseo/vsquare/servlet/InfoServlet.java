@@ -1,6 +1,5 @@
 package fr.eseo.vsquare.servlet;
 
-import fr.eseo.vsquare.model.User;
 import fr.eseo.vsquare.model.User.UserType;
 import fr.eseo.vsquare.utils.*;
 import org.json.JSONObject;
@@ -20,7 +19,7 @@ import java.util.logging.Level;
  * 
  * @author Baptiste Beduneau
  */
-@WebServlet({"/info", "/hosts/*", "/datastore/*", "/datastores/*"})
+@WebServlet({"/info", "/hosts/*", "/datastore/*", "/datastores/*", "/metrics"})
 public class InfoServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
 	private static final String UNKNOWN_VALUE = "unknown";
@@ -42,6 +41,7 @@ public class InfoServlet extends HttpServlet {
 			map.put("GET /api/datastores", () -> getListDatastore(request, response));
 			map.put("GET /api/datastore/{}", () -> getDetailsDatastore(request, response));
 			map.put("GET /api/networks", () -> getListNetwork(request, response));
+			map.put("GET /api/metrics", () -> getMetrics(request, response));
 			ServletUtils.mapRequest(request, response, map);
 		} catch (Exception e) {
 			Logger.log(Level.SEVERE, e.toString());
@@ -170,6 +170,37 @@ public class InfoServlet extends HttpServlet {
 		ServletUtils.sendVSphereResponse(response, json);
 	}
 
+	/**
+	 * Return the performance counters of the API.
+	 * 
+	 * See doc GET /api/metrics.
+	 *
+	 * @param request the servlet request
+	 * @param response the servlet response
+	 */
+	private void getMetrics(HttpServletRequest request, HttpServletResponse response) {
+		if (!verifyUser(request, response))
+			return;
+
+		JSONObject json = new JSONObject();
+		json.put("entity_cache", EntityCache.getMetrics());
+		json.put("count_cache", CountCache.getMetrics());
+		json.put("token_cache", TokenCache.getMetrics());
+		json.put("signed_tokens", SignedToken.getMetrics());
+		json.put("group_tree", GroupTree.getMetrics());
+		json.put("batch_writers", BatchWriter.getAllMetrics());
+		json.put("error_dedup", ErrorDeduplicator.getMetrics());
+		json.put("log_retention", LogRetention.getMetrics());
+		json.put("token_reaper", TokenReaper.getMetrics());
+		json.put("ldap_pools", LDAPUtils.getMetrics());
+		json.put("ldap_sync", LDAPSync.getMetrics());
+		json.put("log_archive", LogArchive.getMetrics());
+		json.put("db_pools", DatabaseManager.getPoolMetrics());
+		json.put("db_replica", DatabaseManager.getReplicaMetrics());
+
+		ServletUtils.sendJSONResponse(response, json);
+	}
+
 	/**
 	 * Verify a user.
 	 * 
@@ -181,7 +212,7 @@ public class InfoServlet extends HttpServlet {
 	 * @return true if the user is logged and admin, false otherwise
 	 */
 	private boolean verifyUser(HttpServletRequest request, HttpServletResponse response) {
-		User user = ServletUtils.verifyToken(request, response);
+		ApiUser user = ServletUtils.verifyToken(request, response);
 		if (user == null) {
 			return false;
 		}
@@ -37,6 +37,10 @@ public class InitContextListener implements ServletContextListener {
                 throw new IllegalStateException("VCenter cannot be reached (SDK)");
             Utils.createLDAPUsers();
             Utils.checkUsers();
+            LDAPSync.start();
+			LogRetention.start();
+			TokenReaper.start();
+			ErrorDeduplicator.start();
 			Logger.log(Level.INFO, "Server started");
 		} catch (Exception e) {
 			Logger.log(Level.SEVERE, e.toString(), e);
@@ -50,7 +54,16 @@ public class InitContextListener implements ServletContextListener {
 	 */
 	@Override
 	public void contextDestroyed(ServletContextEvent sce) {
+		LogRetention.stop();
+		TokenReaper.stop();
+		LDAPSync.stop();
+		LDAPUtils.closePools();
+		ErrorDeduplicator.stop();
+		ErrorDeduplicator.flush();
+		BatchWriter.shutdownAll();
 		DatabaseManager.getSessionFactory().getCurrentSession().close();
+		DatabaseManager.closeReplica();
+		DatabaseManager.closePools();
 		DatabaseManager.checkDriver(true);
 		Logger.log(Level.INFO, "Server closed");
 	}
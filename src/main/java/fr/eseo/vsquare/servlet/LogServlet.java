@@ -2,7 +2,9 @@ package fr.eseo.vsquare.servlet;
 
 import fr.eseo.vsquare.model.ErrorLog;
 import fr.eseo.vsquare.model.EventLog;
-import fr.eseo.vsquare.model.User;
+import fr.eseo.vsquare.utils.ApiUser;
+import fr.eseo.vsquare.utils.DatabaseManager;
+import fr.eseo.vsquare.utils.LogArchive;
 import fr.eseo.vsquare.utils.Logger;
 import fr.eseo.vsquare.utils.ServletUtils;
 import fr.eseo.vsquare.utils.Utils;
@@ -15,8 +17,10 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
 /**
@@ -41,7 +45,7 @@ public class LogServlet extends HttpServlet {
 	protected void service(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
 		try {
-            final User user = ServletUtils.verifyToken(request, response);
+            final ApiUser user = ServletUtils.verifyToken(request, response);
 			if (user == null)
 				return;
 			LinkedHashMap<String, Runnable> map = new LinkedHashMap<>();
@@ -59,35 +63,78 @@ public class LogServlet extends HttpServlet {
 	 * 
 	 * See doc GET /api/log/events.
 	 * Allow the user to query specific terms to search the event logs.
-	 * Uses pagination.
+	 * Uses pagination, either by page number or by the cursor returned as "next_cursor".
+	 * With approx=true, total_count may miss the latest logs, unless the archived events are included.
+	 * The from and to parameters (ms since epoch) restrict the logs to a date range, the archived events are
+	 * included when the range starts before the archive horizon (see LogArchive).
 	 *
      * @param user the current user
      * @param request the servlet request
 	 * @param response the servlet response
 	 */
-	private void listEvents(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void listEvents(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(user, response))
 			return;
 
 		Integer pageSize = Utils.stringToInteger(request.getParameter("page_size"));
 		Integer page = Utils.stringToInteger(request.getParameter("page"));
         String query = request.getParameter("query");
+		String cursor = request.getParameter("cursor");
+		boolean approx = Boolean.parseBoolean(request.getParameter("approx"));
+		Long from = Utils.stringToLong(request.getParameter("from"));
+		Long to = Utils.stringToLong(request.getParameter("to"));
 
-		if(pageSize == null || page == null) {
+		if(pageSize == null || (page == null && cursor == null)) {
 			ServletUtils.sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid page or page_size parameter");
 			return;
 		}
 
-        List<EventLog> list = EventLog.getExtract(page * pageSize, pageSize, query);
+		if ((from == null && request.getParameter("from") != null) || (to == null && request.getParameter("to") != null)) {
+			ServletUtils.sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid from or to parameter");
+			return;
+		}
+
+        // only the listed columns of the events and their users are read
+        List<EventLog.Summary> list = readLogs(from, to, () -> cursor != null
+				? EventLog.getSummariesAfter(cursor, pageSize, query)
+				: EventLog.getSummaries(page * pageSize, pageSize, query));
+		if (list == null) {
+			ServletUtils.sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid cursor parameter");
+			return;
+		}
+
+		// the archived events follow the ones of the database, their skip needs the exact count of the database
+		boolean archiveReached = from != null && LogArchive.reaches(new Date(from));
+		long totalCount = readLogs(from, to, () -> EventLog.count(query, approx && !archiveReached));
+
+		// the objects of the page are read with one query per object type
+		JSONArray array = new JSONArray(DatabaseManager.readFromReplica(() -> EventLog.toDetailedJSON(list)));
+		String nextCursor = list.isEmpty() ? cursor : list.get(list.size() - 1).getPageCursor();
+
+		// the archived events are older than the events of the database, they follow them
+		if (archiveReached) {
+			Date fromDate = new Date(from);
+			Date toDate = to == null ? null : new Date(to);
+			if (list.size() < pageSize) {
+				int skip = cursor == null && list.isEmpty() ? (int) Math.max(0, page * pageSize - totalCount) : 0;
+				List<LogArchive.Entry> archived = LogArchive.read(fromDate, toDate, query, nextCursor, skip,
+						pageSize - list.size());
+				if (archived != null) {
+					for (LogArchive.Entry e : archived) {
+						array.put(e.toJSON());
+						nextCursor = e.getPageCursor();
+					}
+				}
+			}
+			totalCount += LogArchive.count(fromDate, toDate, query);
+		}
 
-		JSONArray array = new JSONArray();
-		for (EventLog u : list)
-			array.put(u.toJSON(true));
-		
 		JSONObject res = new JSONObject();
-        res.put("total_count", EventLog.count(query));
-		res.put("count", list.size());
+		res.put("total_count", totalCount);
+		res.put("count", array.length());
 		res.put("list", array);
+		if (pageSize > 0 && array.length() == pageSize)
+			res.put("next_cursor", nextCursor);
 
 		ServletUtils.sendJSONResponse(response, res);
 	}
@@ -97,36 +144,70 @@ public class LogServlet extends HttpServlet {
 	 * 
 	 * See doc GET /api/log/errors.
 	 * Allow the user to query specific terms to search the error logs.
-	 * Uses pagination.
+	 * Uses pagination, either by page number or by the cursor returned as "next_cursor".
+	 * With approx=true, total_count may miss the latest logs.
+	 * The from and to parameters (ms since epoch) restrict the logs to a date range.
      * @param user the current user
 	 * @param request the servlet request
 	 * @param response the servlet response
 	 */
-	private void listErrors(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void listErrors(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(user, response))
 			return;
 
 		Integer pageSize = Utils.stringToInteger(request.getParameter("page_size"));
 		Integer page = Utils.stringToInteger(request.getParameter("page"));
         String query = request.getParameter("query");
+		String cursor = request.getParameter("cursor");
+		boolean approx = Boolean.parseBoolean(request.getParameter("approx"));
+		Long from = Utils.stringToLong(request.getParameter("from"));
+		Long to = Utils.stringToLong(request.getParameter("to"));
 
-		if(pageSize == null || page == null) {
+		if(pageSize == null || (page == null && cursor == null)) {
 			ServletUtils.sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid page or page_size parameter");
 			return;
 		}
 
-        List<ErrorLog> list = ErrorLog.getExtract(page * pageSize, pageSize, query);
+		if ((from == null && request.getParameter("from") != null) || (to == null && request.getParameter("to") != null)) {
+			ServletUtils.sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid from or to parameter");
+			return;
+		}
+
+        List<ErrorLog> list = readLogs(from, to, () -> cursor != null
+				? ErrorLog.getExtractAfter(cursor, pageSize, query)
+				: ErrorLog.getExtract(page * pageSize, pageSize, query));
+		if (list == null) {
+			ServletUtils.sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid cursor parameter");
+			return;
+		}
 
 		JSONArray array = new JSONArray();
 		for (ErrorLog u : list)
 			array.put(u.toJSON(true));
 		
 		JSONObject res = new JSONObject();
-        res.put("total_count", ErrorLog.count(query));
+        res.put("total_count", readLogs(from, to, () -> ErrorLog.count(query, approx)));
 		res.put("count", list.size());
 		res.put("list", array);
+		if (pageSize > 0 && list.size() == pageSize)
+			res.put("next_cursor", list.get(list.size() - 1).getPageCursor());
 
 		ServletUtils.sendJSONResponse(response, res);
 	}
 
+	/**
+	 * Read logs from the replica, restricted to a date range if given.
+	 * 
+	 * @param from the first date included (ms since epoch), null for no lower bound
+	 * @param to the last date excluded (ms since epoch), null for no upper bound
+	 * @param operation the read operation
+	 * @return the result of the operation
+	 */
+	private static <T> T readLogs(Long from, Long to, Supplier<T> operation) {
+		if (from == null && to == null)
+			return DatabaseManager.readFromReplica(operation);
+		return DatabaseManager.readFromReplica(() -> DatabaseManager.withDateRange(from == null ? null : new Date(from),
+				to == null ? null : new Date(to), operation));
+	}
+
 }
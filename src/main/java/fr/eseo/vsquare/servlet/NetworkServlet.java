@@ -3,7 +3,7 @@ package fr.eseo.vsquare.servlet;
 import fr.eseo.vsquare.model.ErrorLog;
 import fr.eseo.vsquare.model.EventLog;
 import fr.eseo.vsquare.model.Network;
-import fr.eseo.vsquare.model.User;
+import fr.eseo.vsquare.utils.ApiUser;
 import fr.eseo.vsquare.utils.Logger;
 import fr.eseo.vsquare.utils.ServletUtils;
 import fr.eseo.vsquare.utils.Utils;
@@ -14,6 +14,7 @@ import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.logging.Level;
@@ -37,7 +38,7 @@ public class NetworkServlet extends HttpServlet {
     @Override
     protected void service(HttpServletRequest request, HttpServletResponse response) {
         try {
-            final User user = ServletUtils.verifyToken(request, response);
+            final ApiUser user = ServletUtils.verifyToken(request, response);
             if (user == null)
                 return;
             LinkedHashMap<String, Runnable> map = new LinkedHashMap<>();
@@ -61,10 +62,16 @@ public class NetworkServlet extends HttpServlet {
      * @param request  the servlet request
      * @param response the servlet response
      */
-    private void getAvailableNetworks(User user, HttpServletRequest request, HttpServletResponse response) {
+    private void getAvailableNetworks(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
         JSONArray output = new JSONArray();
         boolean details = user.isAdmin() && request.getParameter("details") != null && request.getParameter("details").equalsIgnoreCase("true");
-        for (Network network : user.isAdmin() ? Network.getAll() : user.getAvailableNetworks()) {
+        // the detailed list lists the groups of every network, they are fetched with the networks
+        Collection<Network> networks;
+        if (!user.isAdmin())
+            networks = user.getUser().getAvailableNetworks();
+        else
+            networks = details ? Network.getAllWithGroups() : Network.getAll();
+        for (Network network : networks) {
             output.put(network.toJSON(details));
             if (details) {
                 output.getJSONObject(output.length() - 1).put("port_num",
@@ -84,7 +91,7 @@ public class NetworkServlet extends HttpServlet {
      * @param request  the servlet request
      * @param response the servlet response
      */
-    private void addNetwork(User user, HttpServletRequest request, HttpServletResponse response) {
+    private void addNetwork(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(user, response))
             return;
 
@@ -105,11 +112,11 @@ public class NetworkServlet extends HttpServlet {
 
         Network newNetwork = new Network(name, netId);
         if (newNetwork.saveOrUpdate()) {
-            EventLog.log(user, EventLog.EventAction.CREATE, newNetwork);
+            EventLog.log(user.getUser(), EventLog.EventAction.CREATE, newNetwork);
             ServletUtils.sendJSONResponse(response, newNetwork.toJSON(true));
         } else {
             ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Creation failed");
-            ErrorLog.log(user, "Network creation failed");
+            ErrorLog.log(user.getUser(), "Network creation failed");
         }
 
     }
@@ -123,7 +130,7 @@ public class NetworkServlet extends HttpServlet {
      * @param request  the servlet request
      * @param response the servlet response
      */
-    private void editNetwork(User user, HttpServletRequest request, HttpServletResponse response) {
+    private void editNetwork(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(user, response))
             return;
 
@@ -146,7 +153,7 @@ public class NetworkServlet extends HttpServlet {
             return;
         }
 
-        EventLog.log(user, EventLog.EventAction.EDIT, network);
+        EventLog.log(user.getUser(), EventLog.EventAction.EDIT, network);
 
         ServletUtils.sendOK(response);
     }
@@ -160,7 +167,7 @@ public class NetworkServlet extends HttpServlet {
      * @param request  the servlet request
      * @param response the servlet response
      */
-    private void deleteNetwork(User user, HttpServletRequest request, HttpServletResponse response) {
+    private void deleteNetwork(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(user, response))
             return;
 
@@ -168,7 +175,7 @@ public class NetworkServlet extends HttpServlet {
         if (network == null)
             return;
 
-        EventLog.log(user, EventLog.EventAction.DELETE, network);
+        EventLog.log(user.getUser(), EventLog.EventAction.DELETE, network);
 
         if (!VCenterManager.deleteNetwork(network.getIdNetworkVcenter()) || !network.delete()) {
             ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot delete network");
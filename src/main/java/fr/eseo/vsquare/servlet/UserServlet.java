@@ -5,11 +5,11 @@ import fr.eseo.vsquare.model.EventLog;
 import fr.eseo.vsquare.model.EventLog.EventAction;
 import fr.eseo.vsquare.model.User;
 import fr.eseo.vsquare.model.User.UserType;
+import fr.eseo.vsquare.utils.ApiUser;
+import fr.eseo.vsquare.utils.DatabaseManager;
 import fr.eseo.vsquare.utils.Logger;
 import fr.eseo.vsquare.utils.ServletUtils;
 import fr.eseo.vsquare.utils.Utils;
-import fr.klemek.betterlists.BetterArrayList;
-import fr.klemek.betterlists.BetterList;
 import org.json.JSONArray;
 
 import javax.servlet.ServletException;
@@ -19,6 +19,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.logging.Level;
 
 /**
@@ -42,7 +43,7 @@ public class UserServlet extends HttpServlet {
     protected void service(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
         try {
-            final User user = ServletUtils.verifyToken(request, response);
+            final ApiUser user = ServletUtils.verifyToken(request, response);
             if (user == null)
                 return;
             LinkedHashMap<String, Runnable> map = new LinkedHashMap<>();
@@ -66,26 +67,19 @@ public class UserServlet extends HttpServlet {
      * @param request  the servlet request
      * @param response the servlet response
      */
-    private void listUsers(User user, HttpServletRequest request, HttpServletResponse response) {
+    private void listUsers(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
         if (user.isStudent()) {
             ServletUtils.sendError(response, HttpServletResponse.SC_FORBIDDEN);
             return;
         }
 
-        BetterList<User> list = BetterArrayList.fromList(User.getAll());
-        if (!user.isAdmin()) {
-            list = list.where(u -> u.getType().lesserThan(user.getType()));
-        }
-
+        // only the listed columns are read, the types and the query are filtered by the database
         String query = request.getParameter("query");
-        if (query != null) {
-            list = list.where(u -> Utils.containsIgnoreCase(u.getCommonName(), query)
-                    || Utils.containsIgnoreCase(u.getLogin(), query));
-        }
+        List<User.Summary> list = DatabaseManager.readFromReplica(() -> User.getSummaries(user.getType(), query));
 
         JSONArray array = new JSONArray();
-        for (User u : list)
-            array.put(u.toJSON(false));
+        for (User.Summary u : list)
+            array.put(u.toJSON());
 
         ServletUtils.sendJSONResponse(response, array);
     }
@@ -115,7 +109,7 @@ public class UserServlet extends HttpServlet {
      * @param request  the servlet request
      * @param response the servlet response
      */
-    private void editUserInfo(User callingUser, HttpServletRequest request, HttpServletResponse response) {
+    private void editUserInfo(ApiUser callingUser, HttpServletRequest request, HttpServletResponse response) {
         User user = ServletUtils.getObjectFromRequest(request, response, 3, User.class);
         if (user == null)
             return;
@@ -127,7 +121,7 @@ public class UserServlet extends HttpServlet {
 
         String type = request.getParameter("type");
         if (type != null) {
-            if (user.equals(callingUser)) {
+            if (user.getId() == callingUser.getId()) {
                 ServletUtils.sendError(response, HttpServletResponse.SC_FORBIDDEN, "You cannot change your user type");
                 return;
             }
@@ -142,11 +136,11 @@ public class UserServlet extends HttpServlet {
 
         if (!user.saveOrUpdate()) {
             ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot edit user");
-            ErrorLog.log(callingUser, "User '" + user.getLogin() + "' : edition failed");
+            ErrorLog.log(callingUser.getUser(), "User '" + user.getLogin() + "' : edition failed");
             return;
         }
 
-        EventLog.log(callingUser, EventAction.EDIT, user);
+        EventLog.log(callingUser.getUser(), EventAction.EDIT, user);
 
         ServletUtils.sendJSONResponse(response, user.toJSON(true));
     }
@@ -159,7 +153,7 @@ public class UserServlet extends HttpServlet {
      * @param user     the calling user
      * @param response the servlet response
      */
-    private void scrapLDAP(User user, HttpServletResponse response) {
+    private void scrapLDAP(ApiUser user, HttpServletResponse response) {
         if (!ServletUtils.checkUserRight(user, response))
             return;
         Utils.createLDAPUsers();
@@ -46,7 +46,7 @@ public class VMsServlet extends HttpServlet {
 	@Override
 	protected void service(HttpServletRequest request, HttpServletResponse response) {
 		try {
-			final User user = ServletUtils.verifyToken(request, response);
+			final ApiUser user = ServletUtils.verifyToken(request, response);
 			if (user == null)
 				return;
 			LinkedHashMap<String, Runnable> map = new LinkedHashMap<>();
@@ -90,8 +90,8 @@ public class VMsServlet extends HttpServlet {
 	 * @param user the user who made the request
 	 * @param response the http response
 	 */
-	private void getListVm(User user, HttpServletResponse response) {
-		BetterArrayList<Vm> vmList = BetterArrayList.fromList(user.getVms());
+	private void getListVm(ApiUser user, HttpServletResponse response) {
+		BetterArrayList<Vm> vmList = BetterArrayList.fromList(user.getUser().getVms());
 
 		JSONObject json = VSphereConnector.getVmList(vmList);
 
@@ -107,7 +107,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request the servlet request
 	 * @param response the servlet response
 	 */
-	private void getDetailsVm(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void getDetailsVm(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 3, user, false);
 		if (vm == null)
 			return;
@@ -126,12 +126,12 @@ public class VMsServlet extends HttpServlet {
 	 * @param request the servlet request
 	 * @param response the servlet response
 	 */
-	private void deleteVm(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void deleteVm(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 3, user, true);
 		if (vm == null)
 			return;
 
-        EventLog.log(user, EventLog.EventAction.DELETE, vm);
+        EventLog.log(user.getUser(), EventLog.EventAction.DELETE, vm);
 
 		JSONObject json = VSphereConnector.deleteVm(vm);
 
@@ -148,7 +148,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request the servlet request
 	 * @param response the servlet response
 	 */
-	private void editVm(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void editVm(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 3, user, true);
 
 		if (vm == null) {
@@ -173,7 +173,7 @@ public class VMsServlet extends HttpServlet {
 		}
 		
 		if(!vm.isTemplate() && (cpu != null || ram != null)) {
-			Permission perm = user.getEffectivePermission();
+			Permission perm = user.getUser().getEffectivePermission();
 			Permission permMini = Permission.getMinimalPermission();
 
 			if (updateVm(response, vm, new String[] { "size_MiB", "RAM" }, ram, permMini.getMemorySize(),
@@ -184,12 +184,12 @@ public class VMsServlet extends HttpServlet {
 		}
 
 		if (vm.saveOrUpdate()) {
-			EventLog.log(user, EventAction.EDIT, vm);
+			EventLog.log(user.getUser(), EventAction.EDIT, vm);
 			ServletUtils.sendJSONResponse(response, vm.toJSON());
 		} else {
 			ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
 					"Edition failed - server side problem");
-			ErrorLog.log(user, "Vm '" + vm.getName() + "' : edition failed");
+			ErrorLog.log(user.getUser(), "Vm '" + vm.getName() + "' : edition failed");
 		}
 	}
 
@@ -270,7 +270,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request the servlet request
 	 * @param response the servlet response
 	 */
-	private void createDisk(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void createDisk(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 3, user, true);
 
 		if (vm == null)
@@ -293,7 +293,7 @@ public class VMsServlet extends HttpServlet {
 		String name = Utils.coalesce(request.getParameter("name"), vm.getName() + "_template", "noName");
 		Long capacity = Utils.stringToLong(request.getParameter(ServletUtils.CAPACITY_KEY));
 
-		Permission perm = user.getEffectivePermission();
+		Permission perm = user.getUser().getEffectivePermission();
 		Permission permMini = Permission.getMinimalPermission();
 
 		JSONObject bodyDisk = new JSONObject();
@@ -329,7 +329,7 @@ public class VMsServlet extends HttpServlet {
 			return;
 		}
 
-        EventLog.log(user, EventLog.EventAction.EDIT, vm);
+        EventLog.log(user.getUser(), EventLog.EventAction.EDIT, vm);
 
 		ServletUtils.sendOK(response);
 	}
@@ -451,7 +451,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request the servlet request
 	 * @param response the servlet http response
 	 */
-	private void deleteDisk(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void deleteDisk(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 3, user, true);
 		if (vm == null) {
 			return;
@@ -471,7 +471,7 @@ public class VMsServlet extends HttpServlet {
 		}
 
 		if (VCenterManager.deleteDisk(vm, label)) {
-            EventLog.log(user, EventLog.EventAction.EDIT, vm);
+            EventLog.log(user.getUser(), EventLog.EventAction.EDIT, vm);
 			ServletUtils.sendOK(response);
 		} else {
 			ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Delete disk failed, server error");
@@ -507,7 +507,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request the servlet http request
 	 * @param response the servlet http response
 	 */
-	private void modifyDisk(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void modifyDisk(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 3, user, true);
 		if (vm == null) {
 			return;
@@ -532,14 +532,14 @@ public class VMsServlet extends HttpServlet {
 			return;
 		}
 
-		Permission perm = user.getEffectivePermission();
+		Permission perm = user.getUser().getEffectivePermission();
 
 		if (!compareDisksValue(response, vm, capacity, label, Utils.mibTob(perm.getDiskStorage()))) {
 			return;
 		}
 
 		if (VCenterManager.modifyDisk(vm, label, Utils.bToKib(capacity))) {
-            EventLog.log(user, EventLog.EventAction.EDIT, vm);
+            EventLog.log(user.getUser(), EventLog.EventAction.EDIT, vm);
 			ServletUtils.sendOK(response);
 		} else {
 			ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Modify disk failed, server error");
@@ -555,7 +555,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request the servlet request
 	 * @param response the servlet response
 	 */
-	private void setPower(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void setPower(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		String[] path = request.getRequestURI().split("/");
 		String action = path[5];
 
@@ -591,7 +591,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param vm the VM to change the power of
 	 * @return true if the power have been modified, false otherwise
 	 */
-	private boolean setPower(User user, HttpServletResponse response, String action, Vm vm) {
+	private boolean setPower(ApiUser user, HttpServletResponse response, String action, Vm vm) {
 		HttpResult result = VSphereConnector.setVmPower(vm, action);
 
 		if (result == null) {
@@ -601,7 +601,7 @@ public class VMsServlet extends HttpServlet {
 		}
 
 		if (result.code == 200) {
-			EventLog.log(user, EventLog.getActionFromVmPower(action), vm);
+			EventLog.log(user.getUser(), EventLog.getActionFromVmPower(action), vm);
 			return true;
 		}
 		if (result.code != 400) {
@@ -634,9 +634,9 @@ public class VMsServlet extends HttpServlet {
 	 * @param request the servlet request
 	 * @param response the servlet response
 	 */
-	private void setPowerAll(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void setPowerAll(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		if (!user.isAdmin()) {
-			Logger.log(Level.INFO, "User tried to access setPowerAll while not being admin : " + user.getCommonName());
+			Logger.log(Level.INFO, "User tried to access setPowerAll while not being admin : " + user.getLogin());
 			ServletUtils.sendError(response, HttpServletResponse.SC_FORBIDDEN);
 			return;
 		}
@@ -650,13 +650,13 @@ public class VMsServlet extends HttpServlet {
 		}
 
 		List<Vm> vms = Vm.getAll();
-        int vmAffected = VSphereConnector.setVmPowerAll(user, action, vms);
+        int vmAffected = VSphereConnector.setVmPowerAll(user.getUser(), action, vms);
 
 		JSONObject output = new JSONObject();
 		output.put("total_vms", vms.size());
 		output.put("total_success", vmAffected);
 
-		EventLog.log(user, EventLog.getActionFromVmPower(action), user); // using self to indicate all vms
+		EventLog.log(user.getUser(), EventLog.getActionFromVmPower(action), user.getUser()); // using self to indicate all vms
 
 		ServletUtils.sendJSONResponse(response, output);
 	}
@@ -670,7 +670,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param response the servlet http response
 	 * 
 	 */
-	private void getSnapshots(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void getSnapshots(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 3, user, false);
 		if (vm == null)
 			return;
@@ -694,7 +694,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request the servlet http request
 	 * @param response the servlet http response
 	 */
-	private void createSnapshot(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void createSnapshot(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 3, user, true);
 		if (vm == null) {
 			ServletUtils.sendError(response, HttpServletResponse.SC_NOT_FOUND);
@@ -717,7 +717,7 @@ public class VMsServlet extends HttpServlet {
 			snap.saveOrUpdate();
 			JSONObject output = new JSONObject();
 			output.put(ServletUtils.VALUE_KEY, snap.toJSON(true));
-            EventLog.log(user, EventLog.EventAction.EDIT, vm);
+            EventLog.log(user.getUser(), EventLog.EventAction.EDIT, vm);
 			ServletUtils.sendJSONResponse(response, output);
 		} else {
 			ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -731,7 +731,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request the http servlet request
 	 * @param response the http servlet response
 	 */
-	private void editSnapshot(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void editSnapshot(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 3, user, true);
 		String[] path = request.getRequestURI().split("/");
 		Integer idSnapshot = Utils.stringToInteger(path[5]);
@@ -772,7 +772,7 @@ public class VMsServlet extends HttpServlet {
 		if (snapshot.saveOrUpdate()){
 			JSONObject output = new JSONObject();
 			output.put(ServletUtils.VALUE_KEY, snapshot.toJSON(true));
-            EventLog.log(user, EventLog.EventAction.EDIT, vm);
+            EventLog.log(user.getUser(), EventLog.EventAction.EDIT, vm);
 			ServletUtils.sendJSONResponse(response, output);
 		} else {
 			ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -786,7 +786,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request the servlet http servlet request 
 	 * @param response the servlet http response
 	 */
-	private void deleteSnapshot(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void deleteSnapshot(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		String[] path = request.getRequestURI().split("/");
 		Integer idSnapshot = Utils.stringToInteger(path[5]);
 
@@ -812,7 +812,7 @@ public class VMsServlet extends HttpServlet {
 		VCenterManager.checkConnection();
 
 		if (VCenterManager.deleteSnapshot(snapshot) && snapshot.delete()) {
-            EventLog.log(user, EventLog.EventAction.EDIT, vm);
+            EventLog.log(user.getUser(), EventLog.EventAction.EDIT, vm);
 			ServletUtils.sendOK(response);
 		} else {
 			ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -826,7 +826,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request the servlet http request
 	 * @param response the servlet http response
 	 */
-	private void revertSnapshot(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void revertSnapshot(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		String[] path = request.getRequestURI().split("/");
 		Integer idSnapshot = Utils.stringToInteger(path[5]);
 
@@ -847,7 +847,7 @@ public class VMsServlet extends HttpServlet {
 		VCenterManager.checkConnection();
 
 		if (VCenterManager.revertSnapshot(snapshot)) {
-            EventLog.log(user, EventLog.EventAction.EDIT, vm);
+            EventLog.log(user.getUser(), EventLog.EventAction.EDIT, vm);
 			ServletUtils.sendOK(response);
 		} else {
 			ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -864,7 +864,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request the servlet http request
 	 * @param response the servlet http response
 	 */
-	private void getConsoleURL(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void getConsoleURL(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		String[] path = request.getRequestURI().split("/");
 		String vmIdVCenter = path[3];
 
@@ -874,7 +874,7 @@ public class VMsServlet extends HttpServlet {
 			return;
 		}
 
-		if (!vm.hasAccessRead(user)) {
+		if (!vm.hasAccessRead(user.getId(), user.getType())) {
 			ServletUtils.sendError(response, HttpServletResponse.SC_FORBIDDEN,
 					"You do not possess reading rights on this VM");
 			return;
@@ -906,7 +906,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request the servlet http request
 	 * @param response the servlet http response
 	 */
-	private void cloneVm(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void cloneVm(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 3, user, true);
 
 		if (vm == null) {
@@ -914,7 +914,7 @@ public class VMsServlet extends HttpServlet {
 			return;
 		}
 
-		if (!vm.hasAccessWrite(user)) {
+		if (!vm.hasAccessWrite(user.getId(), user.getType())) {
 			ServletUtils.sendError(response, HttpServletResponse.SC_FORBIDDEN);
 			return;
 		}
@@ -936,15 +936,15 @@ public class VMsServlet extends HttpServlet {
 			return;
 		}
 		
-		Vm newVm = new Vm(user, newVmId, name, description);
+		Vm newVm = new Vm(user.getUser(), newVmId, name, description);
 
 		if (newVm.saveOrUpdate()) {
-            EventLog.log(user, EventAction.CLONE, vm);
+            EventLog.log(user.getUser(), EventAction.CLONE, vm);
 			ServletUtils.sendJSONResponse(response, VSphereConnector.getVmDetails(newVm));
 		} else {
 			ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
 					"Clone failed - server side problem");
-			ErrorLog.log(user, "Vm '" + vm.getName() + "' : clone failed");
+			ErrorLog.log(user.getUser(), "Vm '" + vm.getName() + "' : clone failed");
 		}
 	}
 
@@ -955,7 +955,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request the servlet http request
 	 * @param response the servlet http response
 	 */
-	private void downloadOVA(User user, HttpServletRequest request, HttpServletResponse response){
+	private void downloadOVA(ApiUser user, HttpServletRequest request, HttpServletResponse response){
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 3, user, true);
 
 		if (vm == null) {
@@ -963,7 +963,7 @@ public class VMsServlet extends HttpServlet {
 			return;
 		}
 
-		if (!vm.hasAccessWrite(user)) {
+		if (!vm.hasAccessWrite(user.getId(), user.getType())) {
 			ServletUtils.sendError(response, HttpServletResponse.SC_FORBIDDEN, "no write access");
 			return;
 		}
@@ -1020,7 +1020,7 @@ public class VMsServlet extends HttpServlet {
 		value.put("external_link", link.getExternalLink());
 		output.put(ServletUtils.VALUE_KEY, value);
 
-        EventLog.log(user, EventLog.EventAction.EXPORT, vm);
+        EventLog.log(user.getUser(), EventLog.EventAction.EXPORT, vm);
 
 		ServletUtils.sendJSONResponse(response, output);
 	}
@@ -1032,7 +1032,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request the servlet http request
 	 * @param response the servlet http response
 	 */
-	private void cloneSnapshot(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void cloneSnapshot(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 3, user, true);
 		String[] path = request.getRequestURI().split("/");
 		Integer idSnapshot = Utils.stringToInteger(path[5]);
@@ -1041,7 +1041,7 @@ public class VMsServlet extends HttpServlet {
 			return;
 		}
 
-		if (!vm.hasAccessWrite(user)) {
+		if (!vm.hasAccessWrite(user.getId(), user.getType())) {
 			ServletUtils.sendError(response, HttpServletResponse.SC_FORBIDDEN);
 			return;
 		}
@@ -1073,15 +1073,15 @@ public class VMsServlet extends HttpServlet {
 			return;
 		}
 
-		Vm newVm = new Vm(user, newVmId, name, description);
+		Vm newVm = new Vm(user.getUser(), newVmId, name, description);
 
 		if (newVm.saveOrUpdate()) {
-            EventLog.log(user, EventAction.CLONE, vm);
+            EventLog.log(user.getUser(), EventAction.CLONE, vm);
 			ServletUtils.sendJSONResponse(response, VSphereConnector.getVmDetails(newVm));
 		} else {
 			ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
 					"Clone snpashot succesfull - db error - server side problem");
-			ErrorLog.log(user, "Vm '" + vm.getName() + "' : clone created but could not be saved");
+			ErrorLog.log(user.getUser(), "Vm '" + vm.getName() + "' : clone created but could not be saved");
 		}
 	}
 
@@ -1097,7 +1097,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param response
 	 *            the servlet http response
 	 */
-	private void createTemplate(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void createTemplate(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 3, user, true);
 
 		if (!user.isAdmin()) {
@@ -1126,16 +1126,16 @@ public class VMsServlet extends HttpServlet {
 			return;
 		}
 
-		Vm newVm = new Vm(user, newVmId, name, description);
+		Vm newVm = new Vm(user.getUser(), newVmId, name, description);
 		newVm.setTemplate(true);
 
 		if (newVm.saveOrUpdate()) {
-            EventLog.log(user, EventAction.CREATE, newVm);
+            EventLog.log(user.getUser(), EventAction.CREATE, newVm);
 			ServletUtils.sendJSONResponse(response, VSphereConnector.getVmDetails(newVm));
 		} else {
 			ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
 					"Template failed - server side problem");
-			ErrorLog.log(user, "Vm '" + vm.getName() + "' : template failed");
+			ErrorLog.log(user.getUser(), "Vm '" + vm.getName() + "' : template failed");
 		}
 	}
 
@@ -1149,7 +1149,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param response
 	 *            the servlet http response
 	 */
-    private void deleteTemplate(User user, HttpServletRequest request, HttpServletResponse response) {
+    private void deleteTemplate(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 4, user, true);
 
 		if (!user.isAdmin()) {
@@ -1159,7 +1159,7 @@ public class VMsServlet extends HttpServlet {
 
 		VCenterManager.checkConnection();
 
-        EventLog.log(user, EventLog.EventAction.DELETE, vm);
+        EventLog.log(user.getUser(), EventLog.EventAction.DELETE, vm);
 
 		if (!vm.delete()) {
 			ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
@@ -1177,7 +1177,7 @@ public class VMsServlet extends HttpServlet {
 		} catch (RemoteException | InterruptedException e) {
 			ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
 					"Template failed - server side problem");
-			ErrorLog.log(user, "Vm '" + vm.getName() + "' : template failed", e.getMessage());
+			ErrorLog.log(user.getUser(), "Vm '" + vm.getName() + "' : template failed", e.getMessage());
 		}
 	}
 
@@ -1189,13 +1189,13 @@ public class VMsServlet extends HttpServlet {
 	 * @param response
 	 *            the servlet http response
 	 */
-    private void getTemplates(User user, HttpServletResponse response) {
+    private void getTemplates(ApiUser user, HttpServletResponse response) {
 		List<Vm> templateList;
 		
 		if(user.isAdmin()) {
 			templateList = Vm.getAllTemplate();
 		} else {
-			templateList = BetterArrayList.fromList(user.getAvailableTemplates());
+			templateList = BetterArrayList.fromList(user.getUser().getAvailableTemplates());
 		}
 		
 		JSONObject json = VSphereConnector.getTemplateList(templateList);
@@ -1219,12 +1219,12 @@ public class VMsServlet extends HttpServlet {
 	 * @param response
 	 *            the servlet http response
 	 */
-    private void createVmFromTemp(User user, HttpServletRequest request, HttpServletResponse response) {
+    private void createVmFromTemp(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
         String[] path = request.getRequestURI().split("/");
         String vmIdVCenter = path[4];
         Vm vm = Vm.findByIdVmVcenter(vmIdVCenter);
         
-		if(!BetterArrayList.fromList(user.getAvailableTemplates()).contains(vm) && !user.isAdmin()) {
+		if(!BetterArrayList.fromList(user.getUser().getAvailableTemplates()).contains(vm) && !user.isAdmin()) {
 			ServletUtils.sendError(response, HttpServletResponse.SC_FORBIDDEN, "You don't have the access to this template");
 			return;
 		}
@@ -1252,15 +1252,15 @@ public class VMsServlet extends HttpServlet {
 		}
 
 
-		Vm newVm = new Vm(user, newVmId, name, description);
+		Vm newVm = new Vm(user.getUser(), newVmId, name, description);
 
 		if (newVm.saveOrUpdate()) {
-            EventLog.log(user, EventAction.CREATE, newVm);
+            EventLog.log(user.getUser(), EventAction.CREATE, newVm);
 			ServletUtils.sendJSONResponse(response, VSphereConnector.getVmDetails(newVm));
 		} else {
 			ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
 					"vm from template  failed - server side problem");
-			ErrorLog.log(user, "Vm '" + vm.getName() + "' : vm from template failed");
+			ErrorLog.log(user.getUser(), "Vm '" + vm.getName() + "' : vm from template failed");
 		}
 	}
 
@@ -1271,7 +1271,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request  the servlet http request
 	 * @param response the servlet http response
 	 */
-	private void createEthernet(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void createEthernet(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 3, user, true);
 		if (vm == null)
 			return;
@@ -1281,7 +1281,7 @@ public class VMsServlet extends HttpServlet {
 		Network network;
 
 		if (sNetwork.equals("local")) {
-			network = getUserPrivateNetwork(user);
+			network = getUserPrivateNetwork(user.getUser());
 			if (network.getIdNetworkVcenter() == null) {
 				ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "No network were found");
 				return;
@@ -1296,7 +1296,7 @@ public class VMsServlet extends HttpServlet {
 		int[] res = VSphereConnector.createEthernet(vm, network);
 
 		if (res[0] == 200) {
-            EventLog.log(user, EventLog.EventAction.EDIT, vm);
+            EventLog.log(user.getUser(), EventLog.EventAction.EDIT, vm);
 			ServletUtils.sendOK(response);
 		} else {
 			Logger.log(Level.WARNING, "VSphere returned code {0} when creating ethernet interface", res[0]);
@@ -1311,7 +1311,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request  the servlet http request
 	 * @param response the servlet http response
 	 */
-	private void changeEthernet(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void changeEthernet(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 3, user, true);
 		if (vm == null)
 			return;
@@ -1328,7 +1328,7 @@ public class VMsServlet extends HttpServlet {
 		String sNetwork = request.getParameter("network");
 
 		if (sNetwork != null && sNetwork.equals("local")) {
-			network = getUserPrivateNetwork(user);
+			network = getUserPrivateNetwork(user.getUser());
 			if (network.getIdNetworkVcenter() == null) {
 				ServletUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "No network were found");
 				return;
@@ -1358,7 +1358,7 @@ public class VMsServlet extends HttpServlet {
 			}
 		}
 
-        EventLog.log(user, EventLog.EventAction.EDIT, vm);
+        EventLog.log(user.getUser(), EventLog.EventAction.EDIT, vm);
 
         ServletUtils.sendOK(response);
 	}
@@ -1370,7 +1370,7 @@ public class VMsServlet extends HttpServlet {
 	 * @param request  the servlet http request
 	 * @param response the servlet http response
 	 */
-	private void deleteEthernet(User user, HttpServletRequest request, HttpServletResponse response) {
+	private void deleteEthernet(ApiUser user, HttpServletRequest request, HttpServletResponse response) {
 		Vm vm = ServletUtils.getVmFromRequest(request, response, 3, user, true);
 		if (vm == null)
 			return;
@@ -1386,7 +1386,7 @@ public class VMsServlet extends HttpServlet {
 		int res = VSphereConnector.deleteEthernet(vm, nic);
 
 		if (res == 200) {
-            EventLog.log(user, EventLog.EventAction.EDIT, vm);
+            EventLog.log(user.getUser(), EventLog.EventAction.EDIT, vm);
 			ServletUtils.sendOK(response);
 		} else {
 			Logger.log(Level.WARNING, "VSphere returned code {0} when deleting ethernet interface", res);
@@ -0,0 +1,95 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.model.User;
+import fr.eseo.vsquare.model.User.UserType;
+
+/**
+ * The user authenticated by the token of a request.
+ * <p>
+ * The id, the type and the login come from the token (see SignedToken) and are enough for the rights checks. The row
+ * of the user is only read by the handlers that need it (groups, private network, saves, logs), once per request.
+ *
+ * @author Clement Gouin
+ */
+public final class ApiUser {
+
+	private final int id;
+	private final UserType type;
+	private final String login;
+
+	private User user;
+	private boolean loaded;
+
+	/**
+	 * Constructor
+	 *
+	 * @param id    the id of the user
+	 * @param type  the type of the user
+	 * @param login the login of the user
+	 */
+	ApiUser(int id, UserType type, String login) {
+		this.id = id;
+		this.type = type;
+		this.login = login;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param user the user already read from the database
+	 */
+	ApiUser(User user) {
+		this(user.getId(), user.getType(), user.getLogin());
+		this.user = user;
+		this.loaded = true;
+	}
+
+	/**
+	 * @return the id of the user
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return the type of the user
+	 */
+	public UserType getType() {
+		return type;
+	}
+
+	/**
+	 * @return the login of the user
+	 */
+	public String getLogin() {
+		return login;
+	}
+
+	/**
+	 * @return true if the user is an admin, false otherwise
+	 */
+	public boolean isAdmin() {
+		return type == UserType.ADMIN;
+	}
+
+	/**
+	 * @return true if the user is a student, false otherwise
+	 */
+	public boolean isStudent() {
+		return type == UserType.STUDENT;
+	}
+
+	/**
+	 * Read the user on the first call.
+	 *
+	 * @return the user or null if it cannot be read
+	 */
+	public User getUser() {
+		if (!loaded) {
+			// set first, the logs written while reading it do not read it again
+			loaded = true;
+			user = User.findById(id);
+		}
+		return user;
+	}
+}
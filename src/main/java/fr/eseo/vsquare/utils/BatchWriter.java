@@ -0,0 +1,224 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.model.VSquareObject;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Write-behind queue inserting objects by batches from a background thread.
+ * <p>
+ * A batch is committed when "[name]_batch_size" objects are queued or "[name]_flush_delay" milliseconds after its
+ * first object. Objects are written synchronously when "[name]_async" is false, when the queue ("[name]_queue_size")
+ * is full, after the shutdown and when written during a unit of work (they must be committed or rolled back with it).
+ *
+ * @param <T> the class of the written objects
+ * @author Clement Gouin
+ */
+public final class BatchWriter<T extends VSquareObject> {
+
+	private static final List<BatchWriter<?>> writers = new CopyOnWriteArrayList<>();
+
+	private final String name;
+	private final boolean async;
+	private final int batchSize;
+	private final long flushDelay;
+	private final BlockingQueue<T> queue;
+
+	// queued objects not written yet, including the batch being written
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong syncWrites = new AtomicLong();
+	// objects not queued because the queue was full
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	private Thread thread;
+	private volatile boolean closed = false;
+
+	/**
+	 * Create a writer configured by the "[name]_*" keys of the configuration.
+	 *
+	 * @param name the name of the writer
+	 */
+	public BatchWriter(String name) {
+		this.name = name;
+		this.async = Utils.getBoolean(name + "_async");
+		this.batchSize = Math.max(1, Utils.getInt(name + "_batch_size"));
+		this.flushDelay = Math.max(0, Utils.getInt(name + "_flush_delay"));
+		this.queue = new LinkedBlockingQueue<>(Math.max(1, Utils.getInt(name + "_queue_size")));
+		writers.add(this);
+	}
+
+	/**
+	 * Queue an object to insert.
+	 *
+	 * @param object the object
+	 */
+	public void write(T object) {
+		if (!DatabaseManager.isUnitOfWorkActive() && offer(object))
+			return;
+		syncWrites.incrementAndGet();
+		if (!object.saveOrUpdate())
+			failures.incrementAndGet();
+	}
+
+	/**
+	 * Queue an object to insert, even during a unit of work.
+	 *
+	 * @param object the object
+	 * @return false if the object was not queued and must be written by the caller
+	 */
+	public boolean offer(T object) {
+		if (!async || closed || !startThread())
+			return false;
+		pending.incrementAndGet();
+		if (queue.offer(object))
+			return true;
+		pending.decrementAndGet();
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Write every queued object and wait for the batch in progress.
+	 */
+	public void flush() {
+		List<T> batch = new ArrayList<>();
+		queue.drainTo(batch);
+		writeBatch(batch);
+		long timeout = System.currentTimeMillis() + Math.max(1000, flushDelay * 10);
+		while (pending.get() > 0 && System.currentTimeMillis() < timeout) {
+			try {
+				Thread.sleep(5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Write every queued object and stop the background thread, next objects are written synchronously.
+	 */
+	public void shutdown() {
+		closed = true;
+		flush();
+		synchronized (this) {
+			if (thread != null)
+				thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * @return the counters of the writer as json
+	 */
+	public JSONObject getMetrics() {
+		JSONObject json = new JSONObject();
+		json.put("async", async && !closed);
+		json.put("queue_depth", queue.size());
+		json.put("queue_capacity", queue.size() + queue.remainingCapacity());
+		json.put("pending", pending.get());
+		json.put("written", written.get());
+		json.put("batches", batches.get());
+		json.put("sync_writes", syncWrites.get());
+		json.put("rejected", rejected.get());
+		json.put("failures", failures.get());
+		return json;
+	}
+
+	/**
+	 * Flush every writer.
+	 */
+	public static void flushAll() {
+		writers.forEach(BatchWriter::flush);
+	}
+
+	/**
+	 * Shut every writer down.
+	 */
+	public static void shutdownAll() {
+		writers.forEach(BatchWriter::shutdown);
+	}
+
+	/**
+	 * @return the counters of every writer as json
+	 */
+	public static JSONObject getAllMetrics() {
+		JSONObject json = new JSONObject();
+		writers.forEach(writer -> json.put(writer.name, writer.getMetrics()));
+		return json;
+	}
+
+	private synchronized boolean startThread() {
+		if (closed)
+			return false;
+		if (thread == null) {
+			thread = new Thread(this::run, name + "-writer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return true;
+	}
+
+	private void run() {
+		List<T> batch = new ArrayList<>(batchSize);
+		while (!closed || !queue.isEmpty()) {
+			try {
+				T first = queue.poll(1, TimeUnit.SECONDS);
+				if (first == null)
+					continue;
+				batch.add(first);
+				long deadline = System.currentTimeMillis() + flushDelay;
+				while (batch.size() < batchSize) {
+					long wait = deadline - System.currentTimeMillis();
+					T next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+					if (next == null)
+						break;
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				queue.drainTo(batch);
+				writeBatch(batch);
+				return;
+			}
+			writeBatch(batch);
+			batch.clear();
+		}
+	}
+
+	private void writeBatch(List<T> batch) {
+		if (batch.isEmpty())
+			return;
+		try {
+			if (VSquareObject.saveAll(batch)) {
+				written.addAndGet(batch.size());
+				batches.incrementAndGet();
+				return;
+			}
+			// one invalid object must not lose the whole batch
+			for (T object : batch) {
+				if (object.saveOrUpdate())
+					written.incrementAndGet();
+				else
+					failures.incrementAndGet();
+			}
+		} catch (RuntimeException e) {
+			failures.addAndGet(batch.size());
+			Logger.log(Level.SEVERE, e.toString(), e);
+		} finally {
+			pending.addAndGet(-batch.size());
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package fr.eseo.vsquare.utils;
+
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Utility class that store the results of count queries by class and search string.
+ * <p>
+ * An exact count is served for "count_cache_ttl" milliseconds. The unfiltered count of a class is kept exact by
+ * adding the rows inserted by this instance, filtered counts become approximate after an insert or a delete. Approximate
+ * counts are only served to callers accepting them, for "count_cache_approx_ttl" milliseconds.
+ *
+ * @author Clement Gouin
+ */
+public final class CountCache {
+
+	private static final int MAX_SIZE = 1000;
+
+	private static long timeToLive = Utils.getInt("count_cache_ttl");
+	private static long approxTimeToLive = Utils.getInt("count_cache_approx_ttl");
+
+	private static final LinkedHashMap<CountKey, CountEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private static long generation = 0;
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+
+	private CountCache() {
+	}
+
+	/**
+	 * Get a count from the cache or load it.
+	 *
+	 * @param objectClass the counted class
+	 * @param query       the search string, null for the unfiltered count
+	 * @param approx      true if a count missing the latest inserts or deletes is acceptable
+	 * @param loader      the function counting the rows in the database
+	 * @return the cached or loaded count
+	 */
+	public static long get(Class<?> objectClass, String query, boolean approx, LongSupplier loader) {
+		// counts restricted to a date range are not keyed by their range
+		if ((timeToLive <= 0 && (!approx || approxTimeToLive <= 0)) || DatabaseManager.isDateRangeActive())
+			return loader.getAsLong();
+
+		CountKey key = new CountKey(objectClass, query == null ? null : query.toUpperCase(Locale.ROOT));
+		long loadGeneration;
+		synchronized (entries) {
+			CountEntry entry = entries.get(key);
+			if (entry != null) {
+				long age = System.currentTimeMillis() - entry.loadTime;
+				if (entry.exact ? age < Math.max(timeToLive, approx ? approxTimeToLive : 0)
+						: approx && age < approxTimeToLive) {
+					hits.incrementAndGet();
+					return entry.count;
+				}
+			}
+			loadGeneration = generation;
+		}
+
+		misses.incrementAndGet();
+		long count = loader.getAsLong();
+
+		synchronized (entries) {
+			// rows inserted or deleted during the load may be missing from the count
+			entries.put(key, new CountEntry(count, System.currentTimeMillis(), loadGeneration == generation));
+			Iterator<CountEntry> it = entries.values().iterator();
+			while (entries.size() > MAX_SIZE && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Update the counts of a class after the insertion of a row was committed.
+	 *
+	 * @param objectClass the class of the inserted object
+	 */
+	public static void recordInsert(Class<?> objectClass) {
+		synchronized (entries) {
+			generation++;
+			entries.forEach((key, entry) -> {
+				if (key.objectClass != objectClass)
+					return;
+				if (key.query == null)
+					entry.count++;
+				else
+					entry.exact = false;
+			});
+		}
+	}
+
+	/**
+	 * Mark every count as approximate after rows were deleted (deletes may cascade to other classes).
+	 */
+	public static void recordDelete() {
+		synchronized (entries) {
+			generation++;
+			entries.values().forEach(entry -> entry.exact = false);
+		}
+	}
+
+	/**
+	 * Remove every count from the cache.
+	 */
+	public static void clear() {
+		synchronized (entries) {
+			generation++;
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return the cache counters as json
+	 */
+	public static JSONObject getMetrics() {
+		JSONObject json = new JSONObject();
+		synchronized (entries) {
+			json.put("size", entries.size());
+		}
+		json.put("ttl", timeToLive);
+		json.put("approx_ttl", approxTimeToLive);
+		json.put("hits", hits.get());
+		json.put("misses", misses.get());
+		return json;
+	}
+
+	private static final class CountKey {
+		private final Class<?> objectClass;
+		private final String query;
+
+		private CountKey(Class<?> objectClass, String query) {
+			this.objectClass = objectClass;
+			this.query = query;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CountKey))
+				return false;
+			CountKey other = (CountKey) obj;
+			return objectClass == other.objectClass && Objects.equals(query, other.query);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * objectClass.hashCode() + Objects.hashCode(query);
+		}
+	}
+
+	private static final class CountEntry {
+		private long count;
+		private final long loadTime;
+		private boolean exact;
+
+		private CountEntry(long count, long loadTime, boolean exact) {
+			this.count = count;
+			this.loadTime = loadTime;
+			this.exact = exact;
+		}
+	}
+}
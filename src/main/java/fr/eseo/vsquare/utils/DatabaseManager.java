@@ -2,18 +2,32 @@ package fr.eseo.vsquare.utils;
 
 import fr.eseo.vsquare.model.*;
 import fr.eseo.vsquare.model.User.UserType;
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+import com.mchange.v2.c3p0.PooledDataSource;
+import com.mchange.v2.resourcepool.TimeoutException;
 import fr.klemek.betterlists.BetterArrayList;
+import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 import javax.persistence.NoResultException;
+import javax.persistence.PersistenceException;
 import javax.persistence.Query;
+import javax.sql.DataSource;
 import java.io.InputStream;
 import java.sql.*;
 import java.util.*;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
 /**
@@ -25,10 +39,36 @@ public final class DatabaseManager {
 
 	private static String defaultConnectionString = null;
 	private static SessionFactory sessionFactory;
+	private static String replicaConnectionString = null;
+	private static SessionFactory replicaSessionFactory;
 	private static final String DB_USER = "db_user";
 
 	private static boolean databaseUpToDate = false;
 
+	private static final ThreadLocal<Transaction> unitOfWork = new ThreadLocal<>();
+	private static final ThreadLocal<List<Runnable>> afterCommit = new ThreadLocal<>();
+	private static final ThreadLocal<Boolean> replicaRead = new ThreadLocal<>();
+	private static final ThreadLocal<Date[]> dateRange = new ThreadLocal<>();
+	// upper bound of the open date ranges, after any TIMESTAMP value
+	private static final Date MAX_DATE = new Date(4102444800000L);
+
+	private static final long REPLICA_LAG_CHECK_PERIOD = 5000L;
+	// MySQL error of a missing privilege, like REPLICATION CLIENT for SHOW SLAVE STATUS
+	private static final int ER_SPECIFIC_ACCESS_DENIED = 1227;
+	private static String replicaLagQuery = Utils.getString("db_replica_lag_query");
+	private static volatile long replicaRetryTime = 0;
+	private static volatile long replicaLagCheckTime = 0;
+	private static volatile long replicaLag = -1;
+	private static final AtomicLong replicaReads = new AtomicLong();
+	private static final AtomicLong replicaFallbacks = new AtomicLong();
+
+	private static final Map<String, ComboPooledDataSource> pools = new ConcurrentHashMap<>();
+	private static final AtomicLong checkouts = new AtomicLong();
+	private static final AtomicLong checkoutTime = new AtomicLong();
+	private static final AtomicLong maxCheckoutTime = new AtomicLong();
+	private static final AtomicLong checkoutTimeouts = new AtomicLong();
+	private static final AtomicLong checkoutErrors = new AtomicLong();
+
 	private DatabaseManager() {
 	}
 
@@ -43,21 +83,58 @@ public final class DatabaseManager {
 		Logger.log(Level.INFO, "Initializing database...");
 		DatabaseManager.checkDriver(false);
 		DatabaseManager.setDefaultConnectionString(defaultConnectionString);
-		try (Connection conn = openConnection()) {
+		// credentials are checked without a pool so a wrong configuration does not leave one retrying in background
+		try (Connection conn = openDirectConnection(false)) {
 			Logger.log(Level.INFO, "Connection successful with DB user : {0}", Utils.getString(DB_USER));
 		} catch (SQLException e) {
 			Logger.log(Level.SEVERE, e.toString(), e);
 			return false;
 		}
-		try (Connection conn = openConnection(true)) {
+		try (Connection conn = openDirectConnection(true)) {
 			Logger.log(Level.INFO, "Connection successful with DB super user : {0}", Utils.getString("db_super_user"));
 		} catch (SQLException e) {
 			Logger.log(Level.SEVERE, e.toString(), e);
 			return false;
 		}
 		if (sessionFactory == null)
-			DatabaseManager.buildSessionFactory(defaultConnectionString);
-		return DatabaseManager.updateDatabase();
+			sessionFactory = DatabaseManager.buildSessionFactory(defaultConnectionString);
+		if (!DatabaseManager.updateDatabase())
+			return false;
+		DatabaseManager.initReplica(Utils.getConnectionString("db_replica_connection_string"));
+		return true;
+	}
+
+	/**
+	 * Init the session factory of the read-only replica.
+	 * 
+	 * Reads stay on the primary database if the replica connection string is empty or if the replica cannot be
+	 * reached.
+	 * 
+	 * @param connectionString
+	 *            the connection string of the replica (null or empty to disable)
+	 */
+	public static void initReplica(String connectionString) {
+		closeReplica();
+		replicaConnectionString = connectionString == null || connectionString.isEmpty() ? null : connectionString;
+		replicaRetryTime = 0;
+		replicaLagCheckTime = 0;
+		if (replicaConnectionString == null)
+			return;
+		try {
+			replicaSessionFactory = DatabaseManager.buildSessionFactory(replicaConnectionString);
+		} catch (ExceptionInInitializerError e) {
+			Logger.log(Level.SEVERE, "Replica unavailable, reading from primary database");
+		}
+	}
+
+	/**
+	 * Close the session factory of the replica, reads go back to the primary database.
+	 */
+	public static void closeReplica() {
+		if (replicaSessionFactory != null) {
+			replicaSessionFactory.close();
+			replicaSessionFactory = null;
+		}
 	}
 
 	/**
@@ -122,7 +199,9 @@ public final class DatabaseManager {
 	}
 
 	/**
-	 * Open a new connection to the database.
+	 * Get a connection to the database from the pool of this database and user.
+	 * 
+	 * The connection goes back to the pool when closed.
 	 * 
 	 * @param superuser
 	 *            if the user can modify the structure of the database
@@ -138,7 +217,132 @@ public final class DatabaseManager {
 		String userName = Utils.getString(superuser ? "db_super_user" : DB_USER);
 		String password = Utils.getString(superuser ? "db_super_password" : "db_password");
 		String url = connectionString == null ? defaultConnectionString : connectionString;
-		return DriverManager.getConnection(url, userName, password);
+		ComboPooledDataSource pool = pools.computeIfAbsent(url + "|" + userName,
+				key -> createPool(url, userName, password));
+		long start = System.currentTimeMillis();
+		try {
+			return pool.getConnection();
+		} catch (SQLException e) {
+			if (e.getCause() instanceof TimeoutException)
+				checkoutTimeouts.incrementAndGet();
+			else
+				checkoutErrors.incrementAndGet();
+			throw e;
+		} finally {
+			long time = System.currentTimeMillis() - start;
+			checkouts.incrementAndGet();
+			checkoutTime.addAndGet(time);
+			maxCheckoutTime.accumulateAndGet(time, Math::max);
+		}
+	}
+
+	/**
+	 * Open a new connection to the default database without going through the pools.
+	 * 
+	 * @param superuser
+	 *            if the user can modify the structure of the database
+	 * @return a Connection object to make queries
+	 * @throws SQLException
+	 *             if cannot open connection
+	 */
+	private static Connection openDirectConnection(boolean superuser) throws SQLException {
+		if (defaultConnectionString == null)
+			throw new ExceptionInInitializerError("Default ConnectionString is null");
+		String userName = Utils.getString(superuser ? "db_super_user" : DB_USER);
+		String password = Utils.getString(superuser ? "db_super_password" : "db_password");
+		return DriverManager.getConnection(defaultConnectionString, userName, password);
+	}
+
+	/**
+	 * Create a connection pool with the "db_pool_*" configuration, the same used by hibernate.
+	 * 
+	 * @param url
+	 *            the database connection string
+	 * @param userName
+	 *            the database user
+	 * @param password
+	 *            the password of the user
+	 * @return the pool
+	 */
+	private static ComboPooledDataSource createPool(String url, String userName, String password) {
+		ComboPooledDataSource pool = new ComboPooledDataSource();
+		pool.setJdbcUrl(url);
+		pool.setUser(userName);
+		pool.setPassword(password);
+		pool.setMinPoolSize(Utils.getInt("db_pool_min_size"));
+		pool.setInitialPoolSize(Utils.getInt("db_pool_min_size"));
+		pool.setMaxPoolSize(Utils.getInt("db_pool_max_size"));
+		pool.setAcquireIncrement(1);
+		pool.setMaxStatements(Utils.getInt("db_pool_max_statements"));
+		pool.setIdleConnectionTestPeriod(Utils.getInt("db_pool_idle_test_period"));
+		pool.setCheckoutTimeout(Utils.getInt("db_pool_checkout_timeout"));
+		pool.setAcquireRetryAttempts(2);
+		pool.setAcquireRetryDelay(500);
+		Logger.log(Level.INFO, "Connection pool created for DB user : {0}", userName);
+		return pool;
+	}
+
+	/**
+	 * Close every connection pool of the raw JDBC connections.
+	 */
+	public static void closePools() {
+		for (ComboPooledDataSource pool : pools.values())
+			pool.close();
+		pools.clear();
+	}
+
+	/**
+	 * Get the state of the connection pools.
+	 * 
+	 * @return the pools counters as json
+	 */
+	public static JSONObject getPoolMetrics() {
+		JSONObject json = new JSONObject();
+		JSONArray jsonPools = new JSONArray();
+		for (Map.Entry<String, ComboPooledDataSource> entry : pools.entrySet())
+			jsonPools.put(getPoolMetrics(entry.getValue()).put("user", entry.getValue().getUser()));
+		json.put("jdbc", jsonPools);
+		long count = checkouts.get();
+		json.put("checkouts", count);
+		json.put("checkout_wait_average", count == 0 ? 0 : (double) checkoutTime.get() / count);
+		json.put("checkout_wait_max", maxCheckoutTime.get());
+		json.put("checkout_timeouts", checkoutTimeouts.get());
+		json.put("checkout_errors", checkoutErrors.get());
+		if (isHibernateInitialized()) {
+			try {
+				DataSource dataSource = ((SessionFactoryImplementor) sessionFactory).getServiceRegistry()
+						.getService(ConnectionProvider.class).unwrap(DataSource.class);
+				if (dataSource instanceof PooledDataSource)
+					json.put("hibernate", getPoolMetrics((PooledDataSource) dataSource));
+			} catch (RuntimeException e) {
+				Logger.log(Level.WARNING, e.toString(), e);
+			}
+		}
+		return json;
+	}
+
+	/**
+	 * Get the state of a connection pool.
+	 * 
+	 * @param pool
+	 *            the pool
+	 * @return the pool counters as json
+	 */
+	private static JSONObject getPoolMetrics(PooledDataSource pool) {
+		JSONObject json = new JSONObject();
+		try {
+			json.put("active", pool.getNumBusyConnectionsAllUsers());
+			json.put("idle", pool.getNumIdleConnectionsAllUsers());
+			json.put("total", pool.getNumConnectionsAllUsers());
+			json.put("waiting", pool.getNumThreadsAwaitingCheckoutDefaultUser());
+			json.put("failed_checkins", pool.getNumFailedCheckinsDefaultUser());
+			json.put("failed_checkouts", pool.getNumFailedCheckoutsDefaultUser());
+			json.put("failed_idle_tests", pool.getNumFailedIdleTestsDefaultUser());
+			json.put("cached_statements", pool.getStatementCacheNumStatementsAllUsers());
+		} catch (SQLException e) {
+			Logger.log(Level.WARNING, e.toString(), e);
+		}
+		return json;
 	}
 
 	/**
@@ -159,30 +363,346 @@ public final class DatabaseManager {
 	}
 
 	/**
-	 * Initiate the singleton sessionFactory.
+	 * Create an hibernate session factory.
 	 * 
 	 * @param connectionString
 	 *            the desired connectionString (null for default)
+	 * @return the session factory
 	 */
-    private static void buildSessionFactory(String connectionString) {
+    private static SessionFactory buildSessionFactory(String connectionString) {
+		Logger.log(Level.INFO, "Creating SessionFactory...");
+		Level lvl = Logger.getLevel();
 		try {
-			Logger.log(Level.INFO, "Creating SessionFactory...");
-			Level lvl = Logger.getLevel();
 			Logger.setLevel(Level.SEVERE);
-			sessionFactory = new Configuration().configure()
+			SessionFactory factory = new Configuration().configure()
 					.setProperty("hibernate.connection.url",
 							connectionString == null ? defaultConnectionString : connectionString)
 					.setProperty("hibernate.connection.username", Utils.getString(DB_USER))
 					.setProperty("hibernate.connection.password", Utils.getString("db_password"))
+					.setProperty("hibernate.jdbc.batch_size", String.valueOf(Utils.getInt("db_batch_size")))
+					.setProperty("hibernate.c3p0.min_size", Utils.getString("db_pool_min_size"))
+					.setProperty("hibernate.c3p0.max_size", Utils.getString("db_pool_max_size"))
+					.setProperty("hibernate.c3p0.max_statements", Utils.getString("db_pool_max_statements"))
+					.setProperty("hibernate.c3p0.idle_test_period", Utils.getString("db_pool_idle_test_period"))
+					.setProperty("hibernate.c3p0.checkoutTimeout", Utils.getString("db_pool_checkout_timeout"))
 					.addAnnotatedClass(VSquareObject.class).addAnnotatedClass(Group.class).addAnnotatedClass(User.class)
 					.addAnnotatedClass(Token.class).addAnnotatedClass(Vm.class).addAnnotatedClass(ErrorLog.class)
                     .addAnnotatedClass(EventLog.class).addAnnotatedClass(Permission.class).addAnnotatedClass(DownloadLink.class)
-                    .addAnnotatedClass(Network.class).addAnnotatedClass(Snapshot.class).buildSessionFactory();
+                    .addAnnotatedClass(Network.class).addAnnotatedClass(Snapshot.class).addAnnotatedClass(GroupClosure.class)
+                    .addAnnotatedClass(RevokedToken.class)
+                    .buildSessionFactory();
+			registerNamedQueries(factory, EventLog.getSearchQueries());
 			Logger.setLevel(lvl);
 			Logger.log(Level.INFO, "SessionFactory created");
+			return factory;
 		} catch (Exception ex) {
 			Logger.log(Level.SEVERE, "Initial SessionFactory creation failed : {0}", ex);
 			throw new ExceptionInInitializerError(ex);
+		} finally {
+			// an error escaping the build must not leave the application logging only the severe messages
+			Logger.setLevel(lvl);
+		}
+	}
+
+	/**
+	 * Register queries built from parts as named queries of a session factory.
+	 * 
+	 * Each query is compiled here, so a broken query fails the build of the factory like a NamedQuery annotation.
+	 * 
+	 * @param factory
+	 *            the session factory
+	 * @param queries
+	 *            the queries by name
+	 */
+	private static void registerNamedQueries(SessionFactory factory, Map<String, String> queries) {
+		try (Session session = factory.openSession()) {
+			for (Map.Entry<String, String> query : queries.entrySet())
+				factory.addNamedQuery(query.getKey(), session.createQuery(query.getValue()));
+		} catch (RuntimeException e) {
+			factory.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Start a unit of work on the current thread.
+	 * 
+	 * Until {@link #endUnitOfWork(boolean)} is called, every query, save and delete made on this thread share the
+	 * same session and the same transaction, so lazy loads and repeated lookups are served by this session.
+	 * 
+	 * @return true if a unit of work was started, false if one is already active or if the database is not
+	 *         initialized
+	 */
+	public static boolean beginUnitOfWork() {
+		if (!isHibernateInitialized() || isUnitOfWorkActive())
+			return false;
+		try {
+			unitOfWork.set(getSessionFactory().getCurrentSession().beginTransaction());
+			return true;
+		} catch (HibernateException e) {
+			Logger.log(Level.SEVERE, e.toString(), e);
+			return false;
+		}
+	}
+
+	/**
+	 * End the unit of work of the current thread.
+	 * 
+	 * The transaction is rolled back instead of committed if an operation failed during the unit of work.
+	 * 
+	 * @param commit
+	 *            true to commit the unit of work, false to roll it back
+	 * @return true if the unit of work was committed
+	 */
+	public static boolean endUnitOfWork(boolean commit) {
+		Transaction tx = unitOfWork.get();
+		if (tx == null)
+			return false;
+		unitOfWork.remove();
+		List<Runnable> actions = afterCommit.get();
+		afterCommit.remove();
+		boolean committed = false;
+		try {
+			if (!tx.isActive())
+				return false;
+			if (commit && !tx.getRollbackOnly()) {
+				tx.commit();
+				committed = true;
+				return true;
+			}
+			tx.rollback();
+			return false;
+		} catch (PersistenceException e) {
+			if (tx.isActive())
+				tx.rollback();
+			Logger.log(Level.SEVERE, e.toString(), e);
+			return false;
+		} finally {
+			// the group tree may have been built by another thread before the changes were committed
+			GroupTree.endUnitOfWork();
+			if (committed && actions != null)
+				actions.forEach(DatabaseManager::runAction);
+		}
+	}
+
+	/**
+	 * Run an action once the changes of the current thread are committed.
+	 * 
+	 * Inside a unit of work, the action is deferred to a successful {@link #endUnitOfWork(boolean)} and dropped on
+	 * rollback: run before the commit, a cache invalidation could let another thread cache the old rows again.
+	 * 
+	 * @param action
+	 *            the action, like a cache invalidation
+	 */
+	public static void runAfterCommit(Runnable action) {
+		if (!isUnitOfWorkActive()) {
+			action.run();
+			return;
+		}
+		List<Runnable> actions = afterCommit.get();
+		if (actions == null) {
+			actions = new ArrayList<>();
+			afterCommit.set(actions);
+		}
+		actions.add(action);
+	}
+
+	private static void runAction(Runnable action) {
+		// the changes are committed, a failing action must not skip the next ones
+		try {
+			action.run();
+		} catch (RuntimeException e) {
+			Logger.log(Level.SEVERE, e.toString(), e);
+		}
+	}
+
+	/**
+	 * @return true if a unit of work is active on the current thread
+	 */
+	public static boolean isUnitOfWorkActive() {
+		return unitOfWork.get() != null;
+	}
+
+	/**
+	 * Run read-only operations on the replica database when one is configured.
+	 * 
+	 * Queries made by the operation on this thread are sent to the replica, unless a unit of work is active or the
+	 * replica is failing or late, in which case they go to the primary database. Objects read this way may be a few
+	 * seconds old and must not be used to take write decisions.
+	 * 
+	 * @param <T>
+	 *            the type of the result
+	 * @param operation
+	 *            the read-only operation
+	 * @return the result of the operation
+	 */
+	public static <T> T readFromReplica(Supplier<T> operation) {
+		Boolean previous = replicaRead.get();
+		replicaRead.set(Boolean.TRUE);
+		try {
+			return operation.get();
+		} finally {
+			if (previous == null)
+				replicaRead.remove();
+		}
+	}
+
+	/**
+	 * Run an operation whose queries only return the rows created in a date range.
+	 * 
+	 * The range applies to the classes having the VSquareObject.DATE_RANGE filter (the logs) and lets the database
+	 * only read the index range of these dates.
+	 * 
+	 * @param <T>
+	 *            the type of the result
+	 * @param from
+	 *            the first date included, null for no lower bound
+	 * @param to
+	 *            the last date excluded, null for no upper bound
+	 * @param operation
+	 *            the read-only operation
+	 * @return the result of the operation
+	 */
+	public static <T> T withDateRange(Date from, Date to, Supplier<T> operation) {
+		Date[] previous = dateRange.get();
+		dateRange.set(new Date[] { from == null ? new Date(0) : from, to == null ? MAX_DATE : to });
+		try {
+			return operation.get();
+		} finally {
+			if (previous == null)
+				dateRange.remove();
+			else
+				dateRange.set(previous);
+		}
+	}
+
+	/**
+	 * @return true if the queries of the current thread are restricted to a date range
+	 */
+	public static boolean isDateRangeActive() {
+		return dateRange.get() != null;
+	}
+
+	/**
+	 * @return true if the queries of the current thread may be sent to the replica
+	 */
+	public static boolean isReadingFromReplica() {
+		return replicaSessionFactory != null && replicaRead.get() != null && !isUnitOfWorkActive();
+	}
+
+	/**
+	 * @return the replica session factory if reads of the current thread can use it, null otherwise
+	 */
+	private static SessionFactory getReplicaForRead() {
+		SessionFactory replica = replicaSessionFactory;
+		if (replica == null || replicaRead.get() == null || isUnitOfWorkActive())
+			return null;
+		long now = System.currentTimeMillis();
+		if (now < replicaRetryTime)
+			return null;
+		if (now - replicaLagCheckTime > REPLICA_LAG_CHECK_PERIOD) {
+			replicaLagCheckTime = now;
+			replicaLag = readReplicaLag();
+			if (replicaLag < 0 || replicaLag > Utils.getInt("db_replica_max_lag")) {
+				markReplicaFailed("replication lag " + replicaLag + "s");
+				return null;
+			}
+		}
+		return replica;
+	}
+
+	/**
+	 * Read the replication lag of the replica with the "db_replica_lag_query" query.
+	 * 
+	 * The default query, SHOW SLAVE STATUS, needs the REPLICATION CLIENT grant for "db_user" on the replica. Without
+	 * it the lag is unknown and every read goes to the primary database, a heartbeat table can be read instead.
+	 * 
+	 * @return the lag in seconds, 0 if the server is not replicating, -1 if the replication is stopped or unknown
+	 */
+	private static long readReplicaLag() {
+		try (Connection conn = openConnection(false, replicaConnectionString);
+				Statement st = conn.createStatement();
+				ResultSet rs = st.executeQuery(replicaLagQuery)) {
+			if (!rs.next())
+				return 0;
+			long lag = rs.getLong("Seconds_Behind_Master");
+			return rs.wasNull() ? -1 : lag;
+		} catch (SQLException e) {
+			if (e.getErrorCode() == ER_SPECIFIC_ACCESS_DENIED)
+				Logger.log(Level.WARNING, "Replication lag unreadable, grant REPLICATION CLIENT to {0} on the replica "
+						+ "or set db_replica_lag_query : {1}", Utils.getString(DB_USER), e.getMessage());
+			else
+				Logger.log(Level.WARNING, e.toString(), e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Send the reads to the primary database for "db_replica_retry_delay" milliseconds.
+	 * 
+	 * @param reason
+	 *            the reason logged
+	 */
+	private static void markReplicaFailed(String reason) {
+		replicaRetryTime = System.currentTimeMillis() + Utils.getInt("db_replica_retry_delay");
+		Logger.log(Level.WARNING, "Replica unavailable ({0}), reading from primary database", reason);
+	}
+
+	/**
+	 * Get the state of the replica.
+	 * 
+	 * @return the replica counters as json
+	 */
+	public static JSONObject getReplicaMetrics() {
+		JSONObject json = new JSONObject();
+		json.put("enabled", replicaSessionFactory != null);
+		json.put("available", replicaSessionFactory != null && System.currentTimeMillis() >= replicaRetryTime);
+		json.put("lag", replicaLag);
+		json.put("reads", replicaReads.get());
+		json.put("fallbacks", replicaFallbacks.get());
+		return json;
+	}
+
+	/**
+	 * Begin a transaction on the given session unless a unit of work is active on the current thread.
+	 * 
+	 * @param session
+	 *            the current hibernate session
+	 * @return the new transaction or null if the operation joins the current unit of work
+	 */
+	public static Transaction beginTransaction(Session session) {
+		if (isUnitOfWorkActive())
+			return null;
+		return session.beginTransaction();
+	}
+
+	/**
+	 * Commit a transaction started with {@link #beginTransaction(Session)}.
+	 * 
+	 * Inside a unit of work, the commit is deferred to {@link #endUnitOfWork(boolean)}.
+	 * 
+	 * @param tx
+	 *            the transaction (null inside a unit of work)
+	 */
+	public static void commitTransaction(Transaction tx) {
+		if (tx != null)
+			tx.commit();
+	}
+
+	/**
+	 * Roll back a transaction started with {@link #beginTransaction(Session)}.
+	 * 
+	 * Inside a unit of work, the whole unit of work is marked to be rolled back at its end.
+	 * 
+	 * @param tx
+	 *            the transaction (null inside a unit of work)
+	 */
+	public static void rollbackTransaction(Transaction tx) {
+		if (tx != null) {
+			if (tx.isActive())
+				tx.rollback();
+		} else if (isUnitOfWorkActive()) {
+			unitOfWork.get().setRollbackOnly();
 		}
 	}
 
@@ -198,7 +718,7 @@ public final class DatabaseManager {
 	 * @return the first object or null if not found
 	 */
 	public static <T> T getFirstFromSessionQuery(String hibernateQuery, Object... parameters) {
-		return getFirstFromSessionQueryBase(hibernateQuery, null, parameters);
+		return getFirstFromQueryBase(session -> session.createQuery(hibernateQuery), null, parameters);
 	}
 
 	/**
@@ -213,7 +733,46 @@ public final class DatabaseManager {
 	 * @return the first object or null if not found
 	 */
 	public static <T> T getFirstFromSessionQueryNamed(String hibernateQuery, Map<String, Object> parameters) {
-		return getFirstFromSessionQueryBase(hibernateQuery, parameters);
+		return getFirstFromQueryBase(session -> session.createQuery(hibernateQuery), parameters);
+	}
+
+	/**
+	 * Execute a query registered at startup and returns the first element.
+	 * 
+	 * @param <T>
+	 *            the type of the hibernate object
+	 * @param queryName
+	 *            the name of the query (see the NamedQuery annotations of the model)
+	 * @param parameters
+	 *            the unnamed parameters in order
+	 * @return the first object or null if not found
+	 */
+	public static <T> T getFirstFromNamedQuery(String queryName, Object... parameters) {
+		return getFirstFromQueryBase(session -> session.getNamedQuery(queryName), null, parameters);
+	}
+
+	/**
+	 * Return a row by its primary key without going through a query.
+	 * 
+	 * @param <T>
+	 *            the type of the hibernate object
+	 * @param objectClass
+	 *            the class of the object
+	 * @param id
+	 *            the id to find
+	 * @return the object or null if not found
+	 */
+	public static <T> T getById(Class<T> objectClass, int id) {
+		if (!isHibernateInitialized()) {
+			Logger.log(Level.SEVERE, "Database not initialized, cannot do query");
+			return null;
+		}
+		try {
+			return runQuery(session -> session.get(objectClass, id));
+		} catch (Exception e) {
+			Logger.log(Level.WARNING, e.toString(), e);
+			return null;
+		}
 	}
 
 	/**
@@ -221,37 +780,33 @@ public final class DatabaseManager {
 	 * 
 	 * @param <T>
 	 *            the type of the hibernate object
-	 * @param hibernateQuery
-	 *            the hibernate query
+	 * @param queryFactory
+	 *            create the hibernate query in the session
 	 * @param parametersMap
 	 *            named parameters and their values (null for named parameters)
 	 * @param parameters
      *            the unnamed parameters in order
 	 * @return the first object or null if not found
 	 */
-	private static <T> T getFirstFromSessionQueryBase(String hibernateQuery, Map<String, Object> parametersMap,
-			Object... parameters) {
+	private static <T> T getFirstFromQueryBase(Function<Session, Query> queryFactory,
+			Map<String, Object> parametersMap, Object... parameters) {
 		if (!isHibernateInitialized()) {
 			Logger.log(Level.SEVERE, "Database not initialized, cannot do query");
 			return null;
 		}
-		Session session = getSessionFactory().getCurrentSession();
-		Transaction tx = null;
 		try {
-			tx = session.beginTransaction();
-			Query query = session.createQuery(hibernateQuery);
-			loadQueryParameters(query, parametersMap, parameters);
-			@SuppressWarnings("unchecked")
-			T result = (T) query.getSingleResult();
-			tx.commit();
-			return result;
-		} catch (NoResultException e) {
-			if (tx != null)
-				tx.commit();
-			return null;
+			return runQuery(session -> {
+				Query query = queryFactory.apply(session);
+				loadQueryParameters(query, parametersMap, parameters);
+				try {
+					@SuppressWarnings("unchecked")
+					T result = (T) query.getSingleResult();
+					return result;
+				} catch (NoResultException e) {
+					return null;
+				}
+			});
 		} catch (Exception e) {
-			if (tx != null)
-				tx.rollback();
 			Logger.log(Level.WARNING, e.toString(), e);
 			return null;
 		}
@@ -269,7 +824,7 @@ public final class DatabaseManager {
 	 * @return all the returned rows
 	 */
 	public static <T> List<T> getRowsFromSessionQuery(String hibernateQuery, Object... parameters) {
-		return getRowsFromSessionQueryBase(hibernateQuery, 0, 0, null, parameters);
+		return getRowsFromQueryBase(session -> session.createQuery(hibernateQuery), 0, 0, null, parameters);
 	}
 
 	/**
@@ -289,7 +844,7 @@ public final class DatabaseManager {
 	 */
 	public static <T> List<T> getRowsFromSessionQueryNamed(String hibernateQuery, int start, int max,
 			Map<String, Object> parameters) {
-		return getRowsFromSessionQueryBase(hibernateQuery, start, max, parameters);
+		return getRowsFromQueryBase(session -> session.createQuery(hibernateQuery), start, max, parameters);
 	}
 
 	/**
@@ -304,16 +859,87 @@ public final class DatabaseManager {
 	 * @return all the returned rows
 	 */
 	public static <T> List<T> getRowsFromSessionQueryNamed(String hibernateQuery, Map<String, Object> parameters) {
-		return getRowsFromSessionQueryBase(hibernateQuery, 0, 0, parameters);
+		return getRowsFromQueryBase(session -> session.createQuery(hibernateQuery), 0, 0, parameters);
 	}
 
 	/**
-	 * Execute an hibernate query and returns all the rows.
+	 * Execute an hibernate query and returns a range of the rows.
 	 * 
 	 * @param <T>
 	 *            the type of the hibernate object
 	 * @param hibernateQuery
-	 *            the hibernate query
+	 *            with unnamed parameters (ex : '?1')
+	 * @param start
+	 *            the first result
+	 * @param max
+	 *            the max size of the query
+	 * @param parameters
+	 *            the unnamed parameters in order
+	 * @return the returned rows
+	 */
+	public static <T> List<T> getExtractFromSessionQuery(String hibernateQuery, int start, int max,
+			Object... parameters) {
+		return getRowsFromQueryBase(session -> session.createQuery(hibernateQuery), start, max, null, parameters);
+	}
+
+	/**
+	 * Execute a query registered at startup and returns all the rows.
+	 * 
+	 * @param <T>
+	 *            the type of the hibernate object
+	 * @param queryName
+	 *            the name of the query (see the NamedQuery annotations of the model)
+	 * @param parameters
+	 *            the unnamed parameters in order
+	 * @return all the returned rows
+	 */
+	public static <T> List<T> getRowsFromNamedQuery(String queryName, Object... parameters) {
+		return getRowsFromQueryBase(session -> session.getNamedQuery(queryName), 0, 0, null, parameters);
+	}
+
+	/**
+	 * Execute a query registered at startup and returns all the rows, or null if the query fails.
+	 * 
+	 * Unlike {@link #getRowsFromNamedQuery(String, Object...)}, a failure cannot be mistaken for an empty result.
+	 * 
+	 * @param <T>
+	 *            the type of the hibernate object
+	 * @param queryName
+	 *            the name of the query (see the NamedQuery annotations of the model)
+	 * @param parameters
+	 *            the unnamed parameters in order
+	 * @return all the returned rows or null on error
+	 */
+	public static <T> List<T> getRowsOrNullFromNamedQuery(String queryName, Object... parameters) {
+		return getRowsOrNullFromQueryBase(session -> session.getNamedQuery(queryName), 0, 0, null, parameters);
+	}
+
+	/**
+	 * Execute a query registered at startup and returns a range of the rows.
+	 * 
+	 * @param <T>
+	 *            the type of the hibernate object
+	 * @param queryName
+	 *            the name of the query (see the NamedQuery annotations of the model)
+	 * @param start
+	 *            the first result
+	 * @param max
+	 *            the max size of the query
+	 * @param parameters
+	 *            the unnamed parameters in order
+	 * @return the returned rows
+	 */
+	public static <T> List<T> getExtractFromNamedQuery(String queryName, int start, int max, Object... parameters) {
+		return getRowsFromQueryBase(session -> session.getNamedQuery(queryName), start, max, null, parameters);
+	}
+
+	/**
+	 * Execute an hibernate query and returns all the rows.
+	 * 
+	 * @param <T>
+	 *            the type of the hibernate object
+	 * @param queryFactory
+	 *            create the hibernate query in the session
 	 * @param start
 	 *            the first result
 	 * @param max
@@ -324,38 +950,125 @@ public final class DatabaseManager {
      *            the unnamed parameters in order
 	 * @return all the returned rows
 	 */
-	private static <T> List<T> getRowsFromSessionQueryBase(String hibernateQuery, int start, int max,
+	private static <T> List<T> getRowsFromQueryBase(Function<Session, Query> queryFactory, int start, int max,
+			Map<String, Object> parametersMap, Object... parameters) {
+		List<T> rows = getRowsOrNullFromQueryBase(queryFactory, start, max, parametersMap, parameters);
+		return rows == null ? new ArrayList<>(0) : rows;
+	}
+
+	/**
+	 * Same as getRowsFromQueryBase, returning null when the query fails.
+	 * 
+	 * @param <T>
+	 *            the type of the hibernate object
+	 * @param queryFactory
+	 *            create the hibernate query in the session
+	 * @param start
+	 *            the first result
+	 * @param max
+	 *            the max size of the query
+	 * @param parametersMap
+	 *            named parameters and their values (null for named parameters)
+	 * @param parameters
+	 *            the unnamed parameters in order
+	 * @return all the returned rows or null on error
+	 */
+	private static <T> List<T> getRowsOrNullFromQueryBase(Function<Session, Query> queryFactory, int start, int max,
 			Map<String, Object> parametersMap, Object... parameters) {
 		if (!isHibernateInitialized()) {
 			Logger.log(Level.SEVERE, "Database not initialized, cannot do query");
-			return new ArrayList<>();
+			return null;
 		}
-		Transaction tx = null;
-		Session session = getSessionFactory().getCurrentSession();
 		try {
-			tx = session.beginTransaction();
-			Query query = session.createQuery(hibernateQuery);
-			if (start > 0)
-				query.setFirstResult(start);
-			if (max > 0)
-				query.setMaxResults(max);
-			loadQueryParameters(query, parametersMap, parameters);
-			@SuppressWarnings("unchecked")
-			List<T> rows = (List<T>) query.getResultList();
-			tx.commit();
-			return rows;
-		} catch (NoResultException e) {
-			if (tx != null)
-				tx.commit();
-			return new ArrayList<>(0);
+			return runQuery(session -> {
+				Query query = queryFactory.apply(session);
+				if (start > 0)
+					query.setFirstResult(start);
+				if (max > 0)
+					query.setMaxResults(max);
+				loadQueryParameters(query, parametersMap, parameters);
+				@SuppressWarnings("unchecked")
+				List<T> rows = (List<T>) query.getResultList();
+				return rows;
+			});
 		} catch (Exception e) {
-			if (tx != null)
-				tx.rollback();
 			Logger.log(Level.SEVERE, e.toString(), e);
-			return new ArrayList<>(0);
+			return null;
+		}
+	}
+
+	/**
+	 * Run a read operation in a transaction, on the replica inside a {@link #readFromReplica(Supplier)} call.
+	 * 
+	 * If the replica fails, the operation is run again on the primary database.
+	 * 
+	 * @param <R>
+	 *            the type of the result
+	 * @param work
+	 *            the operation
+	 * @return the result of the operation
+	 */
+	private static <R> R runQuery(Function<Session, R> work) {
+		SessionFactory replica = getReplicaForRead();
+		if (replica != null) {
+			Session session = replica.getCurrentSession();
+			Transaction tx = null;
+			try {
+				tx = session.beginTransaction();
+				session.setDefaultReadOnly(true);
+				R result = applyDateRange(session, work);
+				tx.commit();
+				replicaReads.incrementAndGet();
+				return result;
+			} catch (RuntimeException e) {
+				if (tx != null && tx.isActive())
+					tx.rollback();
+				if (!isConnectionError(e))
+					throw e;
+				markReplicaFailed(e.toString());
+				replicaFallbacks.incrementAndGet();
+			}
+		}
+		Session session = getSessionFactory().getCurrentSession();
+		Transaction tx = null;
+		try {
+			tx = beginTransaction(session);
+			R result = applyDateRange(session, work);
+			commitTransaction(tx);
+			return result;
+		} catch (RuntimeException e) {
+			rollbackTransaction(tx);
+			throw e;
 		}
 	}
 
+	/**
+	 * Run an operation with the date range filter of the current thread enabled.
+	 */
+	private static <R> R applyDateRange(Session session, Function<Session, R> work) {
+		Date[] range = dateRange.get();
+		if (range == null)
+			return work.apply(session);
+		session.enableFilter(VSquareObject.DATE_RANGE).setParameter("from", range[0]).setParameter("to", range[1]);
+		try {
+			return work.apply(session);
+		} finally {
+			session.disableFilter(VSquareObject.DATE_RANGE);
+		}
+	}
+
+	/**
+	 * @param e
+	 *            an exception thrown by hibernate
+	 * @return true if the exception is caused by a database error and not by the query
+	 */
+	private static boolean isConnectionError(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause())
+			if (cause instanceof SQLException)
+				return true;
+		return false;
+	}
+
 	/**
 	 * Load parameters into the query.
 	 * 
@@ -405,6 +1118,41 @@ public final class DatabaseManager {
 		}
 	}
 
+	/**
+	 * Delete the rows of a table with a date column before a date.
+	 * 
+	 * The rows are deleted by batches of the oldest ones, each DELETE ... ORDER BY ... LIMIT in its own transaction, so
+	 * that the table is never locked for long while a large backlog is deleted. The batches deleted before an error
+	 * stay deleted.
+	 * 
+	 * @param table
+	 *            the table
+	 * @param column
+	 *            the indexed date column
+	 * @param cutoff
+	 *            the first date kept
+	 * @param batchSize
+	 *            the max rows deleted by statement
+	 * @return the number of deleted rows
+	 * @throws SQLException
+	 *             if a batch cannot be deleted
+	 */
+	public static long purgeBefore(String table, String column, Timestamp cutoff, int batchSize) throws SQLException {
+		long count = 0;
+		try (Connection conn = openConnection();
+				PreparedStatement stmt = conn.prepareStatement(
+						"DELETE FROM " + table + " WHERE " + column + " < ? ORDER BY " + column + " LIMIT ?")) {
+			stmt.setTimestamp(1, cutoff);
+			stmt.setInt(2, batchSize);
+			int batch;
+			do {
+				batch = stmt.executeUpdate();
+				count += batch;
+			} while (batch == batchSize);
+		}
+		return count;
+	}
+
 	/**
 	 * Check if a table exists in the database.
 	 * 
@@ -480,6 +1228,11 @@ public final class DatabaseManager {
 				}
 			}
 
+			if (currentVersion == version && !checkGroupClosure(conn)) {
+				Logger.log(Level.SEVERE, "Error building the group closure");
+				return false;
+			}
+
 			initDefaultGroups();
 
 			if (currentVersion == version) {
@@ -497,6 +1250,49 @@ public final class DatabaseManager {
 		}
 	}
 
+	/**
+	 * Rebuild the group closure table (see GroupClosure) if a group has no row in it, like the groups created before
+	 * the table.
+	 * 
+	 * @param conn
+	 *            the SQLConnection
+	 * @return true if the operation is successful
+	 * @throws SQLException
+	 *             if error during the rollback
+	 */
+	private static boolean checkGroupClosure(Connection conn) throws SQLException {
+		try (Statement st = conn.createStatement()) {
+			try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM user_group g "
+					+ "LEFT JOIN group_closure c ON c.ancestor = g.id AND c.descendant = g.id WHERE c.ancestor IS NULL")) {
+				if (rs.first() && rs.getInt(1) == 0)
+					return true;
+			}
+			Logger.log(Level.INFO, "Building the group closure...");
+			st.executeUpdate("DELETE FROM group_closure WHERE 1");
+			st.executeUpdate("INSERT INTO group_closure (ancestor, descendant, depth) SELECT id, id, 0 FROM user_group");
+			int groups;
+			try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM user_group")) {
+				groups = rs.first() ? rs.getInt(1) : 0;
+			}
+			// one level deeper by statement, a path cannot be longer than the number of groups
+			try (PreparedStatement ps = conn.prepareStatement("INSERT INTO group_closure (ancestor, descendant, depth) "
+					+ "SELECT c.ancestor, g.id, c.depth + 1 FROM group_closure c "
+					+ "JOIN user_group g ON g.id_parent_group = c.descendant WHERE c.depth = ?")) {
+				for (int depth = 0; depth < groups; depth++) {
+					ps.setInt(1, depth);
+					if (ps.executeUpdate() == 0)
+						break;
+				}
+			}
+			conn.commit();
+			return true;
+		} catch (SQLException e) {
+			Logger.log(Level.SEVERE, e.toString(), e);
+			conn.rollback();
+			return false;
+		}
+	}
+
 	/**
 	 * Init default groups (admin/referent/users) and update.
 	 */
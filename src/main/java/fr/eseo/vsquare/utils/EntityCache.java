@@ -0,0 +1,383 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.model.*;
+import org.hibernate.Hibernate;
+import org.hibernate.HibernateException;
+import org.hibernate.collection.internal.PersistentSet;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+import org.json.JSONObject;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Utility class that store a bounded in-process cache of read-mostly entities by id or unique column value.
+ * <p>
+ * The cache holds an immutable copy of the column values of each object, read from the hibernate mapping: a hit builds
+ * a new detached instance without any query, so every caller gets its own instance and never shares a mutable entity
+ * with another request. The eager associations are copied the same way, the lazy ones are left uninitialized and
+ * read by the model with their own query. Entries expire after "entity_cache_ttl" milliseconds, which bounds the
+ * staleness of the rows changed by another node, and the least recently used entries are evicted when the cache
+ * holds more than "entity_cache_size" entries (0 disables the cache). Entries are invalidated when an object they
+ * hold is saved or deleted. The cache is bypassed while a unit of work is active and while reading from the replica.
+ *
+ * @author Clement Gouin
+ */
+public final class EntityCache {
+
+	private static final Set<Class<?>> CACHED_CLASSES = new HashSet<>(Arrays.asList(
+			User.class, Group.class, Permission.class, Vm.class, Network.class));
+
+	private static int maxSize = Utils.getInt("entity_cache_size");
+	private static long timeToLive = Utils.getInt("entity_cache_ttl");
+
+	private static final LinkedHashMap<CacheKey, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private static long generation = 0;
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong evictions = new AtomicLong();
+	private static final AtomicLong invalidations = new AtomicLong();
+
+	private EntityCache() {
+	}
+
+	/**
+	 * Get a copy of a cached object or load it.
+	 *
+	 * @param objectClass the class of the object
+	 * @param key         the id or unique column value identifying the object in its class
+	 * @param loader      the function loading the object from the database by this value
+	 * @param <T>         the class of the object
+	 * @return a new instance of the object, null if not found
+	 */
+	public static <T extends VSquareObject> T get(Class<T> objectClass, String key, Supplier<T> loader) {
+		// a unit of work may read rows it has not committed yet and a replica may be late
+		if (!isEnabled() || !CACHED_CLASSES.contains(objectClass) || DatabaseManager.isUnitOfWorkActive()
+				|| DatabaseManager.isReadingFromReplica() || !DatabaseManager.isHibernateInitialized())
+			return loader.get();
+
+		CacheKey cacheKey = new CacheKey(objectClass, key);
+		CacheEntry entry;
+		long loadGeneration;
+		synchronized (entries) {
+			entry = entries.get(cacheKey);
+			if (entry != null && entry.expiration <= System.currentTimeMillis()) {
+				entries.remove(cacheKey);
+				evictions.incrementAndGet();
+				entry = null;
+			}
+			loadGeneration = generation;
+		}
+		SessionFactoryImplementor factory = (SessionFactoryImplementor) DatabaseManager.getSessionFactory();
+		if (entry != null) {
+			hits.incrementAndGet();
+			return objectClass.cast(entry.state.copy(factory));
+		}
+
+		misses.incrementAndGet();
+		T value = loader.get();
+		if (value == null || value.getId() == null)
+			return value;
+		// copied before the caller can change it
+		Set<Dependency> dependencies = new HashSet<>();
+		State state = State.of(value, factory, dependencies);
+		if (state == null)
+			return value;
+
+		synchronized (entries) {
+			// do not cache an object read before an invalidation, it may already be stale
+			if (loadGeneration == generation) {
+				entries.put(cacheKey, new CacheEntry(state, dependencies,
+						System.currentTimeMillis() + timeToLive));
+				Iterator<CacheEntry> it = entries.values().iterator();
+				while (entries.size() > maxSize && it.hasNext()) {
+					it.next();
+					it.remove();
+					evictions.incrementAndGet();
+				}
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Remove every entry of this object.
+	 *
+	 * @param object the saved or deleted object
+	 */
+	public static void invalidate(VSquareObject object) {
+		if (object != null)
+			invalidate(object, object.getId());
+	}
+
+	/**
+	 * Remove every entry of this object, with the id it had when it was changed (the id of a deleted object is
+	 * reset).
+	 *
+	 * @param object the saved or deleted object
+	 * @param id     the id of the object
+	 */
+	public static void invalidate(VSquareObject object, Integer id) {
+		if (object == null || !isEnabled())
+			return;
+		Class<?> objectClass = Hibernate.getClass(object);
+		if (!CACHED_CLASSES.contains(objectClass))
+			return;
+		Dependency dependency = new Dependency(objectClass, id);
+		synchronized (entries) {
+			generation++;
+			invalidations.incrementAndGet();
+			entries.values().removeIf(e -> e.dependencies.contains(dependency));
+		}
+	}
+
+	/**
+	 * Remove every entry from the cache.
+	 */
+	public static void clear() {
+		synchronized (entries) {
+			generation++;
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return true if the cache is enabled in the configuration
+	 */
+	public static boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * @return the current size of the cache
+	 */
+	public static int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return the number of lookups served by the cache
+	 */
+	public static long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of lookups that went to the database
+	 */
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the cache counters as json
+	 */
+	public static JSONObject getMetrics() {
+		long hitCount = hits.get();
+		long missCount = misses.get();
+		JSONObject json = new JSONObject();
+		json.put("enabled", isEnabled());
+		json.put("size", size());
+		json.put("max_size", maxSize);
+		json.put("ttl", timeToLive);
+		json.put("hits", hitCount);
+		json.put("misses", missCount);
+		json.put("hit_ratio", hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount));
+		json.put("evictions", evictions.get());
+		json.put("invalidations", invalidations.get());
+		return json;
+	}
+
+	private static final class CacheKey {
+		private final Class<?> objectClass;
+		private final String key;
+
+		private CacheKey(Class<?> objectClass, String key) {
+			this.objectClass = objectClass;
+			this.key = key;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CacheKey))
+				return false;
+			CacheKey other = (CacheKey) obj;
+			return objectClass == other.objectClass && Objects.equals(key, other.key);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * objectClass.hashCode() + Objects.hashCode(key);
+		}
+	}
+
+	private static final class CacheEntry {
+		private final State state;
+		// the objects copied in the state, the entry is invalidated when one of them changes
+		private final Set<Dependency> dependencies;
+		private final long expiration;
+
+		private CacheEntry(State state, Set<Dependency> dependencies, long expiration) {
+			this.state = state;
+			this.dependencies = dependencies;
+			this.expiration = expiration;
+		}
+	}
+
+	private static final class Dependency {
+		private final Class<?> objectClass;
+		private final Serializable id;
+
+		private Dependency(Class<?> objectClass, Serializable id) {
+			this.objectClass = objectClass;
+			this.id = id;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Dependency))
+				return false;
+			Dependency other = (Dependency) obj;
+			return objectClass == other.objectClass && Objects.equals(id, other.id);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * objectClass.hashCode() + Objects.hashCode(id);
+		}
+	}
+
+	/**
+	 * The immutable column values of an object, its eager associations copied as states.
+	 * <p>
+	 * Also used by GroupTree to share the networks and templates of its snapshot between threads.
+	 */
+	static final class State {
+		private final Class<?> objectClass;
+		private final Serializable id;
+		// deep copies of the values, a State, a LazyEntity or a LazySet for the associations
+		private final Object[] values;
+
+		private State(Class<?> objectClass, Serializable id, Object[] values) {
+			this.objectClass = objectClass;
+			this.id = id;
+			this.values = values;
+		}
+
+		/**
+		 * @return the state of the object, null if it holds values that cannot be copied
+		 */
+		static State of(Object object, SessionFactoryImplementor factory) {
+			return of(object, factory, new HashSet<>());
+		}
+
+		/**
+		 * @return the state of the object, null if it holds values that cannot be copied
+		 */
+		private static State of(Object object, SessionFactoryImplementor factory, Set<Dependency> dependencies) {
+			Class<?> objectClass = Hibernate.getClass(object);
+			Object entity = object instanceof HibernateProxy
+					? ((HibernateProxy) object).getHibernateLazyInitializer().getImplementation()
+					: object;
+			try {
+				EntityPersister persister = factory.getMetamodel().entityPersister(objectClass);
+				Serializable id = persister.getIdentifier(entity, null);
+				Type[] types = persister.getPropertyTypes();
+				Object[] values = persister.getPropertyValues(entity);
+				for (int i = 0; i < values.length; i++) {
+					Object value = values[i];
+					if (value == null)
+						continue;
+					if (types[i].isCollectionType()) {
+						if (!(value instanceof Set))
+							return null;
+						values[i] = new LazySet(((CollectionType) types[i]).getRole());
+					} else if (types[i].isEntityType()) {
+						LazyInitializer initializer = value instanceof HibernateProxy
+								? ((HibernateProxy) value).getHibernateLazyInitializer() : null;
+						if (initializer != null && initializer.isUninitialized()) {
+							values[i] = new LazyEntity(((EntityType) types[i]).getAssociatedEntityName(factory),
+									initializer.getIdentifier());
+						} else {
+							values[i] = State.of(value, factory, dependencies);
+							if (values[i] == null)
+								return null;
+						}
+					} else if (types[i].isComponentType()) {
+						return null;
+					} else {
+						values[i] = types[i].deepCopy(value, factory);
+					}
+				}
+				dependencies.add(new Dependency(objectClass, id));
+				return new State(objectClass, id, values);
+			} catch (HibernateException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * @return the id of the object
+		 */
+		Serializable getId() {
+			return id;
+		}
+
+		/**
+		 * @return a new detached instance of the object
+		 */
+		Object copy(SessionFactoryImplementor factory) {
+			EntityPersister persister = factory.getMetamodel().entityPersister(objectClass);
+			Type[] types = persister.getPropertyTypes();
+			Object[] copies = new Object[values.length];
+			for (int i = 0; i < values.length; i++) {
+				Object value = values[i];
+				if (value instanceof State) {
+					copies[i] = ((State) value).copy(factory);
+				} else if (value instanceof LazyEntity) {
+					LazyEntity lazy = (LazyEntity) value;
+					copies[i] = factory.getMetamodel().entityPersister(lazy.entityName).createProxy(lazy.id, null);
+				} else if (value instanceof LazySet) {
+					// an uninitialized collection of this owner, read by the model with its own query
+					PersistentSet set = new PersistentSet();
+					set.setSnapshot(id, ((LazySet) value).role, null);
+					copies[i] = set;
+				} else if (value != null) {
+					copies[i] = types[i].deepCopy(value, factory);
+				}
+			}
+			Object copy = persister.instantiate(id, null);
+			persister.setPropertyValues(copy, copies);
+			return copy;
+		}
+	}
+
+	private static final class LazyEntity {
+		private final String entityName;
+		private final Serializable id;
+
+		private LazyEntity(String entityName, Serializable id) {
+			this.entityName = entityName;
+			this.id = id;
+		}
+	}
+
+	private static final class LazySet {
+		private final String role;
+
+		private LazySet(String role) {
+			this.role = role;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.model.ErrorLog;
+import fr.eseo.vsquare.model.User;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Utility class that limit the error logs written for identical errors.
+ * <p>
+ * Errors are identified by a fingerprint (source and message, or source, exception class and stack frames). Only
+ * "error_log_max_per_window" errors of a fingerprint are written every "error_log_dedup_window" milliseconds, the
+ * next ones are counted and written as a single error log with their repeat count when the window ends, with the user
+ * and the request of the first occurrence. The ended windows are written by the next error or by a background thread
+ * every window, whichever comes first.
+ *
+ * @author Clement Gouin
+ */
+public final class ErrorDeduplicator {
+
+	private static final int MAX_FRAMES = 20;
+
+	private static long window = Utils.getInt("error_log_dedup_window");
+	private static int maxPerWindow = Utils.getInt("error_log_max_per_window");
+	private static int maxFingerprints = Utils.getInt("error_log_max_fingerprints");
+
+	private static final LinkedHashMap<String, Occurrences> occurrences = new LinkedHashMap<>(16, 0.75f, true);
+	private static long nextSweep = 0;
+
+	private static final AtomicLong written = new AtomicLong();
+	private static final AtomicLong suppressed = new AtomicLong();
+	private static final AtomicLong failures = new AtomicLong();
+
+	private static final ScheduledTask task = new ScheduledTask("error-dedup", ErrorDeduplicator::writeEnded,
+			failures);
+
+	private ErrorDeduplicator() {
+	}
+
+	/**
+	 * Start the background write of the ended windows, does nothing if the window is 0 or if it is already started.
+	 */
+	public static void start() {
+		task.start(window);
+	}
+
+	/**
+	 * Stop the background write.
+	 */
+	public static void stop() {
+		task.stop();
+	}
+
+	/**
+	 * Write the repeats of the ended windows as the background thread does.
+	 */
+	static void runScheduled() {
+		task.run();
+	}
+
+	private static void writeEnded() {
+		long now = System.currentTimeMillis();
+		List<Occurrences> ended = new ArrayList<>();
+		synchronized (occurrences) {
+			sweep(now, ended);
+			nextSweep = now + window;
+		}
+		writeRepeats(ended);
+	}
+
+	/**
+	 * Compute the fingerprint of an error.
+	 *
+	 * @param source  the source class name
+	 * @param message the message pattern
+	 * @param e       the exception, may be null
+	 * @return the fingerprint
+	 */
+	public static String fingerprint(String source, String message, Throwable e) {
+		if (e == null)
+			return source + '|' + message;
+		// exception messages often hold ids or dates, the frames are enough to identify the error
+		StringBuilder fingerprint = new StringBuilder(source).append('|').append(e.getClass().getName());
+		StackTraceElement[] frames = e.getStackTrace();
+		for (int i = 0; i < frames.length && i < MAX_FRAMES; i++)
+			fingerprint.append('|').append(frames[i]);
+		return fingerprint.toString();
+	}
+
+	/**
+	 * Count an occurrence of an error.
+	 *
+	 * @param fingerprint the fingerprint of the error
+	 * @param error       the error text, written if the repeats of this window are rolled up
+	 * @param user        the current user, may be null
+	 * @param request     the current request, may be null
+	 * @return true if the error log must be written, false if it is only counted
+	 */
+	public static boolean record(String fingerprint, String error, User user, String request) {
+		if (window <= 0) {
+			written.incrementAndGet();
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		List<Occurrences> ended = new ArrayList<>();
+		boolean write;
+		synchronized (occurrences) {
+			if (now >= nextSweep) {
+				sweep(now, ended);
+				nextSweep = now + window;
+			}
+			Occurrences entry = occurrences.get(fingerprint);
+			if (entry == null || now - entry.windowStart >= window) {
+				if (entry != null && entry.suppressed > 0)
+					ended.add(entry);
+				entry = new Occurrences(now, error, user, request);
+				occurrences.put(fingerprint, entry);
+				Iterator<Occurrences> it = occurrences.values().iterator();
+				while (occurrences.size() > maxFingerprints && it.hasNext()) {
+					Occurrences evicted = it.next();
+					if (evicted.suppressed > 0)
+						ended.add(evicted);
+					it.remove();
+				}
+			}
+			write = entry.written < maxPerWindow;
+			if (write)
+				entry.written++;
+			else
+				entry.suppressed++;
+		}
+		(write ? written : suppressed).incrementAndGet();
+		writeRepeats(ended);
+		return write;
+	}
+
+	/**
+	 * Write the repeats counted in every window, ended or not.
+	 */
+	public static void flush() {
+		List<Occurrences> ended = new ArrayList<>();
+		synchronized (occurrences) {
+			ended.addAll(occurrences.values());
+			occurrences.clear();
+		}
+		ended.removeIf(entry -> entry.suppressed == 0);
+		writeRepeats(ended);
+	}
+
+	/**
+	 * Forget every fingerprint without writing the repeats.
+	 */
+	public static void clear() {
+		synchronized (occurrences) {
+			occurrences.clear();
+			nextSweep = 0;
+		}
+	}
+
+	/**
+	 * @return the deduplication counters as json
+	 */
+	public static JSONObject getMetrics() {
+		JSONObject json = new JSONObject();
+		synchronized (occurrences) {
+			json.put("fingerprints", occurrences.size());
+		}
+		json.put("window", window);
+		json.put("written", written.get());
+		json.put("suppressed", suppressed.get());
+		json.put("failures", failures.get());
+		return json;
+	}
+
+	private static void sweep(long now, List<Occurrences> ended) {
+		Iterator<Map.Entry<String, Occurrences>> it = occurrences.entrySet().iterator();
+		while (it.hasNext()) {
+			Occurrences entry = it.next().getValue();
+			if (now - entry.windowStart >= window) {
+				if (entry.suppressed > 0)
+					ended.add(entry);
+				it.remove();
+			}
+		}
+	}
+
+	private static void writeRepeats(List<Occurrences> ended) {
+		if (!DatabaseManager.isInitialized())
+			return;
+		for (Occurrences entry : ended)
+			ErrorLog.logRepeats(entry.user, entry.error, entry.request, entry.suppressed);
+	}
+
+	private static final class Occurrences {
+		private final long windowStart;
+		// the first occurrence of the window
+		private final String error;
+		private final User user;
+		private final String request;
+		private int written = 0;
+		private int suppressed = 0;
+
+		private Occurrences(long windowStart, String error, User user, String request) {
+			this.windowStart = windowStart;
+			this.error = error;
+			this.user = user;
+			this.request = request;
+		}
+	}
+}
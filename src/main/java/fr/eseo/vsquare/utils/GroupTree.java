@@ -0,0 +1,620 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.model.*;
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.json.JSONObject;
+
+import javax.persistence.PersistenceException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Utility class that keep an in-memory snapshot of the group tree.
+ * <p>
+ * The snapshot holds for every group its effective permission, networks and templates (inherited from its ancestors)
+ * and its members as a bitset of user ids, so that they are read without any lock nor query. Saving or deleting a
+ * group, a permission, a network, a template or a user makes the snapshot stale, the next read builds a new version
+ * in a single transaction and publishes it at once. The snapshot is bypassed while reading from the replica, and by a
+ * unit of work once it changed the tree, until it is over.
+ * <p>
+ * Every committed change also bumps the row of the group_tree_version table. The other nodes read it at most every
+ * "group_tree_check_interval" milliseconds and build a new version when it differs from the one of their snapshot.
+ * <p>
+ * The snapshot also holds the statistics of every group (users, vms and resources allocated to the users by their
+ * effective permission). The vm counts are updated in place when a vm is inserted or deleted, without a new build.
+ *
+ * @author Clement Gouin
+ */
+public final class GroupTree {
+
+	private static final Set<Class<?>> SOURCE_CLASSES = new HashSet<>(Arrays.asList(
+			Group.class, Permission.class, Network.class, Vm.class, User.class));
+
+	private static final Snapshot EMPTY = new Snapshot(-1, Collections.emptyMap(), Collections.emptyMap(),
+			Collections.emptyList(), Collections.emptyList());
+
+	private static final String READ_VERSION = "SELECT version FROM group_tree_version WHERE id = 1";
+	private static final String BUMP_VERSION =
+			"UPDATE group_tree_version SET version = LAST_INSERT_ID(version + 1) WHERE id = 1";
+
+	private static long checkInterval = Utils.getInt("group_tree_check_interval");
+
+	private static volatile Snapshot current = null;
+	private static final AtomicLong version = new AtomicLong();
+	private static final Object buildLock = new Object();
+	private static final AtomicLong lastCheck = new AtomicLong();
+
+	// changes of a unit of work are only visible to the other threads once it is committed
+	private static final ThreadLocal<Boolean> changedInUnitOfWork = new ThreadLocal<>();
+
+	private static final AtomicLong builds = new AtomicLong();
+	private static final AtomicLong failures = new AtomicLong();
+	private static final AtomicLong invalidations = new AtomicLong();
+	private static final AtomicLong checks = new AtomicLong();
+	private static final AtomicLong remoteChanges = new AtomicLong();
+	private static volatile long lastBuildDuration = 0;
+
+	private GroupTree() {
+	}
+
+	/**
+	 * Get the current snapshot, building a new one if a source object changed since the last build.
+	 *
+	 * @return the snapshot of the group tree, an empty snapshot if it cannot be read
+	 */
+	public static Snapshot get() {
+		// a unit of work reads the rows it has not committed yet through its session and a replica may be late
+		if (!DatabaseManager.isHibernateInitialized() || changedInUnitOfWork.get() != null
+				|| DatabaseManager.isReadingFromReplica())
+			return EMPTY;
+		checkVersion();
+		Snapshot snapshot = current;
+		if (snapshot != null && snapshot.version == version.get())
+			return snapshot;
+		synchronized (buildLock) {
+			snapshot = current;
+			long buildVersion = version.get();
+			if (snapshot != null && snapshot.version == buildVersion)
+				return snapshot;
+			// a change made during the build leaves the snapshot stale, the next read builds it again
+			snapshot = build(buildVersion);
+			if (snapshot == null)
+				return EMPTY;
+			current = snapshot;
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Make the snapshot stale if the version of the database differs from the one of the snapshot, when another node
+	 * changed the tree. The version is read by a single thread at most every "group_tree_check_interval" ms.
+	 */
+	private static void checkVersion() {
+		long now = System.currentTimeMillis();
+		long last = lastCheck.get();
+		if (now - last < checkInterval || !lastCheck.compareAndSet(last, now))
+			return;
+		Snapshot snapshot = current;
+		if (snapshot == null || snapshot.version != version.get())
+			return;
+		checks.incrementAndGet();
+		try (Connection conn = DatabaseManager.openConnection();
+				Statement st = conn.createStatement();
+				ResultSet rs = st.executeQuery(READ_VERSION)) {
+			if (rs.next() && rs.getLong(1) != snapshot.dbVersion) {
+				remoteChanges.incrementAndGet();
+				markStale();
+			}
+		} catch (SQLException e) {
+			failures.incrementAndGet();
+			Logger.log(Level.SEVERE, e.toString(), e);
+		}
+	}
+
+	/**
+	 * Make the snapshot stale if the object is part of the group tree.
+	 *
+	 * @param object the saved or deleted object
+	 */
+	public static void invalidate(VSquareObject object) {
+		if (isSource(object))
+			invalidateChange();
+	}
+
+	/**
+	 * Make the snapshot stale if one of the objects is part of the group tree, the version of the database is bumped
+	 * once.
+	 *
+	 * @param objects the saved or deleted objects
+	 */
+	public static void invalidate(Collection<? extends VSquareObject> objects) {
+		if (objects.stream().anyMatch(GroupTree::isSource))
+			invalidateChange();
+	}
+
+	private static boolean isSource(VSquareObject object) {
+		if (object == null)
+			return false;
+		Class<?> objectClass = Hibernate.getClass(object);
+		if (!SOURCE_CLASSES.contains(objectClass))
+			return false;
+		if (objectClass == Vm.class && !((Vm) object).isTemplate()) {
+			Snapshot snapshot = current;
+			return snapshot != null && snapshot.templateIndexes.containsKey(object.getId());
+		}
+		return true;
+	}
+
+	private static void invalidateChange() {
+		// the changes are only visible to the other threads and nodes once the unit of work is committed
+		if (DatabaseManager.isUnitOfWorkActive())
+			changedInUnitOfWork.set(true);
+		else
+			invalidate();
+	}
+
+	/**
+	 * Count an inserted vm in the statistics of the groups of its user.
+	 *
+	 * @param object      the inserted object
+	 * @param commitStart the System.nanoTime() before the insert was committed
+	 */
+	public static void recordInsert(VSquareObject object, long commitStart) {
+		recordVm(object, 1, commitStart);
+	}
+
+	/**
+	 * Remove a deleted vm from the statistics of the groups of its user.
+	 *
+	 * @param object      the deleted object
+	 * @param commitStart the System.nanoTime() before the delete was committed
+	 */
+	public static void recordDelete(VSquareObject object, long commitStart) {
+		recordVm(object, -1, commitStart);
+	}
+
+	private static void recordVm(VSquareObject object, int delta, long commitStart) {
+		if (!(object instanceof Vm) || object.getId() == null)
+			return;
+		Vm vm = (Vm) object;
+		if (vm.isTemplate() || vm.getUser() == null || vm.getUser().getId() == null)
+			return;
+		if (DatabaseManager.isUnitOfWorkActive()) {
+			changedInUnitOfWork.set(true);
+			return;
+		}
+		long commitEnd = System.nanoTime();
+		// the other nodes build a new version, this one keeps its snapshot if it did not miss another change
+		long dbVersion = bumpVersion();
+		synchronized (buildLock) {
+			Snapshot snapshot = current;
+			if (snapshot == null || snapshot.version != version.get() || commitEnd <= snapshot.readStart)
+				return; // the next build counts it, or the snapshot already counted it
+			if (commitStart < snapshot.readEnd || dbVersion != snapshot.dbVersion + 1) {
+				// the snapshot may or may not have counted it
+				markStale();
+				return;
+			}
+			snapshot.addVm(vm.getUser().getId(), delta);
+			snapshot.dbVersion = dbVersion;
+		}
+	}
+
+	/**
+	 * Make the snapshot stale on every node, when rows were changed behind hibernate.
+	 */
+	public static void invalidate() {
+		markStale();
+		bumpVersion();
+	}
+
+	private static void markStale() {
+		version.incrementAndGet();
+		invalidations.incrementAndGet();
+	}
+
+	/**
+	 * Bump the version of the database, read by the other nodes.
+	 *
+	 * @return the new version, -1 if it cannot be written
+	 */
+	private static long bumpVersion() {
+		try (Connection conn = DatabaseManager.openConnection(); Statement st = conn.createStatement()) {
+			st.executeUpdate(BUMP_VERSION);
+			try (ResultSet rs = st.executeQuery("SELECT LAST_INSERT_ID()")) {
+				return rs.next() ? rs.getLong(1) : -1;
+			}
+		} catch (SQLException e) {
+			failures.incrementAndGet();
+			Logger.log(Level.SEVERE, e.toString(), e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Make the snapshot stale on every node once a unit of work which changed it is over.
+	 */
+	static void endUnitOfWork() {
+		if (changedInUnitOfWork.get() == null)
+			return;
+		changedInUnitOfWork.remove();
+		invalidate();
+	}
+
+	/**
+	 * @return the snapshot counters as json
+	 */
+	public static JSONObject getMetrics() {
+		Snapshot snapshot = current;
+		JSONObject json = new JSONObject();
+		json.put("version", version.get());
+		json.put("db_version", snapshot == null ? -1 : snapshot.dbVersion);
+		json.put("stale", snapshot == null || snapshot.version != version.get());
+		json.put("groups", snapshot == null ? 0 : snapshot.nodes.size());
+		json.put("builds", builds.get());
+		json.put("last_build_duration", lastBuildDuration);
+		json.put("invalidations", invalidations.get());
+		json.put("check_interval", checkInterval);
+		json.put("checks", checks.get());
+		json.put("remote_changes", remoteChanges.get());
+		json.put("failures", failures.get());
+		return json;
+	}
+
+	private static Snapshot build(long buildVersion) {
+		long start = System.currentTimeMillis();
+		// its own session, the current one may belong to a unit of work
+		Session session = DatabaseManager.getSessionFactory().openSession();
+		Transaction tx = null;
+		try {
+			long readStart = System.nanoTime();
+			tx = session.beginTransaction();
+			session.setDefaultReadOnly(true);
+			// read first, the rows of the tree are read from the same consistent view
+			long dbVersion = ((Number) session.createNativeQuery(READ_VERSION).getSingleResult()).longValue();
+			List<Object[]> groupRows = list(session, Group.TREE_GROUPS);
+			List<Object[]> memberRows = list(session, Group.TREE_MEMBERS);
+			List<Object[]> networkRows = list(session, Group.TREE_NETWORKS);
+			List<Object[]> templateRows = list(session, Group.TREE_TEMPLATES);
+			List<Object[]> vmRows = list(session, Group.TREE_VMS);
+			tx.commit();
+			long readEnd = System.nanoTime();
+			Snapshot snapshot = Snapshot.of(buildVersion, groupRows, memberRows, networkRows, templateRows, vmRows,
+					(SessionFactoryImplementor) DatabaseManager.getSessionFactory());
+			if (snapshot == null) {
+				failures.incrementAndGet();
+				Logger.log(Level.SEVERE, "Group tree v{0} holds objects that cannot be copied", buildVersion);
+				return null;
+			}
+			snapshot.readStart = readStart;
+			snapshot.readEnd = readEnd;
+			snapshot.dbVersion = dbVersion;
+			builds.incrementAndGet();
+			lastBuildDuration = System.currentTimeMillis() - start;
+			Logger.log(Level.FINE, "Group tree v{0} built in {1} ms", buildVersion, lastBuildDuration);
+			return snapshot;
+		} catch (PersistenceException e) {
+			if (tx != null && tx.isActive())
+				tx.rollback();
+			failures.incrementAndGet();
+			Logger.log(Level.SEVERE, e.toString(), e);
+			return null;
+		} finally {
+			session.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Object[]> list(Session session, String queryName) {
+		return session.getNamedQuery(queryName).getResultList();
+	}
+
+	/**
+	 * A version of the group tree. Only its vm counts change once it is published, they are atomic counters updated
+	 * in place when a vm is inserted or deleted, everything else is immutable.
+	 * <p>
+	 * The networks and templates are held as the immutable states of the EntityCache, every read gets its own detached
+	 * instances so that no hibernate entity is shared between threads.
+	 */
+	public static final class Snapshot {
+		private final long version;
+		private final Map<Integer, Node> nodes;
+		// the effective permission of the users in a group, the max of the ones of their groups
+		private final Map<Integer, int[]> userPermissions;
+		private final List<EntityCache.State> networks;
+		private final List<EntityCache.State> templates;
+		private final Map<Integer, Integer> templateIndexes;
+		// the System.nanoTime() range of the reads of the build
+		private long readStart;
+		private long readEnd;
+		// the version of the database it was read at, moved by the vms counted in place
+		private volatile long dbVersion = -1;
+
+		private Snapshot(long version, Map<Integer, Node> nodes, Map<Integer, int[]> userPermissions,
+				List<EntityCache.State> networks, List<EntityCache.State> templates) {
+			this.version = version;
+			this.nodes = nodes;
+			this.userPermissions = userPermissions;
+			this.networks = networks;
+			this.templates = templates;
+			this.templateIndexes = new HashMap<>();
+			for (int i = 0; i < templates.size(); i++)
+				templateIndexes.put((Integer) templates.get(i).getId(), i);
+		}
+
+		/**
+		 * @return the snapshot, null if a network or a template cannot be copied
+		 */
+		private static Snapshot of(long version, List<Object[]> groupRows, List<Object[]> memberRows,
+				List<Object[]> networkRows, List<Object[]> templateRows, List<Object[]> vmRows,
+				SessionFactoryImplementor factory) {
+			Map<Integer, Node> nodes = new HashMap<>();
+			for (Object[] row : groupRows) {
+				Node node = new Node((Integer) row[1]);
+				if (row[2] != null)
+					node.permission = new int[] { (Integer) row[3], (Integer) row[4], (Integer) row[5],
+							(Integer) row[6] };
+				nodes.put((Integer) row[0], node);
+			}
+			for (Map.Entry<Integer, Node> entry : nodes.entrySet()) {
+				Node parent = entry.getValue().parentId == null ? null : nodes.get(entry.getValue().parentId);
+				if (parent != null)
+					parent.children.add(entry.getKey());
+			}
+			Map<Integer, List<Integer>> memberships = new HashMap<>();
+			for (Object[] row : memberRows) {
+				Node node = nodes.get((Integer) row[0]);
+				if (node != null) {
+					node.members.set((Integer) row[1]);
+					memberships.computeIfAbsent((Integer) row[1], id -> new ArrayList<>()).add((Integer) row[0]);
+				}
+			}
+			List<EntityCache.State> networks = new ArrayList<>();
+			Map<Integer, Integer> networkIndexes = new HashMap<>();
+			for (Object[] row : networkRows) {
+				Network network = (Network) row[1];
+				Integer index = networkIndexes.get(network.getId());
+				if (index == null) {
+					EntityCache.State state = EntityCache.State.of(network, factory);
+					if (state == null)
+						return null;
+					networks.add(state);
+					index = networks.size() - 1;
+					networkIndexes.put(network.getId(), index);
+				}
+				Node node = nodes.get((Integer) row[0]);
+				if (node != null)
+					node.networks.set(index);
+			}
+			List<EntityCache.State> templates = new ArrayList<>();
+			Map<Integer, Integer> templateIndexes = new HashMap<>();
+			for (Object[] row : templateRows) {
+				Vm template = (Vm) row[1];
+				Integer index = templateIndexes.get(template.getId());
+				if (index == null) {
+					EntityCache.State state = EntityCache.State.of(template, factory);
+					if (state == null)
+						return null;
+					templates.add(state);
+					index = templates.size() - 1;
+					templateIndexes.put(template.getId(), index);
+				}
+				Node node = nodes.get((Integer) row[0]);
+				if (node != null)
+					node.templates.set(index);
+			}
+			// the roots first, each group inherits from its parent already resolved
+			Deque<Integer> queue = new ArrayDeque<>();
+			List<Node> order = new ArrayList<>();
+			nodes.forEach((id, node) -> {
+				if (node.parentId == null || !nodes.containsKey(node.parentId))
+					queue.add(id);
+			});
+			while (!queue.isEmpty()) {
+				Node node = nodes.get(queue.poll());
+				order.add(node);
+				for (Integer childId : node.children) {
+					Node child = nodes.get(childId);
+					if (child.permission == null)
+						child.permission = node.permission;
+					child.networks.or(node.networks);
+					child.templates.or(node.templates);
+					queue.add(childId);
+				}
+			}
+			// the leaves first, each group adds the members of its subgroups already resolved
+			for (int i = order.size() - 1; i >= 0; i--) {
+				Node node = order.get(i);
+				node.subtreeMembers.or(node.members);
+				for (Integer childId : node.children)
+					node.subtreeMembers.or(nodes.get(childId).subtreeMembers);
+			}
+			Map<Integer, Integer> userVms = new HashMap<>();
+			for (Object[] row : vmRows)
+				userVms.put((Integer) row[0], ((Number) row[1]).intValue());
+			// the effective permission of a user is the max of the effective permissions of its groups
+			Permission defaultPermission = new Permission();
+			int[] defaults = { defaultPermission.getVmCount(), defaultPermission.getCpuCount(),
+					defaultPermission.getMemorySize(), defaultPermission.getDiskStorage() };
+			Map<Integer, int[]> userPermissions = new HashMap<>();
+			memberships.forEach((userId, groupIds) -> {
+				int[] max = new int[4];
+				for (Integer groupId : groupIds) {
+					int[] permission = nodes.get(groupId).permission == null ? defaults : nodes.get(groupId).permission;
+					for (int k = 0; k < 4; k++)
+						max[k] = Math.max(max[k], permission[k]);
+				}
+				userPermissions.put(userId, max);
+			});
+			for (Node node : nodes.values()) {
+				node.members.stream().forEach(userId -> node.directVms.addAndGet(userVms.getOrDefault(userId, 0)));
+				node.subtreeMembers.stream().forEach(userId -> {
+					node.vms.addAndGet(userVms.getOrDefault(userId, 0));
+					int[] permission = userPermissions.get(userId);
+					node.allocatedCpu += permission[1];
+					node.allocatedMemory += permission[2];
+					node.allocatedDisk += permission[3];
+				});
+			}
+			return new Snapshot(version, Collections.unmodifiableMap(nodes), Collections.unmodifiableMap(userPermissions),
+					Collections.unmodifiableList(networks), Collections.unmodifiableList(templates));
+		}
+
+		private void addVm(int userId, int delta) {
+			for (Node node : nodes.values()) {
+				if (node.members.get(userId))
+					node.directVms.addAndGet(delta);
+				if (node.subtreeMembers.get(userId))
+					node.vms.addAndGet(delta);
+			}
+		}
+
+		/**
+		 * @return the version of the snapshot
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @param groupId the id of a group
+		 * @return true if the group is in the snapshot
+		 */
+		public boolean contains(Integer groupId) {
+			return groupId != null && nodes.containsKey(groupId);
+		}
+
+		/**
+		 * @param groupId the id of a group
+		 * @return a copy of the effective permission of the group, null if the group is not in the snapshot
+		 */
+		public Permission getEffectivePermission(Integer groupId) {
+			Node node = groupId == null ? null : nodes.get(groupId);
+			if (node == null)
+				return null;
+			if (node.permission == null)
+				return new Permission();
+			return new Permission(node.permission[0], node.permission[1], node.permission[2], node.permission[3]);
+		}
+
+		/**
+		 * @param userId the id of a user
+		 * @return a copy of the effective permission of the user (the default one if the user is in no group), null if
+		 *         the snapshot could not be read
+		 */
+		public Permission getUserPermission(Integer userId) {
+			if (userId == null || this == EMPTY)
+				return null;
+			int[] permission = userPermissions.get(userId);
+			if (permission == null)
+				return new Permission();
+			return new Permission(permission[0], permission[1], permission[2], permission[3]);
+		}
+
+		/**
+		 * @param groupId the id of a group
+		 * @return new detached copies of the networks of the group and its ancestors, null if the group is not in the
+		 *         snapshot
+		 */
+		public Set<Network> getAvailableNetworks(Integer groupId) {
+			Node node = groupId == null ? null : nodes.get(groupId);
+			if (node == null)
+				return null;
+			SessionFactoryImplementor factory = (SessionFactoryImplementor) DatabaseManager.getSessionFactory();
+			Set<Network> out = new HashSet<>();
+			node.networks.stream().forEach(i -> out.add((Network) networks.get(i).copy(factory)));
+			return out;
+		}
+
+		/**
+		 * @param groupId the id of a group
+		 * @return new detached copies of the templates of the group and its ancestors, null if the group is not in the
+		 *         snapshot
+		 */
+		public Set<Vm> getAvailableTemplates(Integer groupId) {
+			Node node = groupId == null ? null : nodes.get(groupId);
+			if (node == null)
+				return null;
+			SessionFactoryImplementor factory = (SessionFactoryImplementor) DatabaseManager.getSessionFactory();
+			Set<Vm> out = new HashSet<>();
+			node.templates.stream().forEach(i -> out.add((Vm) templates.get(i).copy(factory)));
+			return out;
+		}
+
+		/**
+		 * @param groupId the id of a group
+		 * @param userId  the id of a user
+		 * @return true if the user is a direct member of the group
+		 */
+		public boolean isMember(Integer groupId, Integer userId) {
+			Node node = groupId == null ? null : nodes.get(groupId);
+			return node != null && userId != null && node.members.get(userId);
+		}
+
+		/**
+		 * @param groupId      the id of a group
+		 * @param withChildren true to include the members of the subgroups
+		 * @return the ids of the members of the group, empty if the group is not in the snapshot
+		 */
+		public BitSet getUserIds(Integer groupId, boolean withChildren) {
+			Node node = groupId == null ? null : nodes.get(groupId);
+			if (node == null)
+				return new BitSet();
+			return (BitSet) (withChildren ? node.subtreeMembers : node.members).clone();
+		}
+
+		/**
+		 * Get the statistics of a group, the subtree values count each user of the group and its subgroups once.
+		 *
+		 * @param groupId the id of a group
+		 * @return the statistics as json, null if the group is not in the snapshot
+		 */
+		public JSONObject getStats(Integer groupId) {
+			Node node = groupId == null ? null : nodes.get(groupId);
+			if (node == null)
+				return null;
+			JSONObject json = new JSONObject();
+			json.put("direct_users", node.members.cardinality());
+			json.put("users", node.subtreeMembers.cardinality());
+			json.put("direct_vms", node.directVms.get());
+			json.put("vms", node.vms.get());
+			json.put("allocated_cpu", node.allocatedCpu);
+			json.put("allocated_memory", node.allocatedMemory);
+			json.put("allocated_disk", node.allocatedDisk);
+			return json;
+		}
+	}
+
+	/**
+	 * A group of the snapshot, only written while the snapshot is built except its vm counts.
+	 */
+	private static final class Node {
+		private final Integer parentId;
+		private final List<Integer> children = new ArrayList<>();
+		// vm count, cpu count, memory size and disk storage, null for the default permission
+		private int[] permission;
+		private final BitSet members = new BitSet();
+		private final BitSet subtreeMembers = new BitSet();
+		private final BitSet networks = new BitSet();
+		private final BitSet templates = new BitSet();
+		// statistics, the vm counts are updated in place once the snapshot is published
+		private final AtomicInteger directVms = new AtomicInteger();
+		private final AtomicInteger vms = new AtomicInteger();
+		private long allocatedCpu;
+		private long allocatedMemory;
+		private long allocatedDisk;
+
+		private Node(Integer parentId) {
+			this.parentId = parentId;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.model.User;
+import fr.eseo.vsquare.model.VSquareObject;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Utility class that synchronize the users with the LDAP.
+ * <p>
+ * A full synchronization reads every user of the LDAP, an incremental synchronization only the users created or
+ * modified (createTimestamp, modifyTimestamp) since the previous successful synchronization. The new users are
+ * inserted and the users whose common name changed are updated, in a single batch. Incremental synchronizations run
+ * from a background thread every "ldap_sync_interval" milliseconds.
+ *
+ * @author Clement Gouin
+ */
+public final class LDAPSync {
+
+	private static long interval = Utils.getInt("ldap_sync_interval");
+
+	// start of the last successful synchronization, 0 before the first one
+	private static volatile long lastSync = 0;
+
+	private static final AtomicLong runs = new AtomicLong();
+	private static final AtomicLong read = new AtomicLong();
+	private static final AtomicLong created = new AtomicLong();
+	private static final AtomicLong updated = new AtomicLong();
+	private static final AtomicLong failures = new AtomicLong();
+	private static volatile long lastDuration = 0;
+
+	private static final ScheduledTask task = new ScheduledTask("ldap-sync", () -> sync(true), failures);
+
+	private LDAPSync() {
+	}
+
+	/**
+	 * Start the background synchronization, does nothing if the interval is 0 or if it is already started.
+	 */
+	public static void start() {
+		task.start(interval);
+	}
+
+	/**
+	 * Stop the background synchronization.
+	 */
+	public static void stop() {
+		task.stop();
+	}
+
+	/**
+	 * Run an incremental synchronization as the background thread does.
+	 */
+	static void runScheduled() {
+		task.run();
+	}
+
+	/**
+	 * Create the new users of the LDAP and update the common names that changed.
+	 *
+	 * @param incremental only read the users changed since the previous synchronization
+	 * @return the number of created or updated users, -1 if the LDAP cannot be read or the users cannot be saved
+	 */
+	public static synchronized int sync(boolean incremental) {
+		long start = System.currentTimeMillis();
+		// the LDAP timestamps are set by the server clock, the reads overlap by one interval
+		Date since = incremental && lastSync > 0 ? new Date(lastSync - Math.max(interval, 0)) : null;
+		Map<String, String> entries = LDAPUtils.scrapUsers(since);
+		if (entries == null) {
+			failures.incrementAndGet();
+			return -1;
+		}
+		read.addAndGet(entries.size());
+
+		Map<String, User> users = new HashMap<>();
+		for (User u : since == null ? User.getAll() : User.findByLogins(entries.keySet()))
+			users.put(u.getLogin(), u);
+
+		List<User> changed = new ArrayList<>();
+		int newCount = 0;
+		for (Map.Entry<String, String> entry : entries.entrySet()) {
+			String uid = entry.getKey();
+			String commonName = entry.getValue();
+			User u = users.get(uid);
+			if (u == null) {
+				u = new User(uid, commonName);
+				if (Utils.isAdminByConfig(uid))
+					u.setAdmin();
+				changed.add(u);
+				newCount++;
+			} else if (commonName != null && !commonName.equals(u.getCommonName())) {
+				u.setCommonName(commonName);
+				changed.add(u);
+			}
+		}
+
+		boolean saved = VSquareObject.saveAll(changed);
+		runs.incrementAndGet();
+		lastDuration = System.currentTimeMillis() - start;
+		if (!saved) {
+			failures.incrementAndGet();
+			Logger.log(Level.WARNING, "Synchronization of {0} users from LDAP failed", changed.size());
+			return -1;
+		}
+		lastSync = start;
+		created.addAndGet(newCount);
+		updated.addAndGet(changed.size() - newCount);
+		if (!changed.isEmpty())
+			Logger.log(Level.INFO, "Added {0} new users and updated {1} users from LDAP", newCount,
+					changed.size() - newCount);
+		return changed.size();
+	}
+
+	/**
+	 * @return the synchronization counters as json
+	 */
+	public static JSONObject getMetrics() {
+		JSONObject json = new JSONObject();
+		json.put("interval", interval);
+		json.put("runs", runs.get());
+		json.put("last_sync", lastSync);
+		json.put("last_duration", lastDuration);
+		json.put("read", read.get());
+		json.put("created", created.get());
+		json.put("updated", updated.get());
+		json.put("failures", failures.get());
+		return json;
+	}
+}
@@ -1,14 +1,27 @@
 package fr.eseo.vsquare.utils;
 
+import com.unboundid.asn1.ASN1OctetString;
 import com.unboundid.ldap.sdk.*;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+import com.unboundid.util.StaticUtils;
+import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 /**
  * Utility class that store useful LDAP functions.
  * 
+ * The searches go through a pool of connections bound as the admin DN and the credential checks through a separate
+ * pool of connections only used for binds, so that a login does not open any connection. Both pools are created on
+ * first use, hold "ldap_pool_min_size" to "ldap_pool_max_size" connections and check their idle connections every
+ * "ldap_pool_health_check_interval" ms.
+ * 
  * @author Clement Gouin
  */
 public final class LDAPUtils {
@@ -19,9 +32,16 @@ public final class LDAPUtils {
 	private static String ldapHost = null;
 	private static int ldapPort = 389;
 
-	public static void setConnectionString(String connectionString) {
+	private static LDAPConnectionPool searchPool = null;
+	private static LDAPConnectionPool bindPool = null;
+
+	private static final PoolMetrics searchMetrics = new PoolMetrics();
+	private static final PoolMetrics bindMetrics = new PoolMetrics();
+
+	public static synchronized void setConnectionString(String connectionString) {
         if (connectionString == null)
             return;
+		closePools();
 		String[] temp = connectionString.replace("ldap://", "").split(":");
 		ldapHost = temp[0];
 		if (temp.length > 1) {
@@ -46,6 +66,69 @@ public final class LDAPUtils {
 		return ldapHost;
 	}
 
+	/**
+	 * Create a connection pool to the LDAP.
+	 * 
+	 * @param name
+	 *            the name of the pool
+	 * @param bindRequest
+	 *            the bind of the new connections, null for unauthenticated connections
+	 * @return the pool
+	 * @throws LDAPException
+	 *             if the first connections cannot be established
+	 */
+	private static LDAPConnectionPool createPool(String name, BindRequest bindRequest) throws LDAPException {
+		int timeout = Utils.getInt("ldap_timeout");
+		LDAPConnectionOptions options = new LDAPConnectionOptions();
+		options.setConnectTimeoutMillis(timeout);
+		options.setResponseTimeoutMillis(timeout);
+		int maxSize = Math.max(1, Utils.getInt("ldap_pool_max_size"));
+		LDAPConnectionPool pool = new LDAPConnectionPool(new SingleServerSet(getHost(), ldapPort, options), bindRequest,
+				Math.min(Utils.getInt("ldap_pool_min_size"), maxSize), maxSize);
+		pool.setConnectionPoolName(name);
+		pool.setMaxWaitTimeMillis(Utils.getInt("ldap_pool_max_wait"));
+		pool.setRetryFailedOperationsDueToInvalidConnections(true);
+		// read the root DSE on the idle connections and after a failed operation
+		pool.setHealthCheck(new GetEntryLDAPConnectionPoolHealthCheck("", timeout, false, false, false, true, true));
+		pool.setHealthCheckIntervalMillis(Utils.getInt("ldap_pool_health_check_interval"));
+		return pool;
+	}
+
+	/**
+	 * @return the pool of connections bound as the admin DN
+	 * @throws LDAPException
+	 *             if the pool cannot be created
+	 */
+	private static synchronized LDAPConnectionPool getSearchPool() throws LDAPException {
+		if (searchPool == null)
+			searchPool = createPool("ldap-search",
+					new SimpleBindRequest(Utils.getString("ldap_admin_dn"), Utils.getString("ldap_admin_pass")));
+		return searchPool;
+	}
+
+	/**
+	 * @return the pool of connections used for the credential checks only
+	 * @throws LDAPException
+	 *             if the pool cannot be created
+	 */
+	private static synchronized LDAPConnectionPool getBindPool() throws LDAPException {
+		if (bindPool == null)
+			bindPool = createPool("ldap-bind", null);
+		return bindPool;
+	}
+
+	/**
+	 * Close the connection pools, they are created again on the next use.
+	 */
+	public static synchronized void closePools() {
+		if (searchPool != null)
+			searchPool.close();
+		if (bindPool != null)
+			bindPool.close();
+		searchPool = null;
+		bindPool = null;
+	}
+
 	/**
 	 * Get an attribute of a user by its uid.
 	 * 
@@ -59,13 +142,15 @@ public final class LDAPUtils {
         String baseDns = Utils.getString("ldap_base_dn");
         if (baseDns == null)
             return null;
-		try (LDAPConnection conn = new LDAPConnection(getHost(), ldapPort, Utils.getString("ldap_admin_dn"),
-				Utils.getString("ldap_admin_pass"))) {
+		long start = System.nanoTime();
+		try {
+			LDAPConnectionPool pool = getSearchPool();
 
             String[] baseDnsSplit = baseDns.split(";");
 
             for (String baseDn : baseDnsSplit) {
-				SearchResultEntry res = conn.searchForEntry(baseDn, SearchScope.SUB, String.format("(uid=%s)", uid));
+				SearchResultEntry res = pool.searchForEntry(baseDn, SearchScope.SUB,
+						Filter.createEqualityFilter("uid", uid));
 
 				if (res != null) {
 					if (attribute.equalsIgnoreCase("dn"))
@@ -78,60 +163,98 @@ public final class LDAPUtils {
 			return null;
 
 		} catch (LDAPException e) {
+			searchMetrics.failures.incrementAndGet();
 			Logger.log(Level.SEVERE, e.toString(), e);
 			return null;
+		} finally {
+			searchMetrics.record(start);
 		}
 	}
 
 	/**
-	 * Return all uids of users from the given dn.
+	 * Read the users of a dn and its subtree, by pages of "ldap_page_size" entries.
 	 * 
 	 * @param conn
-	 *            the LDAPConnection
+	 *            the LDAPConnection, the pages of a search are read on the same connection
 	 * @param baseDN
 	 *            the dn to search
-	 * @return a List of all users' uid
-	 * @throws LDAPSearchException exception
+	 * @param filter
+	 *            the filter of the users
+	 * @param results
+	 *            the common names of the users by uid
+	 * @throws LDAPException exception
 	 */
-	private static List<String> scrapDN(LDAPConnection conn, String baseDN) throws LDAPSearchException {
-		SearchResult res = conn.search(baseDN, SearchScope.ONE, "(objectClass=*)");
-		if (res != null) {
-			ArrayList<String> results = new ArrayList<>();
-			for (SearchResultEntry entry : res.getSearchEntries()) {
-				if (entry.getAttributeValue("objectClass").equals("organizationalUnit")) {
-					results.addAll(scrapDN(conn, entry.getDN()));
-				} else if (entry.hasAttribute("uid")) {
-					results.add(entry.getAttributeValue("uid"));
-				}
-			}
-			return results;
-		} else {
-			return new ArrayList<>(0);
-		}
+	private static void scrapDN(LDAPConnection conn, String baseDN, Filter filter, Map<String, String> results)
+			throws LDAPException {
+		SearchRequest request = new SearchRequest(baseDN, SearchScope.SUB, filter, "uid", "cn");
+		ASN1OctetString cookie = null;
+		do {
+			request.setControls(new SimplePagedResultsControl(Math.max(1, Utils.getInt("ldap_page_size")), cookie));
+			SearchResult res = conn.search(request);
+			for (SearchResultEntry entry : res.getSearchEntries())
+				results.put(entry.getAttributeValue("uid"), entry.getAttributeValue("cn"));
+			SimplePagedResultsControl page = SimplePagedResultsControl.get(res);
+			cookie = page == null ? null : page.getCookie();
+		} while (cookie != null && cookie.getValueLength() > 0);
 	}
 
 	/**
-	 * Return all uids of users from the LDAP.
+	 * Return the users of the LDAP with their common name, with one paged subtree search per base dn.
 	 * 
-	 * @return a List of all users' uid
+	 * @param modifiedSince
+	 *            only return the users created or modified since this date, null for all users
+	 * @return the common names of the users by uid, null if the LDAP cannot be read
 	 */
-	public static List<String> scrapLDAP() {
+	public static Map<String, String> scrapUsers(Date modifiedSince) {
         String baseDns = Utils.getString("ldap_base_dn");
         if (baseDns == null)
-            return new ArrayList<>(0);
-		try (LDAPConnection conn = new LDAPConnection(getHost(), ldapPort, Utils.getString("ldap_admin_dn"),
-				Utils.getString("ldap_admin_pass"))) {
-			ArrayList<String> results = new ArrayList<>();
-            String[] baseDnsSplit = baseDns.split(";");
-            for (String baseDn : baseDnsSplit) {
-				results.addAll(scrapDN(conn, baseDn));
-			}
+            return new HashMap<>(0);
+		Filter filter = Filter.createPresenceFilter("uid");
+		if (modifiedSince != null) {
+			String time = StaticUtils.encodeGeneralizedTime(modifiedSince);
+			filter = Filter.createANDFilter(filter,
+					Filter.createORFilter(Filter.createGreaterOrEqualFilter("modifyTimestamp", time),
+							Filter.createGreaterOrEqualFilter("createTimestamp", time)));
+		}
+		long start = System.nanoTime();
+		LDAPConnectionPool pool = null;
+		LDAPConnection conn = null;
+		boolean success = false;
+		try {
+			pool = getSearchPool();
+			conn = pool.getConnection();
+			Map<String, String> results = new HashMap<>();
+            for (String baseDn : baseDns.split(";"))
+				scrapDN(conn, baseDn, filter, results);
+			success = true;
 			return results;
 		} catch (LDAPException e) {
+			if (conn != null)
+				pool.releaseConnectionAfterException(conn, e);
+			conn = null;
+			searchMetrics.failures.incrementAndGet();
 			Logger.log(Level.SEVERE, e.getExceptionMessage(true, false));
-			return new ArrayList<>(0);
+			return null;
+		} finally {
+			// a paged search interrupted by any other exception leaves the connection in an unknown state
+			if (conn != null) {
+				if (success)
+					pool.releaseConnection(conn);
+				else
+					pool.releaseDefunctConnection(conn);
+			}
+			searchMetrics.record(start);
 		}
+	}
 
+	/**
+	 * Return all uids of users from the LDAP.
+	 * 
+	 * @return a List of all users' uid
+	 */
+	public static List<String> scrapLDAP() {
+		Map<String, String> users = scrapUsers(null);
+		return users == null ? new ArrayList<>(0) : new ArrayList<>(users.keySet());
 	}
 
 	/**
@@ -144,10 +267,16 @@ public final class LDAPUtils {
 	 * @return true if the connection is successful
 	 */
 	private static boolean tryConnection(String dn, String password) {
-		try (LDAPConnection conn = new LDAPConnection(getHost(), ldapPort, dn, password)) {
+		long start = System.nanoTime();
+		try {
+			getBindPool().bind(dn, password);
 			return true;
 		} catch (LDAPException e) {
+			if (e.getResultCode() != ResultCode.INVALID_CREDENTIALS)
+				bindMetrics.failures.incrementAndGet();
 			return false;
+		} finally {
+			bindMetrics.record(start);
 		}
 	}
 
@@ -178,4 +307,48 @@ public final class LDAPUtils {
 		return getAttribute(uid, "cn");
 	}
 
+	/**
+	 * @return the state and the latency of the connection pools as json
+	 */
+	public static synchronized JSONObject getMetrics() {
+		JSONObject json = new JSONObject();
+		json.put("search", searchMetrics.toJSON(searchPool));
+		json.put("bind", bindMetrics.toJSON(bindPool));
+		return json;
+	}
+
+	/**
+	 * Counters of the operations of a pool.
+	 */
+	private static final class PoolMetrics {
+		private final AtomicLong operations = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		private void record(long start) {
+			operations.incrementAndGet();
+			totalNanos.addAndGet(System.nanoTime() - start);
+		}
+
+		private JSONObject toJSON(LDAPConnectionPool pool) {
+			long count = operations.get();
+			JSONObject json = new JSONObject();
+			json.put("operations", count);
+			json.put("failures", failures.get());
+			json.put("average_latency", count == 0 ? 0 : totalNanos.get() / count / 1e6);
+			json.put("started", pool != null);
+			if (pool != null) {
+				LDAPConnectionPoolStatistics stats = pool.getConnectionPoolStatistics();
+				json.put("available", pool.getCurrentAvailableConnections());
+				json.put("max_size", pool.getMaximumAvailableConnections());
+				json.put("checkouts", stats.getNumSuccessfulCheckouts());
+				json.put("failed_checkouts", stats.getNumFailedCheckouts());
+				json.put("connects", stats.getNumSuccessfulConnectionAttempts());
+				json.put("failed_connects", stats.getNumFailedConnectionAttempts());
+				json.put("defunct", stats.getNumConnectionsClosedDefunct());
+			}
+			return json;
+		}
+	}
+
 }
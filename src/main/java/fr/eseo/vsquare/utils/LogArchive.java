@@ -0,0 +1,604 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.model.EventLog;
+import fr.eseo.vsquare.model.VSquareObject;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Utility class that move the old events from the database to compressed files.
+ * <p>
+ * The events older than "event_log_archive_months" months (0 keeps them in the database) are appended to one gzip
+ * file by month (UTC) in "event_log_archive_dir", which must be an absolute path, then deleted from the database. An
+ * event is archived as the json of its own columns and of its user, as listed by the API. Each archiving run appends
+ * a new gzip member to the files so that they are never rewritten. The month of a file is the date range of its
+ * events, only the files of the requested range are read, and the counts of each file are kept in memory until it is
+ * appended to. The searches accept the same "user:", "action:", "vm:" and "group:" prefixes as the database.
+ * <p>
+ * The files are only appended to, under a lock held while a member is written. A read takes the length of the file
+ * under this lock and decompresses that many bytes without it, the members appended meanwhile are left to the next
+ * read, so the reads never wait for each other nor for a whole month to be decompressed.
+ * <p>
+ * Only one node may archive (event_log_archive_months set on a single node): the appends are not coordinated between
+ * nodes. The directory must be shared by every node serving the logs, each node only lists the files it can see.
+ *
+ * @author Clement Gouin
+ */
+public final class LogArchive {
+
+	private static final String PREFIX = "event_log-";
+	private static final String SUFFIX = ".gz";
+	private static final Pattern FILE_NAME = Pattern.compile("event_log-(\\d{4})-(\\d{2})\\.gz");
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+	// searched counts kept by file
+	private static final int MAX_SEARCH_COUNTS = 100;
+
+	private static int months = Utils.getInt("event_log_archive_months");
+	private static int batchSize = Math.max(1, Utils.getInt("log_retention_batch_size"));
+	private static File directory = new File(Utils.getString("event_log_archive_dir"));
+
+	// held while a member is appended, never while a file is decompressed
+	private static final Object lock = new Object();
+
+	private static final Map<File, FileCounts> fileCounts = new HashMap<>();
+
+	private static final AtomicLong archived = new AtomicLong();
+	private static final AtomicLong reads = new AtomicLong();
+	private static final AtomicLong failures = new AtomicLong();
+
+	private LogArchive() {
+	}
+
+	/**
+	 * Move the events older than the archive horizon to the archive files.
+	 *
+	 * @return the number of archived events, -1 if old events could not be archived
+	 */
+	public static long archive() {
+		if (months <= 0)
+			return 0;
+		if (!directory.isAbsolute()) {
+			failures.incrementAndGet();
+			Logger.log(Level.SEVERE, "event_log_archive_dir must be an absolute path, no event archived");
+			return -1;
+		}
+		Calendar horizon = Calendar.getInstance();
+		horizon.add(Calendar.MONTH, -months);
+		return archiveBefore(horizon.getTime());
+	}
+
+	/**
+	 * Move the events created before a date to the archive files.
+	 *
+	 * @param before the first date kept in the database
+	 * @return the number of archived events, -1 if some events could not be archived
+	 */
+	public static long archiveBefore(Date before) {
+		long count = 0;
+		List<EventLog.Summary> batch;
+		do {
+			// the columns of the events and of their users are read in one query, the objects are not read
+			batch = DatabaseManager.withDateRange(null, before,
+					() -> EventLog.getSummariesAfter(null, batchSize, null));
+			if (batch.isEmpty())
+				break;
+			// an event written but not deleted is archived again, the reads skip the duplicates
+			if (!append(batch) || !delete(batch)) {
+				failures.incrementAndGet();
+				count = -1;
+				break;
+			}
+			count += batch.size();
+		} while (batch.size() == batchSize);
+		if (count > 0) {
+			archived.addAndGet(count);
+			CountCache.recordDelete();
+			Logger.log(Level.INFO, "{0} events archived", count);
+		}
+		return count;
+	}
+
+	/**
+	 * @param from the first date of a range, null for no lower bound
+	 * @return true if some archived events may be after this date
+	 */
+	public static boolean reaches(Date from) {
+		return !getFiles(from, null).isEmpty();
+	}
+
+	/**
+	 * Read archived events, latest first.
+	 *
+	 * @param from   the first date included, null for no lower bound
+	 * @param to     the last date excluded, null for no upper bound
+	 * @param query  the string to find, as searched in the database, null for every event
+	 * @param cursor the cursor of the previous event (see VSquareObject.getPageCursor), null to start at the latest
+	 * @param skip   the number of matching events to skip
+	 * @param max    the max number of events
+	 * @return the archived events, null if the cursor is invalid
+	 */
+	public static List<Entry> read(Date from, Date to, String query, String cursor, int skip, int max) {
+		Object[] position = null;
+		Date end = to;
+		if (cursor != null) {
+			position = VSquareObject.parsePageCursor(cursor);
+			if (position == null)
+				return null;
+			// the files after the cursor are not read
+			long cursorEnd = ((Date) position[0]).getTime() + 1;
+			if (end == null || cursorEnd < end.getTime())
+				end = new Date(cursorEnd);
+		}
+		reads.incrementAndGet();
+		List<Entry> result = new ArrayList<>();
+		for (File file : getFiles(from, end)) {
+			// a file holding fewer events than the ones to skip is not decompressed
+			if (skip > 0 && position == null) {
+				long fileCount = countFile(file, from, end, query);
+				if (fileCount <= skip) {
+					skip -= fileCount;
+					continue;
+				}
+			}
+			List<Entry> entries = readFile(file, getLength(file), from, end, query);
+			entries.sort(Comparator.comparingLong(Entry::getTime).thenComparingInt(Entry::getId).reversed());
+			for (Entry entry : entries) {
+				if (result.size() >= max)
+					return result;
+				if (position != null && !entry.isBefore((Date) position[0], (Integer) position[1]))
+					continue;
+				if (skip > 0)
+					skip--;
+				else
+					result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Count archived events.
+	 *
+	 * @param from  the first date included, null for no lower bound
+	 * @param to    the last date excluded, null for no upper bound
+	 * @param query the string to find, as searched in the database, null for every event
+	 * @return the number of archived events
+	 */
+	public static long count(Date from, Date to, String query) {
+		long count = 0;
+		for (File file : getFiles(from, to))
+			count += countFile(file, from, to, query);
+		return count;
+	}
+
+	/**
+	 * Count the archived events of a file, from its counts kept in memory while it is not appended to.
+	 */
+	private static long countFile(File file, Date from, Date to, String query) {
+		FileCounts counts;
+		long length;
+		synchronized (lock) {
+			counts = fileCounts.get(file);
+			length = file.length();
+		}
+		if (counts == null || counts.length != length) {
+			List<Entry> entries = readFile(file, length, null, null, null);
+			long[] times = new long[entries.size()];
+			for (int i = 0; i < times.length; i++)
+				times[i] = entries.get(i).getTime();
+			Arrays.sort(times);
+			counts = new FileCounts(length, times);
+			synchronized (lock) {
+				FileCounts current = fileCounts.get(file);
+				// another read may have counted a longer file meanwhile
+				if (current == null || current.length < length)
+					fileCounts.put(file, counts);
+			}
+		}
+		if (query == null)
+			return counts.count(from, to);
+		String key = (from == null ? "" : from.getTime()) + "|" + (to == null ? "" : to.getTime()) + "|"
+				+ query.toLowerCase(Locale.ROOT);
+		FileCounts counted = counts;
+		return counts.getSearchCount(key, () -> readFile(file, counted.length, from, to, query).size());
+	}
+
+	/**
+	 * @return the length of a file, always at the end of a member as the appends hold the lock
+	 */
+	private static long getLength(File file) {
+		synchronized (lock) {
+			return file.length();
+		}
+	}
+
+	/**
+	 * Delete every archive file.
+	 */
+	public static void clear() {
+		synchronized (lock) {
+			fileCounts.clear();
+			for (File file : getFiles(null, null))
+				if (!file.delete())
+					Logger.log(Level.WARNING, "Cannot delete {0}", file);
+		}
+	}
+
+	/**
+	 * @return the archive counters as json
+	 */
+	public static JSONObject getMetrics() {
+		List<File> files = getFiles(null, null);
+		JSONObject json = new JSONObject();
+		json.put("months", months);
+		json.put("files", files.size());
+		synchronized (lock) {
+			json.put("counted_files", fileCounts.size());
+		}
+		json.put("size", files.stream().mapToLong(File::length).sum());
+		json.put("archived", archived.get());
+		json.put("reads", reads.get());
+		json.put("failures", failures.get());
+		return json;
+	}
+
+	private static boolean append(List<EventLog.Summary> events) {
+		Map<String, List<EventLog.Summary>> byMonth = new LinkedHashMap<>();
+		Calendar calendar = Calendar.getInstance(UTC, Locale.ROOT);
+		for (EventLog.Summary event : events) {
+			calendar.setTime(event.getCreationDate());
+			String name = String.format(Locale.ROOT, "%s%04d-%02d%s", PREFIX, calendar.get(Calendar.YEAR),
+					calendar.get(Calendar.MONTH) + 1, SUFFIX);
+			byMonth.computeIfAbsent(name, k -> new ArrayList<>()).add(event);
+		}
+		synchronized (lock) {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				Logger.log(Level.SEVERE, "Cannot create the archive directory {0}", directory);
+				return false;
+			}
+			for (Map.Entry<String, List<EventLog.Summary>> month : byMonth.entrySet()) {
+				// the member is compressed in memory and appended at once, a failure cannot leave half a member
+				ByteArrayOutputStream member = new ByteArrayOutputStream();
+				try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(member), StandardCharsets.UTF_8)) {
+					for (EventLog.Summary event : month.getValue())
+						writer.write(event.getCreationDate().getTime() + "\t" + event.getId() + "\t"
+								+ event.toJSON() + "\n");
+				} catch (IOException e) {
+					Logger.log(Level.SEVERE, e.toString(), e);
+					return false;
+				}
+				try (FileOutputStream out = new FileOutputStream(new File(directory, month.getKey()), true)) {
+					member.writeTo(out);
+					out.getFD().sync();
+				} catch (IOException e) {
+					Logger.log(Level.SEVERE, e.toString(), e);
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Delete archived events from the database.
+	 */
+	private static boolean delete(List<EventLog.Summary> events) {
+		StringBuilder sql = new StringBuilder("DELETE FROM event_log WHERE id IN (");
+		for (int i = 0; i < events.size(); i++)
+			sql.append(i == 0 ? "?" : ",?");
+		try (Connection conn = DatabaseManager.openConnection();
+				PreparedStatement stmt = conn.prepareStatement(sql.append(")").toString())) {
+			for (int i = 0; i < events.size(); i++)
+				stmt.setInt(i + 1, events.get(i).getId());
+			stmt.executeUpdate();
+			return true;
+		} catch (SQLException e) {
+			Logger.log(Level.SEVERE, e.toString(), e);
+			return false;
+		}
+	}
+
+	/**
+	 * Read the events of the first members of a file, without the lock.
+	 *
+	 * @param length the bytes read, the length of the file taken under the lock
+	 */
+	private static List<Entry> readFile(File file, long length, Date from, Date to, String query) {
+		Search search = query == null ? null : Search.parse(query);
+		List<Entry> entries = new ArrayList<>();
+		Set<Integer> ids = new HashSet<>();
+		if (length == 0)
+			return entries;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new GZIPInputStream(new BoundedInputStream(new FileInputStream(file), length)),
+				StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t", 3);
+				if (parts.length != 3)
+					continue;
+				long time = Long.parseLong(parts[0]);
+				if ((from != null && time < from.getTime()) || (to != null && time >= to.getTime()))
+					continue;
+				if ((search == null || search.matches(parts[2])) && ids.add(Integer.parseInt(parts[1])))
+					entries.add(new Entry(time, Integer.parseInt(parts[1]), parts[2]));
+			}
+		} catch (IOException | NumberFormatException | JSONException e) {
+			failures.incrementAndGet();
+			Logger.log(Level.SEVERE, "Cannot read the archive " + file + " : " + e, e);
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the archive files overlapping a date range, latest first
+	 */
+	private static List<File> getFiles(Date from, Date to) {
+		List<File> files = new ArrayList<>();
+		File[] list = directory.listFiles();
+		if (list == null)
+			return files;
+		Calendar calendar = Calendar.getInstance(UTC, Locale.ROOT);
+		for (File file : list) {
+			Matcher matcher = FILE_NAME.matcher(file.getName());
+			if (!matcher.matches())
+				continue;
+			calendar.clear();
+			calendar.set(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)) - 1, 1);
+			long start = calendar.getTimeInMillis();
+			calendar.add(Calendar.MONTH, 1);
+			long end = calendar.getTimeInMillis();
+			if ((from == null || end > from.getTime()) && (to == null || start < to.getTime()))
+				files.add(file);
+		}
+		files.sort(Comparator.comparing(File::getName).reversed());
+		return files;
+	}
+
+	/**
+	 * A search in the archived events, with the prefixes of the database search (see EventLog): the words must all be
+	 * found in the searched names.
+	 */
+	private static final class Search {
+		private final String prefix;
+		private final List<String> words = new ArrayList<>();
+
+		private Search(String prefix, String text) {
+			this.prefix = prefix;
+			for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}_]+"))
+				if (!word.isEmpty())
+					words.add(word);
+		}
+
+		private static Search parse(String query) {
+			for (String prefix : new String[] { "user:", "action:", "vm:", "group:" })
+				if (query.startsWith(prefix))
+					return new Search(prefix, query.substring(prefix.length()));
+			return new Search(null, query);
+		}
+
+		private boolean matches(String json) {
+			String lowerJson = json.toLowerCase(Locale.ROOT);
+			// most events are rejected without parsing them
+			for (String word : words)
+				if (!lowerJson.contains(word))
+					return false;
+			JSONObject event = new JSONObject(json);
+			JSONObject object = event.optJSONObject("object");
+			JSONObject user = event.optJSONObject("user");
+			String objectType = object == null ? "" : object.optString("object");
+			String objectName = object == null ? "" : object.optString("name");
+			String userNames = user == null ? "" : user.optString("login") + " " + user.optString("common_name");
+			if (prefix == null)
+				return containsAll(objectName + " " + userNames);
+			switch (prefix) {
+				case "user:":
+					// the affected user or the user that did the action
+					return containsAll(("USER".equals(objectType) ? objectName + " " : "") + userNames);
+				case "action:":
+					return words.size() == 1 && words.get(0).equalsIgnoreCase(event.optString("action"));
+				case "vm:":
+					return "VM".equals(objectType) && containsAll(objectName);
+				default:
+					return "GROUP".equals(objectType) && containsAll(objectName);
+			}
+		}
+
+		private boolean containsAll(String text) {
+			String lowerText = text.toLowerCase(Locale.ROOT);
+			for (String word : words)
+				if (!lowerText.contains(word))
+					return false;
+			return true;
+		}
+	}
+
+	/**
+	 * A stream ending after a number of bytes, the members appended after the length read are not seen.
+	 * <p>
+	 * GZIPInputStream only looks for a next member when the stream has bytes available, which is also bounded.
+	 */
+	private static final class BoundedInputStream extends FilterInputStream {
+		private long remaining;
+
+		private BoundedInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int b = super.read();
+			if (b >= 0)
+				remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int n = super.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0)
+				remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	/**
+	 * The counts of the events of an archive file.
+	 */
+	private static final class FileCounts {
+		private final long length;
+		private final long[] times;
+		private final LinkedHashMap<String, Long> searchCounts = new LinkedHashMap<>(16, 0.75f, true);
+
+		private FileCounts(long length, long[] times) {
+			this.length = length;
+			this.times = times;
+		}
+
+		private long count(Date from, Date to) {
+			int start = from == null ? 0 : firstIndex(from.getTime());
+			int end = to == null ? times.length : firstIndex(to.getTime());
+			return Math.max(0, end - start);
+		}
+
+		/**
+		 * @return the index of the first time after or at a time
+		 */
+		private int firstIndex(long time) {
+			int low = 0;
+			int high = times.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (times[middle] < time)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+
+		private long getSearchCount(String key, LongSupplier loader) {
+			synchronized (searchCounts) {
+				Long count = searchCounts.get(key);
+				if (count != null)
+					return count;
+			}
+			long count = loader.getAsLong();
+			synchronized (searchCounts) {
+				searchCounts.put(key, count);
+				Iterator<Long> it = searchCounts.values().iterator();
+				while (searchCounts.size() > MAX_SEARCH_COUNTS && it.hasNext()) {
+					it.next();
+					it.remove();
+				}
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * An archived event.
+	 */
+	public static final class Entry {
+		private final long time;
+		private final int id;
+		private final String json;
+
+		private Entry(long time, int id, String json) {
+			this.time = time;
+			this.id = id;
+			this.json = json;
+		}
+
+		/**
+		 * @return the creation date of the event in ms since epoch
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return the id the event had in the database
+		 */
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * @return the event as json
+		 */
+		public JSONObject toJSON() {
+			return new JSONObject(json);
+		}
+
+		/**
+		 * @return the cursor pointing after this event
+		 */
+		public String getPageCursor() {
+			return VSquareObject.toPageCursor(new Date(time), id);
+		}
+
+		private boolean isBefore(Date date, int otherId) {
+			return time < date.getTime() || (time == date.getTime() && id < otherId);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package fr.eseo.vsquare.utils;
+
+import org.json.JSONObject;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Utility class that delete the logs older than their retention horizon from a background thread.
+ * <p>
+ * The event and error logs older than "event_log_retention_months" and "error_log_retention_months" months (0 keeps
+ * them forever, the default for both) are deleted every "log_retention_interval" milliseconds, by batches of "log_retention_batch_size"
+ * rows (see DatabaseManager.purgeBefore). The old events are first moved to the
+ * archive (see LogArchive).
+ *
+ * @author Clement Gouin
+ */
+public final class LogRetention {
+
+	private static final String[] TABLES = { "event_log", "error_log" };
+
+	private static long interval = Utils.getInt("log_retention_interval");
+	private static int batchSize = Math.max(1, Utils.getInt("log_retention_batch_size"));
+
+	private static final AtomicLong runs = new AtomicLong();
+	private static final AtomicLong deleted = new AtomicLong();
+	private static final AtomicLong failures = new AtomicLong();
+
+	private static final ScheduledTask task = new ScheduledTask("log-retention", LogRetention::purge, failures);
+	private static volatile long lastRun = 0;
+
+	private LogRetention() {
+	}
+
+	/**
+	 * Start the background purge, does nothing if the interval is 0 or if it is already started.
+	 */
+	public static void start() {
+		task.start(interval);
+	}
+
+	/**
+	 * Stop the background purge.
+	 */
+	public static void stop() {
+		task.stop();
+	}
+
+	/**
+	 * Archive the old events and delete the logs older than their retention horizon.
+	 *
+	 * @return the number of deleted logs
+	 */
+	public static long purge() {
+		// the old events are not deleted before they could be archived
+		boolean archived = LogArchive.archive() >= 0;
+		long count = 0;
+		for (String table : TABLES)
+			if (archived || !"event_log".equals(table))
+				count += purge(table, Utils.getInt(table + "_retention_months"));
+		runs.incrementAndGet();
+		lastRun = System.currentTimeMillis();
+		return count;
+	}
+
+	/**
+	 * Delete the logs of a table older than a number of months.
+	 *
+	 * @param table  the log table
+	 * @param months the retention horizon, 0 keeps every log
+	 * @return the number of deleted logs
+	 */
+	static long purge(String table, int months) {
+		if (months <= 0)
+			return 0;
+		Calendar horizon = Calendar.getInstance();
+		horizon.add(Calendar.MONTH, -months);
+		return purgeBefore(table, new Timestamp(horizon.getTimeInMillis()));
+	}
+
+	/**
+	 * Delete the logs of a table created before a date.
+	 *
+	 * @param table  the log table
+	 * @param before the first date kept
+	 * @return the number of deleted logs
+	 */
+	static long purgeBefore(String table, Timestamp before) {
+		long count = 0;
+		try {
+			count = DatabaseManager.purgeBefore(table, "creation_date", before, batchSize);
+		} catch (SQLException e) {
+			failures.incrementAndGet();
+			Logger.log(Level.SEVERE, e.toString(), e);
+		}
+		if (count > 0) {
+			deleted.addAndGet(count);
+			CountCache.recordDelete();
+			Logger.log(Level.INFO, "{0} logs deleted from {1}", count, table);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the retention counters as json
+	 */
+	public static JSONObject getMetrics() {
+		JSONObject json = new JSONObject();
+		json.put("interval", interval);
+		json.put("runs", runs.get());
+		json.put("last_run", lastRun);
+		json.put("deleted", deleted.get());
+		json.put("failures", failures.get());
+		return json;
+	}
+}
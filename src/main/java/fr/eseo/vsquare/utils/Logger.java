@@ -104,34 +104,31 @@ public final class Logger {
 	 *            the object for the message formatting
 	 */
 	public static void log(String source, Level lvl, String message, Object... objects) {
-		Logger.log(source, lvl, true, message, objects);
-	}
-	
-	private static void log(String source, Level lvl, boolean errorLog, String message, Object... objects) {
-		message = String.format("[VSquare-%s] %s", source, message);
-		appLogger.log(lvl, message, objects);
-		if(lvl == Level.SEVERE) {
-            if (objects.length > 0 && objects[0] instanceof Exception) {
-				Exception e = (Exception) objects[0];
-				StringBuilder stackTrace = new StringBuilder(message);
-				for(StackTraceElement ste: e.getStackTrace()) {
-					stackTrace.append('\n');
-					stackTrace.append(ste.toString());
-					Logger.log(source, Level.SEVERE, false, "\t {0}", ste);
-				}
-				errorLog(1, stackTrace.toString(), objects);
-			}else if(errorLog){
-				errorLog(0, message, objects);
+		String fullMessage = String.format("[VSquare-%s] %s", source, message);
+		appLogger.log(lvl, fullMessage, objects);
+		if (lvl != Level.SEVERE)
+			return;
+		Exception e = objects.length > 0 && objects[0] instanceof Exception ? (Exception) objects[0] : null;
+		String error = fullMessage;
+		if (e != null) {
+			StringBuilder stackTrace = new StringBuilder(fullMessage);
+			for (StackTraceElement ste : e.getStackTrace()) {
+				stackTrace.append('\n');
+				stackTrace.append(ste.toString());
 			}
+			error = stackTrace.toString();
 		}
-	}
-	
-	private static void errorLog(int index, String message, Object[] objects) {
-		if(DatabaseManager.isInitialized()) {
-            User u = ServletUtils.getCurrentUser();
-            if (u == null && objects.length > index && objects[index] instanceof User)
-				u = (User)objects[index];
-            ErrorLog.log(u, message, ServletUtils.getCurrentRequest());
-		}
+		User u = ServletUtils.getCurrentUser();
+		int index = e != null ? 1 : 0;
+		if (u == null && objects.length > index && objects[index] instanceof User)
+			u = (User) objects[index];
+		String request = ServletUtils.getCurrentRequest();
+		// repeats of the same error are only counted
+		if (!ErrorDeduplicator.record(ErrorDeduplicator.fingerprint(source, message, e), error, u, request))
+			return;
+		if (error.length() > fullMessage.length())
+			appLogger.log(lvl, "\t " + error.substring(fullMessage.length() + 1).replace("\n", "\n\t "));
+		if (DatabaseManager.isInitialized())
+			ErrorLog.log(u, error, request);
 	}
 }
@@ -0,0 +1,76 @@
+package fr.eseo.vsquare.utils;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * A task run from its own daemon thread, with a fixed delay between the end of a run and the start of the next one.
+ * <p>
+ * A ScheduledExecutorService cancels every later run of a task once an exception escapes it, so each run catches the
+ * runtime exceptions, logs them and counts them as failures. The background jobs (LogRetention, TokenReaper, LDAPSync,
+ * ErrorDeduplicator) are built on it.
+ *
+ * @author Clement Gouin
+ */
+final class ScheduledTask {
+
+	private final String threadName;
+	private final Runnable task;
+	private final AtomicLong failures;
+
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Constructor
+	 *
+	 * @param threadName the name of the background thread
+	 * @param task       the task
+	 * @param failures   the counter of the failed runs
+	 */
+	ScheduledTask(String threadName, Runnable task, AtomicLong failures) {
+		this.threadName = threadName;
+		this.task = task;
+		this.failures = failures;
+	}
+
+	/**
+	 * Start the background runs, does nothing if the interval is 0 or if they are already started.
+	 *
+	 * @param interval the milliseconds before the first run and between two runs
+	 */
+	synchronized void start(long interval) {
+		if (interval <= 0 || executor != null)
+			return;
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, threadName);
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::run, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the background runs.
+	 */
+	synchronized void stop() {
+		if (executor == null)
+			return;
+		executor.shutdownNow();
+		executor = null;
+	}
+
+	/**
+	 * Run the task once as the background thread does.
+	 */
+	void run() {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			failures.incrementAndGet();
+			Logger.log(Level.SEVERE, e.toString(), e);
+		}
+	}
+}
@@ -29,10 +29,14 @@ public final class ServletUtils {
     public static final String DISKS_KEY = "disks";
 
     private static boolean bruteForceSecurity = true;
+    private static boolean sessionPerRequest = Utils.getBoolean("db_session_per_request");
 
-    private static HashMap<Long, User> currentUsers = new HashMap<>();
+    private static HashMap<Long, ApiUser> currentUsers = new HashMap<>();
     private static HashMap<Long, String> currentRequests = new HashMap<>();
 
+    // response held until the unit of work of the request is committed
+    private static final ThreadLocal<PendingResponse> pendingResponses = new ThreadLocal<>();
+
     private ServletUtils() {
     }
 
@@ -60,13 +64,31 @@ public final class ServletUtils {
     }
 
     /**
-     * Send the content via the response.
+     * Send the content via the response, or hold it until the unit of work of the request ended.
      *
      * @param response the servlet response
      * @param code     the http status
      * @param result   the json object sent
      */
     private static void sendContent(HttpServletResponse response, int code, JSONObject result) {
+        PendingResponse pending = pendingResponses.get();
+        if (pending == null) {
+            writeContent(response, code, result);
+        } else if (pending.result == null) {
+            // the first content is the one a client would have read
+            pending.code = code;
+            pending.result = result;
+        }
+    }
+
+    /**
+     * Write the content to the response.
+     *
+     * @param response the servlet response
+     * @param code     the http status
+     * @param result   the json object sent
+     */
+    private static void writeContent(HttpServletResponse response, int code, JSONObject result) {
         response.setStatus(code);
         if (!result.has(VALUE_KEY)) {
             JSONObject temp = result;
@@ -184,21 +206,29 @@ public final class ServletUtils {
     }
 
     /**
-     * Verify if a token is valid.
+     * Verify if a token is valid, the valid tokens are kept in the TokenCache and the signed tokens are verified by
+     * SignedToken.
      *
      * @param request  the servlet request
      * @param response the servlet response
      * @return the api user or null if not valid
      */
-    public static User verifyToken(HttpServletRequest request, HttpServletResponse response) {
+    public static ApiUser verifyToken(HttpServletRequest request, HttpServletResponse response) {
         if (ServletUtils.handleCrossOrigin(request, response))
             return null;
-        Token token = verifyToken(request);
-        if (token == null) {
+        String tokenHeader = request.getHeader(Utils.getString("auth_token_header"));
+        ApiUser user;
+        if (SignedToken.isSigned(tokenHeader)) {
+            // the user is not read, the tokens of a user whose type changed or who was deleted are revoked
+            SignedToken.Claims claims = SignedToken.verify(tokenHeader);
+            user = claims == null ? null : new ApiUser(claims.getUserId(), claims.getUserType(), claims.getLogin());
+        } else {
+            user = tokenHeader == null ? null : TokenCache.get(tokenHeader, () -> verifyToken(request));
+        }
+        if (user == null) {
             ServletUtils.sendError(response, HttpServletResponse.SC_UNAUTHORIZED);
             return null;
         }
-        User user = token.getUser();
         currentUsers.put(Thread.currentThread().getId(), user);
         return user;
 	}
@@ -206,6 +236,11 @@ public final class ServletUtils {
 	/**
 	 * Map a request to the given functions and handle wrong method and invalid url.
      *
+     * If "db_session_per_request" is enabled, the mapped function runs inside a database unit of work which is
+     * committed at the end of the request or rolled back if the function throws. The json response of the function
+     * is only written once the unit of work ended, a successful response whose changes could not be committed is
+     * replaced by an error. Streamed responses (file downloads) are written immediately.
+     *
      * @param request
      *            the servlet request
      * @param response
@@ -221,20 +256,30 @@ public final class ServletUtils {
         boolean matchingDone = false;
 
         currentRequests.put(Thread.currentThread().getId(), requestToJSON(request).toString());
-		for (Map.Entry<String, Runnable> entry : map.entrySet()) {
-			String[] mapping = entry.getKey().split(" ");
-            if (mapping.length != 2)
-                throw new IllegalArgumentException(String.format("Wrongly mapped URI : '%s'", entry.getKey()));
-            if (matchingURI(mapping[1], request.getRequestURI(), 2)) {
-                if (request.getMethod().equalsIgnoreCase(mapping[0])) {
-                    entry.getValue().run();
-                    matchingDone = true;
-                    break;
-                } else {
-					matchingWrongMethod = true;
-				}
-			}
-		}
+        boolean unitOfWork = sessionPerRequest && DatabaseManager.beginUnitOfWork();
+        if (unitOfWork)
+            pendingResponses.set(new PendingResponse());
+        boolean success = false;
+        try {
+            for (Map.Entry<String, Runnable> entry : map.entrySet()) {
+                String[] mapping = entry.getKey().split(" ");
+                if (mapping.length != 2)
+                    throw new IllegalArgumentException(String.format("Wrongly mapped URI : '%s'", entry.getKey()));
+                if (matchingURI(mapping[1], request.getRequestURI(), 2)) {
+                    if (request.getMethod().equalsIgnoreCase(mapping[0])) {
+                        entry.getValue().run();
+                        matchingDone = true;
+                        break;
+                    } else {
+                        matchingWrongMethod = true;
+                    }
+                }
+            }
+            success = true;
+        } finally {
+            if (unitOfWork)
+                endUnitOfWork(response, success);
+        }
         if (!matchingDone) {
             if (matchingWrongMethod) {
                 ServletUtils.sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid method");
@@ -246,6 +291,24 @@ public final class ServletUtils {
         currentRequests.remove(Thread.currentThread().getId());
     }
 
+    /**
+     * End the unit of work of the request and write the response held during it.
+     *
+     * @param response the servlet response
+     * @param success  false if the mapped function threw, the unit of work is rolled back and nothing is written
+     */
+    private static void endUnitOfWork(HttpServletResponse response, boolean success) {
+        PendingResponse pending = pendingResponses.get();
+        pendingResponses.remove();
+        boolean committed = DatabaseManager.endUnitOfWork(success);
+        if (!success || pending.result == null)
+            return;
+        if (committed || pending.code >= HttpServletResponse.SC_BAD_REQUEST)
+            writeContent(response, pending.code, pending.result);
+        else
+            sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "The changes could not be saved");
+    }
+
     public static Map<String, String> readParameters(HttpServletRequest request) {
         Map<String, String> out = new HashMap<>();
         try (BufferedReader br = new BufferedReader(new InputStreamReader(request.getInputStream()))) {
@@ -266,7 +329,8 @@ public final class ServletUtils {
      * @return the user registered with the thread's servlet
      */
     static User getCurrentUser() {
-        return currentUsers.get(Thread.currentThread().getId());
+        ApiUser user = currentUsers.get(Thread.currentThread().getId());
+        return user == null ? null : user.getUser();
     }
 
     static String getCurrentRequest() {
@@ -394,7 +458,7 @@ public final class ServletUtils {
      * @return the found vm or null if an error was sent in the response
      */
 
-    public static Vm getVmFromRequest(HttpServletRequest request, HttpServletResponse response, int pathPosition, User user, boolean writeAccess) {
+    public static Vm getVmFromRequest(HttpServletRequest request, HttpServletResponse response, int pathPosition, ApiUser user, boolean writeAccess) {
         String[] path = request.getRequestURI().split("/");
         String vmIdVCenter = path[pathPosition];
         Vm vm = Vm.findByIdVmVcenter(vmIdVCenter);
@@ -402,12 +466,12 @@ public final class ServletUtils {
             ServletUtils.sendError(response, HttpServletResponse.SC_NOT_FOUND, "VM not found");
             return null;
         }
-        if (!writeAccess && !vm.hasAccessRead(user)) {
+        if (!writeAccess && !vm.hasAccessRead(user.getId(), user.getType())) {
             ServletUtils.sendError(response, HttpServletResponse.SC_FORBIDDEN,
                     "You do not possess reading rights on this VM");
             return null;
         }
-        if (writeAccess && !vm.hasAccessWrite(user)) {
+        if (writeAccess && !vm.hasAccessWrite(user.getId(), user.getType())) {
             ServletUtils.sendError(response, HttpServletResponse.SC_FORBIDDEN,
                     "You do not possess writing rights on this VM");
             return null;
@@ -431,11 +495,16 @@ public final class ServletUtils {
         }
 	}
 
-    public static boolean checkUserRight(User user, HttpServletResponse response) {
+    public static boolean checkUserRight(ApiUser user, HttpServletResponse response) {
         if (!user.isAdmin()) {
             ServletUtils.sendError(response, HttpServletResponse.SC_FORBIDDEN);
             return false;
         }
         return true;
     }
+
+    private static final class PendingResponse {
+        private int code;
+        private JSONObject result;
+    }
 }
@@ -0,0 +1,353 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.model.RevokedToken;
+import fr.eseo.vsquare.model.User;
+import fr.eseo.vsquare.model.User.UserType;
+import org.json.JSONObject;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Utility class that issue and verify the stateless authentication tokens.
+ * <p>
+ * When "auth_signed_tokens" is enabled, a token is "keyId.payload.signature" where the payload holds the id, the type
+ * and the login of the user, the issue time and a random token id, signed with HMAC-SHA256 by the key keyId of
+ * "auth_signing_keys". A token is verified without reading the token table, the only shared state is the list of the
+ * tokens revoked by a logout, read from the revoked_token table every "auth_revocation_refresh" ms. Keys are rotated by
+ * adding the new key first in the configuration, and the old key is removed once its tokens expired.
+ * <p>
+ * A request is authenticated from the content of its token without reading the user (see ApiUser). When the type of
+ * a user changes or the user is deleted, every token issued to the user until then is revoked by a single row (see
+ * User.afterSave), so that the user logs in again. The revocation is stored to the second, a token issued in the
+ * second that follows it is rejected too.
+ *
+ * @author Clement Gouin
+ */
+public final class SignedToken {
+
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final char SEPARATOR = '.';
+	private static final int TOKEN_ID_LENGTH = 16;
+	// the revocation of the tokens of a user, the random token ids are alphanumeric
+	private static final String USER_REVOCATION_PREFIX = "user:";
+
+	private static boolean enabled = Utils.getBoolean("auth_signed_tokens");
+	private static volatile Map<String, byte[]> keys = loadKeys(Utils.getString("auth_signing_keys"));
+
+	// the ids of the revoked tokens with their expiration time
+	private static final HashMap<String, Long> revoked = new HashMap<>();
+	// start of the last successful read of the revocations, and of the last attempt
+	private static long lastRefresh = 0;
+	private static long lastAttempt = 0;
+
+	private static final AtomicLong issued = new AtomicLong();
+	private static final AtomicLong verified = new AtomicLong();
+	private static final AtomicLong rejected = new AtomicLong();
+	private static final AtomicLong revocations = new AtomicLong();
+	private static final AtomicLong refreshFailures = new AtomicLong();
+
+	private SignedToken() {
+	}
+
+	/**
+	 * Read and use the signing keys, the first key signs the new tokens.
+	 *
+	 * @param config the id:secret pairs separated by commas
+	 * @return the keys by id
+	 */
+	static Map<String, byte[]> loadKeys(String config) {
+		Map<String, byte[]> result = new LinkedHashMap<>();
+		for (String pair : config == null ? new String[0] : config.split(",")) {
+			String[] parts = pair.trim().split(":", 2);
+			if (parts[0].isEmpty())
+				continue;
+			if (parts.length != 2 || parts[1].isEmpty() || !Utils.isAlphaNumeric(parts[0], '-', '_')) {
+				Logger.log(Level.SEVERE, "Invalid signing key {0}", parts[0]);
+				continue;
+			}
+			result.put(parts[0], parts[1].getBytes(StandardCharsets.UTF_8));
+		}
+		if (enabled && result.isEmpty())
+			Logger.log(Level.SEVERE, "No signing key, signed tokens are disabled");
+		keys = result;
+		return result;
+	}
+
+	/**
+	 * @return true if the tokens are signed instead of stored
+	 */
+	public static boolean isEnabled() {
+		return enabled && !keys.isEmpty();
+	}
+
+	/**
+	 * @param value the value of a token
+	 * @return true if the value has the format of a signed token (the stored tokens are alphanumeric)
+	 */
+	public static boolean isSigned(String value) {
+		return value != null && value.indexOf(SEPARATOR) >= 0;
+	}
+
+	/**
+	 * Issue a new token for a user.
+	 *
+	 * @param user the authenticated user
+	 * @return the value of the token or null if the signed tokens are disabled
+	 */
+	public static String issue(User user) {
+		return issue(user, System.currentTimeMillis());
+	}
+
+	static String issue(User user, long issuedAt) {
+		if (!isEnabled() || user == null || user.getId() == null)
+			return null;
+		Map.Entry<String, byte[]> key = keys.entrySet().iterator().next();
+		// the login is last, the other fields cannot contain the separator
+		String payload = user.getId() + ":" + user.getType().name() + ":" + issuedAt + ":"
+				+ Utils.getRandomString(TOKEN_ID_LENGTH) + ":" + user.getLogin();
+		String content = key.getKey() + SEPARATOR + encode(payload.getBytes(StandardCharsets.UTF_8));
+		byte[] signature = sign(key.getValue(), content);
+		if (signature == null)
+			return null;
+		issued.incrementAndGet();
+		return content + SEPARATOR + encode(signature);
+	}
+
+	/**
+	 * Verify the signature, the age and the revocation of a token.
+	 *
+	 * @param value the value of the token
+	 * @return the content of the token or null if it is not valid
+	 */
+	public static Claims verify(String value) {
+		if (!isEnabled() || !isSigned(value))
+			return null;
+		Claims claims = parse(value);
+		if (claims == null || claims.getAge() > Utils.getInt("token_max_age") || isRevoked(claims)) {
+			rejected.incrementAndGet();
+			return null;
+		}
+		verified.incrementAndGet();
+		return claims;
+	}
+
+	private static Claims parse(String value) {
+		int payloadStart = value.indexOf(SEPARATOR);
+		int signatureStart = value.indexOf(SEPARATOR, payloadStart + 1);
+		if (signatureStart < 0)
+			return null;
+		byte[] key = keys.get(value.substring(0, payloadStart));
+		byte[] expected = key == null ? null : sign(key, value.substring(0, signatureStart));
+		byte[] signature = decode(value.substring(signatureStart + 1));
+		if (expected == null || signature == null || !MessageDigest.isEqual(expected, signature))
+			return null;
+		byte[] payload = decode(value.substring(payloadStart + 1, signatureStart));
+		if (payload == null)
+			return null;
+		String[] parts = new String(payload, StandardCharsets.UTF_8).split(":", 5);
+		if (parts.length != 5)
+			return null;
+		try {
+			return new Claims(Integer.parseInt(parts[0]), UserType.valueOf(parts[1]), Long.parseLong(parts[2]),
+					parts[3], parts[4]);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Revoke a token on every node (logout).
+	 *
+	 * @param claims the content of the verified token
+	 * @return true if operation is successful
+	 */
+	public static boolean revoke(Claims claims) {
+		long expiration = claims.issuedAt + Utils.getInt("token_max_age");
+		RevokedToken revokedToken = new RevokedToken(claims.tokenId, new Date(expiration));
+		if (!revokedToken.saveOrUpdate())
+			return false;
+		synchronized (revoked) {
+			revoked.put(claims.tokenId, expiration);
+		}
+		revocations.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @param userId the id of a user whose type changed or who was deleted
+	 * @return the id of the revocation of every token issued to the user until now
+	 */
+	public static String getUserRevocationId(int userId) {
+		return USER_REVOCATION_PREFIX + userId;
+	}
+
+	/**
+	 * @return the expiration of a revocation made now: the tokens issued before it expire before it
+	 */
+	public static Date getRevocationExpiration() {
+		// the expiration is stored to the second, rounded up so that it covers the tokens issued before now
+		long expiration = System.currentTimeMillis() + Utils.getInt("token_max_age");
+		return new Date((expiration / 1000 + 1) * 1000);
+	}
+
+	/**
+	 * Read the revocations again on the next verification, after a revocation written in a transaction.
+	 */
+	public static void refreshRevocations() {
+		synchronized (revoked) {
+			lastAttempt = 0;
+		}
+	}
+
+	private static boolean isRevoked(Claims claims) {
+		refreshRevoked();
+		synchronized (revoked) {
+			Long userRevocation = revoked.get(getUserRevocationId(claims.userId));
+			// a token issued before the revocation of its user expires before the end of the revocation
+			return revoked.containsKey(claims.tokenId)
+					|| userRevocation != null && claims.issuedAt + Utils.getInt("token_max_age") < userRevocation;
+		}
+	}
+
+	/**
+	 * Read the tokens revoked by the other nodes, at most once every "auth_revocation_refresh" ms.
+	 * <p>
+	 * A failed read is retried after the same interval from the last successful one, so that no revocation is missed.
+	 */
+	private static void refreshRevoked() {
+		long now = System.currentTimeMillis();
+		long interval = Utils.getInt("auth_revocation_refresh");
+		long previousRefresh;
+		synchronized (revoked) {
+			if (now - lastAttempt < interval)
+				return;
+			lastAttempt = now;
+			previousRefresh = lastRefresh;
+		}
+		// the reads overlap by one interval for the rows committed late or written by a node with a late clock
+		List<RevokedToken> rows = previousRefresh == 0 ? RevokedToken.getValid(new Date(now))
+				: RevokedToken.getSince(new Date(previousRefresh - interval));
+		if (rows == null) {
+			refreshFailures.incrementAndGet();
+			Logger.log(Level.WARNING, "Cannot read the revoked tokens");
+			return;
+		}
+		synchronized (revoked) {
+			for (RevokedToken row : rows)
+				revoked.put(row.getTokenId(), row.getExpirationDate().getTime());
+			revoked.values().removeIf(expiration -> expiration < now);
+			lastRefresh = Math.max(lastRefresh, now);
+		}
+	}
+
+	/**
+	 * Forget the revoked tokens, they are read again from the database by the next verification.
+	 */
+	public static void clear() {
+		synchronized (revoked) {
+			revoked.clear();
+			lastRefresh = 0;
+			lastAttempt = 0;
+		}
+	}
+
+	/**
+	 * @return the counters as json
+	 */
+	public static JSONObject getMetrics() {
+		JSONObject json = new JSONObject();
+		json.put("enabled", isEnabled());
+		json.put("keys", keys.size());
+		json.put("issued", issued.get());
+		json.put("verified", verified.get());
+		json.put("rejected", rejected.get());
+		json.put("revocations", revocations.get());
+		json.put("refresh_failures", refreshFailures.get());
+		synchronized (revoked) {
+			json.put("revoked", revoked.size());
+		}
+		return json;
+	}
+
+	private static byte[] sign(byte[] key, String content) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(new SecretKeySpec(key, ALGORITHM));
+			return mac.doFinal(content.getBytes(StandardCharsets.UTF_8));
+		} catch (GeneralSecurityException e) {
+			Logger.log(Level.SEVERE, e.toString(), e);
+			return null;
+		}
+	}
+
+	private static String encode(byte[] bytes) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+
+	private static byte[] decode(String value) {
+		try {
+			return Base64.getUrlDecoder().decode(value);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Content of a verified token.
+	 */
+	public static final class Claims {
+		private final int userId;
+		private final UserType userType;
+		private final long issuedAt;
+		private final String tokenId;
+		private final String login;
+
+		private Claims(int userId, UserType userType, long issuedAt, String tokenId, String login) {
+			this.userId = userId;
+			this.userType = userType;
+			this.issuedAt = issuedAt;
+			this.tokenId = tokenId;
+			this.login = login;
+		}
+
+		/**
+		 * @return the id of the user
+		 */
+		public int getUserId() {
+			return userId;
+		}
+
+		/**
+		 * @return the type of the user when the token was issued
+		 */
+		public UserType getUserType() {
+			return userType;
+		}
+
+		/**
+		 * @return the login of the user
+		 */
+		public String getLogin() {
+			return login;
+		}
+
+		/**
+		 * @return the age of the token (in milliseconds)
+		 */
+		public long getAge() {
+			return System.currentTimeMillis() - issuedAt;
+		}
+	}
+}
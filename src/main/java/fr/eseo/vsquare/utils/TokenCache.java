@@ -0,0 +1,193 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.model.Token;
+import fr.eseo.vsquare.model.User;
+import fr.eseo.vsquare.model.User.UserType;
+import fr.eseo.vsquare.model.VSquareObject;
+import org.hibernate.Hibernate;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Utility class that store the valid authentication tokens with the id, the type and the login of their user.
+ * <p>
+ * A request is authenticated by a lookup in this cache, neither the token nor the user is read on a hit (see ApiUser).
+ * Entries expire with their token ("token_max_age") or "token_cache_ttl" ms after they were read, the least recently
+ * used entries are evicted when the cache holds more than "token_cache_size" entries (0 disables the cache). The entry
+ * of a token is removed when the token is deleted (logout, expiration) and the entries of a user when the user is
+ * saved (type change) or deleted on this node. The other nodes keep their entry until it expires: "token_cache_ttl"
+ * is the max delay before a logout or a change of type made on another node applies.
+ *
+ * @author Clement Gouin
+ */
+public final class TokenCache {
+
+	private static int maxSize = Utils.getInt("token_cache_size");
+	private static long timeToLive = Utils.getInt("token_cache_ttl");
+
+	private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private static long generation = 0;
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong evictions = new AtomicLong();
+	private static final AtomicLong invalidations = new AtomicLong();
+
+	private TokenCache() {
+	}
+
+	/**
+	 * Return the user of a token from the cache or load the token.
+	 *
+	 * @param value  the value of the token
+	 * @param loader the function reading the token from the database, returning null if the token is not valid
+	 * @return the user of the token, null if the token is not valid
+	 */
+	public static ApiUser get(String value, Supplier<Token> loader) {
+		if (!isEnabled())
+			return toApiUser(loader.get());
+		long loadGeneration;
+		synchronized (entries) {
+			Entry entry = entries.get(value);
+			if (entry != null) {
+				long now = System.currentTimeMillis();
+				if (now - entry.creationTime <= Utils.getInt("token_max_age") && now < entry.expiration) {
+					hits.incrementAndGet();
+					return new ApiUser(entry.userId, entry.userType, entry.login);
+				}
+				// an expired token is deleted by the loader, a token read too long ago is read again
+				entries.remove(value);
+				evictions.incrementAndGet();
+			}
+			loadGeneration = generation;
+		}
+
+		misses.incrementAndGet();
+		Token token = loader.get();
+		ApiUser user = toApiUser(token);
+		if (user == null)
+			return null;
+
+		synchronized (entries) {
+			// do not cache a token loaded before an invalidation, it may have been deleted
+			if (loadGeneration == generation) {
+				entries.put(value, new Entry(user, token.getCreationDate().getTime(),
+						System.currentTimeMillis() + timeToLive));
+				Iterator<Entry> it = entries.values().iterator();
+				while (entries.size() > maxSize && it.hasNext()) {
+					it.next();
+					it.remove();
+					evictions.incrementAndGet();
+				}
+			}
+		}
+		return user;
+	}
+
+	private static ApiUser toApiUser(Token token) {
+		// the user is read with its token, the request keeps it
+		return token == null || token.getUser() == null ? null : new ApiUser(token.getUser());
+	}
+
+	/**
+	 * Remove the entry of a deleted token or the entries of a saved or deleted user.
+	 *
+	 * @param object the saved or deleted object
+	 */
+	public static void invalidate(VSquareObject object) {
+		if (object != null)
+			invalidate(object, object.getId());
+	}
+
+	/**
+	 * Remove the entry of a deleted token or the entries of a saved or deleted user, with the id it had when it was
+	 * changed (the id of a deleted object is reset).
+	 *
+	 * @param object the saved or deleted object
+	 * @param id     the id of the object
+	 */
+	public static void invalidate(VSquareObject object, Integer id) {
+		if (object == null || !isEnabled())
+			return;
+		Class<?> objectClass = Hibernate.getClass(object);
+		if (objectClass == Token.class) {
+			synchronized (entries) {
+				generation++;
+				if (entries.remove(((Token) object).getValue()) != null)
+					invalidations.incrementAndGet();
+			}
+		} else if (objectClass == User.class && id != null) {
+			int userId = id;
+			synchronized (entries) {
+				generation++;
+				if (entries.values().removeIf(e -> e.userId == userId))
+					invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Remove every entry from the cache.
+	 */
+	public static void clear() {
+		synchronized (entries) {
+			generation++;
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return true if the cache is enabled in the configuration
+	 */
+	public static boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * @return the current size of the cache
+	 */
+	public static int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return the cache counters as json
+	 */
+	public static JSONObject getMetrics() {
+		long hitCount = hits.get();
+		long missCount = misses.get();
+		JSONObject json = new JSONObject();
+		json.put("enabled", isEnabled());
+		json.put("size", size());
+		json.put("max_size", maxSize);
+		json.put("ttl", timeToLive);
+		json.put("hits", hitCount);
+		json.put("misses", missCount);
+		json.put("hit_ratio", hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount));
+		json.put("evictions", evictions.get());
+		json.put("invalidations", invalidations.get());
+		return json;
+	}
+
+	private static final class Entry {
+		private final int userId;
+		private final UserType userType;
+		private final String login;
+		private final long creationTime;
+		private final long expiration;
+
+		private Entry(ApiUser user, long creationTime, long expiration) {
+			this.userId = user.getId();
+			this.userType = user.getType();
+			this.login = user.getLogin();
+			this.creationTime = creationTime;
+			this.expiration = expiration;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package fr.eseo.vsquare.utils;
+
+import org.json.JSONObject;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Utility class that delete the expired authentication tokens from a background thread.
+ * <p>
+ * Every "token_reaper_interval" milliseconds, the tokens older than "token_max_age" and the revoked signed tokens
+ * past their expiration are deleted by batches of "token_reaper_batch_size" rows in their own transactions, so that
+ * the token table does not grow with every login.
+ *
+ * @author Clement Gouin
+ */
+public final class TokenReaper {
+
+	private static long interval = Utils.getInt("token_reaper_interval");
+	private static int batchSize = Math.max(1, Utils.getInt("token_reaper_batch_size"));
+
+	private static final AtomicLong runs = new AtomicLong();
+	private static final AtomicLong deleted = new AtomicLong();
+	private static final AtomicLong revokedDeleted = new AtomicLong();
+	private static final AtomicLong failures = new AtomicLong();
+
+	private static final ScheduledTask task = new ScheduledTask("token-reaper", TokenReaper::sweep, failures);
+	private static final AtomicLong totalDuration = new AtomicLong();
+	private static volatile long lastRun = 0;
+	private static volatile long lastDuration = 0;
+
+	private TokenReaper() {
+	}
+
+	/**
+	 * Start the background sweep, does nothing if the interval is 0 or if it is already started.
+	 */
+	public static void start() {
+		task.start(interval);
+	}
+
+	/**
+	 * Stop the background sweep.
+	 */
+	public static void stop() {
+		task.stop();
+	}
+
+	/**
+	 * Delete the expired tokens and revocations.
+	 *
+	 * @return the number of deleted rows
+	 */
+	public static long sweep() {
+		long start = System.currentTimeMillis();
+		long count = delete("token", "creation_date", new Timestamp(start - Utils.getInt("token_max_age")));
+		deleted.addAndGet(count);
+		long revokedCount = delete("revoked_token", "expiration_date", new Timestamp(start));
+		revokedDeleted.addAndGet(revokedCount);
+		if (count + revokedCount > 0)
+			Logger.log(Level.INFO, "{0} expired tokens and {1} revocations deleted", count, revokedCount);
+
+		lastDuration = System.currentTimeMillis() - start;
+		totalDuration.addAndGet(lastDuration);
+		runs.incrementAndGet();
+		lastRun = start;
+		return count + revokedCount;
+	}
+
+	/**
+	 * Delete the rows of a table with a date column before a date.
+	 *
+	 * @param table  the table
+	 * @param column the indexed date column
+	 * @param before the first date kept
+	 * @return the number of deleted rows
+	 */
+	static long delete(String table, String column, Timestamp before) {
+		try {
+			return DatabaseManager.purgeBefore(table, column, before, batchSize);
+		} catch (SQLException e) {
+			failures.incrementAndGet();
+			Logger.log(Level.SEVERE, e.toString(), e);
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the sweep counters as json
+	 */
+	public static JSONObject getMetrics() {
+		long runCount = runs.get();
+		JSONObject json = new JSONObject();
+		json.put("interval", interval);
+		json.put("runs", runCount);
+		json.put("last_run", lastRun);
+		json.put("last_duration", lastDuration);
+		json.put("average_duration", runCount == 0 ? 0 : (double) totalDuration.get() / runCount);
+		json.put("deleted", deleted.get());
+		json.put("revoked_deleted", revokedDeleted.get());
+		json.put("failures", failures.get());
+		return json;
+	}
+}
@@ -1,6 +1,7 @@
 package fr.eseo.vsquare.utils;
 
 import fr.eseo.vsquare.model.User;
+import fr.eseo.vsquare.model.VSquareObject;
 import fr.klemek.betterlists.BetterArrayList;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -28,6 +29,14 @@ public final class Utils {
 	private static final ResourceBundle OS_CODES_BUNDLE = ResourceBundle.getBundle("os_codes");
 	
 	private static String localIP = null;
+
+	private static final Set<String> FULLTEXT_STOPWORDS = new HashSet<>();
+
+	static {
+		String stopwords = getString("db_fulltext_stopwords");
+		if (stopwords != null)
+			FULLTEXT_STOPWORDS.addAll(Arrays.asList(stopwords.toLowerCase().split("\\s*,\\s*")));
+	}
 	
 	private Utils() {
 	}
@@ -71,6 +80,17 @@ public final class Utils {
 		}
 	}
 
+	/**
+	 * Get a configuration boolean by its key.
+	 * 
+	 * @param key
+	 *            the key in the config file
+	 * @return the boolean or false if not found
+	 */
+	public static boolean getBoolean(String key) {
+		return Boolean.parseBoolean(Utils.getString(key));
+	}
+
 	/**
 	 * Get a connection string from configuration.
 	 * 
@@ -376,6 +396,29 @@ public final class Utils {
         return true;
     }
 
+    /**
+     * Convert a search string to a boolean mode full-text query matching every word by prefix.
+     * <p>
+     * The stopwords are not indexed, a required stopword would match no row: they are left out of the query, like
+     * the full-text search does in natural language mode.
+     *
+     * @param search the searched string
+     * @return the full-text query or null if a word is too short to be indexed or if every word is a stopword
+     */
+    public static String toFullTextQuery(String search) {
+        StringBuilder query = new StringBuilder();
+        for (String word : search.split("[^\\p{L}\\p{N}_]+")) {
+            if (word.isEmpty())
+                continue;
+            if (word.length() < getInt("db_fulltext_min_length"))
+                return null;
+            if (FULLTEXT_STOPWORDS.contains(word.toLowerCase()))
+                continue;
+            query.append(query.length() == 0 ? "+" : " +").append(word).append('*');
+        }
+        return query.length() == 0 ? null : query.toString();
+    }
+
     /**
      * Navigate through a JSONObject by keys
      *
@@ -394,38 +437,21 @@ public final class Utils {
     }
 
 	/**
-	 * Scrap and create new users from LDAP
+	 * Scrap and create new users from LDAP (see LDAPSync)
 	 */
 	public static void createLDAPUsers() {
 		Logger.log(Level.INFO, "Scrapping LDAP...");
-		List<String> allUids = LDAPUtils.scrapLDAP();
-		BetterArrayList<User> allUsers = new BetterArrayList<>(User.getAll());
-
-		int newUsers = 0;
-
-		for (String uid : allUids) {
-			if (!allUsers.any(u -> u.getLogin().equals(uid))) {
-				String commonName = LDAPUtils.getCommonName(uid);
-				User u = new User(uid, commonName);
-				if (Utils.isAdminByConfig(uid))
-					u.setAdmin();
-				if (!u.saveOrUpdate())
-					Logger.log(Level.WARNING, "User {0} : registration failed", uid);
-				else
-					newUsers++;
-			}
-		}
-
-		if (newUsers > 0)
-			Logger.log(Level.INFO, "Added {0} new users to database", newUsers);
+		LDAPSync.sync(false);
 	}
 
 	/**
 	 * Check all users
 	 */
 	public static void checkUsers() {
+		List<User> changedUsers = new ArrayList<>();
 		for (User user : User.getAll())
 			if (user.checkGroups())
-				user.saveOrUpdate();
+				changedUsers.add(user);
+		VSquareObject.saveAll(changedUsers);
 	}
 }
@@ -0,0 +1,24 @@
+package fr.eseo.vsquare.utils;
+
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.function.SQLFunctionTemplate;
+import org.hibernate.type.StandardBasicTypes;
+
+/**
+ * MySQL dialect adding the full-text search functions to HQL.
+ * <p>
+ * match_against(column, query) and match_against_2(column1, column2, query) are translated into a boolean mode
+ * MATCH ... AGAINST and require a FULLTEXT index on exactly the given columns.
+ *
+ * @author Clement Gouin
+ */
+public class VSquareDialect extends MySQLDialect {
+
+	public VSquareDialect() {
+		super();
+		registerFunction("match_against",
+				new SQLFunctionTemplate(StandardBasicTypes.DOUBLE, "match (?1) against (?2 in boolean mode)"));
+		registerFunction("match_against_2",
+				new SQLFunctionTemplate(StandardBasicTypes.DOUBLE, "match (?1, ?2) against (?3 in boolean mode)"));
+	}
+}
@@ -0,0 +1,15 @@
+CREATE TABLE `id_sequence` (
+    `sequence_name` VARCHAR(64) NOT NULL,
+    `next_val` BIGINT NOT NULL,
+    PRIMARY KEY (`sequence_name`)
+);
+INSERT INTO `id_sequence` SELECT 'user_group', COALESCE(MAX(`id`), 0) + 1 FROM `user_group`;
+INSERT INTO `id_sequence` SELECT 'user', COALESCE(MAX(`id`), 0) + 1 FROM `user`;
+INSERT INTO `id_sequence` SELECT 'vm', COALESCE(MAX(`id`), 0) + 1 FROM `vm`;
+INSERT INTO `id_sequence` SELECT 'token', COALESCE(MAX(`id`), 0) + 1 FROM `token`;
+INSERT INTO `id_sequence` SELECT 'event_log', COALESCE(MAX(`id`), 0) + 1 FROM `event_log`;
+INSERT INTO `id_sequence` SELECT 'error_log', COALESCE(MAX(`id`), 0) + 1 FROM `error_log`;
+INSERT INTO `id_sequence` SELECT 'permission', COALESCE(MAX(`id`), 0) + 1 FROM `permission`;
+INSERT INTO `id_sequence` SELECT 'network', COALESCE(MAX(`id`), 0) + 1 FROM `network`;
+INSERT INTO `id_sequence` SELECT 'snapshot', COALESCE(MAX(`id`), 0) + 1 FROM `snapshot`;
+INSERT INTO `id_sequence` SELECT 'download_link', COALESCE(MAX(`id`), 0) + 1 FROM `download_link`;
\ No newline at end of file
@@ -0,0 +1,2 @@
+ALTER TABLE `event_log` ADD INDEX `IDX_EventLogCreationDate` (`creation_date`, `id`);
+ALTER TABLE `error_log` ADD INDEX `IDX_ErrorLogCreationDate` (`creation_date`, `id`);
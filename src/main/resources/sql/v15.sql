@@ -0,0 +1,8 @@
+ALTER TABLE `event_log` ADD COLUMN `user_search` TEXT;
+ALTER TABLE `error_log` ADD COLUMN `user_search` TEXT;
+UPDATE `event_log` el LEFT JOIN `user` u ON u.`id` = el.`id_user` SET el.`user_search` = CONCAT_WS(' ', u.`common_name`, u.`login`, IF(el.`object_type` = 'USER', el.`object_name`, NULL));
+UPDATE `error_log` el LEFT JOIN `user` u ON u.`id` = el.`id_user` SET el.`user_search` = CONCAT_WS(' ', u.`common_name`, u.`login`);
+ALTER TABLE `event_log` ADD FULLTEXT INDEX `FT_EventLogObjectName` (`object_name`);
+ALTER TABLE `event_log` ADD FULLTEXT INDEX `FT_EventLogUserSearch` (`user_search`);
+ALTER TABLE `event_log` ADD FULLTEXT INDEX `FT_EventLogSearch` (`object_name`, `user_search`);
+ALTER TABLE `error_log` ADD FULLTEXT INDEX `FT_ErrorLogSearch` (`error`, `user_search`);
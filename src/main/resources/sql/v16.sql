@@ -0,0 +1 @@
+ALTER TABLE `error_log` ADD COLUMN `repeat_count` INT NOT NULL DEFAULT 1;
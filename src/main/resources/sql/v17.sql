@@ -0,0 +1,8 @@
+ALTER TABLE `token` ADD INDEX `IDX_TokenValue` (`value`);
+ALTER TABLE `download_link` ADD INDEX `IDX_DownloadLinkExternalLink` (`external_link`);
+ALTER TABLE `download_link` ADD INDEX `IDX_DownloadLinkInternalLink` (`internal_link`(191));
+ALTER TABLE `snapshot` ADD INDEX `IDX_SnapshotIdSnapshotVcenter` (`id_snapshot_vcenter`);
+ALTER TABLE `network` ADD INDEX `IDX_NetworkIdNetworkVcenter` (`id_network_vcenter`);
+ALTER TABLE `vm` ADD INDEX `IDX_VmTemplate` (`template`);
+ALTER TABLE `event_log` ADD INDEX `IDX_EventLogAction` (`action`, `creation_date`);
+ALTER TABLE `event_log` ADD INDEX `IDX_EventLogObjectType` (`object_type`, `creation_date`);
@@ -0,0 +1,9 @@
+CREATE TABLE `group_closure` (
+	`ancestor` INT NOT NULL,
+	`descendant` INT NOT NULL,
+	`depth` INT NOT NULL,
+	PRIMARY KEY (`ancestor`, `descendant`),
+	INDEX `IDX_GroupClosureDescendant` (`descendant`, `depth`),
+	CONSTRAINT `FK_GroupClosureAncestor` FOREIGN KEY (`ancestor`) REFERENCES `user_group`(`id`) ON DELETE CASCADE,
+	CONSTRAINT `FK_GroupClosureDescendant` FOREIGN KEY (`descendant`) REFERENCES `user_group`(`id`) ON DELETE CASCADE
+);
@@ -0,0 +1,10 @@
+CREATE TABLE `revoked_token` (
+    `id` INT NOT NULL AUTO_INCREMENT,
+	`creation_date` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+	`token_id` VARCHAR(32) NOT NULL,
+	`expiration_date` DATETIME NOT NULL,
+	PRIMARY KEY (`id`),
+	INDEX `IDX_RevokedTokenCreationDate` (`creation_date`),
+	INDEX `IDX_RevokedTokenExpirationDate` (`expiration_date`)
+);
+INSERT INTO `id_sequence` VALUES ('revoked_token', 1);
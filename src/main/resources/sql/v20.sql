@@ -0,0 +1 @@
+ALTER TABLE `token` ADD INDEX `IDX_TokenCreationDate` (`creation_date`);
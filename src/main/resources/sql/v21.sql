@@ -0,0 +1,6 @@
+CREATE TABLE `group_tree_version` (
+	`id` INT NOT NULL,
+	`version` BIGINT NOT NULL DEFAULT 0,
+	PRIMARY KEY (`id`)
+);
+INSERT INTO `group_tree_version` VALUES (1, 0);
@@ -14,17 +14,19 @@ import org.junit.runners.Suite.SuiteClasses;
         //Utils tests
         HttpUtilsTest.class, LDAPUtilsTest.class, VSphereManagerTest.class, VSphereConnectorTest.class,
         VCenterManagerTest.class, DatabaseManagerTest.class, ServletUtilsTest.class, UtilsTest.class,
-        TarUtilsTest.class,
+        TarUtilsTest.class, EntityCacheTest.class, CountCacheTest.class, BatchWriterTest.class,
+        LogRetentionTest.class, LogArchiveTest.class, GroupTreeTest.class, TokenCacheTest.class,
+        SignedTokenTest.class, TokenReaperTest.class, LDAPSyncTest.class,
         //Utils errors tests
         VCenterManagerErrorTest.class, DatabaseManagerErrorsTest.class,
         //Models tests
         VSquareObjectTest.class, UserTest.class, ErrorLogTest.class, EventLogTest.class, TokenTest.class,
         GroupTest.class, VmTest.class, SnapshotTest.class, DownloadLinkTest.class, NetworkTest.class,
-        PermissionTest.class,
+        PermissionTest.class, RevokedTokenTest.class, QueryPlanTest.class,
         //Servlets tests
         InitContextListenerTest.class, AuthServletTest.class, InfoServletTest.class, LogServletTest.class,
         UserServletTest.class, NetworkServletTest.class, GroupServletTest.class, VMsServletTest.class,
-        ImportServletTest.class, ExportServletTest.class,})
+        ImportServletTest.class, ExportServletTest.class, SessionCountTest.class,})
 public class AllTests {
 
 }
@@ -23,7 +23,10 @@ public class CoverageTests {
 			throws InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
 		Constructor<?> ctr;
 		for (Class<?> c : new Class[] { DatabaseManager.class, HttpUtils.class, LDAPUtils.class, Logger.class,
-				ServletUtils.class, TARUtils.class, Utils.class, VSphereConnector.class, VSphereManager.class, VCenterManager.class}) {
+				ServletUtils.class, TARUtils.class, Utils.class, VSphereConnector.class, VSphereManager.class, VCenterManager.class,
+				EntityCache.class, CountCache.class, ErrorDeduplicator.class, LogRetention.class,
+				LogArchive.class, GroupTree.class, TokenCache.class, SignedToken.class,
+				TokenReaper.class, LDAPSync.class}) {
 			ctr = c.getDeclaredConstructors()[0];
 			ctr.setAccessible(true);
 			ctr.newInstance();
@@ -66,11 +66,28 @@ public final class TestUtils {
 
 	}
 
+	/**
+	 * Archive the events of the tests in a temporary directory, the configured one is empty by default.
+	 */
+	private static void setArchiveDirectory() {
+		try {
+			Field field = LogArchive.class.getDeclaredField("directory");
+			field.setAccessible(true);
+			field.set(null, new File(System.getProperty("java.io.tmpdir"), "vsquare-archive-test"));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
 	public static void emptyDatabase() throws SQLException {
+		// logs queued by the previous test
+		BatchWriter.flushAll();
+		ErrorDeduplicator.clear();
 		try (Statement st = conn.createStatement()) {
 			st.addBatch("DELETE FROM error_log WHERE 1");
 			st.addBatch("DELETE FROM event_log WHERE 1");
 			st.addBatch("DELETE FROM token WHERE 1");
+			st.addBatch("DELETE FROM revoked_token WHERE 1");
 			st.addBatch("DELETE FROM vm WHERE 1");
 			st.addBatch("DELETE FROM user WHERE 1");
 			st.addBatch("DELETE FROM link_user_group WHERE 1");
@@ -81,6 +98,14 @@ public final class TestUtils {
 			st.addBatch("DELETE FROM permission WHERE 1");
 			st.executeBatch();
 		}
+		// Rows were deleted behind hibernate
+		EntityCache.clear();
+		CountCache.clear();
+		TokenCache.clear();
+		SignedToken.clear();
+		GroupTree.invalidate();
+		setArchiveDirectory();
+		LogArchive.clear();
 		// In case of default groups being deleted
 		DatabaseManager.initDefaultGroups();
 	}
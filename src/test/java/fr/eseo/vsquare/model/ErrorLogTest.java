@@ -140,6 +140,32 @@ public class ErrorLogTest {
         assertEquals(10, ErrorLog.count(null));
 	}
 
+	@Test
+	public void testGetExtractAfter() throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+		User u = new User("test_user", UserType.ADMIN, "test");
+		u.saveOrUpdate();
+		for (int i = 0; i < 10; i++) {
+			ErrorLog e = new ErrorLog(u, (i % 2 == 0 ? "blu" : "bla") + i);
+			e.saveOrUpdate();
+			TestUtils.changeVSquareObjectDate(e, new Date(System.currentTimeMillis() - i * 10000));
+			e.saveOrUpdate();
+		}
+
+		List<ErrorLog> list = ErrorLog.getExtractAfter(null, 4, null);
+		list = ErrorLog.getExtractAfter(list.get(3).getPageCursor(), 4, null);
+		assertEquals(4, list.size());
+		assertEquals("blu4", list.get(0).getError());
+		assertEquals("bla7", list.get(3).getError());
+
+		list = ErrorLog.getExtractAfter(null, 2, "BlU");
+		list = ErrorLog.getExtractAfter(list.get(1).getPageCursor(), 2, "BlU");
+		assertEquals(2, list.size());
+		assertEquals("blu4", list.get(0).getError());
+		assertEquals("blu6", list.get(1).getError());
+
+		assertNull(ErrorLog.getExtractAfter("not a cursor", 4, null));
+	}
+
     @Test
     public void testGetExtractQuery() throws InterruptedException, NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
         User u = new User("test_user", UserType.ADMIN, "test");
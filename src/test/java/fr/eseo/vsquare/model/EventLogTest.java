@@ -4,6 +4,7 @@ import fr.eseo.vsquare.TestUtils;
 import fr.eseo.vsquare.model.EventLog.EventAction;
 import fr.eseo.vsquare.model.EventLog.EventObject;
 import fr.eseo.vsquare.model.User.UserType;
+import fr.eseo.vsquare.utils.DatabaseManager;
 import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
@@ -194,6 +195,97 @@ public class EventLogTest {
 		assertEquals(10, EventLog.count(null));
 	}
 
+	@Test
+	public void testGetExtractAfter() throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+		User u = new User("test_user", UserType.ADMIN, "test");
+		u.saveOrUpdate();
+		for (int i = 0; i < 10; i++) {
+			Group g = new Group((i % 2 == 0 ? "blu" : "bla") + i, "" + i);
+			g.saveOrUpdate();
+			EventLog e = new EventLog(u, EventAction.CREATE, g);
+			e.saveOrUpdate();
+			TestUtils.changeVSquareObjectDate(e, new Date(System.currentTimeMillis() - i * 10000));
+			e.saveOrUpdate();
+		}
+
+		List<EventLog> list = EventLog.getExtractAfter(null, 4, null);
+		assertEquals(4, list.size());
+		assertEquals("bla3", ((Group) list.get(3).getObject()).getName());
+
+		list = EventLog.getExtractAfter(list.get(3).getPageCursor(), 4, null);
+		assertEquals(4, list.size());
+		assertEquals("blu4", ((Group) list.get(0).getObject()).getName());
+		assertEquals("bla7", ((Group) list.get(3).getObject()).getName());
+
+		list = EventLog.getExtractAfter(list.get(3).getPageCursor(), 4, null);
+		assertEquals(2, list.size());
+
+		list = EventLog.getExtractAfter(null, 2, "BlU");
+		list = EventLog.getExtractAfter(list.get(1).getPageCursor(), 2, "BlU");
+		assertEquals(2, list.size());
+		assertEquals("blu4", ((Group) list.get(0).getObject()).getName());
+		assertEquals("blu6", ((Group) list.get(1).getObject()).getName());
+
+		assertNull(EventLog.getExtractAfter("not a cursor", 4, null));
+	}
+
+	@Test
+	public void testGetSummaries() throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+		User u = new User("test_user", UserType.ADMIN, "test");
+		u.saveOrUpdate();
+		for (int i = 0; i < 10; i++) {
+			Group g = new Group((i % 2 == 0 ? "blu" : "bla") + i, "" + i);
+			g.saveOrUpdate();
+			EventLog e = new EventLog(u, EventAction.CREATE, g);
+			e.saveOrUpdate();
+			TestUtils.changeVSquareObjectDate(e, new Date(System.currentTimeMillis() - i * 10000));
+			e.saveOrUpdate();
+		}
+
+		List<EventLog> events = EventLog.getExtract(3, 4, "BlU");
+		List<EventLog.Summary> list = EventLog.getSummaries(3, 4, "BlU");
+		assertEquals(events.size(), list.size());
+		List<JSONObject> detailed = EventLog.toDetailedJSON(list);
+		for (int i = 0; i < list.size(); i++) {
+			assertEquals(events.get(i).toJSON(true).toString(), detailed.get(i).toString());
+			assertEquals(events.get(i).toJSON(false).toString(), list.get(i).toJSON().toString());
+		}
+
+		list = EventLog.getSummariesAfter(null, 4, null);
+		assertEquals(4, list.size());
+		list = EventLog.getSummariesAfter(list.get(3).getPageCursor(), 4, null);
+		assertEquals(4, list.size());
+		assertEquals("blu4", list.get(0).toJSON().getJSONObject("object").getString("name"));
+		assertEquals("test", list.get(0).toJSON().getJSONObject("user").getString("common_name"));
+		assertNull(EventLog.getSummariesAfter("not a cursor", 4, null));
+	}
+
+	@Test
+	public void testGetExtractDateRange() throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+		User u = new User("test_user", UserType.ADMIN, "test");
+		u.saveOrUpdate();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 10; i++) {
+			Group g = new Group("blu" + i, "" + i);
+			g.saveOrUpdate();
+			EventLog e = new EventLog(u, EventAction.CREATE, g);
+			e.saveOrUpdate();
+			TestUtils.changeVSquareObjectDate(e, new Date(now - i * 10000));
+			e.saveOrUpdate();
+		}
+
+		Date from = new Date(now - 65000);
+		Date to = new Date(now - 25000);
+		List<EventLog> list = DatabaseManager.withDateRange(from, to, () -> EventLog.getExtractAfter(null, 10, null));
+		assertEquals(4, list.size());
+		assertEquals("blu3", ((Group) list.get(0).getObject()).getName());
+		assertEquals("blu6", ((Group) list.get(3).getObject()).getName());
+
+		assertEquals(4, (long) DatabaseManager.withDateRange(from, to, () -> EventLog.count("BlU")));
+		assertEquals(7, (long) DatabaseManager.withDateRange(null, to, () -> EventLog.count(null)));
+		assertEquals(10, EventLog.count(null));
+	}
+
     @Test
     public void testGetExtractQuery() throws InterruptedException, NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
         User u = new User("test_user", UserType.ADMIN, "test");
@@ -223,6 +315,69 @@ public class EventLogTest {
 		assertEquals(10, EventLog.count("BlU"));
     }
 
+    @Test
+    public void testGetExtractShortQuery() throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+        User u = new User("test_user", UserType.ADMIN, "test");
+        u.saveOrUpdate();
+		for (int i = 0; i < 10; i++) {
+            Group g = new Group("x-blu" + i, "" + i);
+            g.saveOrUpdate();
+            EventLog e = new EventLog(u, EventAction.CREATE, g);
+            e.saveOrUpdate();
+            TestUtils.changeVSquareObjectDate(e, new Date(System.currentTimeMillis() - i * 10000));
+            e.saveOrUpdate();
+        }
+
+		// "x-b" is too short for the full-text index and is searched as a substring
+		List<EventLog> list = EventLog.getExtract(3, 4, "x-b");
+
+		assertEquals(4, list.size());
+		assertEquals("x-blu3", ((Group) list.get(0).getObject()).getName());
+		assertEquals(10, EventLog.count("x-b"));
+		assertEquals(10, EventLog.count("group:x-b"));
+		assertEquals(10, EventLog.count("blu"));
+    }
+
+    @Test
+    public void testSearchUserShortQuery() throws Exception {
+        User actor = new User("xy_actor", UserType.ADMIN, "actor");
+        assertTrue(actor.saveOrUpdate());
+        User other = new User("other", UserType.ADMIN, "other");
+        assertTrue(other.saveOrUpdate());
+        for (int i = 0; i < 5; i++) {
+            Group g = new Group("group" + i, "" + i);
+            assertTrue(g.saveOrUpdate());
+            assertTrue(new EventLog(actor, EventAction.CREATE, g).saveOrUpdate());
+            User u = new User("user" + i, UserType.STUDENT, "xy" + i);
+            assertTrue(u.saveOrUpdate());
+            assertTrue(new EventLog(other, EventAction.EDIT, u).saveOrUpdate());
+            assertTrue(new EventLog(other, EventAction.EDIT, g).saveOrUpdate());
+        }
+
+        // "xy" is searched with LIKE: the events done by xy_actor and the events on the users named xy*
+        assertEquals(10, EventLog.count("user:xy"));
+        List<EventLog> list = EventLog.getExtractAfter(null, 6, "user:xy");
+        assertEquals(6, list.size());
+        list = EventLog.getExtractAfter(list.get(5).getPageCursor(), 6, "user:xy");
+        assertEquals(4, list.size());
+        for (EventLog e : list)
+            assertTrue(e.getUser().equals(actor) || e.getObject() instanceof User);
+    }
+
+    @Test
+    public void testSearchQueries() {
+        EventLog.Search search = EventLog.Search.parse("user:xy");
+        assertTrue(search.isLike());
+        assertTrue(EventLog.getSearchQueries().get(search.getType().getQueryName(false, true))
+                .contains(") AND el.creationDate <= ?1"));
+        assertEquals(3, search.getParameters(new Object[] { new Date(), 1 }).length);
+        assertFalse(EventLog.Search.parse("user:test").isLike());
+        assertFalse(EventLog.getSearchQueries().get(EventLog.SearchType.ALL.getQueryName(true, true)).contains("?2"));
+        assertNull(EventLog.Search.parse("action:unknown"));
+        assertTrue(EventLog.getExtract(0, 10, "action:unknown").isEmpty());
+        assertEquals(0, EventLog.count("action:unknown"));
+    }
+
     @Test
     public void testGetExtractQuery2() throws InterruptedException, NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
         User u = new User("test_user", UserType.ADMIN, "test");
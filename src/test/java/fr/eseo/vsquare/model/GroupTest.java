@@ -92,7 +92,8 @@ public class GroupTest {
 		assertTrue(json.has("number_users"));
 		assertTrue(json.has("users"));
         assertTrue(json.has("networks"));
-        assertEquals(8, json.length());
+        assertTrue(json.has("stats"));
+        assertEquals(9, json.length());
 	}
 	
 	@Test
@@ -178,6 +179,44 @@ public class GroupTest {
 		assertTrue(groups.contains(last));
 	}
 
+	@Test
+	public void testClosure() throws SQLException {
+		Group middle = new Group("middle", "middle group", group_child);
+		assertTrue(middle.saveOrUpdate());
+		Group last = new Group("last", "last group", middle);
+		assertTrue(last.saveOrUpdate());
+
+		List<Group> ancestors = last.getAncestors();
+		assertEquals(4, ancestors.size());
+		assertEquals(last, ancestors.get(0));
+		assertEquals(group_parent, ancestors.get(3));
+		assertEquals(3, group_parent.getAllChildren().size());
+
+		// move the middle group and its subtree under the root
+		middle.setIdParentGroup(group_parent.getId());
+		assertTrue(middle.saveOrUpdate());
+		ancestors = Group.findById(last.getId()).getAncestors();
+		assertEquals(3, ancestors.size());
+		assertFalse(ancestors.contains(group_child));
+		assertTrue(group_child.getAllChildren().isEmpty());
+		assertEquals(3, group_parent.getAllChildren().size());
+
+		// a group cannot be moved under its own subgroup
+		group_parent.setIdParentGroup(last.getId());
+		assertFalse(group_parent.saveOrUpdate());
+		group_parent.setIdParentGroup(null);
+
+		assertTrue(middle.delete());
+		try (Statement st = TestUtils.getConnection().createStatement()) {
+			try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM group_closure WHERE descendant IN ("
+					+ middle.getId() + "," + last.getId() + ")")) {
+				assertTrue(rs.first());
+				assertEquals(0, rs.getInt(1));
+			}
+		}
+		assertEquals(1, group_parent.getAllChildren().size());
+	}
+
     @Test
     public void testGetAvailableNetworks() {
         Group g1 = new Group("parent", "parent group");
@@ -0,0 +1,174 @@
+package fr.eseo.vsquare.model;
+
+import fr.eseo.vsquare.TestUtils;
+import fr.eseo.vsquare.model.EventLog.EventAction;
+import fr.eseo.vsquare.model.User.UserType;
+import fr.eseo.vsquare.utils.DatabaseManager;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.hql.internal.ast.ASTQueryTranslatorFactory;
+import org.hibernate.hql.spi.QueryTranslator;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Run EXPLAIN on every named query of the model against a seeded database.
+ * <p>
+ * A query fails when MySQL plans a full table scan or a filesort over more than MAX_SCANNED_ROWS rows, which means
+ * that an index is missing (see the sql/v*.sql migrations).
+ */
+public class QueryPlanTest {
+
+	private static final int SEED_SIZE = 500;
+	private static final int MAX_SCANNED_ROWS = 100;
+	// bound to every parameter, valid as a date, a number and a search string
+	private static final String SAMPLE_PARAMETER = "2100-01-01 00:00:00";
+
+	private static final Class<?>[] MODEL_CLASSES = { User.class, Group.class, Vm.class, Token.class,
+			Permission.class, Network.class, Snapshot.class, DownloadLink.class, EventLog.class, ErrorLog.class,
+			RevokedToken.class };
+
+	@Before
+	public void setUp() throws Exception {
+		TestUtils.initTest(true);
+		seed();
+	}
+
+	private static void seed() throws SQLException {
+		List<VSquareObject> objects = new ArrayList<>();
+		List<User> users = new ArrayList<>();
+		List<Group> groups = new ArrayList<>();
+		for (int i = 0; i < SEED_SIZE; i++) {
+			User u = new User("user" + i, UserType.STUDENT, "User " + i);
+			users.add(u);
+			Group g = new Group("group" + i, "group" + i);
+			groups.add(g);
+			objects.add(new Network("network" + i, "network-" + i));
+		}
+		objects.addAll(users);
+		objects.addAll(groups);
+		assertTrue(VSquareObject.saveAll(objects));
+
+		objects.clear();
+		List<Vm> vms = new ArrayList<>();
+		for (int i = 0; i < SEED_SIZE; i++) {
+			User u = users.get(i);
+			Vm v = new Vm(u, "vm-" + i, "vm" + i, "vm" + i);
+			vms.add(v);
+			objects.add(new Token("token" + i, u));
+			objects.add(new ErrorLog(u, "error " + i));
+			objects.add(new ErrorLog(null, "error " + i));
+			objects.add(new EventLog(u, EventAction.CREATE, u));
+			objects.add(new EventLog(u, EventAction.EDIT, groups.get(i)));
+		}
+		objects.addAll(0, vms);
+		assertTrue(VSquareObject.saveAll(objects));
+
+		objects.clear();
+		for (int i = 0; i < SEED_SIZE; i++) {
+			Vm v = vms.get(i);
+			objects.add(new Snapshot(v, "snapshot-" + i, "snapshot" + i, "snapshot" + i));
+			objects.add(new DownloadLink("external" + i, "internal" + i, v));
+			objects.add(new EventLog(v.getUser(), EventAction.POWER_ON, v));
+		}
+		assertTrue(VSquareObject.saveAll(objects));
+
+		try (Statement st = TestUtils.getConnection().createStatement()) {
+			st.execute("ANALYZE TABLE user, user_group, group_closure, vm, token, network, snapshot, download_link, event_log, error_log");
+		}
+	}
+
+	/**
+	 * @return true if the query reads a whole table by design
+	 */
+	private static boolean isFullScanExpected(String name) {
+		// the lists of every object and the LIKE '%...%' fallbacks of the full-text searches
+		return name.endsWith(VSquareObject.GET_ALL) || name.equals(User.SEARCH_SUMMARIES)
+				|| name.startsWith(ErrorLog.SEARCH_LIKE);
+	}
+
+	private static String toSQL(String hql) {
+		SessionFactoryImplementor factory = (SessionFactoryImplementor) DatabaseManager.getSessionFactory();
+		QueryTranslator translator = new ASTQueryTranslatorFactory().createQueryTranslator(hql, hql,
+				Collections.emptyMap(), factory, null);
+		translator.compile(Collections.emptyMap(), false);
+		String sql = translator.getSQLString();
+		// the ordered queries are always paginated
+		if (sql.toLowerCase().contains(" order by "))
+			sql += " limit 10";
+		return sql;
+	}
+
+	private static int countParameters(String sql) {
+		int count = 0;
+		boolean quoted = false;
+		for (char c : sql.toCharArray()) {
+			if (c == '\'')
+				quoted = !quoted;
+			else if (c == '?' && !quoted)
+				count++;
+		}
+		return count;
+	}
+
+	private static List<String> explain(String name, String sql) throws SQLException {
+		List<String> problems = new ArrayList<>();
+		try (PreparedStatement st = TestUtils.getConnection().prepareStatement("EXPLAIN " + sql)) {
+			for (int i = 1; i <= countParameters(sql); i++)
+				st.setString(i, SAMPLE_PARAMETER);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					String type = rs.getString("type");
+					String extra = rs.getString("Extra");
+					long rows = rs.getLong("rows");
+					boolean fullScan = "ALL".equals(type);
+					boolean filesort = extra != null && extra.contains("Using filesort");
+					if ((fullScan || filesort) && rows > MAX_SCANNED_ROWS)
+						problems.add(String.format("%s: %s on %s (%d rows, %s)", name, fullScan ? "full scan" : "filesort",
+								rs.getString("table"), rows, extra));
+				}
+			}
+		}
+		return problems;
+	}
+
+	@Test
+	public void testQueryPlans() throws SQLException {
+		List<String> problems = new ArrayList<>();
+		int explained = 0;
+		for (Class<?> modelClass : MODEL_CLASSES) {
+			NamedQueries queries = modelClass.getAnnotation(NamedQueries.class);
+			if (queries == null)
+				continue;
+			for (NamedQuery query : queries.value()) {
+				if (isFullScanExpected(query.name()))
+					continue;
+				problems.addAll(explain(query.name(), toSQL(query.query())));
+				explained++;
+			}
+		}
+		// the searches of the logs are built from parts (see EventLog.SearchType)
+		for (EventLog.SearchType type : EventLog.SearchType.values()) {
+			if (type.isLike())
+				continue;
+			for (Map.Entry<String, String> query : type.getQueries().entrySet()) {
+				problems.addAll(explain(query.getKey(), toSQL(query.getValue())));
+				explained++;
+			}
+		}
+		assertTrue("No query explained", explained > 0);
+		assertTrue(String.join("\n", problems), problems.isEmpty());
+	}
+}
@@ -0,0 +1,62 @@
+package fr.eseo.vsquare.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.eseo.vsquare.TestUtils;
+
+public class RevokedTokenTest {
+
+	@Before
+	public void setUp() throws Exception {
+		TestUtils.initTest(true);
+	}
+
+	@Test
+	public void testSaveOrUpdate() throws SQLException {
+		RevokedToken r = new RevokedToken("test", new Date(System.currentTimeMillis() + 1000));
+		assertTrue(r.saveOrUpdate());
+
+		try (Statement st = TestUtils.getConnection().createStatement()) {
+			try (ResultSet rs = st.executeQuery("SELECT * FROM revoked_token WHERE 1")) {
+				assertTrue(rs.first());
+				assertEquals((int) r.getId(), rs.getInt("id"));
+				assertEquals("test", rs.getString("token_id"));
+			}
+		}
+		assertEquals(1, RevokedToken.getAll().size());
+	}
+
+	@Test
+	public void testGetValid() {
+		long now = System.currentTimeMillis();
+		assertTrue(new RevokedToken("expired", new Date(now - 1000)).saveOrUpdate());
+		assertTrue(new RevokedToken("valid", new Date(now + 60000)).saveOrUpdate());
+
+		List<RevokedToken> valid = RevokedToken.getValid(new Date(now));
+		assertEquals(1, valid.size());
+		assertEquals("valid", valid.get(0).getTokenId());
+
+		assertEquals(2, RevokedToken.getSince(new Date(now - 60000)).size());
+		assertEquals(0, RevokedToken.getSince(new Date(now + 60000)).size());
+	}
+
+	@Test
+	public void testToJSON() {
+		RevokedToken r = new RevokedToken("test", new Date());
+		assertTrue(r.saveOrUpdate());
+		JSONObject json = r.toJSON();
+		assertEquals((int) r.getId(), json.getInt("id"));
+		assertEquals("test", json.getString("token_id"));
+	}
+}
@@ -321,5 +321,25 @@ public class UserTest {
         groups = User.findById(user.getId()).getGroups();
         assertEquals(1, groups.size());
     }
-	
+
+    @Test
+    public void testGetSummaries() {
+        User admin = new User("admin", UserType.ADMIN, "Admin");
+        assertTrue(admin.saveOrUpdate());
+        User referent = new User("referent", UserType.REFERENT, "Some Referent");
+        assertTrue(referent.saveOrUpdate());
+        User student = new User("student", UserType.STUDENT, "Some Student");
+        assertTrue(student.saveOrUpdate());
+
+        assertEquals(3, User.getSummaries(admin.getType(), null).size());
+        List<User.Summary> list = User.getSummaries(referent.getType(), null);
+        assertEquals(1, list.size());
+        assertEquals((int) student.getId(), list.get(0).getId());
+        assertEquals(student.toJSON().toString(), list.get(0).toJSON().toString());
+        assertTrue(User.getSummaries(student.getType(), null).isEmpty());
+
+        assertEquals(2, User.getSummaries(admin.getType(), "some").size());
+        assertEquals(1, User.getSummaries(admin.getType(), "REFER").size());
+        assertTrue(User.getSummaries(referent.getType(), "refer").isEmpty());
+    }
 }
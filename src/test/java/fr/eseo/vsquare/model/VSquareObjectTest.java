@@ -4,6 +4,8 @@ import java.lang.reflect.Field;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.hibernate.SessionFactory;
@@ -132,4 +134,72 @@ public class VSquareObjectTest {
 
         assertNotEquals(v, u);
 	}
+
+	@Test
+	public void testSaveAll() {
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < 120; i++)
+			users.add(new User("test_user" + i, UserType.STUDENT, "test" + i));
+
+		assertTrue(VSquareObject.saveAll(users));
+
+		for (User u : users)
+			assertNotNull(u.getId());
+		assertEquals(120, User.getAll().size());
+		assertEquals("test42", User.findByLogin("test_user42").getCommonName());
+
+		for (User u : users)
+			u.setType(UserType.REFERENT);
+
+		assertTrue(VSquareObject.saveAll(users));
+
+		assertEquals(UserType.REFERENT, User.findById(users.get(0).getId()).getType());
+		assertEquals(UserType.REFERENT, User.findById(users.get(119).getId()).getType());
+	}
+
+	@Test
+	public void testSaveAllEmpty() {
+		assertTrue(VSquareObject.saveAll(Collections.emptyList()));
+	}
+
+	@Test
+	public void testSaveAllError() {
+		List<User> users = new ArrayList<>();
+		users.add(new User("test_user", UserType.STUDENT, "test"));
+		users.add(new User("test_user", UserType.STUDENT, "test"));
+
+		assertFalse(VSquareObject.saveAll(users));
+
+		assertNull(users.get(0).getId());
+		assertNull(users.get(1).getId());
+		assertEquals(0, User.getAll().size());
+	}
+
+	@Test
+	public void testSaveAllNoDatabase() throws IllegalArgumentException, IllegalAccessException, NoSuchFieldException, SecurityException {
+		Field sessionFactory = DatabaseManager.class.getDeclaredField("sessionFactory");
+		SessionFactory tmp = DatabaseManager.getSessionFactory();
+		sessionFactory.setAccessible(true);
+		sessionFactory.set(DatabaseManager.class, null);
+
+		assertFalse(VSquareObject.saveAll(Collections.singletonList(new User("test_user", UserType.ADMIN, "test"))));
+		assertFalse(VSquareObject.deleteAll(Collections.singletonList(new User("test_user", UserType.ADMIN, "test"))));
+
+		sessionFactory.set(DatabaseManager.class, tmp);
+	}
+
+	@Test
+	public void testDeleteAll() {
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < 120; i++)
+			users.add(new User("test_user" + i, UserType.STUDENT, "test" + i));
+		assertTrue(VSquareObject.saveAll(users));
+
+		int id = users.get(0).getId();
+		assertTrue(VSquareObject.deleteAll(users.subList(0, 100)));
+
+		assertNull(users.get(0).getId());
+		assertNull(User.findById(id));
+		assertEquals(20, User.getAll().size());
+	}
 }
@@ -9,6 +9,7 @@ import org.junit.Test;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -154,4 +155,36 @@ public class VmTest {
 		assertEquals((int)u.getId(),json.getJSONObject("user").getInt("id"));
 		assertEquals(6, json.length());
 	}
+
+	@Test
+	public void testGetSubtreeVms() {
+		Group parent = new Group("parent", "parent group");
+		assertTrue(parent.saveOrUpdate());
+		Group child = new Group("child", "child group", parent);
+		assertTrue(child.saveOrUpdate());
+		User student = new User("student", UserType.STUDENT, "student");
+		student.addGroup(child);
+		assertTrue(student.saveOrUpdate());
+		User referent = new User("referent", UserType.REFERENT, "referent");
+		referent.addGroup(parent);
+		assertTrue(referent.saveOrUpdate());
+		User admin = new User("admin", UserType.ADMIN, "admin");
+		assertTrue(admin.saveOrUpdate());
+
+		assertTrue(new Vm(student, "id1", "vm1", "desc").saveOrUpdate());
+		assertTrue(new Vm(student, "id2", "vm2", "desc").saveOrUpdate());
+		assertTrue(new Vm(referent, "id3", "vm3", "desc").saveOrUpdate());
+		Vm template = new Vm(student, "id4", "template", "desc");
+		template.setTemplate(true);
+		assertTrue(template.saveOrUpdate());
+
+		assertEquals(3, Vm.getSubtreeVms(parent, admin.getType()).size());
+		assertEquals(3, Vm.getSubtreeVms(parent, null).size());
+		assertEquals(2, Vm.getSubtreeVms(child, null).size());
+		List<Vm> vms = Vm.getSubtreeVms(parent, referent.getType());
+		assertEquals(2, vms.size());
+		for (Vm vm : vms)
+			assertEquals(student, vm.getUser());
+		assertTrue(Vm.getSubtreeVms(parent, student.getType()).isEmpty());
+	}
 }
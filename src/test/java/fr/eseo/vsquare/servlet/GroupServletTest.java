@@ -69,6 +69,7 @@ public class GroupServletTest {
 		HttpServletResponse response = TestUtils.createMockResponse(new StringWriter());
 		new GroupServlet().service(request, response);
 		
+		BatchWriter.flushAll();
 		assertEquals(1,ErrorLog.getAll().size());
 	}
 	
@@ -107,6 +108,22 @@ public class GroupServletTest {
 		res = TestUtils.getResponseAsJSON(writer2);
 		assertEquals("200 on /api/groups", HttpServletResponse.SC_OK, res.getInt("code"));
 		assertEquals("3 groups should be present", 3, res.getJSONArray("value").length());
+
+		// case of details with the statistics
+		StringWriter writer3 = new StringWriter();
+		HashMap<String, String> params = new HashMap<>();
+		params.put("details", "true");
+		request = TestUtils.createMockRequest("GET", "/api/groups", params, headers);
+		response = TestUtils.createMockResponse(writer3);
+		new GroupServlet().service(request, response);
+		res = TestUtils.getResponseAsJSON(writer3);
+		assertEquals("200 on /api/groups", HttpServletResponse.SC_OK, res.getInt("code"));
+		for (int i = 0; i < res.getJSONArray("value").length(); i++) {
+			JSONObject group = res.getJSONArray("value").getJSONObject(i);
+			assertFalse(group.has("users"));
+			if (group.getInt("id") == group_parent.getId())
+				assertEquals(1, group.getJSONObject("stats").getInt("users"));
+		}
 	}
 	
 	@Test
@@ -225,6 +242,7 @@ public class GroupServletTest {
 		assertEquals("myDescription", groupJson.getString("description"));
 		assertEquals(parent.getId().intValue(), groupJson.getInt("id_parent_group"));
 		
+		BatchWriter.flushAll();
 		List<EventLog> events = EventLog.getAll();
 		assertEquals(1, events.size());
 		assertEquals(Token.findByValue(token).getUser(), events.get(0).getUser());
@@ -404,6 +422,7 @@ public class GroupServletTest {
 		assertEquals("myDescription", group.getDescription());
 		assertEquals(parent.getId(), group.getParent().getId());
 		
+		BatchWriter.flushAll();
 		List<EventLog> events = EventLog.getAll();
 		assertEquals(1, events.size());
 		assertEquals(Token.findByValue(token).getUser(), events.get(0).getUser());
@@ -433,6 +452,7 @@ public class GroupServletTest {
 		group = Group.findById(grpid);
 		assertNull(group);
 		
+		BatchWriter.flushAll();
 		List<EventLog> events = EventLog.getAll();
 		assertEquals(1, events.size());
 		assertEquals(Token.findByValue(token).getUser(), events.get(0).getUser());
@@ -485,6 +505,7 @@ public class GroupServletTest {
 		student = User.findById(student.getId());
 		assertEquals(1, student.getGroups().size());
 		
+		BatchWriter.flushAll();
 		List<EventLog> events = EventLog.getAll();
 		assertEquals(1, events.size());
 		assertEquals(Token.findByValue(token).getUser(), events.get(0).getUser());
@@ -618,6 +639,7 @@ public class GroupServletTest {
 		group = Group.findById(group.getId());
 		assertEquals(0, group.getUsers().size());
 		
+		BatchWriter.flushAll();
 		List<EventLog> events = EventLog.getAll();
 		assertEquals(1, events.size());
 		assertEquals(Token.findByValue(token).getUser(), events.get(0).getUser());
@@ -1537,6 +1559,7 @@ public class GroupServletTest {
         assertEquals(2, res.getJSONObject("value").getInt("total_success"));
 
         User u = Token.findByValue(token).getUser();
+        BatchWriter.flushAll();
         List<EventLog> events = EventLog.getAll();
         assertEquals(1, events.size());
         assertEquals(u, events.get(0).getUser());
@@ -351,4 +351,45 @@ public class InfoServletTest {
         assertEquals(HttpServletResponse.SC_FORBIDDEN, res.getInt("code"));
     }
 
+    @Test
+    public void testMetrics() throws Exception {
+        String token = TestUtils.login("test", "test", UserType.ADMIN);
+
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put(Utils.getString("auth_token_header"), token);
+
+        StringWriter writer = new StringWriter();
+        HttpServletRequest request = TestUtils.createMockRequest("GET", "/api/metrics", null, headers);
+        HttpServletResponse response = TestUtils.createMockResponse(writer);
+
+        new InfoServlet().service(request, response);
+
+        JSONObject res = TestUtils.getResponseAsJSON(writer);
+        assertEquals(HttpServletResponse.SC_OK, res.getInt("code"));
+        JSONObject value = res.getJSONObject("value");
+        assertTrue(value.getJSONObject("entity_cache").has("hits"));
+        assertTrue(value.getJSONObject("token_cache").has("hits"));
+        assertTrue(value.getJSONObject("signed_tokens").has("verified"));
+        assertTrue(value.getJSONObject("token_reaper").has("deleted"));
+        assertTrue(value.getJSONObject("group_tree").has("version"));
+        assertTrue(value.getJSONObject("db_pools").has("checkouts"));
+    }
+
+    @Test
+    public void testMetricsForbidden() throws Exception {
+        String token = TestUtils.login("test", "test", UserType.STUDENT);
+
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put(Utils.getString("auth_token_header"), token);
+
+        StringWriter writer = new StringWriter();
+        HttpServletRequest request = TestUtils.createMockRequest("GET", "/api/metrics", null, headers);
+        HttpServletResponse response = TestUtils.createMockResponse(writer);
+
+        new InfoServlet().service(request, response);
+
+        JSONObject res = TestUtils.getResponseAsJSON(writer);
+        assertEquals(HttpServletResponse.SC_FORBIDDEN, res.getInt("code"));
+    }
+
 }
@@ -7,7 +7,9 @@ import fr.eseo.vsquare.model.EventLog.EventAction;
 import fr.eseo.vsquare.model.Group;
 import fr.eseo.vsquare.model.User;
 import fr.eseo.vsquare.model.User.UserType;
+import fr.eseo.vsquare.utils.BatchWriter;
 import fr.eseo.vsquare.utils.LDAPUtils;
+import fr.eseo.vsquare.utils.LogArchive;
 import fr.eseo.vsquare.utils.ServletUtils;
 import fr.eseo.vsquare.utils.Utils;
 import org.json.JSONObject;
@@ -30,6 +32,7 @@ import java.util.Date;
 import java.util.HashMap;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 @RunWith(PowerMockRunner.class)
 @PowerMockIgnore({"java.*","javax.*","org.*","fr.eseo.vsquare.model.*","fr.eseo.vsquare.utils.DatabaseManager"})
@@ -72,6 +75,7 @@ public class LogServletTest {
 		HttpServletResponse response = TestUtils.createMockResponse(new StringWriter());
 		new LogServlet().service(request, response);
 		
+		BatchWriter.flushAll();
 		assertEquals(1,ErrorLog.getAll().size());
 	}
 	
@@ -273,6 +277,162 @@ public class LogServletTest {
 		assertEquals("30", value.getJSONArray("list").getJSONObject(0).getJSONObject("object").getString("name"));
 		assertEquals("39", value.getJSONArray("list").getJSONObject(9).getJSONObject("object").getString("name"));
 	}
+
+	@Test
+	public void testListEventsCursor() throws ServletException, IOException, NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+		
+		User u = new User("test_user", UserType.ADMIN, "test");
+		u.saveOrUpdate();
+		for(int i = 0; i < 25; i++) {
+			Group g = new Group(""+i, ""+i);
+			g.saveOrUpdate();
+			EventLog e = new EventLog(u, EventAction.CREATE, g);
+			e.saveOrUpdate();
+			TestUtils.changeVSquareObjectDate(e,new Date(System.currentTimeMillis() - i* 1000));
+			e.saveOrUpdate();
+		}
+		
+		String token = TestUtils.login("test", "test", UserType.ADMIN);
+
+		HashMap<String,String> headers = new HashMap<>();
+		headers.put(Utils.getString("auth_token_header"), token);
+		
+		HashMap<String,String> params = new HashMap<>();
+		params.put("page", "1");
+		params.put("page_size", "10");
+		
+		StringWriter writer = new StringWriter();
+		HttpServletRequest request = TestUtils.createMockRequest("GET","/api/log/events", params, headers);
+		HttpServletResponse response = TestUtils.createMockResponse(writer);
+		
+		new LogServlet().service(request, response);
+		
+		JSONObject res = TestUtils.getResponseAsJSON(writer);
+		assertEquals(200,res.getInt("code"));
+		JSONObject value = res.getJSONObject("value");
+		assertEquals("19", value.getJSONArray("list").getJSONObject(9).getJSONObject("object").getString("name"));
+		
+		params = new HashMap<>();
+		params.put("cursor", value.getString("next_cursor"));
+		params.put("page_size", "10");
+		
+		writer = new StringWriter();
+		request = TestUtils.createMockRequest("GET","/api/log/events", params, headers);
+		response = TestUtils.createMockResponse(writer);
+		
+		new LogServlet().service(request, response);
+		
+		res = TestUtils.getResponseAsJSON(writer);
+		assertEquals(200,res.getInt("code"));
+		value = res.getJSONObject("value");
+		assertEquals(5,value.getInt("count"));
+		assertEquals("20", value.getJSONArray("list").getJSONObject(0).getJSONObject("object").getString("name"));
+		assertEquals("24", value.getJSONArray("list").getJSONObject(4).getJSONObject("object").getString("name"));
+		assertFalse(value.has("next_cursor"));
+		
+		params.put("cursor", "test");
+		
+		writer = new StringWriter();
+		request = TestUtils.createMockRequest("GET","/api/log/events", params, headers);
+		response = TestUtils.createMockResponse(writer);
+		
+		new LogServlet().service(request, response);
+		
+		res = TestUtils.getResponseAsJSON(writer);
+		assertEquals(400,res.getInt("code"));
+	}
+
+	@Test
+	public void testListEventsArchive() throws ServletException, IOException, NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+
+		User u = new User("test_user", UserType.ADMIN, "test");
+		u.saveOrUpdate();
+		long now = System.currentTimeMillis();
+		long day = 24 * 3600 * 1000L;
+		for(int i = 0; i < 25; i++) {
+			Group g = new Group(""+i, ""+i);
+			g.saveOrUpdate();
+			EventLog e = new EventLog(u, EventAction.CREATE, g);
+			e.saveOrUpdate();
+			TestUtils.changeVSquareObjectDate(e,new Date(now - i * day));
+			e.saveOrUpdate();
+		}
+		assertEquals(14, LogArchive.archiveBefore(new Date(now - 10 * day - day / 2)));
+
+		String token = TestUtils.login("test", "test", UserType.ADMIN);
+
+		HashMap<String,String> headers = new HashMap<>();
+		headers.put(Utils.getString("auth_token_header"), token);
+
+		HashMap<String,String> params = new HashMap<>();
+		params.put("page", "1");
+		params.put("page_size", "10");
+		params.put("from", "0");
+
+		StringWriter writer = new StringWriter();
+		HttpServletRequest request = TestUtils.createMockRequest("GET","/api/log/events", params, headers);
+		HttpServletResponse response = TestUtils.createMockResponse(writer);
+
+		new LogServlet().service(request, response);
+
+		JSONObject res = TestUtils.getResponseAsJSON(writer);
+		assertEquals(200,res.getInt("code"));
+		JSONObject value = res.getJSONObject("value");
+		assertEquals(25, value.getInt("total_count"));
+		assertEquals(10, value.getInt("count"));
+		assertEquals("10", value.getJSONArray("list").getJSONObject(0).getJSONObject("object").getString("name"));
+		assertEquals("19", value.getJSONArray("list").getJSONObject(9).getJSONObject("object").getString("name"));
+
+		params = new HashMap<>();
+		params.put("cursor", value.getString("next_cursor"));
+		params.put("page_size", "10");
+		params.put("from", "0");
+
+		writer = new StringWriter();
+		request = TestUtils.createMockRequest("GET","/api/log/events", params, headers);
+		response = TestUtils.createMockResponse(writer);
+
+		new LogServlet().service(request, response);
+
+		res = TestUtils.getResponseAsJSON(writer);
+		assertEquals(200,res.getInt("code"));
+		value = res.getJSONObject("value");
+		assertEquals(5,value.getInt("count"));
+		assertEquals("20", value.getJSONArray("list").getJSONObject(0).getJSONObject("object").getString("name"));
+		assertFalse(value.has("next_cursor"));
+
+		params.remove("cursor");
+		params.remove("from");
+		params.put("page", "0");
+
+		writer = new StringWriter();
+		request = TestUtils.createMockRequest("GET","/api/log/events", params, headers);
+		response = TestUtils.createMockResponse(writer);
+
+		new LogServlet().service(request, response);
+
+		res = TestUtils.getResponseAsJSON(writer);
+		assertEquals(200,res.getInt("code"));
+		assertEquals(11, res.getJSONObject("value").getInt("total_count"));
+
+		// a page in the archive is skipped from the exact count of the database, even with approx
+		params.put("page", "2");
+		params.put("from", "0");
+		params.put("approx", "true");
+
+		writer = new StringWriter();
+		request = TestUtils.createMockRequest("GET","/api/log/events", params, headers);
+		response = TestUtils.createMockResponse(writer);
+
+		new LogServlet().service(request, response);
+
+		res = TestUtils.getResponseAsJSON(writer);
+		assertEquals(200,res.getInt("code"));
+		value = res.getJSONObject("value");
+		assertEquals(25, value.getInt("total_count"));
+		assertEquals(5, value.getInt("count"));
+		assertEquals("20", value.getJSONArray("list").getJSONObject(0).getJSONObject("object").getString("name"));
+	}
 	
 	@Test
 	public void testListErrors() throws ServletException, IOException, NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
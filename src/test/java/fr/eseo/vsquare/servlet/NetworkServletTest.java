@@ -66,6 +66,7 @@ public class NetworkServletTest {
         HttpServletResponse response = TestUtils.createMockResponse(new StringWriter());
         new NetworkServlet().service(request, response);
 
+        BatchWriter.flushAll();
         assertEquals(1, ErrorLog.getAll().size());
     }
 
@@ -0,0 +1,146 @@
+package fr.eseo.vsquare.servlet;
+
+import fr.eseo.vsquare.TestUtils;
+import fr.eseo.vsquare.model.Group;
+import fr.eseo.vsquare.model.Network;
+import fr.eseo.vsquare.model.User;
+import fr.eseo.vsquare.model.User.UserType;
+import fr.eseo.vsquare.utils.DatabaseManager;
+import fr.eseo.vsquare.utils.LDAPUtils;
+import fr.eseo.vsquare.utils.Utils;
+import fr.eseo.vsquare.utils.VCenterManager;
+import org.hibernate.stat.Statistics;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Count the sessions opened by the endpoints reading the associations of the model.
+ * <p>
+ * The associations are read by explicit queries, so the number of sessions of a request does not depend on the
+ * number of groups, users or networks it lists (no lazy loading in a session opened per element).
+ */
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"java.*", "javax.*", "org.*", "fr.eseo.vsquare.model.*", "fr.eseo.vsquare.utils.DatabaseManager"})
+@PrepareForTest({LDAPUtils.class, VCenterManager.class})
+public class SessionCountTest {
+
+	private Statistics statistics;
+	private String token;
+	private Group root;
+	private User member;
+
+	@Before
+	public void setUp() throws Exception {
+		TestUtils.initTest(true);
+		token = TestUtils.login("test", "test", UserType.ADMIN);
+		root = new Group("root", "root");
+		assertTrue(root.saveOrUpdate());
+		member = new User("member", UserType.STUDENT, "member");
+		assertTrue(member.saveOrUpdate());
+
+		PowerMockito.mockStatic(VCenterManager.class);
+		PowerMockito.doReturn(5).when(VCenterManager.class);
+		VCenterManager.getNetworkMaxPorts(Mockito.anyString());
+
+		statistics = DatabaseManager.getSessionFactory().getStatistics();
+		statistics.setStatisticsEnabled(true);
+	}
+
+	@After
+	public void tearDown() {
+		statistics.setStatisticsEnabled(false);
+	}
+
+	/**
+	 * Add subgroups of the root group with the member and a network.
+	 */
+	private void addGroups(int from, int to) {
+		for (int i = from; i < to; i++) {
+			Group group = new Group("group" + i, "group" + i, root);
+			assertTrue(group.saveOrUpdate());
+			member.addGroup(group);
+			Network network = new Network("network" + i, "network-" + i);
+			network.addGroup(group);
+			assertTrue(network.saveOrUpdate());
+		}
+		assertTrue(member.saveOrUpdate());
+	}
+
+	private JSONObject call(HttpServlet servlet, String uri, Map<String, String> params) throws Exception {
+		HashMap<String, String> headers = new HashMap<>();
+		headers.put(Utils.getString("auth_token_header"), token);
+		StringWriter writer = new StringWriter();
+		HttpServletRequest request = TestUtils.createMockRequest("GET", uri, params, headers);
+		HttpServletResponse response = TestUtils.createMockResponse(writer);
+		servlet.service(request, response);
+		JSONObject res = TestUtils.getResponseAsJSON(writer);
+		assertEquals(uri, HttpServletResponse.SC_OK, res.getInt("code"));
+		return res;
+	}
+
+	/**
+	 * Call an endpoint a first time to fill the caches, then count the sessions opened by a second call.
+	 */
+	private long countSessions(HttpServlet servlet, String uri, Map<String, String> params) throws Exception {
+		call(servlet, uri, params);
+		statistics.clear();
+		call(servlet, uri, params);
+		return statistics.getSessionOpenCount();
+	}
+
+	private void assertConstantSessions(HttpServlet servlet, String uri, Map<String, String> params) throws Exception {
+		addGroups(0, 2);
+		long sessions = countSessions(servlet, uri, params);
+		addGroups(2, 10);
+		assertEquals(uri, sessions, countSessions(servlet, uri, params));
+	}
+
+	@Test
+	public void testUserDetails() throws Exception {
+		assertConstantSessions(new UserServlet(), "/api/user/" + member.getId(), null);
+		JSONObject res = call(new UserServlet(), "/api/user/" + member.getId(), null);
+		assertEquals(member.getGroups().size(), res.getJSONObject("value").getJSONArray("groups_id").length());
+	}
+
+	@Test
+	public void testGroupDetails() throws Exception {
+		assertConstantSessions(new GroupServlet(), "/api/group/" + root.getId(), null);
+		JSONObject res = call(new GroupServlet(), "/api/group/" + root.getId(), null);
+		assertEquals(1, res.getJSONObject("value").getInt("number_users"));
+	}
+
+	@Test
+	public void testGroupList() throws Exception {
+		HashMap<String, String> params = new HashMap<>();
+		params.put("details", "true");
+		assertConstantSessions(new GroupServlet(), "/api/groups", params);
+	}
+
+	@Test
+	public void testNetworkList() throws Exception {
+		HashMap<String, String> params = new HashMap<>();
+		params.put("details", "true");
+		assertConstantSessions(new NetworkServlet(), "/api/networks", params);
+		JSONObject res = call(new NetworkServlet(), "/api/networks", params);
+		assertEquals(10, res.getJSONArray("value").length());
+		assertEquals(1, res.getJSONArray("value").getJSONObject(0).getJSONArray("groups").length());
+	}
+}
@@ -7,6 +7,7 @@ import fr.eseo.vsquare.model.EventLog.EventAction;
 import fr.eseo.vsquare.model.Token;
 import fr.eseo.vsquare.model.User;
 import fr.eseo.vsquare.model.User.UserType;
+import fr.eseo.vsquare.utils.BatchWriter;
 import fr.eseo.vsquare.utils.LDAPUtils;
 import fr.eseo.vsquare.utils.ServletUtils;
 import fr.eseo.vsquare.utils.Utils;
@@ -75,6 +76,7 @@ public class UserServletTest {
 		HttpServletResponse response = TestUtils.createMockResponse(new StringWriter());
 		new UserServlet().service(request, response);
 		
+		BatchWriter.flushAll();
 		assertEquals(1,ErrorLog.getAll().size());
 	}
 	
@@ -301,6 +303,7 @@ public class UserServletTest {
 		u = User.findById(u.getId());
 		assertEquals(UserType.ADMIN, u.getType());
 		
+		BatchWriter.flushAll();
 		List<EventLog> events = EventLog.getAll();
 		assertEquals(1, events.size());
 		assertEquals(Token.findByValue(token).getUser(), events.get(0).getUser());
@@ -316,11 +319,10 @@ public class UserServletTest {
 		
 		String token = TestUtils.login("test", "test", UserType.ADMIN);
 		
-		ArrayList<String> list = new ArrayList<>();
-		list.add("test2");
+		HashMap<String, String> ldapUsers = new HashMap<>();
+		ldapUsers.put("test2", "unknown");
 
-        Mockito.when(LDAPUtils.getCommonName("test2")).thenReturn("unknown");
-		Mockito.when(LDAPUtils.scrapLDAP()).thenReturn(list);
+		Mockito.when(LDAPUtils.scrapUsers(null)).thenReturn(ldapUsers);
 		
 		HashMap<String,String> headers = new HashMap<>();
 		headers.put(Utils.getString("auth_token_header"), token);
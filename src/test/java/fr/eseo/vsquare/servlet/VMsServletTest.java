@@ -88,6 +88,7 @@ public class VMsServletTest {
 		HttpServletResponse response = TestUtils.createMockResponse(new StringWriter());
 		new VMsServlet().service(request, response);
 
+		BatchWriter.flushAll();
 		assertEquals(1, ErrorLog.getAll().size());
 	}
 
@@ -2594,6 +2595,7 @@ public class VMsServletTest {
 		JSONObject res = TestUtils.getResponseAsJSON(writer);
 		assertEquals(200, res.getInt("code"));
 
+		BatchWriter.flushAll();
 		List<EventLog> events = EventLog.getAll();
 		assertEquals(1, events.size());
 		assertEquals(Token.findByValue(token).getUser(), events.get(0).getUser());
@@ -2791,6 +2793,7 @@ public class VMsServletTest {
 		assertEquals(2, res.getJSONObject("value").getInt("total_success"));
 
 		User u = Token.findByValue(token).getUser();
+		BatchWriter.flushAll();
 		List<EventLog> events = EventLog.getAll();
 		assertEquals(1, events.size());
 		assertEquals(u, events.get(0).getUser());
@@ -0,0 +1,77 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.TestUtils;
+import fr.eseo.vsquare.model.ErrorLog;
+import fr.eseo.vsquare.model.EventLog;
+import fr.eseo.vsquare.model.EventLog.EventAction;
+import fr.eseo.vsquare.model.Group;
+import fr.eseo.vsquare.model.User;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BatchWriterTest {
+
+	@Before
+	public void setUp() throws Exception {
+		TestUtils.initTest(true);
+	}
+
+	@Test
+	public void testWrite() {
+		BatchWriter<ErrorLog> writer = new BatchWriter<>("event_log");
+		for (int i = 0; i < 10; i++)
+			writer.write(new ErrorLog(null, "test" + i));
+		writer.flush();
+
+		assertEquals(10, ErrorLog.getAll().size());
+		JSONObject metrics = writer.getMetrics();
+		assertEquals(10, metrics.getInt("written"));
+		assertEquals(0, metrics.getInt("pending"));
+		assertEquals(0, metrics.getInt("queue_depth"));
+		assertEquals(0, metrics.getInt("sync_writes"));
+		writer.shutdown();
+	}
+
+	@Test
+	public void testWriteUnitOfWork() {
+		BatchWriter<ErrorLog> writer = new BatchWriter<>("event_log");
+		DatabaseManager.beginUnitOfWork();
+		writer.write(new ErrorLog(null, "test"));
+		DatabaseManager.endUnitOfWork(false);
+
+		// the log is rolled back with the unit of work
+		writer.flush();
+		assertEquals(0, ErrorLog.getAll().size());
+		assertEquals(1, writer.getMetrics().getInt("sync_writes"));
+		writer.shutdown();
+	}
+
+	@Test
+	public void testShutdown() {
+		BatchWriter<ErrorLog> writer = new BatchWriter<>("event_log");
+		writer.write(new ErrorLog(null, "test"));
+		writer.shutdown();
+		assertEquals(1, ErrorLog.getAll().size());
+
+		writer.write(new ErrorLog(null, "test"));
+		assertEquals(2, ErrorLog.getAll().size());
+		assertFalse(writer.getMetrics().getBoolean("async"));
+	}
+
+	@Test
+	public void testEventLog() {
+		User u = new User("test", "test");
+		assertTrue(u.saveOrUpdate());
+		Group g = new Group("test", "test");
+		assertTrue(g.saveOrUpdate());
+		for (int i = 0; i < 5; i++)
+			EventLog.log(u, EventAction.EDIT, g);
+
+		BatchWriter.flushAll();
+		assertEquals(5, EventLog.getAll().size());
+		assertTrue(BatchWriter.getAllMetrics().has("event_log"));
+	}
+}
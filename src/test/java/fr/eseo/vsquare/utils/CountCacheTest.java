@@ -0,0 +1,93 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.TestUtils;
+import fr.eseo.vsquare.model.ErrorLog;
+import fr.eseo.vsquare.model.EventLog;
+import fr.eseo.vsquare.model.User;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CountCacheTest {
+
+	@Before
+	public void setUp() throws Exception {
+		TestUtils.initTest(true);
+	}
+
+	@Test
+	public void testGet() {
+		AtomicInteger loads = new AtomicInteger();
+		assertEquals(3, CountCache.get(EventLog.class, "test", false, () -> loads.incrementAndGet() + 2));
+		assertEquals(3, CountCache.get(EventLog.class, "TEST", false, () -> loads.incrementAndGet() + 2));
+		assertEquals(1, loads.get());
+		assertEquals(4, CountCache.get(ErrorLog.class, "test", false, () -> loads.incrementAndGet() + 2));
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testInsert() {
+		assertEquals(0, ErrorLog.count(null));
+		assertEquals(0, ErrorLog.count("test"));
+
+		long misses = CountCache.getMetrics().getLong("misses");
+		assertTrue(new ErrorLog(null, "test").saveOrUpdate());
+
+		// the unfiltered count is updated, the filtered one is loaded again
+		assertEquals(1, ErrorLog.count(null));
+		assertEquals(1, ErrorLog.count("test"));
+		assertEquals(misses + 1, CountCache.getMetrics().getLong("misses"));
+	}
+
+	@Test
+	public void testUnitOfWork() {
+		assertEquals(0, ErrorLog.count(null));
+		long misses = CountCache.getMetrics().getLong("misses");
+
+		assertTrue(DatabaseManager.beginUnitOfWork());
+		assertTrue(new ErrorLog(null, "test").saveOrUpdate());
+		assertFalse(DatabaseManager.endUnitOfWork(false));
+
+		// the count is only updated once the insert is committed
+		assertEquals(0, ErrorLog.count(null));
+		assertTrue(DatabaseManager.beginUnitOfWork());
+		assertTrue(new ErrorLog(null, "test").saveOrUpdate());
+		assertTrue(DatabaseManager.endUnitOfWork(true));
+		assertEquals(1, ErrorLog.count(null));
+		assertEquals(misses, CountCache.getMetrics().getLong("misses"));
+	}
+
+	@Test
+	public void testApprox() {
+		assertEquals(0, ErrorLog.count("test", true));
+		assertTrue(new ErrorLog(null, "test").saveOrUpdate());
+
+		assertEquals(0, ErrorLog.count("test", true));
+		assertEquals(1, ErrorLog.count("test", false));
+		assertEquals(1, ErrorLog.count(null, true));
+	}
+
+	@Test
+	public void testDelete() {
+		User u = new User("test", "test");
+		assertTrue(u.saveOrUpdate());
+		assertTrue(new ErrorLog(u, "test").saveOrUpdate());
+		assertEquals(1, ErrorLog.count(null));
+
+		// the error log is deleted by cascade
+		assertTrue(u.delete());
+		assertEquals(0, ErrorLog.count(null));
+	}
+
+	@Test
+	public void testGetMetrics() {
+		CountCache.get(EventLog.class, null, false, () -> 1);
+		JSONObject metrics = CountCache.getMetrics();
+		assertEquals(1, metrics.getInt("size"));
+		assertTrue(metrics.has("hits"));
+	}
+}
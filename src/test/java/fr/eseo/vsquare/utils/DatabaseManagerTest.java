@@ -5,6 +5,7 @@ import fr.eseo.vsquare.model.Group;
 import fr.eseo.vsquare.model.User;
 import fr.eseo.vsquare.model.User.UserType;
 import org.hibernate.SessionFactory;
+import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -16,6 +17,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -70,6 +72,126 @@ public class DatabaseManagerTest {
 		DatabaseManager.setDefaultConnectionString(TestUtils.DB_CONNECTION_STRING);
 	}
 
+	@Test
+	public void testOpenConnectionPooled() throws SQLException {
+		long checkouts = DatabaseManager.getPoolMetrics().getLong("checkouts");
+		for (int i = 0; i < 5; i++) {
+			try (Connection conn = DatabaseManager.openConnection()) {
+				assertTrue(conn.isValid(1));
+			}
+		}
+
+		JSONObject metrics = DatabaseManager.getPoolMetrics();
+		assertEquals(checkouts + 5, metrics.getLong("checkouts"));
+		assertTrue(metrics.getJSONArray("jdbc").length() > 0);
+		assertTrue(metrics.getJSONArray("jdbc").getJSONObject(0).has("active"));
+		assertTrue(metrics.getJSONArray("jdbc").getJSONObject(0).has("idle"));
+		assertTrue(metrics.has("checkout_wait_max"));
+		assertTrue(metrics.has("checkout_timeouts"));
+		assertTrue(metrics.getJSONObject("hibernate").has("active"));
+	}
+
+	@Test
+	public void testReadFromReplica() throws SQLException {
+		TestUtils.emptyDatabase();
+		User u = new User("test_user", UserType.ADMIN, "test");
+		u.saveOrUpdate();
+
+		assertFalse(DatabaseManager.getReplicaMetrics().getBoolean("enabled"));
+		assertEquals(1, DatabaseManager.readFromReplica(User::getAll).size());
+
+		DatabaseManager.initReplica(TestUtils.DB_CONNECTION_STRING);
+		try {
+			assertTrue(DatabaseManager.getReplicaMetrics().getBoolean("enabled"));
+			assertFalse(DatabaseManager.isReadingFromReplica());
+
+			List<User> users = DatabaseManager.readFromReplica(() -> {
+				assertTrue(DatabaseManager.isReadingFromReplica());
+				return User.getAll();
+			});
+			assertEquals(1, users.size());
+			assertEquals(u, users.get(0));
+			assertEquals(u, DatabaseManager.readFromReplica(() -> User.findByLogin("test_user")));
+
+			assertTrue(DatabaseManager.beginUnitOfWork());
+			DatabaseManager.readFromReplica(() -> {
+				assertFalse(DatabaseManager.isReadingFromReplica());
+				return null;
+			});
+			DatabaseManager.endUnitOfWork(true);
+		} finally {
+			DatabaseManager.initReplica(null);
+		}
+		assertFalse(DatabaseManager.getReplicaMetrics().getBoolean("enabled"));
+	}
+
+	private static void setStaticField(String name, Object value) throws ReflectiveOperationException {
+		Field field = DatabaseManager.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(null, value);
+	}
+
+	private static List<User> readUsersFromReplica(String lagQuery) throws ReflectiveOperationException {
+		setStaticField("replicaLagQuery", lagQuery);
+		setStaticField("replicaLagCheckTime", 0L);
+		setStaticField("replicaRetryTime", 0L);
+		return DatabaseManager.readFromReplica(User::getAll);
+	}
+
+	@Test
+	public void testReplicaLag() throws Exception {
+		TestUtils.emptyDatabase();
+		assertTrue(new User("test_user", UserType.ADMIN, "test").saveOrUpdate());
+
+		DatabaseManager.initReplica(TestUtils.DB_CONNECTION_STRING);
+		try {
+			long reads = DatabaseManager.getReplicaMetrics().getLong("reads");
+			assertEquals(1, readUsersFromReplica("SELECT 1 AS Seconds_Behind_Master").size());
+			JSONObject metrics = DatabaseManager.getReplicaMetrics();
+			assertEquals(1, metrics.getLong("lag"));
+			assertTrue(metrics.getBoolean("available"));
+			assertEquals(reads + 1, metrics.getLong("reads"));
+
+			// a late replica is left for db_replica_retry_delay, the reads go to the primary database
+			assertEquals(1, readUsersFromReplica(
+					"SELECT " + (Utils.getInt("db_replica_max_lag") + 1) + " AS Seconds_Behind_Master").size());
+			metrics = DatabaseManager.getReplicaMetrics();
+			assertFalse(metrics.getBoolean("available"));
+			assertEquals(reads + 1, metrics.getLong("reads"));
+			assertEquals(1, DatabaseManager.readFromReplica(User::getAll).size());
+			assertEquals(reads + 1, DatabaseManager.getReplicaMetrics().getLong("reads"));
+		} finally {
+			setStaticField("replicaLagQuery", Utils.getString("db_replica_lag_query"));
+			DatabaseManager.initReplica(null);
+		}
+	}
+
+	@Test
+	public void testReplicaLagUnknown() throws Exception {
+		TestUtils.emptyDatabase();
+		assertTrue(new User("test_user", UserType.ADMIN, "test").saveOrUpdate());
+
+		DatabaseManager.initReplica(TestUtils.DB_CONNECTION_STRING);
+		try {
+			long reads = DatabaseManager.getReplicaMetrics().getLong("reads");
+			// the replication is stopped
+			assertEquals(1, readUsersFromReplica("SELECT NULL AS Seconds_Behind_Master").size());
+			assertEquals(-1, DatabaseManager.getReplicaMetrics().getLong("lag"));
+			assertFalse(DatabaseManager.getReplicaMetrics().getBoolean("available"));
+			// the lag cannot be read, like SHOW SLAVE STATUS without the REPLICATION CLIENT grant
+			assertEquals(1, readUsersFromReplica("SELECT Seconds_Behind_Master FROM missing_table").size());
+			assertEquals(-1, DatabaseManager.getReplicaMetrics().getLong("lag"));
+			assertEquals(reads, DatabaseManager.getReplicaMetrics().getLong("reads"));
+			// a server which is not replicating has no lag
+			assertEquals(1, readUsersFromReplica("SELECT 1 FROM DUAL WHERE 1 = 0").size());
+			assertEquals(0, DatabaseManager.getReplicaMetrics().getLong("lag"));
+			assertEquals(reads + 1, DatabaseManager.getReplicaMetrics().getLong("reads"));
+		} finally {
+			setStaticField("replicaLagQuery", Utils.getString("db_replica_lag_query"));
+			DatabaseManager.initReplica(null);
+		}
+	}
+
 	@Test
 	public void testGetFirstFromSessionQueryNamed() throws SQLException {
 		TestUtils.emptyDatabase();
@@ -140,6 +262,66 @@ public class DatabaseManagerTest {
 		assertNull(obj);
 	}
 	
+	@Test
+	public void testGetFirstFromNamedQuery() throws SQLException {
+		TestUtils.emptyDatabase();
+		User u = new User("test_user", UserType.ADMIN, "test");
+		u.saveOrUpdate();
+
+		Object obj = DatabaseManager.getFirstFromNamedQuery("User.findByLogin", "test_user");
+
+		assertTrue(obj instanceof User);
+		assertEquals(u, obj);
+
+		assertNull(DatabaseManager.getFirstFromNamedQuery("User.findByLogin", "test_user2"));
+	}
+
+	@Test
+	public void testGetFirstFromNamedQueryError() throws SQLException {
+		TestUtils.emptyDatabase();
+
+		assertNull(DatabaseManager.getFirstFromNamedQuery("User.invalidQueryName", "test_user"));
+		assertTrue(DatabaseManager.getRowsFromNamedQuery("User.invalidQueryName").isEmpty());
+	}
+
+	@Test
+	public void testGetRowsFromNamedQuery() throws SQLException {
+		TestUtils.emptyDatabase();
+		User u1 = new User("test_user", UserType.ADMIN, "test");
+		u1.saveOrUpdate();
+		User u2 = new User("test_user2", UserType.ADMIN, "test2");
+		u2.saveOrUpdate();
+
+		List<User> lst = DatabaseManager.getRowsFromNamedQuery("User.getAll");
+
+		assertEquals(2, lst.size());
+		assertTrue(lst.contains(u1));
+		assertTrue(lst.contains(u2));
+
+		lst = DatabaseManager.getExtractFromNamedQuery("User.getAll", 1, 1);
+
+		assertEquals(1, lst.size());
+	}
+
+	@Test
+	public void testGetById() throws SQLException, IllegalArgumentException, IllegalAccessException, NoSuchFieldException, SecurityException {
+		TestUtils.emptyDatabase();
+		User u = new User("test_user", UserType.ADMIN, "test");
+		u.saveOrUpdate();
+
+		assertEquals(u, DatabaseManager.getById(User.class, u.getId()));
+		assertNull(DatabaseManager.getById(User.class, u.getId() + 1));
+
+		Field sessionFactory = DatabaseManager.class.getDeclaredField("sessionFactory");
+		SessionFactory tmp = DatabaseManager.getSessionFactory();
+		sessionFactory.setAccessible(true);
+		sessionFactory.set(DatabaseManager.class, null);
+
+		assertNull(DatabaseManager.getById(User.class, u.getId()));
+
+		sessionFactory.set(DatabaseManager.class, tmp);
+	}
+
 	@Test
 	public void testGetRowsFromSessionQueryNamed() throws SQLException {
 		TestUtils.emptyDatabase();
@@ -211,4 +393,97 @@ public class DatabaseManagerTest {
 		assertEquals(0, lst.size());
 	}
 
+	@Test
+	public void testUnitOfWorkCommit() throws SQLException {
+		TestUtils.emptyDatabase();
+		assertTrue(DatabaseManager.beginUnitOfWork());
+		assertTrue(DatabaseManager.isUnitOfWorkActive());
+		assertFalse(DatabaseManager.beginUnitOfWork());
+
+		User u = new User("test_user", UserType.ADMIN, "test");
+		assertTrue(u.saveOrUpdate());
+
+		User u2 = DatabaseManager.getFirstFromSessionQuery("FROM User WHERE id = ?0", u.getId());
+		User u3 = DatabaseManager.getFirstFromSessionQuery("FROM User WHERE login = ?0", "test_user");
+		assertSame(u, u2);
+		assertSame(u2, u3);
+
+		assertTrue(DatabaseManager.endUnitOfWork(true));
+		assertFalse(DatabaseManager.isUnitOfWorkActive());
+
+		try (Statement st = TestUtils.getConnection().createStatement()) {
+			try (ResultSet rs = st.executeQuery("SELECT * FROM user WHERE 1")) {
+				assertTrue(rs.first());
+			}
+		}
+	}
+
+	@Test
+	public void testUnitOfWorkRollback() throws SQLException {
+		TestUtils.emptyDatabase();
+		assertTrue(DatabaseManager.beginUnitOfWork());
+
+		User u = new User("test_user", UserType.ADMIN, "test");
+		assertTrue(u.saveOrUpdate());
+
+		assertFalse(DatabaseManager.endUnitOfWork(false));
+
+		try (Statement st = TestUtils.getConnection().createStatement()) {
+			try (ResultSet rs = st.executeQuery("SELECT * FROM user WHERE 1")) {
+				assertFalse(rs.first());
+			}
+		}
+	}
+
+	@Test
+	public void testUnitOfWorkRollbackOnError() throws SQLException {
+		TestUtils.emptyDatabase();
+		assertTrue(DatabaseManager.beginUnitOfWork());
+
+		User u = new User("test_user", UserType.ADMIN, "test");
+		assertTrue(u.saveOrUpdate());
+		assertEquals(0, DatabaseManager.getRowsFromSessionQuery("FROM Userd WHERE id = ?0", u.getId()).size());
+
+		assertFalse(DatabaseManager.endUnitOfWork(true));
+
+		try (Statement st = TestUtils.getConnection().createStatement()) {
+			try (ResultSet rs = st.executeQuery("SELECT * FROM user WHERE 1")) {
+				assertFalse(rs.first());
+			}
+		}
+	}
+
+	@Test
+	public void testRunAfterCommit() {
+		AtomicInteger runs = new AtomicInteger();
+		DatabaseManager.runAfterCommit(runs::incrementAndGet);
+		assertEquals(1, runs.get());
+
+		assertTrue(DatabaseManager.beginUnitOfWork());
+		DatabaseManager.runAfterCommit(runs::incrementAndGet);
+		DatabaseManager.runAfterCommit(() -> {
+			throw new IllegalStateException("test");
+		});
+		DatabaseManager.runAfterCommit(runs::incrementAndGet);
+		assertEquals(1, runs.get());
+		assertTrue(DatabaseManager.endUnitOfWork(true));
+		assertEquals(3, runs.get());
+
+		assertTrue(DatabaseManager.beginUnitOfWork());
+		DatabaseManager.runAfterCommit(runs::incrementAndGet);
+		assertFalse(DatabaseManager.endUnitOfWork(false));
+		assertEquals(3, runs.get());
+
+		// the actions of a rolled back unit of work are not kept for the next one
+		assertTrue(DatabaseManager.beginUnitOfWork());
+		assertTrue(DatabaseManager.endUnitOfWork(true));
+		assertEquals(3, runs.get());
+	}
+
+	@Test
+	public void testEndUnitOfWorkNotStarted() {
+		assertFalse(DatabaseManager.isUnitOfWorkActive());
+		assertFalse(DatabaseManager.endUnitOfWork(true));
+	}
+
 }
@@ -0,0 +1,213 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.TestUtils;
+import fr.eseo.vsquare.model.ErrorLog;
+import fr.eseo.vsquare.model.Token;
+import fr.eseo.vsquare.model.User;
+import fr.eseo.vsquare.model.User.UserType;
+import fr.eseo.vsquare.model.VSquareObject;
+import fr.eseo.vsquare.model.Vm;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
+
+public class EntityCacheTest {
+
+	private static void setMaxSize(int maxSize) throws ReflectiveOperationException {
+		Field field = EntityCache.class.getDeclaredField("maxSize");
+		field.setAccessible(true);
+		field.set(null, maxSize);
+	}
+
+	private static void setTimeToLive(long timeToLive) throws ReflectiveOperationException {
+		Field field = EntityCache.class.getDeclaredField("timeToLive");
+		field.setAccessible(true);
+		field.set(null, timeToLive);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		TestUtils.initTest(true);
+		setMaxSize(1000);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		EntityCache.clear();
+		setMaxSize(Utils.getInt("entity_cache_size"));
+		setTimeToLive(Utils.getInt("entity_cache_ttl"));
+	}
+
+	@Test
+	public void testGet() {
+		User u = new User("test", "test");
+		assertTrue(u.saveOrUpdate());
+
+		long misses = EntityCache.getMisses();
+		long hits = EntityCache.getHits();
+
+		User u2 = User.findByLogin("test");
+		assertEquals(u, u2);
+		assertEquals(misses + 1, EntityCache.getMisses());
+		assertEquals(1, EntityCache.size());
+
+		User u3 = User.findByLogin("test");
+		assertEquals(u2, u3);
+		assertEquals(hits + 1, EntityCache.getHits());
+		// every lookup gets its own instance
+		assertNotSame(u2, u3);
+	}
+
+	@Test
+	public void testGetNotFound() {
+		long misses = EntityCache.getMisses();
+		assertNull(User.findByLogin("unknown"));
+		assertNull(User.findByLogin("unknown"));
+		assertEquals(misses + 2, EntityCache.getMisses());
+		assertEquals(0, EntityCache.size());
+	}
+
+	@Test
+	public void testGetNotCached() {
+		ErrorLog log = new ErrorLog(null, "test");
+		assertTrue(log.saveOrUpdate());
+		User u = new User("test", "test");
+		assertTrue(u.saveOrUpdate());
+		Token t = new Token(u);
+		assertTrue(t.saveOrUpdate());
+		assertNotNull(VSquareObject.findById(log.getId(), ErrorLog.class));
+		// the tokens are cached by the TokenCache
+		assertNotNull(Token.findByValue(t.getValue()));
+		assertEquals(0, EntityCache.size());
+	}
+
+	@Test
+	public void testFindById() {
+		User u = new User("test", "test");
+		assertTrue(u.saveOrUpdate());
+		long hits = EntityCache.getHits();
+		assertEquals(u, User.findById(u.getId()));
+		assertEquals(u, User.findById(u.getId()));
+		assertEquals(hits + 1, EntityCache.getHits());
+		assertEquals(1, EntityCache.size());
+	}
+
+	@Test
+	public void testCopyAssociations() {
+		User u = new User("test", UserType.STUDENT, "test");
+		assertTrue(u.saveOrUpdate());
+		Vm vm = new Vm(u, "vm-test", "test", "test");
+		assertTrue(vm.saveOrUpdate());
+
+		Vm vm2 = Vm.findByIdVmVcenter("vm-test");
+		Vm vm3 = Vm.findByIdVmVcenter("vm-test");
+		assertNotSame(vm2.getUser(), vm3.getUser());
+		assertEquals(u, vm3.getUser());
+		// the lazy groups are read by their own query
+		assertEquals(u.getGroups(), vm3.getUser().getGroups());
+
+		// the vm holds a copy of the user, it is invalidated with the user
+		u.setType(UserType.ADMIN);
+		assertTrue(u.saveOrUpdate());
+		assertEquals(UserType.ADMIN, Vm.findByIdVmVcenter("vm-test").getUser().getType());
+	}
+
+	@Test
+	public void testNotShared() {
+		User u = new User("test", "test");
+		assertTrue(u.saveOrUpdate());
+
+		User u2 = User.findByLogin("test");
+		u2.setType(UserType.ADMIN);
+		assertEquals(UserType.STUDENT, User.findByLogin("test").getType());
+	}
+
+	@Test
+	public void testInvalidateOnSave() {
+		User u = new User("test", "test");
+		assertTrue(u.saveOrUpdate());
+		Vm vm = new Vm(u, "vm-test", "test", "test");
+		assertTrue(vm.saveOrUpdate());
+		assertNotNull(Vm.findByIdVmVcenter("vm-test"));
+
+		vm.setIdVmVcenter("vm-other");
+		assertTrue(vm.saveOrUpdate());
+		assertEquals(0, EntityCache.size());
+		assertNull(Vm.findByIdVmVcenter("vm-test"));
+		assertEquals(vm, Vm.findByIdVmVcenter("vm-other"));
+	}
+
+	@Test
+	public void testInvalidateOnDelete() {
+		User u = new User("test", "test");
+		assertTrue(u.saveOrUpdate());
+
+		assertNotNull(User.findByLogin("test"));
+		assertTrue(u.delete());
+		assertNull(User.findByLogin("test"));
+	}
+
+	@Test
+	public void testDeletedByAnotherNode() throws Exception {
+		User u = new User("test", "test");
+		assertTrue(u.saveOrUpdate());
+		assertNotNull(User.findByLogin("test"));
+
+		// the row is deleted without going through this cache, a hit does not read it
+		try (Connection conn = DatabaseManager.openConnection(); Statement st = conn.createStatement()) {
+			assertEquals(1, st.executeUpdate("DELETE FROM user WHERE id = " + u.getId()));
+		}
+		assertEquals(u, User.findByLogin("test"));
+		EntityCache.clear();
+		assertNull(User.findByLogin("test"));
+	}
+
+	@Test
+	public void testExpired() throws Exception {
+		setTimeToLive(0);
+		User u = new User("test", "test");
+		assertTrue(u.saveOrUpdate());
+		long misses = EntityCache.getMisses();
+		assertNotNull(User.findByLogin("test"));
+		assertNotNull(User.findByLogin("test"));
+		assertEquals(misses + 2, EntityCache.getMisses());
+	}
+
+	@Test
+	public void testClear() {
+		User u = new User("test", "test");
+		assertTrue(u.saveOrUpdate());
+		assertNotNull(User.findByLogin("test"));
+		assertTrue(EntityCache.size() > 0);
+		EntityCache.clear();
+		assertEquals(0, EntityCache.size());
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		setMaxSize(0);
+		User u = new User("test", "test");
+		assertTrue(u.saveOrUpdate());
+		assertNotNull(User.findByLogin("test"));
+		assertEquals(0, EntityCache.size());
+		assertFalse(EntityCache.isEnabled());
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		JSONObject json = EntityCache.getMetrics();
+		assertTrue(json.getBoolean("enabled"));
+		assertEquals(1000, json.getInt("max_size"));
+		assertTrue(json.has("hits"));
+		assertTrue(json.has("misses"));
+		assertTrue(json.has("hit_ratio"));
+		assertTrue(json.has("evictions"));
+	}
+}
@@ -0,0 +1,262 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.TestUtils;
+import fr.eseo.vsquare.model.Group;
+import fr.eseo.vsquare.model.Network;
+import fr.eseo.vsquare.model.Permission;
+import fr.eseo.vsquare.model.User;
+import fr.eseo.vsquare.model.User.UserType;
+import fr.eseo.vsquare.model.Vm;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.sql.Statement;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class GroupTreeTest {
+
+	private Permission permission;
+	private Group parent;
+	private Group child;
+	private User user;
+
+	@Before
+	public void setUp() throws Exception {
+		TestUtils.initTest(true);
+		permission = new Permission(5, 6, 7000, 8000);
+		assertTrue(permission.saveOrUpdate());
+		parent = new Group("parent", "parent group");
+		parent.setPermission(permission);
+		assertTrue(parent.saveOrUpdate());
+		child = new Group("child", "child group", parent);
+		assertTrue(child.saveOrUpdate());
+		user = new User("test_user", UserType.STUDENT, "test");
+		user.addGroup(child);
+		assertTrue(user.saveOrUpdate());
+	}
+
+	private static void expireCheck() throws ReflectiveOperationException {
+		Field lastCheck = GroupTree.class.getDeclaredField("lastCheck");
+		lastCheck.setAccessible(true);
+		((AtomicLong) lastCheck.get(null)).set(0);
+	}
+
+	@Test
+	public void testEffectiveRights() {
+		Network network = new Network("n1", "n1");
+		network.addGroup(parent);
+		assertTrue(network.saveOrUpdate());
+		Vm template = new Vm(user, "id", "template", "desc");
+		template.setTemplate(true);
+		assertTrue(template.saveOrUpdate());
+		parent.addTemplate(template);
+		assertTrue(parent.saveOrUpdate());
+
+		GroupTree.Snapshot tree = GroupTree.get();
+		assertTrue(tree.contains(child.getId()));
+		assertEquals(7000, tree.getEffectivePermission(child.getId()).getMemorySize());
+		assertTrue(tree.getAvailableNetworks(child.getId()).contains(network));
+		assertTrue(tree.getAvailableTemplates(child.getId()).contains(template));
+		assertNull(tree.getEffectivePermission(-1));
+		assertNull(tree.getAvailableNetworks(null));
+
+		// every read gets its own detached copies
+		Network copy = tree.getAvailableNetworks(child.getId()).iterator().next();
+		assertNotSame(copy, tree.getAvailableNetworks(child.getId()).iterator().next());
+		assertEquals("n1", copy.getName());
+		assertEquals(user, tree.getAvailableTemplates(child.getId()).iterator().next().getUser());
+
+		assertEquals(6, user.getEffectivePermission().getCpuCount());
+		assertTrue(user.getAvailableNetworks().contains(network));
+		assertTrue(user.getAvailableTemplates().contains(template));
+		assertSame(tree, GroupTree.get());
+	}
+
+	@Test
+	public void testPermissionCopy() {
+		GroupTree.get().getEffectivePermission(child.getId()).setVmCount(0);
+		assertEquals(5, GroupTree.get().getEffectivePermission(child.getId()).getVmCount());
+		GroupTree.get().getUserPermission(user.getId()).setVmCount(0);
+		assertEquals(5, GroupTree.get().getUserPermission(user.getId()).getVmCount());
+	}
+
+	@Test
+	public void testUserPermission() {
+		User other = new User("other_user", UserType.STUDENT, "other");
+		assertTrue(other.saveOrUpdate());
+
+		GroupTree.Snapshot tree = GroupTree.get();
+		assertEquals(7000, tree.getUserPermission(user.getId()).getMemorySize());
+		assertEquals(new Permission().getMemorySize(), tree.getUserPermission(other.getId()).getMemorySize());
+		assertNull(tree.getUserPermission(null));
+		assertEquals(7000, child.getEffectivePermission().getMemorySize());
+	}
+
+	@Test
+	public void testInvalidate() {
+		GroupTree.Snapshot tree = GroupTree.get();
+		child.setPermission(new Permission(1, 1, 1, 1));
+		assertTrue(child.getEffectivePermission().saveOrUpdate());
+		assertTrue(child.saveOrUpdate());
+
+		GroupTree.Snapshot newTree = GroupTree.get();
+		assertTrue(newTree.getVersion() > tree.getVersion());
+		assertEquals(1, newTree.getEffectivePermission(child.getId()).getCpuCount());
+		assertEquals(6, tree.getEffectivePermission(child.getId()).getCpuCount());
+
+		// a non template vm does not change the tree
+		Vm vm = new Vm(user, "id_vm", "vm", "desc");
+		assertTrue(vm.saveOrUpdate());
+		assertSame(newTree, GroupTree.get());
+	}
+
+	@Test
+	public void testMembers() {
+		GroupTree.Snapshot tree = GroupTree.get();
+		assertTrue(tree.isMember(child.getId(), user.getId()));
+		assertFalse(tree.isMember(parent.getId(), user.getId()));
+		assertFalse(tree.isMember(parent.getId(), null));
+
+		BitSet ids = tree.getUserIds(parent.getId(), true);
+		assertEquals(1, ids.cardinality());
+		assertTrue(ids.get(user.getId()));
+		assertTrue(tree.getUserIds(parent.getId(), false).isEmpty());
+	}
+
+	@Test
+	public void testStats() {
+		Vm vm = new Vm(user, "id_vm", "vm", "desc");
+		assertTrue(vm.saveOrUpdate());
+
+		JSONObject stats = GroupTree.get().getStats(parent.getId());
+		assertEquals(0, stats.getInt("direct_users"));
+		assertEquals(1, stats.getInt("users"));
+		assertEquals(0, stats.getInt("direct_vms"));
+		assertEquals(1, stats.getInt("vms"));
+		assertEquals(6, stats.getLong("allocated_cpu"));
+		assertEquals(7000, stats.getLong("allocated_memory"));
+		assertEquals(8000, stats.getLong("allocated_disk"));
+		assertNull(GroupTree.get().getStats(-1));
+
+		// the vm counts are updated without a new build
+		long builds = GroupTree.getMetrics().getLong("builds");
+		Vm vm2 = new Vm(user, "id_vm2", "vm2", "desc");
+		assertTrue(vm2.saveOrUpdate());
+		assertEquals(2, GroupTree.get().getStats(child.getId()).getInt("direct_vms"));
+		assertTrue(vm.delete());
+		assertEquals(1, GroupTree.get().getStats(parent.getId()).getInt("vms"));
+		assertEquals(builds, GroupTree.getMetrics().getLong("builds"));
+
+		assertEquals(1, parent.toStatsJSON().getInt("number_users"));
+	}
+
+	@Test
+	public void testStatsUnitOfWork() {
+		assertTrue(new Vm(user, "id_vm", "vm", "desc").saveOrUpdate());
+		Permission otherPermission = new Permission(1, 9, 1000, 1000);
+		assertTrue(otherPermission.saveOrUpdate());
+		Group other = new Group("other", "other group");
+		other.setPermission(otherPermission);
+		assertTrue(other.saveOrUpdate());
+		user.addGroup(other);
+		assertTrue(user.saveOrUpdate());
+		JSONObject expected = GroupTree.get().getStats(parent.getId());
+		JSONObject expectedChild = GroupTree.get().getStats(child.getId());
+
+		assertTrue(DatabaseManager.beginUnitOfWork());
+		try {
+			// once the unit of work changed the tree, the statistics are counted from the database
+			assertTrue(new Group("empty", "empty group", parent).saveOrUpdate());
+			assertFalse(GroupTree.get().contains(parent.getId()));
+			JSONObject stats = parent.getStats();
+			JSONObject childStats = child.getStats();
+			for (String key : expected.keySet()) {
+				assertEquals(key, expected.getLong(key), stats.getLong(key));
+				assertEquals(key, expectedChild.getLong(key), childStats.getLong(key));
+			}
+			assertEquals(9, stats.getLong("allocated_cpu"));
+			assertEquals(7000, stats.getLong("allocated_memory"));
+			assertEquals(1, stats.getInt("vms"));
+			assertEquals(1, childStats.getInt("direct_vms"));
+		} finally {
+			DatabaseManager.endUnitOfWork(true);
+		}
+	}
+
+	@Test
+	public void testUnitOfWork() {
+		GroupTree.Snapshot tree = GroupTree.get();
+		assertTrue(tree.contains(child.getId()));
+		assertTrue(DatabaseManager.beginUnitOfWork());
+		try {
+			// the snapshot is read until the unit of work changes the tree
+			assertSame(tree, GroupTree.get());
+			assertEquals(6, user.getEffectivePermission().getCpuCount());
+			Permission childPermission = new Permission(1, 1, 1, 1);
+			assertTrue(childPermission.saveOrUpdate());
+			child.setPermission(childPermission);
+			assertTrue(child.saveOrUpdate());
+			assertFalse(GroupTree.get().contains(child.getId()));
+		} finally {
+			DatabaseManager.endUnitOfWork(true);
+		}
+		assertEquals(1, GroupTree.get().getEffectivePermission(child.getId()).getCpuCount());
+	}
+
+	@Test
+	public void testUnitOfWorkBuild() {
+		GroupTree.invalidate();
+		assertTrue(DatabaseManager.beginUnitOfWork());
+		try {
+			assertTrue(GroupTree.get().contains(child.getId()));
+		} finally {
+			DatabaseManager.endUnitOfWork(true);
+		}
+	}
+
+	@Test
+	public void testRemoteChange() throws Exception {
+		GroupTree.Snapshot tree = GroupTree.get();
+		long checks = GroupTree.getMetrics().getLong("checks");
+		// another node changes a permission and bumps the version
+		try (Statement st = TestUtils.getConnection().createStatement()) {
+			st.executeUpdate("UPDATE permission SET cpu_count = 2 WHERE id = " + permission.getId());
+			st.executeUpdate("UPDATE group_tree_version SET version = version + 1 WHERE id = 1");
+		}
+		expireCheck();
+
+		GroupTree.Snapshot newTree = GroupTree.get();
+		assertNotSame(tree, newTree);
+		assertEquals(2, newTree.getEffectivePermission(child.getId()).getCpuCount());
+		assertEquals(checks + 1, GroupTree.getMetrics().getLong("checks"));
+		// the version is only read again after the interval
+		assertSame(newTree, GroupTree.get());
+		assertEquals(checks + 1, GroupTree.getMetrics().getLong("checks"));
+	}
+
+	@Test
+	public void testVmCountedInPlace() throws Exception {
+		GroupTree.Snapshot tree = GroupTree.get();
+		long dbVersion = GroupTree.getMetrics().getLong("db_version");
+		assertTrue(new Vm(user, "id_vm", "vm", "desc").saveOrUpdate());
+		// the version is bumped for the other nodes, this one keeps its snapshot
+		assertEquals(dbVersion + 1, GroupTree.getMetrics().getLong("db_version"));
+		expireCheck();
+		assertSame(tree, GroupTree.get());
+		assertEquals(1, tree.getStats(child.getId()).getInt("direct_vms"));
+	}
+
+	@Test
+	public void testMetrics() {
+		GroupTree.get();
+		JSONObject metrics = GroupTree.getMetrics();
+		assertFalse(metrics.getBoolean("stale"));
+		assertTrue(metrics.getInt("groups") >= 2);
+		assertTrue(metrics.getLong("builds") > 0);
+	}
+}
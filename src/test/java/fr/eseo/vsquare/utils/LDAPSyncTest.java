@@ -0,0 +1,108 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.TestUtils;
+import fr.eseo.vsquare.model.User;
+import fr.eseo.vsquare.model.User.UserType;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.Date;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"java.*", "javax.*", "org.*", "fr.eseo.vsquare.model.*", "fr.eseo.vsquare.utils.DatabaseManager"})
+@PrepareForTest({LDAPUtils.class})
+public class LDAPSyncTest {
+
+	private HashMap<String, String> ldapUsers;
+
+	@Before
+	public void setUp() throws Exception {
+		TestUtils.initTest(true);
+		ldapUsers = new HashMap<>();
+		ldapUsers.put("ldap1", "LDAP One");
+		ldapUsers.put("ldap2", "LDAP Two");
+		PowerMockito.mockStatic(LDAPUtils.class);
+		Mockito.when(LDAPUtils.scrapUsers(Mockito.any())).thenReturn(ldapUsers);
+	}
+
+	@Test
+	public void testFullSync() {
+		User existing = new User("ldap2", UserType.REFERENT, "Old Name");
+		assertTrue(existing.saveOrUpdate());
+
+		assertEquals(2, LDAPSync.sync(false));
+		assertEquals(2, User.getAll().size());
+		assertEquals("LDAP One", User.findByLogin("ldap1").getCommonName());
+		User updated = User.findById(existing.getId());
+		assertEquals("LDAP Two", updated.getCommonName());
+		assertEquals(UserType.REFERENT, updated.getType());
+
+		assertEquals(0, LDAPSync.sync(false));
+		assertEquals(2, User.getAll().size());
+	}
+
+	@Test
+	public void testIncrementalSync() {
+		assertEquals(2, LDAPSync.sync(false));
+		PowerMockito.verifyStatic(LDAPUtils.class);
+		LDAPUtils.scrapUsers(null);
+
+		HashMap<String, String> changes = new HashMap<>();
+		changes.put("ldap3", "LDAP Three");
+		changes.put("ldap1", "LDAP First");
+		Mockito.when(LDAPUtils.scrapUsers(Mockito.notNull())).thenReturn(changes);
+
+		assertEquals(2, LDAPSync.sync(true));
+		PowerMockito.verifyStatic(LDAPUtils.class);
+		LDAPUtils.scrapUsers(Mockito.any(Date.class));
+		assertEquals(3, User.getAll().size());
+		assertEquals("LDAP First", User.findByLogin("ldap1").getCommonName());
+		assertEquals("LDAP Two", User.findByLogin("ldap2").getCommonName());
+	}
+
+	@Test
+	public void testFailure() {
+		Mockito.when(LDAPUtils.scrapUsers(Mockito.any())).thenReturn(null);
+		long failures = LDAPSync.getMetrics().getLong("failures");
+		assertEquals(-1, LDAPSync.sync(false));
+		assertEquals(failures + 1, LDAPSync.getMetrics().getLong("failures"));
+		assertTrue(User.getAll().isEmpty());
+	}
+
+	@Test
+	public void testScheduledFailure() {
+		Mockito.when(LDAPUtils.scrapUsers(Mockito.any())).thenThrow(new IllegalStateException("test"));
+		long failures = LDAPSync.getMetrics().getLong("failures");
+		LDAPSync.runScheduled();
+		assertEquals(failures + 1, LDAPSync.getMetrics().getLong("failures"));
+	}
+
+	@Test
+	public void testMetrics() {
+		JSONObject before = LDAPSync.getMetrics();
+		LDAPSync.sync(false);
+		JSONObject metrics = LDAPSync.getMetrics();
+		assertEquals(before.getLong("runs") + 1, metrics.getLong("runs"));
+		assertEquals(before.getLong("read") + 2, metrics.getLong("read"));
+		assertEquals(before.getLong("created") + 2, metrics.getLong("created"));
+		assertTrue(metrics.getLong("last_sync") > 0);
+	}
+
+	@Test
+	public void testStartStop() {
+		LDAPSync.start();
+		LDAPSync.start();
+		LDAPSync.stop();
+		LDAPSync.stop();
+	}
+}
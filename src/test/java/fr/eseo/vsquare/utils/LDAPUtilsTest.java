@@ -1,12 +1,15 @@
 package fr.eseo.vsquare.utils;
 
 import fr.eseo.vsquare.TestUtils;
+import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.lang.reflect.Field;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 
@@ -102,4 +105,42 @@ public class LDAPUtilsTest {
 		assertTrue(scrapped.size() > 0);
 		assertTrue(scrapped.contains("test"));
 	}
+
+	/**
+	 * The users are read with their common name, only the changed users in incremental mode
+	 */
+	@Test
+	public void testScrapUsers() {
+		Map<String, String> users = LDAPUtils.scrapUsers(null);
+		assertNotNull(users);
+		assertEquals(common_name, users.get("test"));
+		assertTrue(LDAPUtils.scrapUsers(new Date(System.currentTimeMillis() + 86400000)).isEmpty());
+	}
+
+	/**
+	 * Consecutive logins reuse the pooled connections
+	 */
+	@Test
+	public void testPools() {
+		assertTrue(LDAPUtils.tryCredentials(uid, pw));
+		JSONObject before = LDAPUtils.getMetrics();
+		assertTrue(before.getJSONObject("search").getBoolean("started"));
+		assertTrue(before.getJSONObject("bind").getBoolean("started"));
+
+		for (int i = 0; i < 5; i++)
+			assertTrue(LDAPUtils.tryCredentials(uid, pw));
+		assertFalse(LDAPUtils.tryCredentials(uid, "testNotAdded"));
+
+		JSONObject after = LDAPUtils.getMetrics();
+		assertEquals(before.getJSONObject("search").getLong("connects"),
+				after.getJSONObject("search").getLong("connects"));
+		assertEquals(before.getJSONObject("bind").getLong("connects"), after.getJSONObject("bind").getLong("connects"));
+		assertEquals(before.getJSONObject("bind").getLong("operations") + 6,
+				after.getJSONObject("bind").getLong("operations"));
+		assertEquals(before.getJSONObject("bind").getLong("failures"), after.getJSONObject("bind").getLong("failures"));
+
+		LDAPUtils.closePools();
+		assertFalse(LDAPUtils.getMetrics().getJSONObject("search").getBoolean("started"));
+		assertEquals(common_name, LDAPUtils.getCommonName("test"));
+	}
 }
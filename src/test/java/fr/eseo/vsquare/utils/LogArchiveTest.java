@@ -0,0 +1,151 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.TestUtils;
+import fr.eseo.vsquare.model.EventLog;
+import fr.eseo.vsquare.model.EventLog.EventAction;
+import fr.eseo.vsquare.model.Group;
+import fr.eseo.vsquare.model.User;
+import fr.eseo.vsquare.model.User.UserType;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LogArchiveTest {
+
+	private static final long DAY = 24 * 3600 * 1000L;
+
+	private long now;
+
+	@Before
+	public void setUp() throws Exception {
+		TestUtils.initTest(true);
+		now = System.currentTimeMillis();
+		User u = new User("test_user", UserType.ADMIN, "test");
+		assertTrue(u.saveOrUpdate());
+		for (int i = 0; i < 10; i++) {
+			Group g = new Group((i % 2 == 0 ? "blu" : "bla") + i, "" + i);
+			assertTrue(g.saveOrUpdate());
+			EventLog e = new EventLog(u, EventAction.CREATE, g);
+			assertTrue(e.saveOrUpdate());
+			TestUtils.changeVSquareObjectDate(e, new Date(now - i * 10 * DAY));
+			assertTrue(e.saveOrUpdate());
+		}
+	}
+
+	private static String getName(LogArchive.Entry entry) {
+		return entry.toJSON().getJSONObject("object").getString("name");
+	}
+
+	@Test
+	public void testArchive() {
+		assertFalse(LogArchive.reaches(null));
+		assertEquals(5, LogArchive.archiveBefore(new Date(now - 45 * DAY)));
+		assertEquals(5, EventLog.count(null));
+		assertEquals(0, LogArchive.archiveBefore(new Date(now - 45 * DAY)));
+
+		assertTrue(LogArchive.reaches(null));
+		assertTrue(LogArchive.reaches(new Date(now - 60 * DAY)));
+		assertFalse(LogArchive.reaches(new Date(now + 60 * DAY)));
+
+		assertEquals(5, LogArchive.count(null, null, null));
+		assertEquals(2, LogArchive.count(new Date(now - 75 * DAY), new Date(now - 55 * DAY), null));
+		assertEquals(2, LogArchive.count(null, null, "BlU"));
+		assertEquals(1, LogArchive.count(null, null, "bla7 create"));
+	}
+
+	@Test
+	public void testRead() {
+		LogArchive.archiveBefore(new Date(now - 45 * DAY));
+
+		List<LogArchive.Entry> list = LogArchive.read(null, null, null, null, 0, 3);
+		assertEquals(3, list.size());
+		assertEquals("bla5", getName(list.get(0)));
+		assertEquals("bla7", getName(list.get(2)));
+
+		list = LogArchive.read(null, null, null, list.get(2).getPageCursor(), 0, 3);
+		assertEquals(2, list.size());
+		assertEquals("blu8", getName(list.get(0)));
+		assertEquals("bla9", getName(list.get(1)));
+
+		list = LogArchive.read(null, null, "blu", null, 1, 3);
+		assertEquals(1, list.size());
+		assertEquals("blu8", getName(list.get(0)));
+
+		list = LogArchive.read(new Date(now - 75 * DAY), null, null, null, 0, 10);
+		assertEquals(3, list.size());
+
+		assertNull(LogArchive.read(null, null, null, "not a cursor", 0, 3));
+	}
+
+	@Test
+	public void testSearchPrefixes() {
+		User other = new User("other_user", UserType.ADMIN, "other");
+		assertTrue(other.saveOrUpdate());
+		Group g = new Group("blu_other", "other");
+		assertTrue(g.saveOrUpdate());
+		assertTrue(new EventLog(other, EventAction.EDIT, g).saveOrUpdate());
+		assertTrue(new EventLog(other, EventAction.EDIT, other).saveOrUpdate());
+		assertEquals(12, LogArchive.archiveBefore(new Date(now + DAY)));
+
+		assertEquals(6, LogArchive.count(null, null, "group:blu"));
+		assertEquals(0, LogArchive.count(null, null, "vm:blu"));
+		assertEquals(10, LogArchive.count(null, null, "action:create"));
+		assertEquals(2, LogArchive.count(null, null, "action:edit"));
+		assertEquals(0, LogArchive.count(null, null, "action:unknown"));
+		assertEquals(10, LogArchive.count(null, null, "user:test_user"));
+		assertEquals(2, LogArchive.count(null, null, "user:other"));
+		// the words are searched in the names, not in the whole event
+		assertEquals(0, LogArchive.count(null, null, "create"));
+	}
+
+	@Test
+	public void testArchivedColumns() {
+		LogArchive.archiveBefore(new Date(now - 45 * DAY));
+		JSONObject json = LogArchive.read(null, null, null, null, 0, 1).get(0).toJSON();
+		assertEquals("test_user", json.getJSONObject("user").getString("login"));
+		assertEquals("CREATE", json.getString("action"));
+		assertEquals("GROUP", json.getJSONObject("object").getString("object"));
+		// the current values of the object are not archived
+		assertFalse(json.getJSONObject("object").has("description"));
+	}
+
+	@Test
+	public void testCountKept() {
+		LogArchive.archiveBefore(new Date(now - 45 * DAY));
+		assertEquals(5, LogArchive.count(null, null, null));
+		assertTrue(LogArchive.getMetrics().getInt("counted_files") > 0);
+		assertEquals(3, LogArchive.read(null, null, null, null, 2, 10).size());
+
+		// the counts of a file are read again once it was appended to
+		assertEquals(5, LogArchive.archiveBefore(new Date(now + DAY)));
+		assertEquals(10, LogArchive.count(null, null, null));
+		assertEquals(5, LogArchive.count(null, null, "bla"));
+	}
+
+	@Test
+	public void testArchiveDisabled() {
+		assertEquals(0, LogArchive.archive());
+	}
+
+		@Test
+	public void testClear() {
+		LogArchive.archiveBefore(new Date(now - 45 * DAY));
+		LogArchive.clear();
+		assertEquals(0, LogArchive.count(null, null, null));
+		assertFalse(LogArchive.reaches(null));
+	}
+
+	@Test
+	public void testMetrics() {
+		LogArchive.archiveBefore(new Date(now - 45 * DAY));
+		JSONObject metrics = LogArchive.getMetrics();
+		assertTrue(metrics.getInt("files") > 0);
+		assertTrue(metrics.getLong("size") > 0);
+		assertTrue(metrics.getLong("archived") >= 5);
+	}
+}
@@ -0,0 +1,70 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.TestUtils;
+import fr.eseo.vsquare.model.ErrorLog;
+import fr.eseo.vsquare.model.VSquareObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LogRetentionTest {
+
+	@Before
+	public void setUp() throws Exception {
+		TestUtils.initTest(true);
+	}
+
+	private static void createErrorLog(int monthsAgo) throws Exception {
+		ErrorLog e = new ErrorLog(null, "test " + monthsAgo);
+		assertTrue(e.saveOrUpdate());
+		Calendar date = Calendar.getInstance();
+		date.add(Calendar.MONTH, -monthsAgo);
+		date.add(Calendar.DAY_OF_MONTH, -1);
+		TestUtils.changeVSquareObjectDate(e, date.getTime());
+		assertTrue(e.saveOrUpdate());
+	}
+
+	@Test
+	public void testPurge() throws Exception {
+		for (int i = 0; i < 5; i++)
+			createErrorLog(i * 3);
+		assertEquals(5, ErrorLog.count(null));
+
+		assertEquals(0, LogRetention.purge("error_log", 0));
+		assertEquals(3, LogRetention.purge("error_log", 6));
+		assertEquals(2, ErrorLog.count(null));
+		assertEquals(0, LogRetention.purge("error_log", 6));
+	}
+
+	@Test
+	public void testPurgeBatches() throws Exception {
+		List<ErrorLog> logs = new ArrayList<>();
+		for (int i = 0; i < 2500; i++)
+			logs.add(new ErrorLog(null, "test " + i));
+		assertTrue(VSquareObject.saveAll(logs));
+		assertEquals(2500, LogRetention.purgeBefore("error_log", new Timestamp(System.currentTimeMillis() + 1000)));
+		assertEquals(0, ErrorLog.count(null));
+	}
+
+	@Test
+	public void testMetrics() {
+		long runs = LogRetention.getMetrics().getLong("runs");
+		LogRetention.purge();
+		assertEquals(runs + 1, LogRetention.getMetrics().getLong("runs"));
+		assertTrue(LogRetention.getMetrics().getLong("last_run") > 0);
+	}
+
+	@Test
+	public void testStartStop() {
+		LogRetention.start();
+		LogRetention.start();
+		LogRetention.stop();
+		LogRetention.stop();
+	}
+}
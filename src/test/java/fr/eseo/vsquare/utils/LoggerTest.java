@@ -7,6 +7,7 @@ import fr.eseo.vsquare.model.User.UserType;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.lang.reflect.Field;
 import java.util.List;
 import java.util.logging.Level;
 
@@ -28,6 +29,7 @@ public class LoggerTest {
 		
 		Logger.log(Level.SEVERE, e.toString(), e, u);
 		
+		BatchWriter.flushAll();
 		List<ErrorLog> errors = ErrorLog.getAll();
 		assertEquals(1, errors.size());
 		
@@ -42,6 +44,7 @@ public class LoggerTest {
 		
 		Logger.log(Level.SEVERE, e.toString(), e);
 		
+		BatchWriter.flushAll();
 		List<ErrorLog> errors = ErrorLog.getAll();
 		assertEquals(1, errors.size());
 		
@@ -57,6 +60,7 @@ public class LoggerTest {
 		
 		Logger.log(Level.SEVERE, "Test error do not panic", u);
 		
+		BatchWriter.flushAll();
 		List<ErrorLog> errors = ErrorLog.getAll();
 		assertEquals(1, errors.size());
 		
@@ -69,6 +73,7 @@ public class LoggerTest {
 	public void testReportError4() throws Exception{
 		Logger.log(Level.SEVERE, "Test error do not panic");
 		
+		BatchWriter.flushAll();
 		List<ErrorLog> errors = ErrorLog.getAll();
 		assertEquals(1, errors.size());
 		
@@ -76,4 +81,80 @@ public class LoggerTest {
 		assertTrue(el.getError().startsWith("[VSquare-LoggerTest] Test error do not panic"));
 		assertNull(el.getUser());
 	}
+
+	@Test
+	public void testReportErrorRepeats() throws Exception {
+		for (int i = 0; i < 5; i++)
+			Logger.log(Level.SEVERE, "Test error do not panic");
+		Logger.log(Level.SEVERE, "Other test error do not panic");
+
+		BatchWriter.flushAll();
+		assertEquals(2, ErrorLog.getAll().size());
+
+		// the 4 repeats are written as one log
+		ErrorDeduplicator.flush();
+		BatchWriter.flushAll();
+		List<ErrorLog> errors = ErrorLog.getAll();
+		assertEquals(3, errors.size());
+		assertEquals(1, errors.stream().filter(el -> el.getRepeatCount() == 4).count());
+		assertTrue(errors.stream().filter(el -> el.getRepeatCount() == 4).findFirst().get().getError()
+				.startsWith("[VSquare-LoggerTest] Test error do not panic"));
+	}
+
+	@Test
+	public void testReportErrorRepeatsUser() throws Exception {
+		User u = new User("test_user", UserType.ADMIN, "test");
+		assertTrue(u.saveOrUpdate());
+		Logger.log(Level.SEVERE, "Test error do not panic", u);
+		Logger.log(Level.SEVERE, "Test error do not panic", u);
+		Logger.log(Level.SEVERE, "Test error do not panic");
+
+		// the repeats are written with the user of the first occurrence
+		ErrorDeduplicator.flush();
+		BatchWriter.flushAll();
+		ErrorLog repeats = ErrorLog.getAll().stream().filter(el -> el.getRepeatCount() == 2).findFirst().get();
+		assertEquals(u, repeats.getUser());
+	}
+
+	@Test
+	public void testReportErrorRepeatsScheduled() throws Exception {
+		for (int i = 0; i < 3; i++)
+			Logger.log(Level.SEVERE, "Test error do not panic");
+		BatchWriter.flushAll();
+		assertEquals(1, ErrorLog.getAll().size());
+
+		// the window ends without another error, the background thread writes the repeats
+		Field window = ErrorDeduplicator.class.getDeclaredField("window");
+		window.setAccessible(true);
+		long previous = window.getLong(null);
+		try {
+			window.setLong(null, 1);
+			Thread.sleep(5);
+			ErrorDeduplicator.runScheduled();
+		} finally {
+			window.setLong(null, previous);
+		}
+		BatchWriter.flushAll();
+		assertEquals(1, ErrorLog.getAll().stream().filter(el -> el.getRepeatCount() == 2).count());
+		assertEquals(0, ErrorDeduplicator.getMetrics().getInt("fingerprints"));
+	}
+
+	@Test
+	public void testDedupStartStop() {
+		ErrorDeduplicator.start();
+		ErrorDeduplicator.start();
+		ErrorDeduplicator.stop();
+		ErrorDeduplicator.stop();
+	}
+
+	@Test
+	public void testFingerprint() {
+		Exception e = new Exception("Testing errors do not panic 1");
+		Exception e2 = new Exception("Testing errors do not panic 2");
+		e2.setStackTrace(e.getStackTrace());
+		assertEquals(ErrorDeduplicator.fingerprint("test", "{0}", e), ErrorDeduplicator.fingerprint("test", "{0}", e2));
+		assertNotEquals(ErrorDeduplicator.fingerprint("test", "{0}", e),
+				ErrorDeduplicator.fingerprint("test", "{0}", new Exception()));
+		assertNotEquals(ErrorDeduplicator.fingerprint("test", "a", null), ErrorDeduplicator.fingerprint("test", "b", null));
+	}
 }
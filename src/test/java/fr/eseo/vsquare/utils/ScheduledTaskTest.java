@@ -0,0 +1,59 @@
+package fr.eseo.vsquare.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import static org.junit.Assert.*;
+
+public class ScheduledTaskTest {
+
+	@Before
+	public void setUp() {
+		Logger.init("logging.properties", Level.OFF);
+	}
+
+	@Test
+	public void testRunCountsFailures() {
+		AtomicLong failures = new AtomicLong();
+		ScheduledTask task = new ScheduledTask("test-task", () -> {
+			throw new IllegalStateException("test");
+		}, failures);
+		task.run();
+		task.run();
+		assertEquals(2, failures.get());
+	}
+
+	@Test
+	public void testFailureDoesNotCancelLaterRuns() throws InterruptedException {
+		AtomicLong failures = new AtomicLong();
+		CountDownLatch runs = new CountDownLatch(3);
+		ScheduledTask task = new ScheduledTask("test-task", () -> {
+			runs.countDown();
+			throw new IllegalStateException("test");
+		}, failures);
+		task.start(10);
+		task.start(10);
+		try {
+			assertTrue(runs.await(5, TimeUnit.SECONDS));
+		} finally {
+			task.stop();
+			task.stop();
+		}
+		// the last run may still be counting its failure
+		assertTrue(failures.get() >= 2);
+	}
+
+	@Test
+	public void testDisabled() {
+		AtomicLong failures = new AtomicLong();
+		ScheduledTask task = new ScheduledTask("test-task", failures::incrementAndGet, failures);
+		task.start(0);
+		task.stop();
+		assertEquals(0, failures.get());
+	}
+}
@@ -16,6 +16,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.lang.reflect.Field;
 import java.sql.Date;
 import java.sql.SQLException;
 import java.util.HashMap;
@@ -46,7 +47,7 @@ public class ServletUtilsTest {
 		HttpServletRequest request = TestUtils.createMockRequest("", "", null, null);
 		HttpServletResponse response = TestUtils.createMockResponse(writer);
 
-		User user = ServletUtils.verifyToken(request, response);
+		ApiUser user = ServletUtils.verifyToken(request, response);
 		assertNull(user);
 		JSONObject res = TestUtils.getResponseAsJSON(writer);
 		assertEquals(HttpServletResponse.SC_UNAUTHORIZED, res.getInt("code"));
@@ -70,7 +71,7 @@ public class ServletUtilsTest {
 		HttpServletRequest request = TestUtils.createMockRequest("", "", null, headers);
 		HttpServletResponse response = TestUtils.createMockResponse(writer);
 
-		User user = ServletUtils.verifyToken(request, response);
+		ApiUser user = ServletUtils.verifyToken(request, response);
 		assertNull(user);
 		JSONObject res = TestUtils.getResponseAsJSON(writer);
 		assertEquals(HttpServletResponse.SC_UNAUTHORIZED, res.getInt("code"));
@@ -110,7 +111,7 @@ public class ServletUtilsTest {
 		HttpServletRequest request = TestUtils.createMockRequest("", "", null, headers);
 		HttpServletResponse response = TestUtils.createMockResponse(writer);
 
-		User user = ServletUtils.verifyToken(request, response);
+		ApiUser user = ServletUtils.verifyToken(request, response);
 		assertNull(user);
 		JSONObject res = TestUtils.getResponseAsJSON(writer);
 		assertEquals(HttpServletResponse.SC_UNAUTHORIZED, res.getInt("code"));
@@ -139,7 +140,7 @@ public class ServletUtilsTest {
 		HttpServletRequest request = TestUtils.createMockRequest("", "", null, headers);
 		HttpServletResponse response = TestUtils.createMockResponse(writer);
 
-		User user = ServletUtils.verifyToken(request, response);
+		ApiUser user = ServletUtils.verifyToken(request, response);
 		assertNotNull(user);
 	}
 
@@ -235,6 +236,63 @@ public class ServletUtilsTest {
 		assertEquals(HttpServletResponse.SC_NOT_FOUND, res.getInt("code"));
 	}
 
+	private static void setSessionPerRequest(boolean sessionPerRequest) throws ReflectiveOperationException {
+		Field field = ServletUtils.class.getDeclaredField("sessionPerRequest");
+		field.setAccessible(true);
+		field.set(null, sessionPerRequest);
+	}
+
+	@Test
+	public void testMapRequestUnitOfWork() throws Exception {
+		StringWriter writer = new StringWriter();
+		HttpServletRequest request = TestUtils.createMockRequest("POST", "/api/test", null, null);
+		HttpServletResponse response = TestUtils.createMockResponse(writer);
+
+		LinkedHashMap<String, Runnable> map = new LinkedHashMap<>();
+		map.put("POST /api/test", () -> {
+			assertTrue(new User("test", "test").saveOrUpdate());
+			ServletUtils.sendOK(response);
+			// nothing is written before the commit
+			assertEquals("", writer.toString());
+		});
+
+		setSessionPerRequest(true);
+		try {
+			ServletUtils.mapRequest(request, response, map);
+		} finally {
+			setSessionPerRequest(Utils.getBoolean("db_session_per_request"));
+		}
+
+		assertEquals(HttpServletResponse.SC_OK, TestUtils.getResponseAsJSON(writer).getInt("code"));
+		assertNotNull(User.findByLogin("test"));
+	}
+
+	@Test
+	public void testMapRequestCommitFailed() throws Exception {
+		StringWriter writer = new StringWriter();
+		HttpServletRequest request = TestUtils.createMockRequest("POST", "/api/test", null, null);
+		HttpServletResponse response = TestUtils.createMockResponse(writer);
+
+		LinkedHashMap<String, Runnable> map = new LinkedHashMap<>();
+		map.put("POST /api/test", () -> {
+			assertTrue(new User("test", "test").saveOrUpdate());
+			// an earlier operation of the request failed
+			DatabaseManager.rollbackTransaction(null);
+			ServletUtils.sendOK(response);
+		});
+
+		setSessionPerRequest(true);
+		try {
+			ServletUtils.mapRequest(request, response, map);
+		} finally {
+			setSessionPerRequest(Utils.getBoolean("db_session_per_request"));
+		}
+
+		assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, TestUtils.getResponseAsJSON(writer).getInt("code"));
+		assertNull(User.findByLogin("test"));
+		assertFalse(DatabaseManager.isUnitOfWorkActive());
+	}
+
 	@Test
 	public void testHandleCrossOrigin() {
 		StringWriter writer = new StringWriter();
@@ -0,0 +1,235 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.TestUtils;
+import fr.eseo.vsquare.model.RevokedToken;
+import fr.eseo.vsquare.model.User;
+import fr.eseo.vsquare.model.User.UserType;
+import fr.eseo.vsquare.servlet.AuthServlet;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class SignedTokenTest {
+
+	private User user;
+
+	private static void setEnabled(boolean enabled) throws ReflectiveOperationException {
+		Field field = SignedToken.class.getDeclaredField("enabled");
+		field.setAccessible(true);
+		field.set(null, enabled);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		TestUtils.initTest(true);
+		setEnabled(true);
+		SignedToken.loadKeys("k1:first secret");
+		user = new User("test", UserType.STUDENT, "test");
+		assertTrue(user.saveOrUpdate());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		setEnabled(Utils.getBoolean("auth_signed_tokens"));
+		SignedToken.loadKeys(Utils.getString("auth_signing_keys"));
+	}
+
+	private static HashMap<String, String> headers(String token) {
+		HashMap<String, String> headers = new HashMap<>();
+		headers.put(Utils.getString("auth_token_header"), token);
+		return headers;
+	}
+
+	private static ApiUser verify(String token) {
+		HttpServletRequest request = TestUtils.createMockRequest("", "", null, headers(token));
+		HttpServletResponse response = TestUtils.createMockResponse(new StringWriter());
+		return ServletUtils.verifyToken(request, response);
+	}
+
+	@Test
+	public void testIssueAndVerify() {
+		String token = SignedToken.issue(user);
+		assertNotNull(token);
+		assertTrue(SignedToken.isSigned(token));
+		assertTrue(token.startsWith("k1."));
+
+		SignedToken.Claims claims = SignedToken.verify(token);
+		assertNotNull(claims);
+		assertEquals((int) user.getId(), claims.getUserId());
+		assertEquals(UserType.STUDENT, claims.getUserType());
+		assertEquals("test", claims.getLogin());
+		ApiUser apiUser = verify(token);
+		assertEquals((int) user.getId(), apiUser.getId());
+		assertEquals(UserType.STUDENT, apiUser.getType());
+		assertEquals("test", apiUser.getLogin());
+		assertEquals(user, apiUser.getUser());
+		assertEquals(0, TokenCache.size());
+	}
+
+	@Test
+	public void testUserNotRead() throws Exception {
+		String token = SignedToken.issue(user);
+		// the row is deleted without going through the model, the request is authenticated by the token alone
+		try (Statement st = TestUtils.getConnection().createStatement()) {
+			st.execute("DELETE FROM link_user_group WHERE id_user = " + user.getId());
+			assertEquals(1, st.executeUpdate("DELETE FROM user WHERE id = " + user.getId()));
+		}
+		EntityCache.clear();
+		ApiUser apiUser = verify(token);
+		assertNotNull(apiUser);
+		assertEquals((int) user.getId(), apiUser.getId());
+		assertNull(apiUser.getUser());
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		String token = SignedToken.issue(user);
+		setEnabled(false);
+		assertFalse(SignedToken.isEnabled());
+		assertNull(SignedToken.issue(user));
+		assertNull(SignedToken.verify(token));
+		assertNull(verify(token));
+
+		setEnabled(true);
+		SignedToken.loadKeys("");
+		assertFalse(SignedToken.isEnabled());
+	}
+
+	@Test
+	public void testTampered() {
+		String token = SignedToken.issue(user);
+		int signatureStart = token.lastIndexOf('.');
+		String signature = token.substring(signatureStart + 1);
+		String other = SignedToken.issue(user);
+
+		assertNull(SignedToken.verify(token.substring(0, signatureStart) + "." + new StringBuilder(signature).reverse()));
+		assertNull(SignedToken.verify(token.substring(0, signatureStart) + other.substring(other.lastIndexOf('.'))));
+		assertNull(SignedToken.verify("k2" + token.substring(2)));
+		assertNull(SignedToken.verify(token.substring(0, signatureStart)));
+		assertNull(SignedToken.verify("k1.%%%.%%%"));
+		assertNull(SignedToken.verify("a.b"));
+		assertNull(verify("k1.test.test"));
+	}
+
+	@Test
+	public void testExpired() {
+		String token = SignedToken.issue(user, System.currentTimeMillis() - Utils.getInt("token_max_age") - 1);
+		assertNull(SignedToken.verify(token));
+	}
+
+	@Test
+	public void testKeyRotation() {
+		String oldToken = SignedToken.issue(user);
+		SignedToken.loadKeys("k2:second secret, k1:first secret");
+		String newToken = SignedToken.issue(user);
+		assertTrue(newToken.startsWith("k2."));
+		assertNotNull(SignedToken.verify(oldToken));
+		assertNotNull(SignedToken.verify(newToken));
+
+		SignedToken.loadKeys("k2:second secret,invalid key:test,k3");
+		assertNull(SignedToken.verify(oldToken));
+		assertNotNull(SignedToken.verify(newToken));
+		assertEquals(1, SignedToken.getMetrics().getInt("keys"));
+	}
+
+	@Test
+	public void testUserChanged() {
+		String token = SignedToken.issue(user);
+		user.setType(UserType.ADMIN);
+		assertTrue(user.saveOrUpdate());
+		assertNull(verify(token));
+		// the revocation is stored to the second
+		ApiUser apiUser = verify(SignedToken.issue(user, System.currentTimeMillis() + 1000));
+		assertNotNull(apiUser);
+		assertEquals(UserType.ADMIN, apiUser.getType());
+
+		// other nodes read the revocation from the database
+		SignedToken.clear();
+		assertNull(verify(token));
+
+		User other = new User("other", UserType.STUDENT, "other");
+		assertTrue(other.saveOrUpdate());
+		String otherToken = SignedToken.issue(other);
+		String deletedToken = SignedToken.issue(user);
+		assertTrue(user.delete());
+		assertNull(verify(deletedToken));
+		assertNotNull(verify(otherToken));
+	}
+
+	@Test
+	public void testLogout() throws Exception {
+		String token = SignedToken.issue(user);
+		String otherToken = SignedToken.issue(user);
+
+		StringWriter writer = new StringWriter();
+		HttpServletRequest request = TestUtils.createMockRequest("DELETE", "/api/auth/logout", null, headers(token));
+		new AuthServlet().service(request, TestUtils.createMockResponse(writer));
+		assertEquals(HttpServletResponse.SC_OK, TestUtils.getResponseAsJSON(writer).getInt("code"));
+
+		assertNull(SignedToken.verify(token));
+		assertNotNull(SignedToken.verify(otherToken));
+		assertEquals(1, RevokedToken.getAll().size());
+
+		// another node reads the revocation from the database
+		SignedToken.clear();
+		assertNull(SignedToken.verify(token));
+		assertNotNull(SignedToken.verify(otherToken));
+	}
+
+	private static void setStaticField(String name, Object value) throws ReflectiveOperationException {
+		Field field = SignedToken.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(null, value);
+	}
+
+	@Test
+	public void testRevocationReadFailed() throws Exception {
+		String token = SignedToken.issue(user);
+		SignedToken.Claims claims = SignedToken.verify(token);
+		assertNotNull(claims);
+		Field tokenId = SignedToken.Claims.class.getDeclaredField("tokenId");
+		tokenId.setAccessible(true);
+
+		// another node revokes the token while this node cannot read the revocations
+		assertTrue(new RevokedToken((String) tokenId.get(claims), new Date(System.currentTimeMillis() + 60000))
+				.saveOrUpdate());
+		long failures = SignedToken.getMetrics().getLong("refresh_failures");
+		try (Statement st = TestUtils.getConnection().createStatement()) {
+			st.execute("RENAME TABLE revoked_token TO revoked_token_moved");
+			try {
+				setStaticField("lastAttempt", 0L);
+				assertNotNull(SignedToken.verify(token));
+				assertEquals(failures + 1, SignedToken.getMetrics().getLong("refresh_failures"));
+			} finally {
+				st.execute("RENAME TABLE revoked_token_moved TO revoked_token");
+			}
+		}
+
+		// the next read starts from the last successful one
+		setStaticField("lastAttempt", 0L);
+		assertNull(SignedToken.verify(token));
+	}
+
+	@Test
+	public void testMetrics() {
+		SignedToken.verify(SignedToken.issue(user));
+		SignedToken.verify("k1.test.test");
+		JSONObject metrics = SignedToken.getMetrics();
+		assertTrue(metrics.getBoolean("enabled"));
+		assertTrue(metrics.getLong("issued") > 0);
+		assertTrue(metrics.getLong("verified") > 0);
+		assertTrue(metrics.getLong("rejected") > 0);
+		assertTrue(metrics.has("revoked"));
+	}
+}
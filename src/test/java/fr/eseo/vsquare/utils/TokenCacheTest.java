@@ -0,0 +1,145 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.TestUtils;
+import fr.eseo.vsquare.model.Token;
+import fr.eseo.vsquare.model.User;
+import fr.eseo.vsquare.model.User.UserType;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class TokenCacheTest {
+
+	private String token;
+
+	@Before
+	public void setUp() throws Exception {
+		TestUtils.initTest(true);
+		token = TestUtils.login("test", "test", UserType.STUDENT);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		setTimeToLive(Utils.getInt("token_cache_ttl"));
+	}
+
+	private static void setTimeToLive(long timeToLive) throws ReflectiveOperationException {
+		Field field = TokenCache.class.getDeclaredField("timeToLive");
+		field.setAccessible(true);
+		field.set(null, timeToLive);
+	}
+
+	private static ApiUser verifyApiUser(String value) {
+		HashMap<String, String> headers = new HashMap<>();
+		headers.put(Utils.getString("auth_token_header"), value);
+		HttpServletRequest request = TestUtils.createMockRequest("", "", null, headers);
+		HttpServletResponse response = TestUtils.createMockResponse(new StringWriter());
+		return ServletUtils.verifyToken(request, response);
+	}
+
+	private static User verify(String value) {
+		ApiUser user = verifyApiUser(value);
+		return user == null ? null : user.getUser();
+	}
+
+	private void deleteFromAnotherNode() throws Exception {
+		try (Statement st = TestUtils.getConnection().createStatement()) {
+			assertEquals(1, st.executeUpdate("DELETE FROM token WHERE value = '" + token + "'"));
+		}
+	}
+
+	@Test
+	public void testHit() {
+		long hits = TokenCache.getMetrics().getLong("hits");
+		long misses = TokenCache.getMetrics().getLong("misses");
+
+		User user = verify(token);
+		assertNotNull(user);
+		assertEquals("test", user.getLogin());
+		assertEquals(misses + 1, TokenCache.getMetrics().getLong("misses"));
+		assertEquals(1, TokenCache.size());
+
+		assertEquals(user, verify(token));
+		assertEquals(hits + 1, TokenCache.getMetrics().getLong("hits"));
+	}
+
+	@Test
+	public void testHitNotRead() throws Exception {
+		assertNotNull(verify(token));
+		// the token row is deleted by another node, this node serves it until its entry expires
+		deleteFromAnotherNode();
+		ApiUser user = verifyApiUser(token);
+		assertNotNull(user);
+		assertEquals("test", user.getLogin());
+		assertEquals(UserType.STUDENT, user.getType());
+	}
+
+	@Test
+	public void testTimeToLive() throws Exception {
+		setTimeToLive(0);
+		assertNotNull(verify(token));
+		deleteFromAnotherNode();
+		assertNull(verify(token));
+		assertEquals(0, TokenCache.size());
+	}
+
+	@Test
+	public void testInvalidToken() {
+		assertNull(verify("test"));
+		assertNull(verify("test"));
+		assertEquals(0, TokenCache.size());
+	}
+
+	@Test
+	public void testInvalidateOnDelete() {
+		assertNotNull(verify(token));
+		long invalidations = TokenCache.getMetrics().getLong("invalidations");
+		assertTrue(Token.findByValue(token).delete());
+		assertEquals(0, TokenCache.size());
+		assertEquals(invalidations + 1, TokenCache.getMetrics().getLong("invalidations"));
+		assertNull(verify(token));
+	}
+
+	@Test
+	public void testInvalidateOnUserSave() {
+		User user = verify(token);
+		assertNotNull(user);
+		user.setType(UserType.ADMIN);
+		assertTrue(user.saveOrUpdate());
+		assertEquals(0, TokenCache.size());
+		assertEquals(UserType.ADMIN, verify(token).getType());
+	}
+
+	@Test
+	public void testExpired() throws Exception {
+		Token t = Token.findByValue(token);
+		TestUtils.changeVSquareObjectDate(t, new Date(System.currentTimeMillis() - Utils.getInt("token_max_age") - 1));
+		assertTrue(t.saveOrUpdate());
+		assertNull(verify(token));
+		assertEquals(0, TokenCache.size());
+		assertNull(Token.findByValue(token));
+	}
+
+	@Test
+	public void testMetrics() {
+		verify(token);
+		JSONObject metrics = TokenCache.getMetrics();
+		assertTrue(metrics.getBoolean("enabled"));
+		assertEquals(1, metrics.getInt("size"));
+		assertEquals(Utils.getInt("token_cache_size"), metrics.getInt("max_size"));
+		assertEquals(Utils.getInt("token_cache_ttl"), metrics.getInt("ttl"));
+		assertTrue(metrics.has("hit_ratio"));
+		assertTrue(metrics.has("evictions"));
+	}
+}
@@ -0,0 +1,86 @@
+package fr.eseo.vsquare.utils;
+
+import fr.eseo.vsquare.TestUtils;
+import fr.eseo.vsquare.model.RevokedToken;
+import fr.eseo.vsquare.model.Token;
+import fr.eseo.vsquare.model.User;
+import fr.eseo.vsquare.model.User.UserType;
+import fr.eseo.vsquare.model.VSquareObject;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TokenReaperTest {
+
+	private User user;
+
+	@Before
+	public void setUp() throws Exception {
+		TestUtils.initTest(true);
+		user = new User("test", UserType.STUDENT, "test");
+		assertTrue(user.saveOrUpdate());
+	}
+
+	private Token createToken(String value, long age) throws Exception {
+		Token token = new Token(value, user);
+		assertTrue(token.saveOrUpdate());
+		TestUtils.changeVSquareObjectDate(token, new Date(System.currentTimeMillis() - age));
+		assertTrue(token.saveOrUpdate());
+		return token;
+	}
+
+	@Test
+	public void testSweep() throws Exception {
+		long maxAge = Utils.getInt("token_max_age");
+		createToken("valid", 0);
+		createToken("expired", maxAge + 60000);
+		createToken("expired2", maxAge + 120000);
+		long now = System.currentTimeMillis();
+		assertTrue(new RevokedToken("revoked", new Date(now + 60000)).saveOrUpdate());
+		assertTrue(new RevokedToken("expired", new Date(now - 60000)).saveOrUpdate());
+
+		assertEquals(3, TokenReaper.sweep());
+		assertEquals(1, Token.getAll().size());
+		assertNotNull(Token.findByValue("valid"));
+		assertEquals(1, RevokedToken.getAll().size());
+		assertEquals(0, TokenReaper.sweep());
+	}
+
+	@Test
+	public void testDeleteBatches() {
+		List<Token> tokens = new ArrayList<>();
+		for (int i = 0; i < 2500; i++)
+			tokens.add(new Token("token" + i, user));
+		assertTrue(VSquareObject.saveAll(tokens));
+		assertEquals(2500, TokenReaper.delete("token", "creation_date", new Timestamp(System.currentTimeMillis() + 1000)));
+		assertTrue(Token.getAll().isEmpty());
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		JSONObject before = TokenReaper.getMetrics();
+		createToken("expired", Utils.getInt("token_max_age") + 60000);
+		TokenReaper.sweep();
+		JSONObject metrics = TokenReaper.getMetrics();
+		assertEquals(before.getLong("runs") + 1, metrics.getLong("runs"));
+		assertEquals(before.getLong("deleted") + 1, metrics.getLong("deleted"));
+		assertTrue(metrics.getLong("last_run") > 0);
+		assertTrue(metrics.getLong("last_duration") >= 0);
+		assertTrue(metrics.has("average_duration"));
+	}
+
+	@Test
+	public void testStartStop() {
+		TokenReaper.start();
+		TokenReaper.start();
+		TokenReaper.stop();
+		TokenReaper.stop();
+	}
+}
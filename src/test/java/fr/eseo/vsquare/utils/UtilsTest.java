@@ -123,4 +123,22 @@ public class UtilsTest {
         assertTrue(Utils.isAlphaNumeric("1B2a3Z4 5bc", ' '));
         assertTrue(Utils.isAlphaNumeric(" -;!:,%", ' ', '-', ';', '!', ':', ',', '%'));
     }
+
+    @Test
+    public void testToFullTextQuery() {
+        assertEquals("+test*", Utils.toFullTextQuery("test"));
+        assertEquals("+john* +doe*", Utils.toFullTextQuery(" john.doe "));
+        assertEquals("+test_user*", Utils.toFullTextQuery("test_user"));
+        assertEquals("+abc* +def*", Utils.toFullTextQuery("abc +def*"));
+        assertNull(Utils.toFullTextQuery("vm-01"));
+        assertNull(Utils.toFullTextQuery("%!"));
+        assertNull(Utils.toFullTextQuery(""));
+    }
+
+    @Test
+    public void testToFullTextQueryStopwords() {
+        assertEquals("+error* +server*", Utils.toFullTextQuery("error from the server"));
+        assertEquals("+theory*", Utils.toFullTextQuery("THE theory"));
+        assertNull(Utils.toFullTextQuery("about the"));
+    }
 }